@@ -0,0 +1,76 @@
+package com.iuxta.nearby.benchmarks;
+
+import com.iuxta.nearby.NearbyUtils;
+import com.iuxta.nearby.dto.RequestDto;
+import com.iuxta.nearby.dto.ResponseDto;
+import com.iuxta.nearby.dto.UserDto;
+import com.iuxta.nearby.model.Request;
+import com.iuxta.nearby.model.Response;
+import com.iuxta.nearby.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a page of models into the dtos the resources return.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class DtoBenchmark {
+
+    private User user;
+    private List<Request> requests = new ArrayList<>();
+    private List<Response> responses = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        Fixtures fixtures = new Fixtures();
+        user = fixtures.user(0);
+        // a full page
+        for (int i = 0; i < NearbyUtils.MAX_LIMIT; i++) {
+            Request request = fixtures.request(i, fixtures.user(i + 1));
+            requests.add(request);
+            responses.add(fixtures.response(i, request, user));
+        }
+    }
+
+    @Benchmark
+    public List<RequestDto> requestPage() {
+        return RequestDto.transform(requests);
+    }
+
+    @Benchmark
+    public List<RequestDto> publicRequestPage() {
+        return RequestDto.transformPublicResults(requests);
+    }
+
+    @Benchmark
+    public List<ResponseDto> responsePage() {
+        return ResponseDto.transform(responses);
+    }
+
+    @Benchmark
+    public UserDto myUser() {
+        return UserDto.getMyUserDto(user);
+    }
+
+    @Benchmark
+    public UserDto otherUser() {
+        return UserDto.getOtherUserDto(user);
+    }
+}
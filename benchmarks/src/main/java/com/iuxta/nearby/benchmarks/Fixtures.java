@@ -0,0 +1,92 @@
+package com.iuxta.nearby.benchmarks;
+
+import com.iuxta.nearby.dto.HistoryDto;
+import com.iuxta.nearby.dto.RequestDto;
+import com.iuxta.nearby.dto.ResponseDto;
+import com.iuxta.nearby.model.GeoJsonPoint;
+import com.iuxta.nearby.model.Request;
+import com.iuxta.nearby.model.Response;
+import com.iuxta.nearby.model.User;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Made up users, requests and responses shaped like what the app loads from the db. Built from a fixed seed so every
+ * run benchmarks the same data.
+ */
+public class Fixtures {
+
+    private static final long NOW = 1503300000000L;
+
+    private Random random = new Random(20);
+
+    public User user(int i) {
+        User user = new User("first" + i, "last" + i, "facebook-" + (100000 + i));
+        user.setId(new ObjectId(new Date(NOW), i).toHexString());
+        user.setPictureUrl("https://graph.facebook.com/" + (100000 + i) + "/picture");
+        user.setFcmRegistrationId("fcm-token-" + i + "-" + Long.toHexString(random.nextLong()));
+        return user;
+    }
+
+    public Request request(int i, User poster) {
+        Request request = new Request();
+        request.setId(new ObjectId(new Date(NOW - i * 60000L), i).toHexString());
+        request.setUser(poster);
+        request.setItemName("camping tent " + i);
+        request.setDescription("looking to borrow a 4 person tent for the weekend, will take good care of it");
+        request.setLocation(new GeoJsonPoint(-76.6122 + random.nextDouble() / 10, 39.2904 + random.nextDouble() / 10));
+        request.setPostDate(new Date(NOW - i * 60000L));
+        request.setExpireDate(new Date(NOW + 86400000L));
+        request.setRental(i % 2 == 0);
+        request.setType(Request.Type.values()[i % Request.Type.values().length]);
+        request.setStatus(i % 4 == 0 ? Request.Status.TRANSACTION_PENDING : Request.Status.OPEN);
+        request.setInappropriate(false);
+        request.setDuplicate(false);
+        request.setPhotos(Collections.singletonList("photos/" + i + ".jpg"));
+        return request;
+    }
+
+    public Response response(int i, Request request, User responder) {
+        Response response = new Response();
+        response.setId(new ObjectId(new Date(NOW - i * 1000L), i).toHexString());
+        response.setRequestId(request.getId());
+        response.setResponderId(responder.getId());
+        response.setSellerId(responder.getId());
+        response.setResponseTime(new Date(NOW - i * 1000L));
+        response.setOfferPrice(10.0 + i % 20);
+        response.setPriceType(Response.PriceType.values()[i % Response.PriceType.values().length]);
+        response.setExchangeLocation("main st & 1st ave");
+        response.setExchangeTime(new Date(NOW + 3600000L));
+        response.setBuyerStatus(Response.BuyerStatus.OPEN);
+        response.setSellerStatus(Response.SellerStatus.OFFERED);
+        response.setResponseStatus(i % 3 == 0 ? Response.Status.ACCEPTED : Response.Status.PENDING);
+        response.setMessagesEnabled(true);
+        response.setInappropriate(false);
+        response.setIsOfferToBuyOrRent(false);
+        return response;
+    }
+
+    /**
+     * A user's history: requests they posted mixed with requests they responded to
+     */
+    public List<HistoryDto> history(User owner, int size) {
+        List<HistoryDto> history = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            boolean mine = i % 2 == 0;
+            User poster = mine ? owner : user(i + 1);
+            Request request = request(i, poster);
+            HistoryDto dto = new HistoryDto();
+            dto.request = new RequestDto(request);
+            dto.responses = new ArrayList<>();
+            dto.responses.add(new ResponseDto(response(i, request, mine ? user(i + 1) : owner)));
+            history.add(dto);
+        }
+        Collections.shuffle(history, random);
+        return history;
+    }
+}
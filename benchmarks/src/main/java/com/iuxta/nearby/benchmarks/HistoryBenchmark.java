@@ -0,0 +1,54 @@
+package com.iuxta.nearby.benchmarks;
+
+import com.iuxta.nearby.dto.HistoryDto;
+import com.iuxta.nearby.model.HistoryComparator;
+import com.iuxta.nearby.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorting a user's history with {@link HistoryComparator}, for a short history and for a long one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class HistoryBenchmark {
+
+    @Param({"20", "500"})
+    private int size;
+
+    private String userId;
+    private List<HistoryDto> history;
+
+    @Setup
+    public void setup() {
+        Fixtures fixtures = new Fixtures();
+        User owner = fixtures.user(0);
+        userId = owner.getId();
+        history = fixtures.history(owner, size);
+    }
+
+    @Benchmark
+    public List<HistoryDto> sort() {
+        // sort a copy so every invocation starts from the same unsorted order
+        List<HistoryDto> sorted = new ArrayList<>(history);
+        sorted.sort(new HistoryComparator(userId));
+        return sorted;
+    }
+}
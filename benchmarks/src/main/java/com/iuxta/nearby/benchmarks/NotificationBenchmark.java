@@ -0,0 +1,87 @@
+package com.iuxta.nearby.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.iuxta.nearby.NearbyUtils;
+import com.iuxta.nearby.dto.RequestDto;
+import com.iuxta.nearby.dto.ResponseDto;
+import com.iuxta.nearby.firebase.CcsServer;
+import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationPayload;
+import com.iuxta.nearby.model.Request;
+import com.iuxta.nearby.model.Response;
+import com.iuxta.nearby.model.User;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the messages sent to CCS. offerNotification does what ResponseService does when an offer is made or
+ * updated, fcmMessage what FirebaseUtils does with it before it is queued for sending. legacyFcmMessage is the old
+ * JSONObject path other services still build their notifications with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class NotificationBenchmark {
+
+    private User recipient;
+    private Request request;
+    private Response response;
+    private NotificationPayload notification;
+    private JSONObject legacyNotification;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        Fixtures fixtures = new Fixtures();
+        recipient = fixtures.user(0);
+        request = fixtures.request(0, recipient);
+        response = fixtures.response(0, request, fixtures.user(1));
+        notification = offerNotification();
+        legacyNotification = new JSONObject();
+        legacyNotification.put("title", "Payment Confirmed");
+        legacyNotification.put("message", "Your payment for a " + request.getItemName() + " was confirmed");
+        legacyNotification.put("type", FirebaseUtils.NotificationTypes.payment_confirmed.name());
+    }
+
+    @Benchmark
+    public NotificationPayload offerNotification() throws JsonProcessingException {
+        return new NotificationPayload(FirebaseUtils.NotificationTypes.response_update)
+                .title("first1 updated their offer")
+                .message("Offer for a " + request.getItemName() + ": $" + response.getOfferPrice())
+                .response(NotificationPayload.json(new ResponseDto(response)))
+                .request(NotificationPayload.json(new RequestDto(request)));
+    }
+
+    @Benchmark
+    public String fcmMessage() {
+        return notification.toFcmMessage(recipient, CcsServer.nextMessageId());
+    }
+
+    @Benchmark
+    public String legacyFcmMessage() {
+        return NotificationPayload.from(legacyNotification).toFcmMessage(recipient, CcsServer.nextMessageId());
+    }
+
+    @Benchmark
+    public String ack() {
+        return CcsServer.createJsonAck(recipient.getFcmRegistrationId(), "rd-upstream-message-rc");
+    }
+
+    @Benchmark
+    public String transactionCode() {
+        return NearbyUtils.getUniqueCode();
+    }
+}
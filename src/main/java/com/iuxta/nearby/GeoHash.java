@@ -0,0 +1,105 @@
+package com.iuxta.nearby;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Geohashes: the world split into a grid of tiles named by base32 strings, where every extra character splits a tile
+ * into 32 smaller ones (precision 5 tiles are about 4.9km x 4.9km at the equator, and narrower east to west further
+ * from it). A tile's name is a prefix of the names of every tile inside it.
+ */
+public class GeoHash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private static final double METERS_PER_DEGREE = 111320;
+
+    /**
+     * @param latitude
+     * @param longitude
+     * @param precision number of characters, 1 to 12
+     * @return the name of the tile the point is in
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double[] lat = {-90, 90};
+        double[] lng = {-180, 180};
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+        while (hash.length() < precision) {
+            // bits alternate between longitude and latitude, starting with longitude
+            double[] range = evenBit ? lng : lat;
+            double value = evenBit ? longitude : latitude;
+            double mid = (range[0] + range[1]) / 2;
+            ch <<= 1;
+            if (value >= mid) {
+                ch |= 1;
+                range[0] = mid;
+            } else {
+                range[1] = mid;
+            }
+            evenBit = !evenBit;
+            if (++bit == 5) {
+                hash.append(BASE32[ch]);
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+
+    /**
+     * @param precision
+     * @return {height, width} of a tile in degrees
+     */
+    public static double[] tileSize(int precision) {
+        int bits = precision * 5;
+        int lngBits = (bits + 1) / 2;
+        int latBits = bits / 2;
+        return new double[]{180 / Math.pow(2, latBits), 360 / Math.pow(2, lngBits)};
+    }
+
+    /**
+     * The tiles that cover the box around a circle, a few of the corner tiles may not touch the circle itself.
+     *
+     * @param latitude
+     * @param longitude
+     * @param radiusMeters
+     * @param precision
+     * @return tile names, sorted
+     */
+    public static Set<String> covering(double latitude, double longitude, double radiusMeters, int precision) {
+        double[] tile = tileSize(precision);
+        double latDelta = radiusMeters / METERS_PER_DEGREE;
+        double minLat = Math.max(-90, latitude - latDelta);
+        double maxLat = Math.min(90, latitude + latDelta);
+        // degrees of longitude shrink toward the poles, use the widest latitude in the box
+        double widest = Math.min(89, Math.max(Math.abs(minLat), Math.abs(maxLat)));
+        double lngDelta = Math.min(180, radiusMeters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(widest))));
+        Set<String> tiles = new TreeSet<>();
+        // sampling one point per tile height and width hits every row and column between the edges
+        for (double lat = minLat; ; lat = Math.min(maxLat, lat + tile[0])) {
+            for (double lng = longitude - lngDelta; ; lng = Math.min(longitude + lngDelta, lng + tile[1])) {
+                tiles.add(encode(Math.min(lat, 90 - 1e-9), wrap(lng), precision));
+                if (lng >= longitude + lngDelta) {
+                    break;
+                }
+            }
+            if (lat >= maxLat) {
+                break;
+            }
+        }
+        return tiles;
+    }
+
+    private static double wrap(double longitude) {
+        if (longitude >= 180) {
+            return longitude - 360;
+        }
+        if (longitude < -180) {
+            return longitude + 360;
+        }
+        return longitude;
+    }
+}
@@ -0,0 +1,32 @@
+package com.iuxta.nearby;
+
+import com.google.common.collect.ImmutableMultimap;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * POST /tasks/indexes reports how the db's indexes differ from the declared ones, add ?create=true to also create the
+ * missing ones.
+ */
+public class MongoIndexTask extends Task {
+
+    private MongoIndexes indexes;
+
+    public MongoIndexTask(MongoIndexes indexes) {
+        super("indexes");
+        this.indexes = indexes;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+        boolean create = parameters.get("create").contains("true");
+        List<String> report = indexes.reconcile(create);
+        if (report.isEmpty()) {
+            output.println("indexes match the declarations");
+        }
+        report.forEach(output::println);
+        output.flush();
+    }
+}
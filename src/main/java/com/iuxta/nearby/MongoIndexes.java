@@ -0,0 +1,240 @@
+package com.iuxta.nearby;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import io.dropwizard.lifecycle.Managed;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * The indexes every collection should have, declared where NearbyApplication wraps each collection. On startup they are
+ * reconciled against the db in the background: missing indexes are created, and indexes the db has that aren't
+ * declared, declared indexes whose options differ and indexes that haven't been used since the db started are
+ * reported. Nothing is ever dropped, that's left to a person reading the report. {@link MongoIndexTask} runs the same reconciliation on demand.
+ *
+ * Indexes declared with {@link CollectionIndexes#required} are ones a query can't run without (e.g. $near needs the
+ * 2dsphere index), they are created in the foreground before the reconciler starts so nothing is served without them.
+ */
+public class MongoIndexes implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoIndexes.class);
+
+    private Map<String, CollectionIndexes> collections = new LinkedHashMap<>();
+    private ExecutorService reconciler;
+
+    /**
+     * @param collection
+     * @return the collection's declarations, add indexes to it with {@link CollectionIndexes#index}
+     */
+    public CollectionIndexes on(JacksonDBCollection<?, ?> collection) {
+        return on(collection.getDbCollection());
+    }
+
+    public CollectionIndexes on(DBCollection collection) {
+        return collections.computeIfAbsent(collection.getName(), name -> new CollectionIndexes(collection));
+    }
+
+    /**
+     * @param createMissing false to only report
+     * @return one line for everything that was created or doesn't match, empty if the db matches the declarations
+     */
+    public synchronized List<String> reconcile(boolean createMissing) {
+        List<String> report = new ArrayList<>();
+        for (CollectionIndexes collection : collections.values()) {
+            try {
+                collection.reconcile(createMissing, report);
+            } catch (Exception e) {
+                String msg = "could not reconcile indexes on [" + collection.collection.getName() + "], got error: " +
+                        e.getMessage();
+                LOGGER.error(msg);
+                report.add(msg);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Creates every required index that doesn't exist yet, in the foreground
+     */
+    public void createRequired() {
+        for (CollectionIndexes collection : collections.values()) {
+            collection.createRequired();
+        }
+    }
+
+    public void start() throws Exception {
+        createRequired();
+        reconciler = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "mongo-index-reconciler");
+            t.setDaemon(true);
+            return t;
+        });
+        reconciler.execute(() -> {
+            List<String> report = reconcile(true);
+            report.forEach(LOGGER::info);
+            LOGGER.info("reconciled indexes on [" + collections.size() + "] collections, [" + report.size() +
+                    "] differences");
+        });
+    }
+
+    public void stop() throws Exception {
+        if (reconciler != null) {
+            reconciler.shutdownNow();
+        }
+    }
+
+    /**
+     * @return "field_1_other_-1", mongo's default name for an index with these keys
+     */
+    static String keyName(DBObject keys) {
+        return keys.keySet().stream()
+                .map(field -> field + "_" + keyValue(keys.get(field)))
+                .collect(Collectors.joining("_"));
+    }
+
+    // the db hands back 1 as 1.0 for indexes created by some drivers and the shell
+    private static String keyValue(Object value) {
+        if (value instanceof Number && ((Number) value).doubleValue() == ((Number) value).intValue()) {
+            return String.valueOf(((Number) value).intValue());
+        }
+        return String.valueOf(value);
+    }
+
+    public static class CollectionIndexes {
+        private static final List<String> COMPARED_OPTIONS = Collections.unmodifiableList(
+                Arrays.asList("unique", "sparse", "expireAfterSeconds", "partialFilterExpression"));
+
+        private DBCollection collection;
+        private Map<String, Declared> declared = new LinkedHashMap<>();
+
+        CollectionIndexes(DBCollection collection) {
+            this.collection = collection;
+        }
+
+        public CollectionIndexes index(DBObject keys) {
+            return index(keys, new BasicDBObject());
+        }
+
+        public CollectionIndexes index(DBObject keys, DBObject options) {
+            declared.put(keyName(keys), new Declared(keys, options, false));
+            return this;
+        }
+
+        /**
+         * Declares an index that has to exist before the app serves anything, see {@link MongoIndexes#createRequired}
+         *
+         * @param keys
+         * @return these declarations
+         */
+        public CollectionIndexes required(DBObject keys) {
+            declared.put(keyName(keys), new Declared(keys, new BasicDBObject(), true));
+            return this;
+        }
+
+        void createRequired() {
+            for (Map.Entry<String, Declared> entry : declared.entrySet()) {
+                if (entry.getValue().required) {
+                    // a no-op if the index is already there
+                    collection.createIndex(entry.getValue().keys, entry.getValue().options);
+                    LOGGER.info("ensured index " + entry.getKey() + " on [" + collection.getName() + "]");
+                }
+            }
+        }
+
+        void reconcile(boolean createMissing, List<String> report) {
+            String name = collection.getName();
+            Map<String, DBObject> existing = new HashMap<>();
+            for (DBObject index : collection.getIndexInfo()) {
+                existing.put(keyName((DBObject) index.get("key")), index);
+            }
+            Map<String, Long> usage = usage();
+            for (Map.Entry<String, Declared> entry : declared.entrySet()) {
+                DBObject index = existing.remove(entry.getKey());
+                Declared declaredIndex = entry.getValue();
+                if (index == null) {
+                    if (createMissing) {
+                        BasicDBObject options = new BasicDBObject(declaredIndex.options.toMap());
+                        options.put("background", true);
+                        collection.createIndex(declaredIndex.keys, options);
+                        report.add("created index " + entry.getKey() + " on [" + name + "]");
+                    } else {
+                        report.add("missing index " + entry.getKey() + " on [" + name + "]");
+                    }
+                    continue;
+                }
+                for (String option : COMPARED_OPTIONS) {
+                    Object want = declaredIndex.options.get(option);
+                    Object have = index.get(option);
+                    if (!String.valueOf(want == null ? null : keyValue(want))
+                            .equals(String.valueOf(have == null ? null : keyValue(have)))) {
+                        report.add("index " + entry.getKey() + " on [" + name + "] has " + option + " [" + have +
+                                "], declared [" + want + "]");
+                    }
+                }
+                Long ops = usage.get(String.valueOf(index.get("name")));
+                if (ops != null && ops == 0) {
+                    report.add("index " + entry.getKey() + " on [" + name + "] has not been used since the db started");
+                }
+            }
+            existing.remove("_id_1");
+            for (Map.Entry<String, DBObject> extra : existing.entrySet()) {
+                Long ops = usage.get(String.valueOf(extra.getValue().get("name")));
+                report.add("undeclared index " + extra.getKey() + " on [" + name + "]" +
+                        (ops != null ? ", used [" + ops + "] times since the db started" : ""));
+            }
+        }
+
+        /**
+         * @return operations per index name since the db started, empty if the db is too old for $indexStats
+         */
+        private Map<String, Long> usage() {
+            Map<String, Long> usage = new HashMap<>();
+            try {
+                List<DBObject> pipeline = Collections.singletonList(
+                        new BasicDBObject("$indexStats", new BasicDBObject()));
+                Cursor stats = collection.aggregate(pipeline, AggregationOptions.builder()
+                        .outputMode(AggregationOptions.OutputMode.CURSOR)
+                        .build());
+                try {
+                    while (stats.hasNext()) {
+                        DBObject stat = stats.next();
+                        DBObject accesses = (DBObject) stat.get("accesses");
+                        usage.put(String.valueOf(stat.get("name")), ((Number) accesses.get("ops")).longValue());
+                    }
+                } finally {
+                    stats.close();
+                }
+            } catch (Exception e) {
+                LOGGER.info("no index usage for [" + collection.getName() + "]: " + e.getMessage());
+            }
+            return usage;
+        }
+    }
+
+    private static class Declared {
+        private DBObject keys;
+        private DBObject options;
+        private boolean required;
+
+        Declared(DBObject keys, DBObject options, boolean required) {
+            this.keys = keys;
+            this.options = options;
+            this.required = required;
+        }
+    }
+}
@@ -1,12 +1,26 @@
 package com.iuxta.nearby;
 
 import com.iuxta.nearby.auth.CredentialAuthFilter;
+import com.iuxta.nearby.auth.CredentialCache;
 import com.iuxta.nearby.auth.NearbyAuthenticator;
 import com.iuxta.nearby.auth.NearbyAuthorizer;
+import com.iuxta.nearby.auth.SessionTokenResponseFilter;
+import com.iuxta.nearby.auth.SessionTokenService;
+import com.iuxta.nearby.firebase.AreaTopicTask;
+import com.iuxta.nearby.firebase.AreaTopics;
+import com.iuxta.nearby.firebase.CcsConnectionPool;
+import com.iuxta.nearby.firebase.CcsHealthCheck;
 import com.iuxta.nearby.firebase.CcsServer;
+import com.iuxta.nearby.firebase.InstanceIdTopicRegistry;
+import com.iuxta.nearby.firebase.LocalCcsServer;
+import com.iuxta.nearby.firebase.LocalCcsTask;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
+import com.iuxta.nearby.firebase.TopicRegistry;
+import com.iuxta.nearby.http.OutboundHttpClient;
 import com.iuxta.nearby.model.*;
 import com.iuxta.nearby.resources.*;
 import com.iuxta.nearby.service.*;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.Mongo;
@@ -20,13 +34,18 @@ import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.federecio.dropwizard.swagger.SwaggerBundle;
 import io.federecio.dropwizard.swagger.SwaggerBundleConfiguration;
+import org.apache.commons.lang3.StringUtils;
 import org.eclipse.jetty.servlets.CrossOriginFilter;
 import org.glassfish.jersey.server.filter.RolesAllowedDynamicFeature;
 import org.mongojack.JacksonDBCollection;
+import org.mongojack.internal.MongoJackModule;
 
 import javax.servlet.DispatcherType;
 import javax.servlet.FilterRegistration;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
 
 public class NearbyApplication extends Application<NearbyConfiguration> {
 
@@ -73,20 +92,20 @@ public class NearbyApplication extends Application<NearbyConfiguration> {
         // Add URL mapping
         cors.addMappingForUrlPatterns(EnumSet.allOf(DispatcherType.class), true, "/*");
 
-        JacksonDBCollection<User, String> userCollection =
-                JacksonDBCollection.wrap(db.getCollection("user"), User.class, String.class);
+        // each collection's indexes are declared where it's wrapped, the geo index is created before serving and the
+        // rest in the background on startup
+        MongoIndexes indexes = new MongoIndexes();
+
+        JacksonDBCollection<User, String> userCollection = userCollection(db, indexes);
 
         JacksonDBCollection<Category, String> categoryCollection =
                 JacksonDBCollection.wrap(db.getCollection("category"), Category.class, String.class);
 
-        JacksonDBCollection<Request, String> requestCollection =
-                JacksonDBCollection.wrap(db.getCollection("request"), Request.class, String.class);
+        JacksonDBCollection<Request, String> requestCollection = requestCollection(db, indexes);
 
-        JacksonDBCollection<Response, String> responseCollection =
-                JacksonDBCollection.wrap(db.getCollection("response"), Response.class, String.class);
+        JacksonDBCollection<Response, String> responseCollection = responseCollection(db, indexes);
 
-        JacksonDBCollection<Transaction, String> transactionCollection =
-                JacksonDBCollection.wrap(db.getCollection("transaction"), Transaction.class, String.class);
+        JacksonDBCollection<Transaction, String> transactionCollection = transactionCollection(db, indexes);
 
         JacksonDBCollection<NearbyAvailableLocations, String> locationsCollection =
                 JacksonDBCollection.wrap(db.getCollection("nearbyAvailableLocations"), NearbyAvailableLocations.class, String.class);
@@ -94,53 +113,260 @@ public class NearbyApplication extends Application<NearbyConfiguration> {
         JacksonDBCollection<UnavailableSearches, String> unavailableSearchesCollection =
                 JacksonDBCollection.wrap(db.getCollection("unavailableSearches"), UnavailableSearches.class, String.class);
 
-        JacksonDBCollection<RequestFlag, String> requestFlagCollection =
-                JacksonDBCollection.wrap(db.getCollection("requestFlag"), RequestFlag.class, String.class);
+        JacksonDBCollection<RequestFlag, String> requestFlagCollection = requestFlagCollection(db, indexes);
 
         JacksonDBCollection<UserFlag, String> userFlagCollection =
                 JacksonDBCollection.wrap(db.getCollection("userFlag"), UserFlag.class, String.class);
 
-        JacksonDBCollection<ResponseFlag, String> responseFlagCollection =
-                JacksonDBCollection.wrap(db.getCollection("responseFlag"), ResponseFlag.class, String.class);
+        JacksonDBCollection<ResponseFlag, String> responseFlagCollection = responseFlagCollection(db, indexes);
 
         JacksonDBCollection<SearchTerm, String> searchTermsCollection =
                 JacksonDBCollection.wrap(db.getCollection("searchTerms"), SearchTerm.class, String.class);
 
+        JacksonDBCollection<HistoryEntry, String> historyCollection = historyCollection(db, indexes);
+
+        JacksonDBCollection<GeocodeCacheEntry, String> geocodeCacheCollection = geocodeCacheCollection(db, indexes);
+
+        JacksonDBCollection<RevokedSession, String> revokedSessionCollection = revokedSessionCollection(db, indexes);
+
+        environment.lifecycle().manage(indexes);
+        environment.admin().addTask(new MongoIndexTask(indexes));
+
 
         // cloud connection server
         int fcmPort = Integer.parseInt(config.fcmPort);
         if (fcmPort != 5235 && fcmPort != 5236) {
             fcmPort = 5236;
         }
-        CcsServer ccsServer = new CcsServer(config.fcmServer, fcmPort, "not sure",
-                config.fcmApiKey, config.fcmSenderId);
-        ccsServer.connect();
+        CcsConnectionPool ccsConnections;
+        LocalCcsServer localCcsServer = null;
+        if (LocalCcsServer.HOST.equals(config.fcmServer)) {
+            localCcsServer = new LocalCcsServer();
+            environment.admin().addTask(new LocalCcsTask(localCcsServer));
+            LocalCcsServer local = localCcsServer;
+            ccsConnections = new CcsConnectionPool(() -> local, 1, 0, environment.metrics());
+        } else {
+            int port = fcmPort;
+            ccsConnections = new CcsConnectionPool(() -> {
+                CcsServer ccsServer = new CcsServer(config.fcmServer, port, "not sure", config.fcmApiKey,
+                        config.fcmSenderId, config.fcmMaxInFlight);
+                ccsServer.connect();
+                return ccsServer;
+            }, config.fcmConnections, 2 * TimeUnit.SECONDS.toMillis(config.fcmAckTimeoutSeconds),
+                    environment.metrics());
+        }
+        // opens the connections, so it has to start before the dispatcher
+        environment.lifecycle().manage(ccsConnections);
+        environment.healthChecks().register("ccs healthcheck", new CcsHealthCheck(ccsConnections));
+        NotificationDispatcher notificationDispatcher = new NotificationDispatcher(ccsConnections,
+                config.fcmQueueCapacity, config.fcmWorkerThreads, config.fcmOverflowPolicy, config.fcmMaxRetries,
+                config.fcmRetryBackoffMillis, TimeUnit.SECONDS.toMillis(config.fcmAckTimeoutSeconds),
+                environment.metrics());
+        environment.lifecycle().manage(notificationDispatcher);
 
-        requestCollection.createIndex(new BasicDBObject("location", "2dsphere"));
         environment.healthChecks().register("mongo healthcheck", new MongoHealthCheck(mongo));
+        CredentialCache credentialCache = new CredentialCache(config.authCacheMaxSize, config.authCacheTtlSeconds,
+                environment.metrics());
+        SessionTokenService sessionTokenService = new SessionTokenService(config.sessionKeys, config.sessionKeyId,
+                config.sessionTtlHours, revokedSessionCollection);
+        environment.lifecycle().manage(sessionTokenService);
+        OutboundHttpClient outboundHttpClient = new OutboundHttpClient(config.outboundConnectTimeoutMillis,
+                config.outboundReadTimeoutMillis, config.outboundPoolTimeoutMillis, config.outboundMaxConnections,
+                config.outboundMaxConnectionsPerHost, config.outboundMaxRetries, config.outboundCircuitFailureThreshold,
+                config.outboundCircuitOpenSeconds, environment.metrics());
+        environment.lifecycle().manage(outboundHttpClient);
+        GeocodingService geocodingService = new GeocodingService(outboundHttpClient, geocodeCacheCollection,
+                config.geocodeCacheSize, config.geocodeCacheTtlHours, config.geocodeNegativeCacheTtlHours,
+                environment.metrics());
+        Geocoder zipGeocoder = geocodingService;
+        if (StringUtils.isNotBlank(config.zipCentroidFile)) {
+            Path zipCentroids = Paths.get(config.zipCentroidFile);
+            zipGeocoder = config.zipCentroidFile.endsWith(".csv") ?
+                    ZipCentroidGeocoder.fromCsv(zipCentroids, geocodingService) :
+                    new ZipCentroidGeocoder(zipCentroids, geocodingService);
+        }
+        UserCache userCache = new UserCache(userCollection, config.userCacheSize, config.userCacheTtlSeconds,
+                environment.metrics());
+        TopicRegistry topicRegistry = localCcsServer != null ? localCcsServer :
+                new InstanceIdTopicRegistry(outboundHttpClient, config.fcmApiKey);
+        AreaTopics areaTopics = new AreaTopics(topicRegistry, userCache, notificationDispatcher,
+                config.areaNotificationMode, config.areaTopicPrecision, environment.metrics());
+        environment.lifecycle().manage(areaTopics);
+        environment.admin().addTask(new AreaTopicTask(areaTopics, userCollection));
+        HistoryService historyService = new HistoryService(requestCollection, responseCollection, userCollection,
+                transactionCollection, historyCollection, userCache);
+        environment.lifecycle().manage(historyService);
+        ServiceAreaIndex serviceAreaIndex = new ServiceAreaIndex(locationsCollection, RequestService.LOCATION_RADIUS,
+                config.serviceAreaRefreshMinutes);
+        environment.lifecycle().manage(serviceAreaIndex);
+        WriteBehindBuffer<UnavailableSearches> unavailableSearchesBuffer = new WriteBehindBuffer<>(
+                unavailableSearchesCollection, "unavailableSearches", config.analyticsBufferCapacity,
+                config.analyticsBatchSize, config.analyticsFlushIntervalMillis, environment.metrics());
+        environment.lifecycle().manage(unavailableSearchesBuffer);
+        WriteBehindBuffer<SearchTerm> searchTermsBuffer = new WriteBehindBuffer<>(searchTermsCollection, "searchTerms",
+                config.analyticsBufferCapacity, config.analyticsBatchSize, config.analyticsFlushIntervalMillis,
+                environment.metrics());
+        environment.lifecycle().manage(searchTermsBuffer);
+        RequestSearchIndex requestSearchIndex = new RequestSearchIndex(requestCollection,
+                config.searchIndexRebuildMinutes, environment.metrics());
+        environment.lifecycle().manage(requestSearchIndex);
         ResponseService responseService = new ResponseService(requestCollection, responseCollection, userCollection,
-                transactionCollection, responseFlagCollection, ccsServer);
-        StripeService stripeService = new StripeService(config.stripeSecretKey, config.stripePublishableKey, userCollection, ccsServer);
-        UserService userService = new UserService(stripeService, responseService, userCollection, userFlagCollection, ccsServer);
-        RequestFlagService requestFlagService = new RequestFlagService(requestCollection, requestFlagCollection, userCollection, ccsServer);
-        environment.jersey().register(new UserResource(userCollection, requestCollection, userService, responseService, stripeService));
-        RequestService requestService = new RequestService(categoryCollection, requestCollection, ccsServer, userCollection, responseService, locationsCollection, unavailableSearchesCollection, searchTermsCollection);
-        environment.jersey().register(new RequestsResource(requestCollection, requestService, responseCollection, responseService, stripeService));
-        environment.jersey().register(new ResponsesResource(requestCollection, responseCollection, responseService, userCollection, stripeService));
+                transactionCollection, responseFlagCollection, notificationDispatcher, historyService, userCache,
+                requestSearchIndex);
+        StripeService stripeService = new StripeService(config.stripeSecretKey, config.stripePublishableKey, userCollection, notificationDispatcher,
+                userCache);
+        UserService userService = new UserService(stripeService, responseService, userCollection, userFlagCollection, notificationDispatcher,
+                geocodingService, userCache);
+        RequestFlagService requestFlagService = new RequestFlagService(requestCollection, requestFlagCollection, userCollection, notificationDispatcher);
+        UserSnapshotPropagator userSnapshotPropagator = new UserSnapshotPropagator(userCollection,
+                config.userPropagationChunkSize, config.userPropagationChunkDelayMillis, environment.metrics())
+                .embeddedIn(requestCollection, "user")
+                .refreshesHistory(historyService);
+        environment.lifecycle().manage(userSnapshotPropagator);
+        environment.jersey().register(new UserResource(userCollection, requestCollection, userService, responseService,
+                stripeService, historyService, credentialCache, sessionTokenService, userSnapshotPropagator, userCache,
+                areaTopics));
+        RequestService requestService = new RequestService(categoryCollection, requestCollection, notificationDispatcher, userCollection, responseService, serviceAreaIndex, unavailableSearchesBuffer, searchTermsBuffer, zipGeocoder, requestSearchIndex, areaTopics);
+        environment.jersey().register(new RequestsResource(requestCollection, requestService, responseCollection, responseService,
+                stripeService, historyService, requestSearchIndex));
+        environment.jersey().register(new ResponsesResource(requestCollection, responseCollection, responseService, userCollection, stripeService,
+                userCache));
         environment.jersey().register(new TransactionsResource(requestCollection, responseCollection, userCollection,
-                transactionCollection, ccsServer, stripeService));
+                transactionCollection, notificationDispatcher, stripeService, historyService, userCache, requestSearchIndex));
         environment.jersey().register(new StripeResource(stripeService));
         environment.jersey().register(new RequestFlagResource(requestFlagService));
-        NearbyAuthenticator authenticator = new NearbyAuthenticator(userCollection, config.fbAccessToken, config.googleClientIds, ccsServer);
+        NearbyAuthenticator authenticator = new NearbyAuthenticator(userCollection, config.fbAccessToken,
+                config.googleClientIds, notificationDispatcher, credentialCache, sessionTokenService,
+                outboundHttpClient, userCache);
         environment.jersey().register(new AuthDynamicFeature(new CredentialAuthFilter.Builder<User>()
                 .setAuthenticator(authenticator)
                 .setAuthorizer(new NearbyAuthorizer())
                 .setRealm("SUPER SECRET STUFF")
                 .buildAuthFilter()));
+        environment.jersey().register(new SessionTokenResponseFilter());
         environment.jersey().register(new HealthResource());
         environment.jersey().register(new CategoriesResource(categoryCollection));
         environment.jersey().register(RolesAllowedDynamicFeature.class);
         environment.jersey().register(new AuthValueFactoryProvider.Binder(User.class));
     }
 
+    /**
+     * Wraps the user collection and declares its indexes, QueryPlanTest declares them on a scratch db the same way
+     *
+     * @param db
+     * @param indexes
+     * @return the wrapped collection
+     */
+    public static JacksonDBCollection<User, String> userCollection(DB db, MongoIndexes indexes) {
+        // users are saved with partial updates, see TrackedDocument
+        ObjectMapper trackingMapper = MongoJackModule.configure(new ObjectMapper()).registerModule(TrackedDocument.MODULE);
+        JacksonDBCollection<User, String> userCollection =
+                JacksonDBCollection.wrap(db.getCollection("user"), User.class, String.class, trackingMapper);
+        indexes.on(userCollection)
+                .index(new BasicDBObject("userId", 1))
+                .index(new BasicDBObject("admin", 1));
+        return userCollection;
+    }
+
+    /**
+     * Wraps the request collection and declares its indexes
+     */
+    public static JacksonDBCollection<Request, String> requestCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<Request, String> requestCollection =
+                JacksonDBCollection.wrap(db.getCollection("request"), Request.class, String.class);
+        indexes.on(requestCollection)
+                // every $near query on requests fails without it
+                .required(new BasicDBObject("location", "2dsphere"))
+                .index(new BasicDBObject("user.userId", 1).append("status", 1))
+                .index(new BasicDBObject("user.userId", 1).append("postDate", -1).append("_id", -1))
+                .index(new BasicDBObject("user._id", 1))
+                .index(new BasicDBObject("status", 1));
+        return requestCollection;
+    }
+
+    /**
+     * Wraps the response collection and declares its indexes
+     */
+    public static JacksonDBCollection<Response, String> responseCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<Response, String> responseCollection =
+                JacksonDBCollection.wrap(db.getCollection("response"), Response.class, String.class);
+        indexes.on(responseCollection)
+                .index(new BasicDBObject("requestId", 1).append("responseTime", -1).append("_id", -1))
+                .index(new BasicDBObject("responderId", 1).append("responseStatus", 1));
+        return responseCollection;
+    }
+
+    /**
+     * Wraps the transaction collection and declares its indexes
+     */
+    public static JacksonDBCollection<Transaction, String> transactionCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<Transaction, String> transactionCollection =
+                JacksonDBCollection.wrap(db.getCollection("transaction"), Transaction.class, String.class);
+        indexes.on(transactionCollection)
+                .index(new BasicDBObject("requestId", 1).append("canceled", 1))
+                .index(new BasicDBObject("responseId", 1))
+                .index(new BasicDBObject("buyerId", 1))
+                .index(new BasicDBObject("sellerId", 1));
+        return transactionCollection;
+    }
+
+    /**
+     * Wraps the requestFlag collection and declares its indexes
+     */
+    public static JacksonDBCollection<RequestFlag, String> requestFlagCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<RequestFlag, String> requestFlagCollection =
+                JacksonDBCollection.wrap(db.getCollection("requestFlag"), RequestFlag.class, String.class);
+        indexes.on(requestFlagCollection)
+                .index(new BasicDBObject("requestId", 1).append("reporterId", 1).append("status", 1));
+        return requestFlagCollection;
+    }
+
+    /**
+     * Wraps the responseFlag collection and declares its indexes
+     */
+    public static JacksonDBCollection<ResponseFlag, String> responseFlagCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<ResponseFlag, String> responseFlagCollection =
+                JacksonDBCollection.wrap(db.getCollection("responseFlag"), ResponseFlag.class, String.class);
+        indexes.on(responseFlagCollection)
+                .index(new BasicDBObject("responseId", 1).append("status", 1));
+        return responseFlagCollection;
+    }
+
+    /**
+     * Wraps the history collection and declares its indexes
+     */
+    public static JacksonDBCollection<HistoryEntry, String> historyCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<HistoryEntry, String> historyCollection =
+                JacksonDBCollection.wrap(db.getCollection("history"), HistoryEntry.class, String.class);
+        indexes.on(historyCollection)
+                .index(new BasicDBObject("userId", 1).append("rank", -1).append("_id", -1))
+                .index(new BasicDBObject("ownerId", 1))
+                // one row per user per request or response, also serves the lookups by requestId
+                .index(new BasicDBObject("requestId", 1).append("userId", 1).append("responseId", 1),
+                        new BasicDBObject("unique", true));
+        return historyCollection;
+    }
+
+    /**
+     * Wraps the geocodeCache collection and declares its indexes
+     */
+    public static JacksonDBCollection<GeocodeCacheEntry, String> geocodeCacheCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<GeocodeCacheEntry, String> geocodeCacheCollection =
+                JacksonDBCollection.wrap(db.getCollection("geocodeCache"), GeocodeCacheEntry.class, String.class);
+        indexes.on(geocodeCacheCollection)
+                .index(new BasicDBObject("key", 1), new BasicDBObject("unique", true))
+                .index(new BasicDBObject("expiresAt", 1), new BasicDBObject("expireAfterSeconds", 0));
+        return geocodeCacheCollection;
+    }
+
+    /**
+     * Wraps the revokedSessions collection and declares its indexes
+     */
+    public static JacksonDBCollection<RevokedSession, String> revokedSessionCollection(DB db, MongoIndexes indexes) {
+        JacksonDBCollection<RevokedSession, String> revokedSessionCollection =
+                JacksonDBCollection.wrap(db.getCollection("revokedSessions"), RevokedSession.class, String.class);
+        indexes.on(revokedSessionCollection)
+                .index(new BasicDBObject("expiresAt", 1), new BasicDBObject("expireAfterSeconds", 0));
+        return revokedSessionCollection;
+    }
 }
@@ -1,13 +1,17 @@
 package com.iuxta.nearby;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.iuxta.nearby.firebase.AreaTopics;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
 import io.dropwizard.Configuration;
 import io.federecio.dropwizard.swagger.SwaggerBundleConfiguration;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class NearbyConfiguration extends Configuration {
 
@@ -30,6 +34,7 @@ public class NearbyConfiguration extends Configuration {
     @JsonProperty("swagger")
     public SwaggerBundleConfiguration swaggerBundleConfiguration;
 
+    // "local" sends nothing and delivers messages in memory, see LocalCcsServer
     @JsonProperty
     @NotEmpty
     public String fcmServer;
@@ -45,6 +50,167 @@ public class NearbyConfiguration extends Configuration {
     @NotEmpty
     public String fcmSenderId;
 
+    @JsonProperty
+    @Min(1)
+    public int fcmQueueCapacity = 10000;
+
+    @JsonProperty
+    @Min(1)
+    @Max(32)
+    public int fcmWorkerThreads = 2;
+
+    @JsonProperty
+    public NotificationDispatcher.OverflowPolicy fcmOverflowPolicy = NotificationDispatcher.OverflowPolicy.DROP_OLDEST;
+
+    // CCS connections messages are spread over, a draining one is replaced without pausing sends. Always 1 locally
+    @JsonProperty
+    @Min(1)
+    @Max(10)
+    public int fcmConnections = 2;
+
+    // messages sent on each CCS connection that haven't been acked yet, CCS itself allows at most 100
+    @JsonProperty
+    @Min(1)
+    @Max(100)
+    public int fcmMaxInFlight = 100;
+
+    // retries for retriable nacks and unacked messages
+    @JsonProperty
+    @Min(0)
+    @Max(10)
+    public int fcmMaxRetries = 5;
+
+    // first retry waits about this long, doubling with every attempt
+    @JsonProperty
+    @Min(1)
+    public long fcmRetryBackoffMillis = 1000;
+
+    @JsonProperty
+    @Min(1)
+    public long fcmAckTimeoutSeconds = 30;
+
+    // TOPIC broadcasts new requests near users' homes with fcm topics instead of notifying each user, the apps then
+    // have to drop requests that are too far, their own or from blocked users, see AreaTopics
+    @JsonProperty
+    public AreaTopics.Mode areaNotificationMode = AreaTopics.Mode.DEVICE;
+
+    // geohash length of the area topic tiles, 5 is about 5km across
+    @JsonProperty
+    @Min(3)
+    @Max(7)
+    public int areaTopicPrecision = 5;
+
+    @JsonProperty
+    @Min(0)
+    public long authCacheMaxSize = 10000;
+
+    @JsonProperty
+    @Min(1)
+    public long authCacheTtlSeconds = 600;
+
+    // key id -> base64 encoded HMAC secret used to sign session tokens, leave empty to turn session tokens off
+    @JsonProperty
+    public Map<String, String> sessionKeys = new HashMap<>();
+
+    @JsonProperty
+    public String sessionKeyId;
+
+    @JsonProperty
+    @Min(1)
+    public long sessionTtlHours = 720;
+
+    @JsonProperty
+    @Min(1)
+    public int outboundConnectTimeoutMillis = 2000;
+
+    @JsonProperty
+    @Min(1)
+    public int outboundReadTimeoutMillis = 5000;
+
+    // how long to wait for a pooled connection before giving up
+    @JsonProperty
+    @Min(1)
+    public int outboundPoolTimeoutMillis = 1000;
+
+    @JsonProperty
+    @Min(1)
+    public int outboundMaxConnections = 100;
+
+    @JsonProperty
+    @Min(1)
+    public int outboundMaxConnectionsPerHost = 20;
+
+    @JsonProperty
+    @Min(0)
+    @Max(5)
+    public int outboundMaxRetries = 2;
+
+    // consecutive failures before we stop calling a host for outboundCircuitOpenSeconds
+    @JsonProperty
+    @Min(1)
+    public int outboundCircuitFailureThreshold = 5;
+
+    @JsonProperty
+    @Min(1)
+    public int outboundCircuitOpenSeconds = 30;
+
+    @JsonProperty
+    @Min(0)
+    public long geocodeCacheSize = 10000;
+
+    @JsonProperty
+    @Min(1)
+    public long geocodeCacheTtlHours = 720;
+
+    // how long to remember addresses that google couldn't find
+    @JsonProperty
+    @Min(1)
+    public long geocodeNegativeCacheTtlHours = 24;
+
+    @JsonProperty
+    @Min(1)
+    public long serviceAreaRefreshMinutes = 10;
+
+    // search terms and out of area searches are buffered and written in the background
+    @JsonProperty
+    @Min(1)
+    public int analyticsBufferCapacity = 10000;
+
+    @JsonProperty
+    @Min(1)
+    public int analyticsBatchSize = 500;
+
+    @JsonProperty
+    @Min(1)
+    public long analyticsFlushIntervalMillis = 5000;
+
+    // users looked up by id are cached for a short time, writes from this instance invalidate them right away
+    @JsonProperty
+    @Min(1)
+    public long userCacheSize = 10000;
+
+    @JsonProperty
+    @Min(1)
+    public long userCacheTtlSeconds = 30;
+
+    // users' profiles are copied to their requests in the background, chunkSize requests per update
+    @JsonProperty
+    @Min(1)
+    public int userPropagationChunkSize = 200;
+
+    @JsonProperty
+    @Min(0)
+    public long userPropagationChunkDelayMillis = 50;
+
+    // open requests are indexed in memory for search, and fully re-read from the db this often
+    @JsonProperty
+    @Min(1)
+    public long searchIndexRebuildMinutes = 15;
+
+    // binary table or csv (zip,latitude,longitude) of zip centroids, zips are geocoded with google if not set
+    @JsonProperty
+    public String zipCentroidFile;
+
     @JsonProperty
     @NotEmpty
     public String stripeSecretKey;
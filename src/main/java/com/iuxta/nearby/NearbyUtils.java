@@ -15,6 +15,7 @@ public class NearbyUtils {
 
     public static final String GOOGLE_AUTH_METHOD = "google";
     public static final String FB_AUTH_METHOD = "facebook";
+    public static final String SESSION_AUTH_METHOD = "session";
     public static final Double MINIMUM_OFFER_PRICE = 0.5;
     public static final Currency USD = Currency.getInstance("USD");
     public static final RoundingMode DEFAULT_ROUNDING = RoundingMode.HALF_EVEN;
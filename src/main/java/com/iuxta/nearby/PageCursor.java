@@ -0,0 +1,97 @@
+package com.iuxta.nearby;
+
+import com.iuxta.nearby.exception.BadRequestException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Opaque cursors for keyset paging. A cursor holds the sort key of the last row on a page (e.g. postDate and _id), and
+ * the next page is queried for rows that sort after it, so every page costs the same as the first no matter how deep
+ * the client has scrolled. Endpoints return the cursor for the next page in the x-next-cursor header and take it back
+ * in the cursor query param.
+ */
+public class PageCursor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageCursor.class);
+
+    public static final String NEXT_CURSOR_HEADER = "x-next-cursor";
+
+    public static class Page<T> {
+        public List<T> items = new ArrayList<>();
+
+        /**
+         * null when there are no more rows
+         */
+        public String nextCursor;
+    }
+
+    public static String encode(Object... parts) {
+        String cursor = Stream.of(parts).map(String::valueOf).collect(Collectors.joining(":"));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor
+     * @param parts how many values the cursor must hold
+     * @return the values passed to {@link #encode}, as strings
+     * @throws BadRequestException if the cursor wasn't one of ours
+     */
+    public static String[] decode(String cursor, int parts) {
+        try {
+            String[] values = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(":", -1);
+            if (values.length == parts) {
+                return values;
+            }
+        } catch (IllegalArgumentException e) {
+            // not base64, handled below
+        }
+        throw invalid(cursor);
+    }
+
+    /**
+     * For cursors that decode but hold values that don't parse
+     */
+    public static BadRequestException invalid(String cursor) {
+        String msg = "Invalid cursor [" + cursor + "]";
+        LOGGER.error(msg);
+        return new BadRequestException(msg);
+    }
+
+    /**
+     * @return rows that come after (value, id) when sorted by field then _id, both descending or both ascending
+     */
+    public static BasicDBList after(String field, Object value, ObjectId id, boolean descending) {
+        String op = descending ? "$lt" : "$gt";
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject(field, new BasicDBObject(op, value)));
+        or.add(new BasicDBObject(field, value).append("_id", new BasicDBObject(op, id)));
+        return or;
+    }
+
+    /**
+     * Adds an $or to the query, keeping any $or that is already there
+     *
+     * @param query
+     * @param or
+     */
+    public static void addOr(BasicDBObject query, BasicDBList or) {
+        if (!query.containsField("$or")) {
+            query.put("$or", or);
+            return;
+        }
+        BasicDBList and = new BasicDBList();
+        and.add(new BasicDBObject("$or", query.removeField("$or")));
+        and.add(new BasicDBObject("$or", or));
+        query.put("$and", and);
+    }
+}
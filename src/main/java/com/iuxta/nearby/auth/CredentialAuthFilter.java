@@ -22,6 +22,11 @@ public class CredentialAuthFilter<P extends Principal> extends AuthFilter<Creden
 
     public static final String IP_HEADER = "x-auth-ip";
 
+    /**
+     * request property holding a newly issued session token, see {@link SessionTokenResponseFilter}
+     */
+    public static final String SESSION_TOKEN_PROPERTY = "nearby.sessionToken";
+
     private CredentialAuthFilter() {
     }
 
@@ -32,6 +37,9 @@ public class CredentialAuthFilter<P extends Principal> extends AuthFilter<Creden
         if(!this.authenticate(requestContext, credentials, "BASIC")) {
             throw new WebApplicationException(this.unauthorizedHandler.buildResponse(this.prefix, this.realm));
         }
+        if (credentials.getSessionToken() != null) {
+            requestContext.setProperty(SESSION_TOKEN_PROPERTY, credentials.getSessionToken());
+        }
     }
 
     @Nullable
@@ -0,0 +1,92 @@
+package com.iuxta.nearby.auth;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which user a token was issued to after facebook/google has verified it once, so we don't have to ask them
+ * again on every request. Entries live until the cache ttl or the token's own expiration, whichever comes first. Only
+ * a hash of the token is kept.
+ */
+public class CredentialCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CredentialCache.class);
+
+    private Cache<String, VerifiedCredential> cache;
+
+    public CredentialCache(long maxSize, long ttlSeconds, MetricRegistry metrics) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        metrics.register(MetricRegistry.name(CredentialCache.class, "hits"),
+                (Gauge<Long>) () -> cache.stats().hitCount());
+        metrics.register(MetricRegistry.name(CredentialCache.class, "misses"),
+                (Gauge<Long>) () -> cache.stats().missCount());
+        metrics.register(MetricRegistry.name(CredentialCache.class, "evictions"),
+                (Gauge<Long>) () -> cache.stats().evictionCount());
+        metrics.register(MetricRegistry.name(CredentialCache.class, "size"),
+                (Gauge<Long>) () -> cache.size());
+    }
+
+    /**
+     * @param credentials
+     * @return the id of the user the token was verified for, or null if we need to verify it
+     */
+    public String getUserId(Credentials credentials) {
+        String key = key(credentials);
+        VerifiedCredential verified = cache.getIfPresent(key);
+        if (verified == null) {
+            return null;
+        }
+        if (verified.expiresAt > 0 && verified.expiresAt <= System.currentTimeMillis()) {
+            cache.invalidate(key);
+            return null;
+        }
+        return verified.userId;
+    }
+
+    /**
+     * @param credentials
+     * @param userId
+     * @param expiresAt when the token expires in epoch millis, 0 if the token doesn't expire
+     */
+    public void put(Credentials credentials, String userId, long expiresAt) {
+        if (expiresAt > 0 && expiresAt <= System.currentTimeMillis()) {
+            return;
+        }
+        cache.put(key(credentials), new VerifiedCredential(userId, expiresAt));
+    }
+
+    /**
+     * Forget every token that maps to the user, call after anything happens that should make the user log in again
+     *
+     * @param userId
+     */
+    public void invalidateUser(String userId) {
+        cache.asMap().values().removeIf(v -> v.userId.equals(userId));
+        LOGGER.info("cleared cached credentials for user [" + userId + "]");
+    }
+
+    private String key(Credentials credentials) {
+        return DigestUtils.sha256Hex(credentials.getMethod() + ":" + credentials.getToken());
+    }
+
+    private static class VerifiedCredential {
+        private String userId;
+        private long expiresAt;
+
+        VerifiedCredential(String userId, long expiresAt) {
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -10,6 +10,11 @@ public class Credentials {
 
     private final String ip;
 
+    /**
+     * session token minted for the client after its facebook/google token was verified, if any
+     */
+    private String sessionToken;
+
     public Credentials(String token, String method, String ip) {
         this.token = token;
         this.method = method;
@@ -27,4 +32,12 @@ public class Credentials {
     public String getIp() {
         return ip;
     }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
 }
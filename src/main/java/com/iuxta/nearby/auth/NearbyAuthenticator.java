@@ -8,9 +8,11 @@ import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.iuxta.nearby.NearbyUtils;
 import com.iuxta.nearby.exception.InternalServerException;
-import com.iuxta.nearby.firebase.CcsServer;
 import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
+import com.iuxta.nearby.http.OutboundHttpClient;
 import com.iuxta.nearby.model.User;
+import com.iuxta.nearby.service.UserCache;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import io.dropwizard.auth.AuthenticationException;
@@ -18,11 +20,8 @@ import io.dropwizard.auth.Authenticator;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mongojack.DBCursor;
@@ -31,9 +30,7 @@ import org.mongojack.WriteResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.URISyntaxException;
 import java.util.Date;
 import java.util.List;
@@ -48,7 +45,7 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
 
     private JacksonDBCollection<User, String> userCollection;
 
-    private CloseableHttpClient client = HttpClients.createDefault();
+    private OutboundHttpClient httpClient;
 
     private String fbAuthToken;
 
@@ -56,16 +53,28 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
 
     private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
-    private CcsServer ccsServer;
+    private NotificationDispatcher notificationDispatcher;
 
+    private CredentialCache credentialCache;
+
+    private SessionTokenService sessionTokenService;
+
+    private UserCache userCache;
 
     GoogleIdTokenVerifier verifier;
 
 
-    public NearbyAuthenticator(JacksonDBCollection<User, String> userCollection, String fbAuthToken, List<String> googleClientIds, CcsServer ccsServer) {
+    public NearbyAuthenticator(JacksonDBCollection<User, String> userCollection, String fbAuthToken,
+                               List<String> googleClientIds, NotificationDispatcher notificationDispatcher,
+                               CredentialCache credentialCache, SessionTokenService sessionTokenService,
+                               OutboundHttpClient httpClient, UserCache userCache) {
         this.userCollection = userCollection;
+        this.userCache = userCache;
+        this.httpClient = httpClient;
         this.fbAuthToken = fbAuthToken;
-        this.ccsServer = ccsServer;
+        this.notificationDispatcher = notificationDispatcher;
+        this.credentialCache = credentialCache;
+        this.sessionTokenService = sessionTokenService;
         try {
             this.httpTransport = GoogleNetHttpTransport.newTrustedTransport();
             verifier = new GoogleIdTokenVerifier.Builder(httpTransport, JSON_FACTORY)
@@ -86,16 +95,54 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
     public Optional<User> authenticate(Credentials credentials) throws AuthenticationException {
         if (credentials.getToken().isEmpty()) {
             throw new AuthenticationException("Invalid credentials - token was not present");
+        } else if (credentials.getMethod().equals(NearbyUtils.SESSION_AUTH_METHOD)) {
+            return Optional.ofNullable(doSessionAuth(credentials));
         } else {
+            String cachedUserId = credentialCache.getUserId(credentials);
+            if (cachedUserId != null) {
+                User user = userCache.get(cachedUserId);
+                if (user != null) {
+                    String method = credentials.getMethod().equals(NearbyUtils.GOOGLE_AUTH_METHOD) ?
+                            NearbyUtils.GOOGLE_AUTH_METHOD : NearbyUtils.FB_AUTH_METHOD;
+                    updateExistingUser(user, credentials, method);
+                    return Optional.of(user);
+                }
+            }
+            User user;
             if (credentials.getMethod().equals(NearbyUtils.GOOGLE_AUTH_METHOD)) {
-                User user = doGoogleAuth(credentials);
-                return Optional.ofNullable(user);
+                user = doGoogleAuth(credentials);
             } else {
-                User user = doFacebookAuth(credentials);
-                return Optional.ofNullable(user);
+                user = doFacebookAuth(credentials);
             }
+            if (user != null && sessionTokenService.isEnabled()) {
+                credentials.setSessionToken(sessionTokenService.issue(user));
+            }
+            return Optional.ofNullable(user);
+
+        }
+    }
 
+    /**
+     * Session tokens are checked in memory, we only go to the db to load the user
+     *
+     * @param credentials
+     * @return the user, or null if the token is invalid, expired or revoked
+     */
+    private User doSessionAuth(Credentials credentials) {
+        SessionTokenService.SessionToken session = sessionTokenService.verify(credentials.getToken());
+        if (session == null) {
+            LOGGER.info("rejected invalid or expired session token");
+            return null;
+        }
+        User user = userCache.get(session.getUserId());
+        if (user == null) {
+            return null;
+        }
+        if (sessionTokenService.isRevokedFor(session, user)) {
+            LOGGER.info("rejected session token for user [" + user.getId() + "] issued before their sessions were revoked");
+            return null;
         }
+        return user;
     }
 
     private User doGoogleAuth(Credentials credentials) throws AuthenticationException {
@@ -116,22 +163,16 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
             String userId = payload.getSubject();
             LOGGER.info("Google User ID: " + userId);
             User user = searchForExistingUser(userId);
+            long expiresAt = payload.getExpirationTimeSeconds() != null ? payload.getExpirationTimeSeconds() * 1000 : 0;
             if (user == null) {
                 user = createNewGoogleUser(payload, credentials.getIp());
                 sendAdminsNotificationOfNewUser(user.getName());
+                credentialCache.put(credentials, user.getId(), expiresAt);
                 return user;
             }
-            if (StringUtils.isNotBlank(credentials.getIp()) && (user.getTosAccepted() == null || !user.getTosAccepted())) {
-                user.setTosAccepted(true);
-                Date date = new Date();
-                user.setTimeTosAccepted(date);
-                user.setTosAcceptIp(credentials.getIp());
-            } else if (user.getTosAccepted() == null) {
-                user.setTosAccepted(false);
-            }
+            updateExistingUser(user, credentials, NearbyUtils.GOOGLE_AUTH_METHOD);
             LOGGER.info("finished updating google user [" + user.getEmail() + "]");
-            user.setAuthMethod(NearbyUtils.GOOGLE_AUTH_METHOD);
-            userCollection.save(user);
+            credentialCache.put(credentials, user.getId(), expiresAt);
             return user;
 
         } else {
@@ -146,26 +187,22 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
                     .addParameter("input_token", credentials.getToken())
                     .addParameter("access_token", fbAuthToken);
 
-            HttpGet httpGet = new HttpGet(builder.toString());
-            CloseableHttpResponse httpResp = client.execute(httpGet);
-
-            String userId = extractUserId(httpResp);
+            JSONObject tokenData = httpClient.get(builder.build(), this::extractTokenData);
+            if (tokenData == null) {
+                throw new AuthenticationException("Invalid credentials: facebook rejected the token");
+            }
+            String userId = (String) tokenData.get("user_id");
+            // facebook sends 0 for tokens that don't expire
+            long expiresAt = tokenData.optLong("expires_at", 0) * 1000;
             User user = searchForExistingUser(userId);
             if (user == null) {
                 User newUser = createNewFacebookUser(userId, credentials.getIp());
                 sendAdminsNotificationOfNewUser(newUser.getName());
+                credentialCache.put(credentials, newUser.getId(), expiresAt);
                 return newUser;
             }
-            if (StringUtils.isNotBlank(credentials.getIp()) && (user.getTosAccepted() == null || !user.getTosAccepted())) {
-                user.setTosAccepted(true);
-                Date date = new Date();
-                user.setTimeTosAccepted(date);
-                user.setTosAcceptIp(credentials.getIp());
-            } else if (user.getTosAccepted() == null) {
-                user.setTosAccepted(false);
-            }
-            user.setAuthMethod(NearbyUtils.FB_AUTH_METHOD);
-            userCollection.save(user);
+            updateExistingUser(user, credentials, NearbyUtils.FB_AUTH_METHOD);
+            credentialCache.put(credentials, user.getId(), expiresAt);
             LOGGER.info("authenticated user [" + (user.getEmail() != null ? user.getEmail() : user.getId()) + "]");
             return user;
         } catch (URISyntaxException e) {
@@ -179,6 +216,23 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
         }
     }
 
+    /**
+     * Records tos acceptance and the auth method the user last signed in with, only writes to the db when one of
+     * them actually changed
+     */
+    private void updateExistingUser(User user, Credentials credentials, String authMethod) {
+        if (StringUtils.isNotBlank(credentials.getIp()) && (user.getTosAccepted() == null || !user.getTosAccepted())) {
+            user.setTosAccepted(true);
+            Date date = new Date();
+            user.setTimeTosAccepted(date);
+            user.setTosAcceptIp(credentials.getIp());
+        } else if (user.getTosAccepted() == null) {
+            user.setTosAccepted(false);
+        }
+        user.setAuthMethod(authMethod);
+        userCache.save(user);
+    }
+
     private User searchForExistingUser(String userId) {
         DBObject searchById = new BasicDBObject("userId", userId);
         User user = userCollection.findOne(searchById);
@@ -196,25 +250,21 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                FirebaseUtils.sendFcmMessage(admin, null, notification, notificationDispatcher);
             }        }
     }
 
-    private String extractUserId(CloseableHttpResponse httpResp) throws AuthenticationException, IOException {
+    /**
+     * @return the token's data, or null if facebook didn't accept the token
+     */
+    private JSONObject extractTokenData(HttpResponse httpResp) throws IOException {
         int code = httpResp.getStatusLine().getStatusCode();
         if (code != HttpStatus.SC_OK) {
-            throw new AuthenticationException("Invalid credentials: " + httpResp.getStatusLine());
-        }
-        BufferedReader rd = new BufferedReader(new InputStreamReader(httpResp.getEntity().getContent()));
-        StringBuilder result = new StringBuilder();
-        String line;
-        while ((line = rd.readLine()) != null) {
-            result.append(line);
+            LOGGER.info("facebook did not accept token: " + httpResp.getStatusLine());
+            return null;
         }
-        JSONObject dataObject = new JSONObject(result.toString());
-        JSONObject userObj = (JSONObject) dataObject.get("data");
-        httpResp.close();
-        return (String) userObj.get("user_id");
+        JSONObject dataObject = new JSONObject(EntityUtils.toString(httpResp.getEntity()));
+        return (JSONObject) dataObject.get("data");
     }
 
     /*private User updateGoogleUser(User user, GoogleIdToken.Payload payload) {
@@ -285,30 +335,11 @@ public class NearbyAuthenticator implements Authenticator<Credentials, User> {
     private JSONObject getFbProfile(String userId) throws IOException, URISyntaxException {
         URIBuilder builder = new URIBuilder("https://graph.facebook.com/" + userId)
                 .addParameter("access_token", fbAuthToken);
-        HttpGet httpGet = new HttpGet(builder.toString());
-        HttpResponse httpResp = client.execute(httpGet);
-        BufferedReader rd = new BufferedReader(new InputStreamReader(httpResp.getEntity().getContent()));
-        StringBuilder result = new StringBuilder();
-        String line;
-        while ((line = rd.readLine()) != null) {
-            result.append(line);
-        }
-        JSONObject userInfo = new JSONObject(result.toString());
-        return userInfo;
+        return httpClient.get(builder.build(), response -> new JSONObject(EntityUtils.toString(response.getEntity())));
     }
 
     private User createNewFacebookUser(String userId, String ip) throws IOException, URISyntaxException {
-        URIBuilder builder = new URIBuilder("https://graph.facebook.com/" + userId)
-                .addParameter("access_token", fbAuthToken);
-        HttpGet httpGet = new HttpGet(builder.toString());
-        HttpResponse httpResp = client.execute(httpGet);
-        BufferedReader rd = new BufferedReader(new InputStreamReader(httpResp.getEntity().getContent()));
-        StringBuilder result = new StringBuilder();
-        String line;
-        while ((line = rd.readLine()) != null) {
-            result.append(line);
-        }
-        JSONObject userInfo = new JSONObject(result.toString());
+        JSONObject userInfo = getFbProfile(userId);
         String userName = (String) userInfo.get("name");
         String[] names = userName.split(" ");
         User newUser = new User();
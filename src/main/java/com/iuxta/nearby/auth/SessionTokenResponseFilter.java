@@ -0,0 +1,22 @@
+package com.iuxta.nearby.auth;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import java.io.IOException;
+
+/**
+ * Hands a session token issued during authentication back to the client, which can then send it with
+ * x-auth-method "session" instead of its facebook/google token.
+ */
+public class SessionTokenResponseFilter implements ContainerResponseFilter {
+
+    public static final String SESSION_TOKEN_HEADER = "x-session-token";
+
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        Object token = requestContext.getProperty(CredentialAuthFilter.SESSION_TOKEN_PROPERTY);
+        if (token != null) {
+            responseContext.getHeaders().putSingle(SESSION_TOKEN_HEADER, token);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.iuxta.nearby.auth;
+
+import com.iuxta.nearby.model.RevokedSession;
+import com.iuxta.nearby.model.User;
+import com.mongodb.BasicDBObject;
+import io.dropwizard.lifecycle.Managed;
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Issues and verifies our own session tokens so clients only have to prove who they are to facebook/google once.
+ * A token looks like keyId.payload.signature where the payload holds the user id, issue time, expiration and a
+ * random token id, and the signature is an HMAC-SHA256 of keyId.payload.
+ *
+ * New tokens are signed with the active key, but every configured key is accepted, so keys can be rotated by adding a
+ * new key, making it active, and dropping the old one once its tokens have expired. Revoked token ids are kept in
+ * the revokedSessions collection and mirrored in memory, refreshed every minute so revocations from other servers
+ * are picked up.
+ */
+public class SessionTokenService implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionTokenService.class);
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private Map<String, byte[]> keys = new HashMap<>();
+    private String activeKeyId;
+    private long ttlMillis;
+    private JacksonDBCollection<RevokedSession, String> revokedSessionCollection;
+    private Map<String, Long> revoked = new ConcurrentHashMap<>();
+    private ScheduledExecutorService refresher;
+
+    /**
+     * @param keys key id -> base64 encoded secret, if empty session tokens are turned off
+     * @param activeKeyId key used to sign new tokens
+     * @param ttlHours
+     * @param revokedSessionCollection
+     */
+    public SessionTokenService(Map<String, String> keys, String activeKeyId, long ttlHours,
+                               JacksonDBCollection<RevokedSession, String> revokedSessionCollection) {
+        if (keys != null) {
+            keys.forEach((id, secret) -> this.keys.put(id, Base64.getDecoder().decode(secret)));
+        }
+        if (!this.keys.isEmpty() && !this.keys.containsKey(activeKeyId)) {
+            throw new IllegalStateException("active session key [" + activeKeyId + "] is not one of the configured keys");
+        }
+        this.activeKeyId = activeKeyId;
+        this.ttlMillis = TimeUnit.HOURS.toMillis(ttlHours);
+        this.revokedSessionCollection = revokedSessionCollection;
+    }
+
+    public boolean isEnabled() {
+        return !keys.isEmpty();
+    }
+
+    public String issue(User user) {
+        long now = System.currentTimeMillis();
+        String payload = user.getId() + "|" + now + "|" + (now + ttlMillis) + "|" + UUID.randomUUID().toString();
+        String encodedPayload = encode(payload.getBytes(StandardCharsets.UTF_8));
+        String signed = activeKeyId + "." + encodedPayload;
+        return signed + "." + encode(sign(keys.get(activeKeyId), signed));
+    }
+
+    /**
+     * Checks the signature, expiration and revocation list, without touching the database
+     *
+     * @param token
+     * @return the session, or null if the token isn't valid
+     */
+    public SessionToken verify(String token) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        byte[] key = keys.get(parts[0]);
+        if (key == null) {
+            LOGGER.info("got a session token signed with unknown key [" + parts[0] + "]");
+            return null;
+        }
+        byte[] signature;
+        String[] fields;
+        try {
+            signature = Base64.getUrlDecoder().decode(parts[2]);
+            fields = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8).split("\\|");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, sign(key, parts[0] + "." + parts[1])) || fields.length != 4) {
+            return null;
+        }
+        SessionToken session = new SessionToken(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+        if (session.expiresAt <= System.currentTimeMillis() || revoked.containsKey(session.tokenId)) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * @param session a verified session
+     * @param user the session's user
+     * @return true if the user signed out of all of their sessions after this one was issued
+     */
+    public boolean isRevokedFor(SessionToken session, User user) {
+        return user.getSessionsRevokedAt() != null && session.issuedAt <= user.getSessionsRevokedAt().getTime();
+    }
+
+    public void revoke(SessionToken session) {
+        RevokedSession revokedSession = new RevokedSession();
+        revokedSession.setTokenId(session.tokenId);
+        revokedSession.setUserId(session.userId);
+        revokedSession.setExpiresAt(new Date(session.expiresAt));
+        revokedSessionCollection.insert(revokedSession);
+        revoked.put(session.tokenId, session.expiresAt);
+        LOGGER.info("revoked session [" + session.tokenId + "] for user [" + session.userId + "]");
+    }
+
+    public void start() throws Exception {
+        refreshRevoked();
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-revocation-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(this::refreshRevoked, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void stop() throws Exception {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private void refreshRevoked() {
+        try {
+            long now = System.currentTimeMillis();
+            BasicDBObject query = new BasicDBObject("expiresAt", new BasicDBObject("$gt", new Date(now)));
+            DBCursor<RevokedSession> cursor = revokedSessionCollection.find(query);
+            cursor.toArray().forEach(r -> revoked.put(r.getTokenId(), r.getExpiresAt().getTime()));
+            cursor.close();
+            revoked.values().removeIf(expiresAt -> expiresAt <= now);
+        } catch (Exception e) {
+            LOGGER.error("could not refresh revoked sessions, got error: " + e.getMessage());
+        }
+    }
+
+    private byte[] sign(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(key, ALGORITHM));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("could not sign session token: " + e.getMessage(), e);
+        }
+    }
+
+    private String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    public static class SessionToken {
+        private String userId;
+        private long issuedAt;
+        private long expiresAt;
+        private String tokenId;
+
+        SessionToken(String userId, long issuedAt, long expiresAt, String tokenId) {
+            this.userId = userId;
+            this.issuedAt = issuedAt;
+            this.expiresAt = expiresAt;
+            this.tokenId = tokenId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public long getIssuedAt() {
+            return issuedAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        public String getTokenId() {
+            return tokenId;
+        }
+    }
+}
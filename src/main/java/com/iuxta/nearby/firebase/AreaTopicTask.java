@@ -0,0 +1,52 @@
+package com.iuxta.nearby.firebase;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.iuxta.nearby.model.User;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCursor;
+import io.dropwizard.servlets.tasks.Task;
+import org.mongojack.JacksonDBCollection;
+
+import java.io.PrintWriter;
+
+/**
+ * POST /tasks/area-topics queues a subscription update for every user that wants home location notifications or is
+ * still subscribed to area topics, e.g. after switching areaNotificationMode to TOPIC or changing areaTopicPrecision.
+ */
+public class AreaTopicTask extends Task {
+
+    private AreaTopics areaTopics;
+    private JacksonDBCollection<User, String> userCollection;
+
+    public AreaTopicTask(AreaTopics areaTopics, JacksonDBCollection<User, String> userCollection) {
+        super("area-topics");
+        this.areaTopics = areaTopics;
+        this.userCollection = userCollection;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+        if (!areaTopics.isEnabled()) {
+            output.println("areaNotificationMode is not TOPIC, nothing to update");
+            output.flush();
+            return;
+        }
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("homeLocationNotifications", true));
+        or.add(new BasicDBObject("areaTopicsToken", new BasicDBObject("$exists", true)));
+        DBCursor users = userCollection.getDbCollection()
+                .find(new BasicDBObject("$or", or), new BasicDBObject("_id", 1));
+        int queued = 0;
+        try {
+            while (users.hasNext()) {
+                areaTopics.updateSubscriptions(users.next().get("_id").toString());
+                queued++;
+            }
+        } finally {
+            users.close();
+        }
+        output.println("queued area topic updates for [" + queued + "] users");
+        output.flush();
+    }
+}
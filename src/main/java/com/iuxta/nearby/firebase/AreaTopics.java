@@ -0,0 +1,300 @@
+package com.iuxta.nearby.firebase;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.nearby.GeoHash;
+import com.iuxta.nearby.model.Request;
+import com.iuxta.nearby.model.User;
+import com.iuxta.nearby.service.UserCache;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Broadcasts new requests to the users near them with fcm topics. Every device with home location notifications on is
+ * subscribed to the topics of the geohash tiles covering its home location and notification radius, named
+ * area-(android|ios)-(tile), and a new request is published once to the topics of the tiles it falls in, so FCM does
+ * the fan out and the number of messages we send doesn't grow with the number of users in the area.
+ *
+ * Tiles are coarser than the radius (a precision 3 tile is about 156km across), and a topic message goes to everyone
+ * subscribed, so the server can no longer drop requests that are too far, the user's own or from someone they blocked.
+ * The message carries the poster and the location and is sent without a notification on both platforms (see
+ * {@link NotificationPayload#toTopicMessage}), nothing is shown unless the app does those checks and builds the alert
+ * itself. Only switch to TOPIC once the apps in use do that, DEVICE checks each user on the server.
+ *
+ * Users are subscribed at precision tiles, or coarser ones if their radius would need more than MAX_TOPICS tiles, so a
+ * request is published to its tile at every precision from precision down to MIN_PRECISION. Subscriptions are
+ * updated in the background after the user's profile or fcm token changes, keyed by user id like
+ * {@link com.iuxta.nearby.service.UserSnapshotPropagator}, and the topics the token was subscribed to are saved on
+ * the user so only the difference is sent to the registry. A token the registry rejects is dropped from the user's
+ * saved topics instead of being retried, other failures are retried with a doubling delay up to MAX_RETRIES times.
+ *
+ * Nothing is subscribed or published in DEVICE mode, where each user is sent their own notification when the app asks
+ * for them.
+ */
+public class AreaTopics implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AreaTopics.class);
+
+    public enum Mode {
+        DEVICE, TOPIC
+    }
+
+    static final int MIN_PRECISION = 3;
+
+    static final int MAX_TOPICS = 100;
+
+    private static final double METERS_PER_MILE = 1609.344;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final int MAX_RETRIES = 5;
+
+    private TopicRegistry registry;
+    private UserCache userCache;
+    private NotificationDispatcher notificationDispatcher;
+    private Mode mode;
+    private int precision;
+    private BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    // failed attempts so far for users waiting on a retry, cleared by a success or a new change to the user
+    private Map<String, Integer> attempts = new ConcurrentHashMap<>();
+    private ExecutorService worker;
+    private ScheduledExecutorService retries;
+    private volatile boolean stopping;
+
+    private Meter subscribed;
+    private Meter unsubscribed;
+    private Meter failed;
+    private Meter invalidTokens;
+    private Meter published;
+
+    public AreaTopics(TopicRegistry registry, UserCache userCache, NotificationDispatcher notificationDispatcher,
+                      Mode mode, int precision, MetricRegistry metrics) {
+        this.registry = registry;
+        this.userCache = userCache;
+        this.notificationDispatcher = notificationDispatcher;
+        this.mode = mode;
+        this.precision = precision;
+        metrics.register(MetricRegistry.name(AreaTopics.class, "pending"), (Gauge<Integer>) () -> pending.size());
+        this.subscribed = metrics.meter(MetricRegistry.name(AreaTopics.class, "subscribed"));
+        this.unsubscribed = metrics.meter(MetricRegistry.name(AreaTopics.class, "unsubscribed"));
+        this.failed = metrics.meter(MetricRegistry.name(AreaTopics.class, "failed"));
+        this.invalidTokens = metrics.meter(MetricRegistry.name(AreaTopics.class, "invalid-tokens"));
+        this.published = metrics.meter(MetricRegistry.name(AreaTopics.class, "published"));
+    }
+
+    /**
+     * @return true if new requests near users' homes are broadcast here instead of being sent to each user
+     */
+    public boolean isEnabled() {
+        return mode == Mode.TOPIC;
+    }
+
+    /**
+     * Schedules bringing the user's subscriptions in line with their saved profile and fcm token, never blocks
+     *
+     * @param userId
+     */
+    public void updateSubscriptions(String userId) {
+        if (isEnabled()) {
+            attempts.remove(userId);
+            enqueue(userId);
+        }
+    }
+
+    private void enqueue(String userId) {
+        if (pending.putIfAbsent(userId, true) == null) {
+            queue.offer(userId);
+        }
+    }
+
+    /**
+     * Sends one message per platform to the request's tile at each precision, for requests people want to be told
+     * about (buying or renting)
+     *
+     * @param request a request that was just posted
+     */
+    public void publish(Request request) {
+        if (!isEnabled() || request.getLocation() == null || request.getType() == null ||
+                request.isInventoryListing() || Boolean.TRUE.equals(request.getInappropriate())) {
+            return;
+        }
+        double longitude = request.getLocation().getCoordinates()[0];
+        double latitude = request.getLocation().getCoordinates()[1];
+        NotificationPayload payload = new NotificationPayload(FirebaseUtils.NotificationTypes.request_notification)
+                .title("Recent Requests")
+                .message(request.getUser().getFirstName() + " requested a " + request.getItemName() +
+                        ". Can you help out?")
+                .put("requestId", request.getId())
+                .put("userId", request.getUser().getId())
+                .put("latitude", latitude)
+                .put("longitude", longitude);
+        List<NotificationDispatcher.PendingMessage> messages = new ArrayList<>();
+        String tile = GeoHash.encode(latitude, longitude, precision);
+        for (int p = precision; p >= MIN_PRECISION; p--) {
+            for (boolean ios : new boolean[]{false, true}) {
+                String topic = topic(ios, tile.substring(0, p));
+                String messageId = CcsServer.nextMessageId();
+                messages.add(new NotificationDispatcher.PendingMessage(topic, messageId,
+                        payload.toTopicMessage(topic, ios, messageId)));
+            }
+        }
+        LOGGER.info("publishing request [" + request.getId() + "] to [" + messages.size() + "] area topics");
+        published.mark(messages.size());
+        notificationDispatcher.enqueueAll(messages);
+    }
+
+    /**
+     * @param user
+     * @return the topics the user's device should be subscribed to, empty if they don't want home notifications
+     */
+    public List<String> topicsFor(User user) {
+        if (user.getFcmRegistrationId() == null || user.getHomeLocation() == null ||
+                user.getNotificationRadius() == null || !Boolean.TRUE.equals(user.getHomeLocationNotifications()) ||
+                !Boolean.TRUE.equals(user.getNewRequestNotificationsEnabled())) {
+            return Collections.emptyList();
+        }
+        double longitude = user.getHomeLocation().getCoordinates()[0];
+        double latitude = user.getHomeLocation().getCoordinates()[1];
+        double radius = user.getNotificationRadius() * METERS_PER_MILE;
+        Set<String> tiles = Collections.emptySet();
+        for (int p = precision; p >= MIN_PRECISION; p--) {
+            tiles = GeoHash.covering(latitude, longitude, radius, p);
+            if (tiles.size() <= MAX_TOPICS) {
+                break;
+            }
+        }
+        boolean ios = NotificationPayload.wantsNotification(user);
+        return tiles.stream().map(tile -> topic(ios, tile)).collect(Collectors.toList());
+    }
+
+    static String topic(boolean ios, String tile) {
+        return "area-" + (ios ? "ios" : "android") + "-" + tile;
+    }
+
+    private void run() {
+        while (!stopping || !queue.isEmpty()) {
+            String userId;
+            try {
+                userId = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (userId == null) {
+                continue;
+            }
+            // a change made from here on needs a new job, this one may have already read the profile
+            pending.remove(userId);
+            try {
+                reconcile(userId);
+                attempts.remove(userId);
+            } catch (Exception e) {
+                failed.mark();
+                int attempt = attempts.merge(userId, 1, Integer::sum);
+                if (attempt > MAX_RETRIES || stopping) {
+                    attempts.remove(userId);
+                    LOGGER.error("giving up on area topics for user [" + userId + "] after [" + attempt +
+                            "] attempts, got error: " + e.getMessage());
+                    continue;
+                }
+                long delay = Math.min(MAX_RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS << (attempt - 1));
+                LOGGER.error("could not update area topics for user [" + userId + "], retrying in [" + delay +
+                        "]ms, got error: " + e.getMessage());
+                retries.schedule(() -> enqueue(userId), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void reconcile(String userId) throws Exception {
+        User user = userCache.get(userId);
+        if (user == null) {
+            LOGGER.info("not updating area topics for user [" + userId + "], user no longer exists");
+            return;
+        }
+        String token = user.getFcmRegistrationId();
+        Set<String> want = new LinkedHashSet<>(topicsFor(user));
+        Set<String> have = user.getAreaTopics() != null ?
+                new LinkedHashSet<>(user.getAreaTopics()) : Collections.emptySet();
+        String oldToken = user.getAreaTopicsToken();
+        if (oldToken != null && !oldToken.equals(token)) {
+            // the app got a new token, the old one is dropped from everything it was in
+            registry.unsubscribe(oldToken, have);
+            unsubscribed.mark(have.size());
+            have = Collections.emptySet();
+        }
+        Set<String> remove = new LinkedHashSet<>(have);
+        remove.removeAll(want);
+        Set<String> add = new LinkedHashSet<>(want);
+        add.removeAll(have);
+        if (!remove.isEmpty()) {
+            registry.unsubscribe(oldToken, remove);
+            unsubscribed.mark(remove.size());
+        }
+        if (!add.isEmpty()) {
+            try {
+                registry.subscribe(token, add);
+            } catch (InvalidTokenException e) {
+                // the app will send a new token when it gets one, until then the user is in no area topics
+                invalidTokens.mark();
+                LOGGER.info("not subscribing user [" + userId + "] to area topics, token was rejected: " +
+                        e.getMessage());
+                want = Collections.emptySet();
+                add = Collections.emptySet();
+            }
+            subscribed.mark(add.size());
+        }
+        user.setAreaTopics(want.isEmpty() ? null : new ArrayList<>(want));
+        user.setAreaTopicsToken(want.isEmpty() ? null : token);
+        userCache.save(user);
+        LOGGER.info("area topics for user [" + userId + "]: [" + add.size() + "] subscribed, [" + remove.size() +
+                "] unsubscribed");
+    }
+
+    public void start() throws Exception {
+        stopping = false;
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "area-topics");
+            t.setDaemon(true);
+            return t;
+        });
+        worker.execute(this::run);
+        retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "area-topics-retries");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void stop() throws Exception {
+        stopping = true;
+        if (retries != null) {
+            retries.shutdownNow();
+        }
+        if (worker != null) {
+            worker.shutdown();
+            if (!worker.awaitTermination(5, TimeUnit.SECONDS)) {
+                worker.shutdownNow();
+                LOGGER.info("stopped area topic updates with [" + pending.size() + "] users pending");
+            }
+        }
+    }
+}
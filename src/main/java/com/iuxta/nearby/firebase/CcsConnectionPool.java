@@ -0,0 +1,319 @@
+package com.iuxta.nearby.firebase;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of CCS connections with messages spread across them round robin, skipping connections whose
+ * in-flight window is full, so push throughput isn't capped by one socket's 100 unacked messages.
+ *
+ * CCS routinely drains connections (it sends CONNECTION_DRAINING and closes the connection soon after). When that
+ * happens, or a connection has been down for longer than smack's reconnects take, a replacement is opened in the
+ * background and takes over the slot. The old connection stops taking messages but stays open until its in-flight
+ * messages have been acked, or for drainTimeout, after which anything it never acked has been picked up by
+ * {@link NotificationDispatcher}'s ack timeout and sent again on another connection.
+ *
+ * Metrics are kept per slot rather than per connection so their names don't change when a connection is replaced.
+ */
+public class CcsConnectionPool implements Managed, CcsServer.ReceiptListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CcsConnectionPool.class);
+
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+
+    // checks in a row a connection can be down before it's replaced, smack reconnects on its own before that
+    private static final int MAX_UNHEALTHY_CHECKS = 15;
+
+    /**
+     * Opens and logs in a new connection
+     */
+    public interface ConnectionFactory {
+        CcsServer open() throws Exception;
+    }
+
+    private ConnectionFactory factory;
+    private List<Slot> slots = new ArrayList<>();
+    private Map<CcsServer, Slot> slotsByConnection = new ConcurrentHashMap<>();
+    private List<Retiring> retiring = new CopyOnWriteArrayList<>();
+    private AtomicInteger next = new AtomicInteger();
+    private long drainTimeoutMillis;
+    private CcsServer.ReceiptListener receiptListener;
+    private ScheduledExecutorService maintenance;
+
+    private Meter replaced;
+    private Meter openFailures;
+
+    public CcsConnectionPool(ConnectionFactory factory, int size, long drainTimeoutMillis, MetricRegistry metrics) {
+        this.factory = factory;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        for (int i = 0; i < size; i++) {
+            slots.add(new Slot(i, metrics));
+        }
+        metrics.register(MetricRegistry.name(CcsConnectionPool.class, "usable-connections"),
+                (Gauge<Integer>) this::getUsableCount);
+        metrics.register(MetricRegistry.name(CcsConnectionPool.class, "retiring-connections"),
+                (Gauge<Integer>) () -> retiring.size());
+        this.replaced = metrics.meter(MetricRegistry.name(CcsConnectionPool.class, "replaced"));
+        this.openFailures = metrics.meter(MetricRegistry.name(CcsConnectionPool.class, "open-failures"));
+    }
+
+    public void setReceiptListener(CcsServer.ReceiptListener receiptListener) {
+        this.receiptListener = receiptListener;
+    }
+
+    /**
+     * Sends on the next connection round robin that is usable and has room in its window, or waits on the next usable
+     * one if they're all full
+     *
+     * @param message
+     * @param timeoutMillis how long to wait for room in a window
+     * @return false if the message was not sent, because every window stayed full or no connection is usable
+     */
+    public boolean sendDownstreamMessage(NotificationDispatcher.PendingMessage message, long timeoutMillis)
+            throws Exception {
+        int start = next.getAndIncrement();
+        Slot fallback = null;
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(Math.floorMod(start + i, slots.size()));
+            CcsServer connection = slot.connection;
+            if (!isUsable(connection)) {
+                continue;
+            }
+            if (connection.getInFlightCount() < connection.getMaxInFlight()) {
+                return send(slot, connection, message, 0);
+            }
+            if (fallback == null) {
+                fallback = slot;
+            }
+        }
+        if (fallback == null) {
+            // nothing to send on until a replacement is open
+            Thread.sleep(timeoutMillis);
+            return false;
+        }
+        return send(fallback, fallback.connection, message, timeoutMillis);
+    }
+
+    private boolean send(Slot slot, CcsServer connection, NotificationDispatcher.PendingMessage message,
+                         long timeoutMillis) throws Exception {
+        if (connection.sendDownstreamMessage(message, timeoutMillis)) {
+            slot.sent.mark();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if at least one connection can take messages
+     */
+    public boolean isAvailable() {
+        return getUsableCount() > 0;
+    }
+
+    public int getUsableCount() {
+        return (int) slots.stream().filter(slot -> isUsable(slot.connection)).count();
+    }
+
+    public int getSize() {
+        return slots.size();
+    }
+
+    public int getRetiringCount() {
+        return retiring.size();
+    }
+
+    public int getInFlightCount() {
+        int inFlight = retiring.stream().mapToInt(r -> r.connection.getInFlightCount()).sum();
+        for (Slot slot : slots) {
+            CcsServer connection = slot.connection;
+            inFlight += connection != null ? connection.getInFlightCount() : 0;
+        }
+        return inFlight;
+    }
+
+    /**
+     * @param timeoutMillis
+     * @return messages on any connection, including retiring ones, that have waited longer than timeoutMillis for an
+     * ack
+     */
+    public List<NotificationDispatcher.PendingMessage> expireInFlight(long timeoutMillis) {
+        List<NotificationDispatcher.PendingMessage> expired = new ArrayList<>();
+        for (Slot slot : slots) {
+            CcsServer connection = slot.connection;
+            if (connection != null) {
+                expired.addAll(connection.expireInFlight(timeoutMillis));
+            }
+        }
+        retiring.forEach(r -> expired.addAll(r.connection.expireInFlight(timeoutMillis)));
+        return expired;
+    }
+
+    private static boolean isUsable(CcsServer connection) {
+        return connection != null && !connection.isDraining() && connection.isConnected();
+    }
+
+    public void acked(CcsServer connection, NotificationDispatcher.PendingMessage message) {
+        Slot slot = slotsByConnection.get(connection);
+        if (slot != null) {
+            slot.acked.mark();
+        }
+        if (receiptListener != null) {
+            receiptListener.acked(connection, message);
+        }
+    }
+
+    public void nacked(CcsServer connection, NotificationDispatcher.PendingMessage message, String error) {
+        Slot slot = slotsByConnection.get(connection);
+        if (slot != null) {
+            slot.nacked.mark();
+        }
+        if (receiptListener != null) {
+            receiptListener.nacked(connection, message, error);
+        }
+    }
+
+    public void draining(CcsServer connection) {
+        if (receiptListener != null) {
+            receiptListener.draining(connection);
+        }
+        Slot slot = slotsByConnection.get(connection);
+        if (slot != null && maintenance != null) {
+            maintenance.execute(() -> replace(slot, connection, "draining"));
+        }
+    }
+
+    public void start() throws Exception {
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ccs-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        for (Slot slot : slots) {
+            try {
+                open(slot);
+            } catch (Exception e) {
+                openFailures.mark();
+                LOGGER.error("could not open CCS connection [" + slot.index + "], got error: " + e.getMessage());
+            }
+        }
+        if (!isAvailable()) {
+            String msg = "could not open any of the [" + slots.size() + "] CCS connections";
+            LOGGER.error(msg);
+            throw new IllegalStateException(msg);
+        }
+        maintenance.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() throws Exception {
+        maintenance.shutdownNow();
+        for (Slot slot : slots) {
+            if (slot.connection != null) {
+                slot.connection.close();
+            }
+        }
+        retiring.forEach(r -> r.connection.close());
+    }
+
+    private void open(Slot slot) throws Exception {
+        CcsServer connection = factory.open();
+        connection.setReceiptListener(this);
+        slotsByConnection.put(connection, slot);
+        slot.connection = connection;
+        slot.unhealthyChecks = 0;
+        LOGGER.info("opened CCS connection [" + slot.index + "]");
+    }
+
+    /**
+     * Opens a new connection for the slot and retires old, unless the slot has already moved on from old
+     */
+    private void replace(Slot slot, CcsServer old, String reason) {
+        if (slot.connection != old) {
+            return;
+        }
+        LOGGER.info("replacing CCS connection [" + slot.index + "], " + reason);
+        try {
+            open(slot);
+        } catch (Exception e) {
+            // tried again on the next check
+            openFailures.mark();
+            LOGGER.error("could not open a replacement for CCS connection [" + slot.index + "], got error: " +
+                    e.getMessage());
+            return;
+        }
+        replaced.mark();
+        if (old != null) {
+            old.retire();
+            retiring.add(new Retiring(old));
+        }
+    }
+
+    private void check() {
+        try {
+            for (Slot slot : slots) {
+                CcsServer connection = slot.connection;
+                if (connection == null || connection.isDraining()) {
+                    replace(slot, connection, connection == null ? "never opened" : "draining");
+                } else if (connection.isConnected()) {
+                    slot.unhealthyChecks = 0;
+                } else if (++slot.unhealthyChecks >= MAX_UNHEALTHY_CHECKS) {
+                    replace(slot, connection, "disconnected for [" + slot.unhealthyChecks + "] checks");
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Retiring old : retiring) {
+                if (old.connection.getInFlightCount() == 0 || now - old.retiredAt > drainTimeoutMillis) {
+                    LOGGER.info("closing retired CCS connection with [" + old.connection.getInFlightCount() +
+                            "] messages in flight");
+                    retiring.remove(old);
+                    slotsByConnection.remove(old.connection);
+                    old.connection.close();
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("could not check CCS connections, got error: " + e.getMessage());
+        }
+    }
+
+    private static class Slot {
+        private int index;
+        private volatile CcsServer connection;
+        private int unhealthyChecks;
+
+        private Meter sent;
+        private Meter acked;
+        private Meter nacked;
+
+        Slot(int index, MetricRegistry metrics) {
+            this.index = index;
+            this.sent = metrics.meter(MetricRegistry.name(CcsConnectionPool.class, "connection-" + index, "sent"));
+            this.acked = metrics.meter(MetricRegistry.name(CcsConnectionPool.class, "connection-" + index, "acked"));
+            this.nacked = metrics.meter(MetricRegistry.name(CcsConnectionPool.class, "connection-" + index, "nacked"));
+            metrics.register(MetricRegistry.name(CcsConnectionPool.class, "connection-" + index, "in-flight"),
+                    (Gauge<Integer>) () -> connection != null ? connection.getInFlightCount() : 0);
+        }
+    }
+
+    private static class Retiring {
+        private CcsServer connection;
+        private long retiredAt = System.currentTimeMillis();
+
+        Retiring(CcsServer connection) {
+            this.connection = connection;
+        }
+    }
+}
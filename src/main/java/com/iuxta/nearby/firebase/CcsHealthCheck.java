@@ -0,0 +1,22 @@
+package com.iuxta.nearby.firebase;
+
+import com.codahale.metrics.health.HealthCheck;
+
+/**
+ * Unhealthy only when no CCS connection can take messages, one connection being replaced is normal.
+ */
+public class CcsHealthCheck extends HealthCheck {
+    private CcsConnectionPool ccsConnections;
+
+    public CcsHealthCheck(CcsConnectionPool ccsConnections) {
+        this.ccsConnections = ccsConnections;
+    }
+
+    @Override
+    protected Result check() throws Exception {
+        String status = ccsConnections.getUsableCount() + " of " + ccsConnections.getSize() +
+                " connections usable, " + ccsConnections.getRetiringCount() + " retiring, " +
+                ccsConnections.getInFlightCount() + " messages in flight";
+        return ccsConnections.isAvailable() ? Result.healthy(status) : Result.unhealthy(status);
+    }
+}
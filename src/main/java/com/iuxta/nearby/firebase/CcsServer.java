@@ -19,6 +19,7 @@ import org.jivesoftware.smack.packet.Message;
 
 import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 import org.json.JSONObject;
 import org.jivesoftware.smackx.gcm.packet.GcmPacketExtension;
@@ -60,16 +61,114 @@ public class CcsServer implements PingFailedListener {
      */
     protected volatile boolean connectionDraining = false;
 
-    public CcsServer() {
+    // CCS won't take more than 100 unacknowledged messages on a connection
+    public static final int MAX_IN_FLIGHT = 100;
+
+    private InFlightWindow inFlight;
+
+    private ReceiptListener receiptListener;
+
+    // set once a pool has replaced this connection, it's closed instead of reconnected from then on
+    private volatile boolean retired;
 
+    /**
+     * Told what happened to the messages sent with {@link #sendDownstreamMessage(NotificationDispatcher.PendingMessage,
+     * long)}, on the connection's listener thread so implementations shouldn't block
+     */
+    public interface ReceiptListener {
+        void acked(CcsServer connection, NotificationDispatcher.PendingMessage message);
+
+        /**
+         * @param error the nack's error code, e.g. DEVICE_UNREGISTERED or SERVICE_UNAVAILABLE
+         */
+        void nacked(CcsServer connection, NotificationDispatcher.PendingMessage message, String error);
+
+        /**
+         * CCS is about to close the connection, messages already in flight will still be acked
+         */
+        void draining(CcsServer connection);
     }
 
-    public CcsServer(String server, int port, String projectNum, String key, String sender) {
+    public CcsServer() {
+        inFlight = new InFlightWindow(MAX_IN_FLIGHT);
+    }
+
+    public CcsServer(String server, int port, String projectNum, String key, String sender, int maxInFlight) {
         fcmServer = server;
         fcmPort = port;
         projectNumber = projectNum;
         apiKey = key;
         senderId = sender;
+        inFlight = new InFlightWindow(maxInFlight);
+    }
+
+    public void setReceiptListener(ReceiptListener receiptListener) {
+        this.receiptListener = receiptListener;
+    }
+
+    /**
+     * Sends a downstream message once there is room in the connection's in-flight window. The message stays in the
+     * window until CCS acks or nacks it, and the {@link ReceiptListener} is told which.
+     *
+     * @param message
+     * @param timeoutMillis how long to wait for room in the window
+     * @return false if the connection is draining or the window stayed full, the message was not sent
+     */
+    public boolean sendDownstreamMessage(NotificationDispatcher.PendingMessage message, long timeoutMillis)
+            throws SmackException.NotConnectedException, InterruptedException {
+        if (connectionDraining || !inFlight.tryAcquire(message, timeoutMillis)) {
+            return false;
+        }
+        try {
+            send(message.jsonMessage);
+        } catch (Exception e) {
+            inFlight.release(message.messageId);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * @param timeoutMillis
+     * @return messages that have waited longer than timeoutMillis for an ack, they no longer count as in flight
+     */
+    public List<NotificationDispatcher.PendingMessage> expireInFlight(long timeoutMillis) {
+        return inFlight.expire(timeoutMillis);
+    }
+
+    public int getInFlightCount() {
+        return inFlight.getInFlightCount();
+    }
+
+    public boolean isDraining() {
+        return connectionDraining;
+    }
+
+    /**
+     * @return true if the connection is logged in to CCS
+     */
+    public boolean isConnected() {
+        return connection != null && connection.isAuthenticated();
+    }
+
+    public int getMaxInFlight() {
+        return inFlight.getSize();
+    }
+
+    /**
+     * Stops taking new messages and stops reconnecting, acks for messages already in flight are still handled until
+     * {@link #close} is called
+     */
+    public void retire() {
+        retired = true;
+        connectionDraining = true;
+    }
+
+    public void close() {
+        retire();
+        if (connection != null) {
+            connection.disconnect();
+        }
     }
 
     /**
@@ -135,27 +234,30 @@ public class CcsServer implements PingFailedListener {
 
 
     /**
-     * Handles an ACK.
-     * <p>
-     * <p>Logs a INFO message, but subclasses could override it to
-     * properly handle ACKs.
+     * Handles an ACK, frees the message's slot in the in-flight window
      */
     protected void handleAckReceipt(JSONObject json) {
-        String messageId = json.get("message_id").toString();
-        String from = json.get("from").toString();
-        LOGGER.info("handleAckReceipt() from: " + from + ",messageId: " + messageId);
+        String messageId = json.optString("message_id");
+        NotificationDispatcher.PendingMessage message = inFlight.release(messageId);
+        if (message == null) {
+            LOGGER.info("ack for message [" + messageId + "] that is no longer in flight");
+        } else if (receiptListener != null) {
+            receiptListener.acked(this, message);
+        }
     }
 
     /**
-     * Handles a NACK.
-     * <p>
-     * <p>Logs a INFO message, but subclasses could override it to
-     * properly handle NACKs.
+     * Handles a NACK, frees the message's slot in the in-flight window
      */
     protected void handleNackReceipt(JSONObject json) {
-        String messageId = json.get("message_id").toString();
-        String from = json.get("from").toString();
-        LOGGER.info("handleNackReceipt() from: " + from + ",messageId: " + messageId);
+        String messageId = json.optString("message_id");
+        String error = json.optString("error", "UNKNOWN");
+        LOGGER.info("nack for message [" + messageId + "] from [" + json.optString("from") + "]: " + error + " " +
+                json.optString("error_description"));
+        NotificationDispatcher.PendingMessage message = inFlight.release(messageId);
+        if (message != null && receiptListener != null) {
+            receiptListener.nacked(this, message, error);
+        }
     }
 
     protected void handleControlMessage(JSONObject json) {
@@ -163,6 +265,9 @@ public class CcsServer implements PingFailedListener {
         String controlType = json.get("control_type").toString();
         if ("CONNECTION_DRAINING".equals(controlType)) {
             connectionDraining = true;
+            if (receiptListener != null) {
+                receiptListener.draining(this);
+            }
         } else {
             LOGGER.info("Unrecognized control type: %s. This could happen if new features are " + "added to the CCS protocol.",
                     controlType);
@@ -204,10 +309,16 @@ public class CcsServer implements PingFailedListener {
             @Override
             public void authenticated(XMPPConnection connection, boolean resumed) {
                 LOGGER.info("Authenticated with CCS");
+                // CCS closes a draining connection once it's done with it, the new session takes messages again
+                connectionDraining = retired;
             }
 
             @Override
             public void connectionClosed() {
+                if (retired) {
+                    LOGGER.info("Connection to CCS closed");
+                    return;
+                }
                 try {
                     LOGGER.info("Connection to CCS closed. Attempting to reconnect now!");
                     // Connect and authenticate with to XMPP server (GCM CCS in this case).
@@ -256,6 +367,9 @@ public class CcsServer implements PingFailedListener {
 
     @Override
     public void pingFailed() {
+        if (retired) {
+            return;
+        }
         try {
             LOGGER.info("Ping to XMPP server failed!! Attempting to reconnect now!");
             // Connect and authenticate with to XMPP server (GCM CCS in this case).
@@ -302,7 +416,7 @@ public class CcsServer implements PingFailedListener {
                 JSONObject json = new JSONObject(jsonString);
 
                 // present for "ack"/"nack", null otherwise
-                String messageType = json.get("message_type").toString();
+                String messageType = json.optString("message_type", null);
 
                 if (messageType == null) {
                     // Normal upstream data message
@@ -3,11 +3,14 @@ package com.iuxta.nearby.firebase;
 import com.iuxta.nearby.dto.ResponseDto;
 import com.iuxta.nearby.exception.InternalServerException;
 import com.iuxta.nearby.model.User;
-import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Created by kerrk on 10/12/16.
  */
@@ -22,53 +25,55 @@ public class FirebaseUtils {
 
     /**
      * We will send all android users "data messages" and all iOS users "notifications". Android will construct
-     * a notification if the app is running in the background, and show a snackbar message if it's in the foreground
+     * a notification if the app is running in the background, and show a snackbar message if it's in the foreground.
+     * The message is only queued here, {@link NotificationDispatcher} sends it to CCS off the request thread.
      *
      * @param recipient
      * @param dto
      * @param dataMessage
-     * @param ccsServer
+     * @param notificationDispatcher
      */
-    public static void sendFcmMessage(User recipient, ResponseDto dto, JSONObject dataMessage, CcsServer ccsServer) {
+    public static void sendFcmMessage(User recipient, ResponseDto dto, JSONObject dataMessage,
+                                      NotificationDispatcher notificationDispatcher) {
+        sendFcmMessage(recipient, NotificationPayload.from(dataMessage), notificationDispatcher);
+    }
+
+    public static void sendFcmMessage(User recipient, NotificationPayload payload,
+                                      NotificationDispatcher notificationDispatcher) {
         if (recipient.getFcmRegistrationId() == null) {
             String msg = "could not send notification/message to [" + recipient.getFirstName() + "] " +
                     "because they have not allowed messages.";
             LOGGER.error(msg);
             throw new InternalServerException(msg);
         }
-        String messageId = CcsServer.nextMessageId();
-        JSONObject payload = new JSONObject();
-
-        /*//TODO: rethink this, send users in-app messages?
-        if (hasMessage(dto)) {
-            payload.put("message", dto.messages.get(0).getContent());
-        }*/
         LOGGER.info("attempting to send message/notification to user [" + recipient.getName() + "] with fcm token [" +
                 recipient.getFcmRegistrationId() + "].");
-        // if the user is using an ios device, send a notification instead of a data message
-        boolean sendNotification = StringUtils.isNotBlank(recipient.getUserAgent()) &&
-                !recipient.getUserAgent().toLowerCase().contains("android");
-        String jsonMessage = null;
-        if (sendNotification) {
-            payload.put("body", dataMessage.get("message"));
-            payload.put("title", dataMessage.get("title"));
-            jsonMessage = CcsServer.createJsonMessage(recipient.getFcmRegistrationId(), messageId, dataMessage,
-                    payload, null, null, null);
-        } else {
-            jsonMessage = CcsServer.createJsonMessage(recipient.getFcmRegistrationId(), messageId, dataMessage,
-                    payload, null, null, null);
-        }
-        try {
-            Boolean sent = ccsServer.sendDownstreamMessage(jsonMessage);
-            if (sent) {
-                LOGGER.info("Successfully sent message!");
-            } else {
-                LOGGER.error("could not sent message :(");
+        String messageId = CcsServer.nextMessageId();
+        notificationDispatcher.enqueue(recipient.getName(), messageId, payload.toFcmMessage(recipient, messageId));
+    }
+
+    /**
+     * Same as {@link #sendFcmMessage} but for notifying many users about one action, the messages are handed to the
+     * dispatcher as a single batch. Recipients that have not allowed messages are skipped instead of failing the batch.
+     *
+     * @param payloads recipient and payload pairs, a recipient can get more than one message
+     * @param notificationDispatcher
+     */
+    public static void sendFcmMessages(List<Map.Entry<User, NotificationPayload>> payloads,
+                                       NotificationDispatcher notificationDispatcher) {
+        List<NotificationDispatcher.PendingMessage> messages = new ArrayList<>();
+        for (Map.Entry<User, NotificationPayload> entry : payloads) {
+            User recipient = entry.getKey();
+            if (recipient.getFcmRegistrationId() == null) {
+                LOGGER.error("could not send notification/message to [" + recipient.getFirstName() + "] " +
+                        "because they have not allowed messages.");
+                continue;
             }
-        } catch (Exception e) {
-            String msg = "could not send message, got error: " + e.getMessage();
-            LOGGER.error(msg);
-            throw new InternalServerException(msg);
+            String messageId = CcsServer.nextMessageId();
+            messages.add(new NotificationDispatcher.PendingMessage(recipient.getName(), messageId,
+                    entry.getValue().toFcmMessage(recipient, messageId)));
         }
+        LOGGER.info("attempting to send [" + messages.size() + "] messages/notifications");
+        notificationDispatcher.enqueueAll(messages);
     }
 }
@@ -0,0 +1,83 @@
+package com.iuxta.nearby.firebase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The messages sent on one CCS connection that haven't been acked or nacked yet, keyed by message id. CCS allows at
+ * most 100 of these per connection and stops reading from a connection that goes over, so a sender has to get a slot
+ * here before it sends and the slot is given back when the ack or nack comes in.
+ */
+public class InFlightWindow {
+
+    private int size;
+    private Semaphore slots;
+    private Map<String, NotificationDispatcher.PendingMessage> messages = new ConcurrentHashMap<>();
+
+    public InFlightWindow(int size) {
+        this.size = size;
+        this.slots = new Semaphore(size);
+    }
+
+    /**
+     * Waits for a free slot and records the message as in flight
+     *
+     * @param message
+     * @param timeoutMillis
+     * @return false if no slot freed up in time
+     */
+    boolean tryAcquire(NotificationDispatcher.PendingMessage message, long timeoutMillis) throws InterruptedException {
+        if (!slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        message.sentAt = System.nanoTime();
+        messages.put(message.messageId, message);
+        return true;
+    }
+
+    /**
+     * @param messageId
+     * @return the message, or null if it wasn't in flight (already released, or sent before a restart)
+     */
+    NotificationDispatcher.PendingMessage release(String messageId) {
+        NotificationDispatcher.PendingMessage message = messages.remove(messageId);
+        if (message != null) {
+            slots.release();
+        }
+        return message;
+    }
+
+    /**
+     * Gives up on messages that have been in flight for longer than timeoutMillis, e.g. because the connection dropped
+     * before CCS answered
+     *
+     * @param timeoutMillis
+     * @return the messages that were released
+     */
+    List<NotificationDispatcher.PendingMessage> expire(long timeoutMillis) {
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<NotificationDispatcher.PendingMessage> expired = new ArrayList<>();
+        Iterator<NotificationDispatcher.PendingMessage> it = messages.values().iterator();
+        while (it.hasNext()) {
+            NotificationDispatcher.PendingMessage message = it.next();
+            if (message.sentAt - cutoff < 0 && messages.remove(message.messageId, message)) {
+                slots.release();
+                expired.add(message);
+            }
+        }
+        return expired;
+    }
+
+    public int getInFlightCount() {
+        return messages.size();
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,85 @@
+package com.iuxta.nearby.firebase;
+
+import com.iuxta.nearby.http.OutboundHttpClient;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manages topic subscriptions with the firebase instance id server. Each topic is one batchAdd/batchRemove call, which
+ * are safe to repeat, so they go through {@link OutboundHttpClient} with its usual retries and circuit breaker.
+ */
+public class InstanceIdTopicRegistry implements TopicRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InstanceIdTopicRegistry.class);
+
+    private static final URI BATCH_ADD = URI.create("https://iid.googleapis.com/iid/v1:batchAdd");
+
+    private static final URI BATCH_REMOVE = URI.create("https://iid.googleapis.com/iid/v1:batchRemove");
+
+    // per-token errors that are the server's problem, anything else it reports is about the token and permanent
+    private static final Set<String> TRANSIENT_ERRORS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "INTERNAL", "UNAVAILABLE", "RESOURCE_EXHAUSTED", "DEADLINE_EXCEEDED")));
+
+    private OutboundHttpClient httpClient;
+    private Map<String, String> headers;
+
+    public InstanceIdTopicRegistry(OutboundHttpClient httpClient, String apiKey) {
+        this.httpClient = httpClient;
+        this.headers = Collections.singletonMap("Authorization", "key=" + apiKey);
+    }
+
+    public void subscribe(String token, Collection<String> topics) throws IOException {
+        for (String topic : topics) {
+            String error = call(BATCH_ADD, token, topic);
+            if (error != null) {
+                String msg = "could not subscribe to [" + topic + "], got error: " + error;
+                throw TRANSIENT_ERRORS.contains(error) ? new IOException(msg) : new InvalidTokenException(msg);
+            }
+        }
+    }
+
+    public void unsubscribe(String token, Collection<String> topics) throws IOException {
+        for (String topic : topics) {
+            String error = call(BATCH_REMOVE, token, topic);
+            if (error != null) {
+                // usually a token the app has since replaced, which isn't subscribed to anything anymore
+                LOGGER.info("could not unsubscribe from [" + topic + "], got error: " + error);
+            }
+        }
+    }
+
+    /**
+     * @return the error the server gave for the token, null if it went through
+     */
+    private String call(URI uri, String token, String topic) throws IOException {
+        String body = new JSONObject()
+                .put("to", "/topics/" + topic)
+                .put("registration_tokens", new JSONArray().put(token))
+                .toString();
+        return httpClient.post(uri, headers, body, response -> {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != HttpStatus.SC_OK) {
+                throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+            }
+            JSONArray results = new JSONObject(EntityUtils.toString(response.getEntity())).optJSONArray("results");
+            if (results == null || results.length() == 0) {
+                return null;
+            }
+            return results.getJSONObject(0).optString("error", null);
+        });
+    }
+}
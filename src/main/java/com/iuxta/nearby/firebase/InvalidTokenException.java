@@ -0,0 +1,14 @@
+package com.iuxta.nearby.firebase;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link TopicRegistry} when the registry rejected the device's token itself (unregistered, expired or
+ * malformed), sending the same token again will fail the same way.
+ */
+public class InvalidTokenException extends IOException {
+
+    public InvalidTokenException(String message) {
+        super(message);
+    }
+}
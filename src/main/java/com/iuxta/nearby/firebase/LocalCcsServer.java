@@ -0,0 +1,162 @@
+package com.iuxta.nearby.firebase;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for FCM when fcmServer is "local": nothing is sent anywhere, messages sent to CCS are delivered to an
+ * in-memory inbox per registration id instead, and topic messages are fanned out to every token subscribed to the
+ * topic the way FCM would. Every message is acked as soon as it's sent, unless {@link #nackNext} says otherwise. It's
+ * also the topic registry, so development and load test setups can check how many messages the app sent against how
+ * many devices they reached (see {@link LocalCcsTask}).
+ */
+public class LocalCcsServer extends CcsServer implements TopicRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalCcsServer.class);
+
+    /**
+     * the fcmServer setting that selects this stand-in
+     */
+    public static final String HOST = "local";
+
+    private static final String TOPIC_PREFIX = "/topics/";
+
+    private Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    private Map<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    private AtomicLong sent = new AtomicLong();
+    private AtomicLong topicMessages = new AtomicLong();
+    private AtomicLong deliveries = new AtomicLong();
+    private AtomicInteger nacks = new AtomicInteger();
+    private volatile String nackError;
+
+    @Override
+    public void connect() {
+        LOGGER.info("using the local stand-in for CCS, no messages will leave this server");
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    /**
+     * Delivers the message and acks it right away, or nacks it if {@link #nackNext} asked for that
+     */
+    @Override
+    protected void send(String jsonRequest) {
+        JSONObject message = new JSONObject(jsonRequest);
+        String to = message.getString("to");
+        JSONObject receipt = new JSONObject()
+                .put("message_id", message.optString("message_id"))
+                .put("from", to);
+        sent.incrementAndGet();
+        if (nacks.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            handleNackReceipt(receipt.put("message_type", "nack").put("error", nackError));
+            return;
+        }
+        if (to.startsWith(TOPIC_PREFIX)) {
+            topicMessages.incrementAndGet();
+            subscribers(to.substring(TOPIC_PREFIX.length())).forEach(token -> deliver(token, jsonRequest));
+        } else {
+            deliver(to, jsonRequest);
+        }
+        handleAckReceipt(receipt.put("message_type", "ack"));
+    }
+
+    /**
+     * Nacks the next count messages with error instead of delivering them, to see how the sender copes
+     *
+     * @param error e.g. SERVICE_UNAVAILABLE or DEVICE_UNREGISTERED
+     * @param count
+     */
+    public void nackNext(String error, int count) {
+        nackError = error;
+        nacks.set(count);
+    }
+
+    private void deliver(String token, String jsonRequest) {
+        Inbox inbox = inboxes.computeIfAbsent(token, t -> new Inbox());
+        inbox.count.incrementAndGet();
+        inbox.last = jsonRequest;
+        deliveries.incrementAndGet();
+    }
+
+    public void subscribe(String token, Collection<String> topics) {
+        topics.forEach(topic -> subscribers.computeIfAbsent(topic, t -> ConcurrentHashMap.newKeySet()).add(token));
+    }
+
+    public void unsubscribe(String token, Collection<String> topics) {
+        topics.forEach(topic -> subscribers(topic).remove(token));
+    }
+
+    /**
+     * @return the tokens subscribed to topic
+     */
+    public Set<String> subscribers(String topic) {
+        return subscribers.getOrDefault(topic, Collections.emptySet());
+    }
+
+    public Map<String, Set<String>> getSubscriptions() {
+        return Collections.unmodifiableMap(subscribers);
+    }
+
+    /**
+     * @return messages the app handed to CCS, one per device message and one per topic message, retries included
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getTopicMessageCount() {
+        return topicMessages.get();
+    }
+
+    /**
+     * @return messages that reached a device, topic messages count once per subscriber
+     */
+    public long getDeliveryCount() {
+        return deliveries.get();
+    }
+
+    /**
+     * @param token
+     * @return how many messages reached the device
+     */
+    public long getDeliveryCount(String token) {
+        Inbox inbox = inboxes.get(token);
+        return inbox == null ? 0 : inbox.count.get();
+    }
+
+    /**
+     * @param token
+     * @return the last message that reached the device, null if none did
+     */
+    public String getLastMessage(String token) {
+        Inbox inbox = inboxes.get(token);
+        return inbox == null ? null : inbox.last;
+    }
+
+    /**
+     * Forgets delivered messages and zeroes the counts, subscriptions are kept
+     */
+    public void reset() {
+        inboxes.clear();
+        sent.set(0);
+        topicMessages.set(0);
+        deliveries.set(0);
+    }
+
+    private static class Inbox {
+        private AtomicLong count = new AtomicLong();
+        private volatile String last;
+    }
+}
@@ -0,0 +1,48 @@
+package com.iuxta.nearby.firebase;
+
+import com.google.common.collect.ImmutableMultimap;
+import io.dropwizard.servlets.tasks.Task;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * POST /tasks/local-ccs prints what the local CCS stand-in sent and delivered, and how many tokens are subscribed to
+ * each topic. Add ?token=... to see what reached one device, ?reset=true to zero the counts afterwards, and
+ * ?nack=ERROR&count=n to nack the next n messages with ERROR.
+ */
+public class LocalCcsTask extends Task {
+
+    private LocalCcsServer ccsServer;
+
+    public LocalCcsTask(LocalCcsServer ccsServer) {
+        super("local-ccs");
+        this.ccsServer = ccsServer;
+    }
+
+    @Override
+    public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception {
+        output.println("sent: " + ccsServer.getSentCount());
+        output.println("topic messages: " + ccsServer.getTopicMessageCount());
+        output.println("deliveries: " + ccsServer.getDeliveryCount());
+        for (Map.Entry<String, Set<String>> topic : ccsServer.getSubscriptions().entrySet()) {
+            output.println("topic " + topic.getKey() + ": " + topic.getValue().size() + " subscribers");
+        }
+        for (String token : parameters.get("token")) {
+            output.println("token " + token + ": " + ccsServer.getDeliveryCount(token) + " deliveries, last: " +
+                    ccsServer.getLastMessage(token));
+        }
+        for (String error : parameters.get("nack")) {
+            int count = parameters.get("count").isEmpty() ? 1 :
+                    Integer.parseInt(parameters.get("count").iterator().next());
+            ccsServer.nackNext(error, count);
+            output.println("nacking the next " + count + " messages with " + error);
+        }
+        if (parameters.get("reset").contains("true")) {
+            ccsServer.reset();
+            output.println("counts reset");
+        }
+        output.flush();
+    }
+}
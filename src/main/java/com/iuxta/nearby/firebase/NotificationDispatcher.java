@@ -0,0 +1,335 @@
+package com.iuxta.nearby.firebase;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands fcm messages off to a bounded queue that is drained by a small pool of workers, so request threads never
+ * block on the CCS connection. When the queue is full the configured {@link OverflowPolicy} decides what gets dropped.
+ *
+ * Sending is flow controlled: a worker waits for room in a connection's in-flight window before it sends, and every
+ * message stays in the window until CCS acks or nacks it. Messages are spread over the connections in a
+ * {@link CcsConnectionPool}, which replaces draining connections on its own. Retriable nacks and messages that were
+ * never acked within ackTimeout are queued again after an exponential backoff (with jitter, and a longer base when CCS
+ * says we're sending to a device or topic too fast), up to maxRetries times.
+ */
+public class NotificationDispatcher implements Managed, CcsServer.ReceiptListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    public enum OverflowPolicy {
+        DROP_NEWEST, DROP_OLDEST, CALLER_RUNS
+    }
+
+    // nack errors that are worth sending the same message again for, everything else (bad or unregistered tokens,
+    // invalid json) will fail the same way every time
+    private static final Set<String> RETRIABLE_ERRORS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "SERVICE_UNAVAILABLE", "INTERNAL_SERVER_ERROR", "CONNECTION_DRAINING", "DEVICE_MESSAGE_RATE_EXCEEDED",
+            "TOPICS_MESSAGE_RATE_EXCEEDED")));
+
+    private static final long RATE_EXCEEDED_BACKOFF_MILLIS = 10000;
+
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // how long a worker waits for room in an in-flight window before checking whether it should stop
+    private static final long WINDOW_WAIT_MILLIS = 1000;
+
+    // how long a worker keeps trying to hand a message to a connection before it's queued again with a backoff,
+    // the calling thread only tries for WINDOW_WAIT_MILLIS with CALLER_RUNS
+    private static final long SEND_TIMEOUT_MILLIS = 30000;
+
+    private CcsConnectionPool ccsConnections;
+    private BlockingQueue<PendingMessage> queue;
+    private int workerCount;
+    private OverflowPolicy overflowPolicy;
+    private int maxRetries;
+    private long retryBackoffMillis;
+    private long ackTimeoutMillis;
+    private ExecutorService workers;
+    private ScheduledExecutorService retries;
+    private volatile boolean running;
+    private AtomicInteger pendingRetries = new AtomicInteger();
+
+    private MetricRegistry metrics;
+    private Timer enqueueToSend;
+    private Timer ackLatency;
+    private Meter dropped;
+    private Meter failed;
+    private Meter acked;
+    private Meter retried;
+    private Meter ackTimeouts;
+    private Meter windowFull;
+    private Meter unavailable;
+
+    public NotificationDispatcher(CcsConnectionPool ccsConnections, int queueCapacity, int workerCount,
+                                  OverflowPolicy overflowPolicy, int maxRetries, long retryBackoffMillis,
+                                  long ackTimeoutMillis, MetricRegistry metrics) {
+        this.ccsConnections = ccsConnections;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.workerCount = workerCount;
+        this.overflowPolicy = overflowPolicy;
+        this.maxRetries = maxRetries;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.ackTimeoutMillis = ackTimeoutMillis;
+        this.metrics = metrics;
+        ccsConnections.setReceiptListener(this);
+        metrics.register(MetricRegistry.name(NotificationDispatcher.class, "queue-depth"),
+                (Gauge<Integer>) () -> queue.size());
+        metrics.register(MetricRegistry.name(NotificationDispatcher.class, "in-flight"),
+                (Gauge<Integer>) () -> ccsConnections.getInFlightCount());
+        metrics.register(MetricRegistry.name(NotificationDispatcher.class, "pending-retries"),
+                (Gauge<Integer>) () -> pendingRetries.get());
+        this.enqueueToSend = metrics.timer(MetricRegistry.name(NotificationDispatcher.class, "enqueue-to-send"));
+        this.ackLatency = metrics.timer(MetricRegistry.name(NotificationDispatcher.class, "ack-latency"));
+        this.dropped = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "dropped"));
+        this.failed = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "failed"));
+        this.acked = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "acked"));
+        this.retried = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "retried"));
+        this.ackTimeouts = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "ack-timeouts"));
+        this.windowFull = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "window-full"));
+        this.unavailable = metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "unavailable"));
+    }
+
+    /**
+     * Queues a message that was built with {@link CcsServer#createJsonMessage} for delivery. Never throws, if the
+     * message can't be queued it is dropped and counted. For CALLER_RUNS it is sent on the calling thread instead,
+     * which waits at most about a second for a connection before the message is left for a retry.
+     *
+     * @param recipient name of the recipient, only used for logging
+     * @param messageId the message_id in jsonMessage, CCS acks and nacks by it
+     * @param jsonMessage
+     */
+    public void enqueue(String recipient, String messageId, String jsonMessage) {
+        offer(new PendingMessage(recipient, messageId, jsonMessage));
+    }
+
+    /**
+     * Queues a batch of messages in one go, used when a single action notifies many users
+     *
+     * @param messages
+     */
+    void enqueueAll(List<PendingMessage> messages) {
+        messages.forEach(this::offer);
+    }
+
+    private void offer(PendingMessage pending) {
+        String recipient = pending.recipient;
+        if (!running) {
+            LOGGER.error("notification dispatcher is not running, dropping message to [" + recipient + "]");
+            dropped.mark();
+            return;
+        }
+        if (queue.offer(pending)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                PendingMessage evicted = queue.poll();
+                if (evicted != null) {
+                    LOGGER.error("notification queue is full, dropping oldest message to [" + evicted.recipient + "]");
+                    dropped.mark();
+                }
+                if (!queue.offer(pending)) {
+                    LOGGER.error("notification queue is full, dropping message to [" + recipient + "]");
+                    dropped.mark();
+                }
+                break;
+            case CALLER_RUNS:
+                send(pending, WINDOW_WAIT_MILLIS);
+                break;
+            default:
+                LOGGER.error("notification queue is full, dropping message to [" + recipient + "]");
+                dropped.mark();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public void start() throws Exception {
+        running = true;
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread t = new Thread(r, "fcm-dispatcher-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.submit(this::drain);
+        }
+        retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "fcm-retries");
+            t.setDaemon(true);
+            return t;
+        });
+        long sweepMillis = Math.max(1000, ackTimeoutMillis / 2);
+        retries.scheduleWithFixedDelay(this::expireUnacked, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() throws Exception {
+        running = false;
+        workers.shutdown();
+        if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+            LOGGER.error("notification workers did not finish, [" + queue.size() + "] messages were not sent");
+            workers.shutdownNow();
+        }
+        retries.shutdownNow();
+        if (pendingRetries.get() > 0) {
+            LOGGER.error("[" + pendingRetries.get() + "] notification retries were not sent");
+        }
+    }
+
+    private void drain() {
+        // keep going after stop() until whatever was already queued has been sent
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage pending = queue.poll(1, TimeUnit.SECONDS);
+                if (pending != null) {
+                    send(pending, SEND_TIMEOUT_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits up to timeoutMillis for a connection to take the message, then queues it again with a backoff. Gives up
+     * early if the dispatcher is stopping and no connection is usable, there's nothing to wait for then.
+     */
+    private void send(PendingMessage pending, long timeoutMillis) {
+        enqueueToSend.update(System.nanoTime() - pending.enqueuedAt, TimeUnit.NANOSECONDS);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            while (true) {
+                if (ccsConnections.sendDownstreamMessage(pending, WINDOW_WAIT_MILLIS)) {
+                    return;
+                }
+                boolean available = ccsConnections.isAvailable();
+                if (available) {
+                    windowFull.mark();
+                } else {
+                    // every connection is down or being replaced
+                    unavailable.mark();
+                }
+                if (System.nanoTime() - deadline >= 0 || (!running && !available)) {
+                    retryLater(pending, "SEND_TIMEOUT");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.error("interrupted while sending message to [" + pending.recipient + "]");
+            failed.mark();
+        } catch (Exception e) {
+            LOGGER.error("could not send message to [" + pending.recipient + "], got error: " + e.getMessage());
+            retryLater(pending, "SEND_FAILED");
+        }
+    }
+
+    public void acked(CcsServer connection, PendingMessage message) {
+        acked.mark();
+        ackLatency.update(System.nanoTime() - message.sentAt, TimeUnit.NANOSECONDS);
+        LOGGER.info("Successfully sent message to [" + message.recipient + "]");
+    }
+
+    public void nacked(CcsServer connection, PendingMessage message, String error) {
+        metrics.meter(MetricRegistry.name(NotificationDispatcher.class, "nacks", error)).mark();
+        if (RETRIABLE_ERRORS.contains(error)) {
+            retryLater(message, error);
+        } else {
+            LOGGER.error("could not send message to [" + message.recipient + "], got error: " + error);
+            failed.mark();
+        }
+    }
+
+    public void draining(CcsServer connection) {
+        LOGGER.info("CCS connection is draining, [" + connection.getInFlightCount() + "] messages in flight");
+    }
+
+    private void expireUnacked() {
+        try {
+            for (PendingMessage message : ccsConnections.expireInFlight(ackTimeoutMillis)) {
+                ackTimeouts.mark();
+                retryLater(message, "ACK_TIMEOUT");
+            }
+        } catch (Exception e) {
+            LOGGER.error("could not expire unacked messages, got error: " + e.getMessage());
+        }
+    }
+
+    private void retryLater(PendingMessage message, String reason) {
+        if (message.attempt >= maxRetries || !running) {
+            LOGGER.error("giving up on message to [" + message.recipient + "] after [" + (message.attempt + 1) +
+                    "] attempts, last error: " + reason);
+            failed.mark();
+            return;
+        }
+        long delay = backoffMillis(message.attempt, reason);
+        message.attempt++;
+        retried.mark();
+        LOGGER.info("retrying message to [" + message.recipient + "] in [" + delay + "]ms after " + reason);
+        pendingRetries.incrementAndGet();
+        try {
+            retries.schedule(() -> {
+                pendingRetries.decrementAndGet();
+                message.enqueuedAt = System.nanoTime();
+                offer(message);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // stop() got there first
+            pendingRetries.decrementAndGet();
+            LOGGER.error("could not schedule retry for message to [" + message.recipient + "]");
+            failed.mark();
+        }
+    }
+
+    /**
+     * base * 2^attempt, capped, with the upper half randomized so retries after a burst of nacks don't all land at
+     * once
+     */
+    long backoffMillis(int attempt, String reason) {
+        long base = reason.endsWith("RATE_EXCEEDED") ?
+                Math.max(retryBackoffMillis, RATE_EXCEEDED_BACKOFF_MILLIS) : retryBackoffMillis;
+        long delay = Math.min(MAX_BACKOFF_MILLIS, base << Math.min(attempt, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    public static class PendingMessage {
+        String recipient;
+        String messageId;
+        String jsonMessage;
+        long enqueuedAt;
+        int attempt;
+        // set when the message takes a slot in a connection's in-flight window
+        volatile long sentAt;
+
+        PendingMessage(String recipient, String messageId, String jsonMessage) {
+            this.recipient = recipient;
+            this.messageId = messageId;
+            this.jsonMessage = jsonMessage;
+            this.enqueuedAt = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.iuxta.nearby.firebase;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.iuxta.nearby.exception.InternalServerException;
+import com.iuxta.nearby.model.User;
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The data of an fcm message (title, message, type and any dtos the app needs to open the right screen), written
+ * straight into the CCS message with a streaming generator instead of being built up as JSONObjects and parsed again.
+ * Dtos are serialized with one shared writer; when the same dto goes to many recipients serialize it once with
+ * {@link #json} and pass the string to each payload.
+ */
+public class NotificationPayload {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationPayload.class);
+
+    // ObjectWriters are immutable and safe to share between threads
+    private static final ObjectWriter WRITER = new ObjectMapper().writer();
+
+    private Map<String, Object> data = new LinkedHashMap<>();
+
+    public NotificationPayload(FirebaseUtils.NotificationTypes type) {
+        data.put("type", type.name());
+    }
+
+    private NotificationPayload() {
+    }
+
+    /**
+     * For the callers that still build a JSONObject
+     */
+    public static NotificationPayload from(JSONObject dataMessage) {
+        NotificationPayload payload = new NotificationPayload();
+        for (String key : dataMessage.keySet()) {
+            payload.data.put(key, dataMessage.get(key));
+        }
+        return payload;
+    }
+
+    /**
+     * @param dto
+     * @return the dto as a json string, the way the apps expect the request and response fields
+     */
+    public static String json(Object dto) throws JsonProcessingException {
+        return WRITER.writeValueAsString(dto);
+    }
+
+    public NotificationPayload title(String title) {
+        data.put("title", title);
+        return this;
+    }
+
+    public NotificationPayload message(String message) {
+        data.put("message", message);
+        return this;
+    }
+
+    /**
+     * Adds a field the app reads as is, e.g. ids and coordinates
+     */
+    public NotificationPayload put(String name, Object value) {
+        data.put(name, value);
+        return this;
+    }
+
+    /**
+     * @param requestJson the request dto, from {@link #json}
+     */
+    public NotificationPayload request(String requestJson) {
+        data.put("request", requestJson);
+        return this;
+    }
+
+    /**
+     * @param responseJson the response dto, from {@link #json}
+     */
+    public NotificationPayload response(String responseJson) {
+        data.put("response", responseJson);
+        return this;
+    }
+
+    /**
+     * Android users get the payload as a data message, iOS users also get a notification built from the title and
+     * message since iOS won't show a data message while the app is in the background.
+     *
+     * @param recipient
+     * @param messageId
+     * @return the message to send to CCS
+     */
+    public String toFcmMessage(User recipient, String messageId) {
+        return write(recipient.getFcmRegistrationId(), messageId, wantsNotification(recipient), false,
+                "[" + recipient.getId() + "]");
+    }
+
+    /**
+     * The same message for every device subscribed to topic, see {@link AreaTopics}. Topic messages never carry a
+     * notification: the app has to check the poster and the distance before alerting, and iOS would show the
+     * notification itself while the app is in the background. iOS topics are sent with content_available instead so
+     * the app is woken up to build the alert.
+     *
+     * @param topic topic name, without the /topics/ prefix
+     * @param ios true for a topic of iOS devices
+     * @param messageId
+     * @return the message to send to CCS
+     */
+    public String toTopicMessage(String topic, boolean ios, String messageId) {
+        return write("/topics/" + topic, messageId, false, ios, "topic [" + topic + "]");
+    }
+
+    static boolean wantsNotification(User user) {
+        return StringUtils.isNotBlank(user.getUserAgent()) && !user.getUserAgent().toLowerCase().contains("android");
+    }
+
+    private String write(String to, String messageId, boolean sendNotification, boolean contentAvailable,
+                         String recipient) {
+        StringWriter out = new StringWriter(256);
+        try (JsonGenerator json = WRITER.getFactory().createGenerator(out)) {
+            json.writeStartObject();
+            json.writeStringField("to", to);
+            json.writeStringField("message_id", messageId);
+            if (contentAvailable) {
+                json.writeBooleanField("content_available", true);
+            }
+            json.writeObjectFieldStart("data");
+            for (Map.Entry<String, Object> field : data.entrySet()) {
+                writeField(json, field.getKey(), field.getValue());
+            }
+            json.writeEndObject();
+            // a silent message must not have a notification block at all, even an empty one
+            if (!contentAvailable) {
+                json.writeObjectFieldStart("notification");
+                if (sendNotification) {
+                    writeField(json, "body", data.get("message"));
+                    writeField(json, "title", data.get("title"));
+                }
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+        } catch (IOException e) {
+            String msg = "could not write fcm message for " + recipient + ", got error: " + e.getMessage();
+            LOGGER.error(msg);
+            throw new InternalServerException(msg);
+        }
+        return out.toString();
+    }
+
+    private static void writeField(JsonGenerator json, String name, Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            return;
+        }
+        if (value instanceof Number || value instanceof Boolean || value instanceof JSONObject) {
+            json.writeFieldName(name);
+            json.writeRawValue(value.toString());
+        } else {
+            json.writeStringField(name, value.toString());
+        }
+    }
+}
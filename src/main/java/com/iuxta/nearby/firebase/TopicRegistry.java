@@ -0,0 +1,25 @@
+package com.iuxta.nearby.firebase;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Subscribes devices to fcm topics, a message sent to "/topics/name" is delivered to every device subscribed to name.
+ */
+public interface TopicRegistry {
+
+    /**
+     * @param token the device's fcm registration id
+     * @param topics topic names, without the /topics/ prefix
+     * @throws InvalidTokenException if the token was rejected, it can't be subscribed to anything
+     * @throws IOException if any of the subscriptions failed, the ones that went through stay subscribed
+     */
+    void subscribe(String token, Collection<String> topics) throws IOException;
+
+    /**
+     * @param token the device's fcm registration id
+     * @param topics topic names, without the /topics/ prefix
+     * @throws IOException if any of the unsubscriptions failed
+     */
+    void unsubscribe(String token, Collection<String> topics) throws IOException;
+}
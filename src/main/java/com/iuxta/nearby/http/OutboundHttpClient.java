@@ -0,0 +1,251 @@
+package com.iuxta.nearby.http;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The one http client we use to talk to third parties (facebook graph, google geocoding, firebase instance ids).
+ * Connections are pooled and kept alive per host, every call is bounded by the connect, read and pool timeouts so a
+ * slow third party can't hold on to jetty threads, and each host gets its own circuit breaker, retry budget and
+ * metrics.
+ *
+ * Responses are always handed to a {@link ResponseHandler}, which lets the connection go back to the pool no matter
+ * how the handler exits.
+ */
+public class OutboundHttpClient implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboundHttpClient.class);
+
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+    private MetricRegistry metrics;
+    private int maxRetries;
+    private int failureThreshold;
+    private long openMillis;
+    private Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    public OutboundHttpClient(int connectTimeoutMillis, int readTimeoutMillis, int poolTimeoutMillis,
+                              int maxConnections, int maxConnectionsPerHost, int maxRetries,
+                              int failureThreshold, int openSeconds, MetricRegistry metrics) {
+        this.connectionManager = new PoolingHttpClientConnectionManager();
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMillis)
+                .setSocketTimeout(readTimeoutMillis)
+                .setConnectionRequestTimeout(poolTimeoutMillis)
+                .build();
+        this.client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableAutomaticRetries()
+                .evictExpiredConnections()
+                .evictIdleConnections(30, TimeUnit.SECONDS)
+                .build();
+        this.metrics = metrics;
+        this.maxRetries = maxRetries;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+        metrics.register(MetricRegistry.name(OutboundHttpClient.class, "leased-connections"),
+                (Gauge<Integer>) () -> connectionManager.getTotalStats().getLeased());
+        metrics.register(MetricRegistry.name(OutboundHttpClient.class, "pending-connections"),
+                (Gauge<Integer>) () -> connectionManager.getTotalStats().getPending());
+    }
+
+    /**
+     * Sends a GET, retrying connection errors and 5xx responses while the host's retry budget allows it. 5xx responses
+     * are never passed to the handler, they surface as an {@link HttpResponseException}.
+     *
+     * @param uri
+     * @param handler reads the response, anything it throws is passed through
+     * @return whatever the handler returned
+     * @throws IOException if the request failed or the host's circuit is open
+     */
+    public <T> T get(URI uri, ResponseHandler<? extends T> handler) throws IOException {
+        return execute(uri, () -> new HttpGet(uri), handler);
+    }
+
+    /**
+     * Sends a POST with a json body, retried like {@link #get} so only use it for calls that are safe to repeat
+     *
+     * @param uri
+     * @param headers sent with every attempt, e.g. Authorization
+     * @param json
+     * @param handler reads the response, anything it throws is passed through
+     * @return whatever the handler returned
+     * @throws IOException if the request failed or the host's circuit is open
+     */
+    public <T> T post(URI uri, Map<String, String> headers, String json, ResponseHandler<? extends T> handler)
+            throws IOException {
+        return execute(uri, () -> {
+            HttpPost post = new HttpPost(uri);
+            headers.forEach(post::setHeader);
+            post.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+            return post;
+        }, handler);
+    }
+
+    private <T> T execute(URI uri, Supplier<HttpUriRequest> request, ResponseHandler<? extends T> handler)
+            throws IOException {
+        Host host = hosts.computeIfAbsent(uri.getHost(), Host::new);
+        if (!host.allowRequest()) {
+            host.rejected.mark();
+            throw new IOException("not calling [" + uri.getHost() + "], too many recent failures");
+        }
+        for (int attempt = 0; ; attempt++) {
+            Timer.Context time = host.latency.time();
+            try {
+                T result = client.execute(request.get(), response -> {
+                    int status = response.getStatusLine().getStatusCode();
+                    if (status >= 500) {
+                        throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase());
+                    }
+                    return handler.handleResponse(response);
+                });
+                host.recordSuccess();
+                return result;
+            } catch (HttpResponseException e) {
+                if (e.getStatusCode() < 500) {
+                    // thrown by the caller's handler, not a sign the host is unhealthy
+                    host.recordSuccess();
+                    throw e;
+                }
+                host.recordFailure();
+                if (!shouldRetry(host, attempt)) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                host.recordFailure();
+                if (!shouldRetry(host, attempt)) {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                // the caller's handler couldn't read the response, that says nothing about the host but a trial
+                // request has to give its place back or the circuit never closes
+                host.releaseTrial();
+                throw e;
+            } finally {
+                time.stop();
+            }
+            LOGGER.info("retrying request to [" + uri.getHost() + "], attempt [" + (attempt + 2) + "]");
+            try {
+                Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting to retry [" + uri.getHost() + "]");
+            }
+        }
+    }
+
+    private boolean shouldRetry(Host host, int attempt) {
+        if (attempt >= maxRetries || !host.allowRequest() || !host.withdrawRetry()) {
+            return false;
+        }
+        host.retries.mark();
+        return true;
+    }
+
+    public void start() throws Exception {
+    }
+
+    public void stop() throws Exception {
+        client.close();
+    }
+
+    /**
+     * Circuit breaker, retry budget and metrics for one host. The circuit opens after failureThreshold failures in a
+     * row; once openMillis has passed a single trial request is let through, and its result closes or re-opens it.
+     * Every successful request adds a tenth of a retry to the budget (up to 10), so retries can't add more than about
+     * 10% load to a host that is struggling.
+     */
+    private class Host {
+        private String name;
+        private int consecutiveFailures;
+        private long openedAt;
+        private boolean trialInFlight;
+        private double retryBudget = 10;
+
+        private Timer latency;
+        private Meter errors;
+        private Meter retries;
+        private Meter rejected;
+
+        Host(String name) {
+            this.name = name;
+            this.latency = metrics.timer(MetricRegistry.name(OutboundHttpClient.class, name, "latency"));
+            this.errors = metrics.meter(MetricRegistry.name(OutboundHttpClient.class, name, "errors"));
+            this.retries = metrics.meter(MetricRegistry.name(OutboundHttpClient.class, name, "retries"));
+            this.rejected = metrics.meter(MetricRegistry.name(OutboundHttpClient.class, name, "rejected"));
+        }
+
+        synchronized boolean allowRequest() {
+            if (consecutiveFailures < failureThreshold) {
+                return true;
+            }
+            if (!trialInFlight && System.currentTimeMillis() - openedAt >= openMillis) {
+                trialInFlight = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void recordSuccess() {
+            if (consecutiveFailures >= failureThreshold) {
+                LOGGER.info("closing circuit for [" + name + "]");
+            }
+            consecutiveFailures = 0;
+            trialInFlight = false;
+            retryBudget = Math.min(10, retryBudget + 0.1);
+        }
+
+        synchronized void recordFailure() {
+            errors.mark();
+            consecutiveFailures++;
+            trialInFlight = false;
+            if (consecutiveFailures >= failureThreshold) {
+                if (consecutiveFailures == failureThreshold) {
+                    LOGGER.error("opening circuit for [" + name + "] after [" + consecutiveFailures + "] failures");
+                }
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        synchronized void releaseTrial() {
+            trialInFlight = false;
+        }
+
+        synchronized boolean withdrawRetry() {
+            if (retryBudget < 1) {
+                return false;
+            }
+            retryBudget--;
+            return true;
+        }
+    }
+}
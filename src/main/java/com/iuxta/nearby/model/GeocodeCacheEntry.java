@@ -0,0 +1,62 @@
+package com.iuxta.nearby.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.mongojack.ObjectId;
+
+import java.util.Date;
+
+/**
+ * A geocoding result we already got from google, including addresses google couldn't find (location is null).
+ * Mongo removes the entry once expiresAt has passed.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class GeocodeCacheEntry {
+
+    private String id;
+
+    /**
+     * the normalized address or zip code
+     */
+    private String key;
+
+    private GeoJsonPoint location;
+
+    private Date expiresAt;
+
+    @ObjectId
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @ObjectId
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public GeoJsonPoint getLocation() {
+        return location;
+    }
+
+    public void setLocation(GeoJsonPoint location) {
+        this.location = location;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
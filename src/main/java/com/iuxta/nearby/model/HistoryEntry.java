@@ -0,0 +1,174 @@
+package com.iuxta.nearby.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.iuxta.nearby.dto.HistoryDto;
+import org.mongojack.ObjectId;
+
+import java.util.Date;
+
+/**
+ * One row of a user's history, kept up to date as requests, responses and transactions change. The row's place in
+ * {@link HistoryComparator} order is precomputed into a single number, rank, so a page of history is a single indexed
+ * range scan on (userId, rank, _id).
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HistoryEntry {
+
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int TRANSACTION_PENDING = 2;
+
+    // millis fit in 44 bits until the year 2527, the bucket goes above them
+    private static final int DATE_BITS = 44;
+
+    private String id;
+
+    /**
+     * the user whose history this row belongs to
+     */
+    private String userId;
+
+    private String requestId;
+
+    /**
+     * set when the row is for one of the user's responses, null when the row is the user's own request
+     */
+    private String responseId;
+
+    /**
+     * owner of the request, used to hide rows from users that have been blocked
+     */
+    private String ownerId;
+
+    /**
+     * the history type ("requests", "offers" or "transactions") that has to be asked for to see this row
+     */
+    private String kind;
+
+    /**
+     * the row is hidden when "open" isn't in the status filter
+     */
+    private Boolean openStatus;
+
+    /**
+     * the row is hidden when "closed" isn't in the status filter
+     */
+    private Boolean closedStatus;
+
+    /**
+     * the date shown for the row, when the request was posted or the response was made
+     */
+    private Date date;
+
+    /**
+     * see {@link #rank(int, Date)}, rows are listed by rank descending
+     */
+    private Long rank;
+
+    private HistoryDto history;
+
+    @ObjectId
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @ObjectId
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(String requestId) {
+        this.requestId = requestId;
+    }
+
+    public String getResponseId() {
+        return responseId;
+    }
+
+    public void setResponseId(String responseId) {
+        this.responseId = responseId;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public void setKind(String kind) {
+        this.kind = kind;
+    }
+
+    public Boolean getOpenStatus() {
+        return openStatus;
+    }
+
+    public void setOpenStatus(Boolean openStatus) {
+        this.openStatus = openStatus;
+    }
+
+    public Boolean getClosedStatus() {
+        return closedStatus;
+    }
+
+    public void setClosedStatus(Boolean closedStatus) {
+        this.closedStatus = closedStatus;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public void setDate(Date date) {
+        this.date = date;
+    }
+
+    public Long getRank() {
+        return rank;
+    }
+
+    public void setRank(Long rank) {
+        this.rank = rank;
+    }
+
+    public HistoryDto getHistory() {
+        return history;
+    }
+
+    public void setHistory(HistoryDto history) {
+        this.history = history;
+    }
+
+    /**
+     * Pending transactions first, then open requests and offers, then everything else, newest first within each.
+     *
+     * @param bucket one of {@link #TRANSACTION_PENDING}, {@link #OPEN} or {@link #CLOSED}
+     * @param date
+     * @return a key that sorts rows in that order when sorted descending
+     */
+    public static long rank(int bucket, Date date) {
+        long millis = date != null ? Math.max(0, date.getTime()) : 0;
+        return ((long) bucket << DATE_BITS) | millis;
+    }
+}
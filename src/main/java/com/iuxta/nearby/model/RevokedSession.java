@@ -0,0 +1,58 @@
+package com.iuxta.nearby.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.mongojack.ObjectId;
+
+import java.util.Date;
+
+/**
+ * A session token that was revoked before it expired. Rows can be dropped once the token would have expired anyway.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class RevokedSession {
+
+    private String id;
+
+    private String tokenId;
+
+    private String userId;
+
+    private Date expiresAt;
+
+    @ObjectId
+    @JsonProperty("_id")
+    public String getId() {
+        return id;
+    }
+
+    @ObjectId
+    @JsonProperty("_id")
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    public void setTokenId(String tokenId) {
+        this.tokenId = tokenId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public Date getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Date expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
@@ -0,0 +1,175 @@
+package com.iuxta.nearby.model;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerModifier;
+import com.fasterxml.jackson.databind.deser.std.DelegatingDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonDBCollection;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Base class for documents that remember which of their fields were changed since they were loaded, so saving them
+ * only writes those fields with $set/$unset (and $push for values appended through {@link #pushed}) instead of
+ * replacing the whole document.
+ *
+ * Setters of subclasses must call {@link #changed} before assigning the field. Jackson fills in documents through
+ * the same setters, so collections holding tracked documents have to be wrapped with a mapper that has {@link #MODULE}
+ * registered, which clears the changes once a document has been read. Nested objects and lists that are modified in
+ * place have to be passed back through their setter to be saved.
+ */
+public abstract class TrackedDocument implements Serializable {
+
+    public static final Module MODULE = new SimpleModule("tracked-documents")
+            .setDeserializerModifier(new BeanDeserializerModifier() {
+                @Override
+                public JsonDeserializer<?> modifyDeserializer(DeserializationConfig config, BeanDescription beanDesc,
+                                                              JsonDeserializer<?> deserializer) {
+                    if (TrackedDocument.class.isAssignableFrom(beanDesc.getBeanClass())) {
+                        return new CleanDeserializer(deserializer);
+                    }
+                    return deserializer;
+                }
+            });
+
+    private transient Set<String> changedFields = new LinkedHashSet<>();
+
+    private transient Map<String, Integer> pushedCounts = new HashMap<>();
+
+    public abstract String getId();
+
+    /**
+     * Records that a field is being set. Setting a string, number or boolean to the value it already has is not a
+     * change, anything else (lists, dates, nested objects) is assumed to have changed since it may have been modified
+     * in place.
+     *
+     * @param field name of the field in the db
+     * @param oldValue
+     * @param newValue
+     */
+    protected void changed(String field, Object oldValue, Object newValue) {
+        boolean immutable = newValue == null || newValue instanceof String || newValue instanceof Number ||
+                newValue instanceof Boolean;
+        if (immutable && Objects.equals(oldValue, newValue)) {
+            return;
+        }
+        changedFields().add(field);
+    }
+
+    /**
+     * Records that a value was appended to the end of a list field
+     *
+     * @param field
+     */
+    protected void pushed(String field) {
+        pushedCounts().merge(field, 1, Integer::sum);
+    }
+
+    public boolean hasChanges() {
+        return !changedFields().isEmpty() || !pushedCounts().isEmpty();
+    }
+
+    public void clearChanges() {
+        changedFields().clear();
+        pushedCounts().clear();
+    }
+
+    /**
+     * Writes the fields that changed since the document was loaded, does nothing if nothing changed. Documents that
+     * haven't been inserted yet are saved whole.
+     *
+     * @param collection
+     * @param document
+     * @return true if anything was written
+     */
+    public static <T extends TrackedDocument> boolean saveChanges(JacksonDBCollection<T, String> collection, T document) {
+        if (document.getId() == null) {
+            collection.save(document);
+            document.clearChanges();
+            return true;
+        }
+        if (!document.hasChanges()) {
+            return false;
+        }
+        TrackedDocument tracked = document;
+        DBObject dbObject = collection.convertToDbObject(document);
+        BasicDBObject set = new BasicDBObject();
+        BasicDBObject unset = new BasicDBObject();
+        for (String field : tracked.changedFields()) {
+            Object value = dbObject.get(field);
+            if (value == null) {
+                unset.put(field, "");
+            } else {
+                set.put(field, value);
+            }
+        }
+        BasicDBObject push = new BasicDBObject();
+        tracked.pushedCounts().forEach((field, count) -> {
+            // a field that was also set is already written whole
+            if (tracked.changedFields().contains(field)) {
+                return;
+            }
+            List<?> values = (List<?>) dbObject.get(field);
+            push.put(field, new BasicDBObject("$each", new ArrayList<>(values.subList(values.size() - count, values.size()))));
+        });
+        BasicDBObject update = new BasicDBObject();
+        if (!set.isEmpty()) {
+            update.put("$set", set);
+        }
+        if (!unset.isEmpty()) {
+            update.put("$unset", unset);
+        }
+        if (!push.isEmpty()) {
+            update.put("$push", push);
+        }
+        collection.update(new BasicDBObject("_id", new ObjectId(document.getId())), update);
+        document.clearChanges();
+        return true;
+    }
+
+    // transient fields are null after java deserialization
+    private Set<String> changedFields() {
+        if (changedFields == null) {
+            changedFields = new LinkedHashSet<>();
+        }
+        return changedFields;
+    }
+
+    private Map<String, Integer> pushedCounts() {
+        if (pushedCounts == null) {
+            pushedCounts = new HashMap<>();
+        }
+        return pushedCounts;
+    }
+
+    private static class CleanDeserializer extends DelegatingDeserializer {
+
+        CleanDeserializer(JsonDeserializer<?> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        protected JsonDeserializer<?> newDelegatingInstance(JsonDeserializer<?> newDelegatee) {
+            return new CleanDeserializer(newDelegatee);
+        }
+
+        @Override
+        public Object deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+            Object document = super.deserialize(p, ctxt);
+            if (document instanceof TrackedDocument) {
+                ((TrackedDocument) document).clearChanges();
+            }
+            return document;
+        }
+    }
+}
@@ -6,8 +6,8 @@ import org.mongojack.ObjectId;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Pattern;
 import javax.validation.constraints.Size;
-import java.io.Serializable;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -15,7 +15,7 @@ import java.util.List;
  * Created by kerrk on 7/5/16.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
-public class User implements Serializable, Principal {
+public class User extends TrackedDocument implements Principal {
 
     @ObjectId
     @JsonProperty("_id")
@@ -95,6 +95,23 @@ public class User implements Serializable, Principal {
 
     private Boolean admin;
 
+    /**
+     * the {@link com.iuxta.nearby.service.HistoryService#HISTORY_VERSION} the user's history rows were last built with
+     */
+    private Integer historyVersion;
+
+    /**
+     * the fcm topics {@link com.iuxta.nearby.firebase.AreaTopics} subscribed areaTopicsToken to
+     */
+    private List<String> areaTopics;
+
+    private String areaTopicsToken;
+
+    /**
+     * session tokens issued before this are no longer accepted
+     */
+    private Date sessionsRevokedAt;
+
     public User() {}
 
     public User(String firstName, String lastName, String userId) {
@@ -121,6 +138,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setFirstName(String firstName) {
+        changed("firstName", this.firstName, firstName);
         this.firstName = firstName;
     }
 
@@ -129,6 +147,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setLastName(String lastName) {
+        changed("lastName", this.lastName, lastName);
         this.lastName = lastName;
     }
 
@@ -137,6 +156,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setUserId(String userId) {
+        changed("userId", this.userId, userId);
         this.userId = userId;
     }
 
@@ -145,6 +165,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setName(String name) {
+        changed("name", this.name, name);
         this.name = name;
     }
 
@@ -153,6 +174,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setEmail(String email) {
+        changed("email", this.email, email);
         this.email = email;
     }
 
@@ -161,6 +183,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setPhone(String phone) {
+        changed("phone", this.phone, phone);
         this.phone = phone;
     }
 
@@ -169,6 +192,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setAddress(String address) {
+        changed("address", this.address, address);
         this.address = address;
     }
 
@@ -177,6 +201,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setAddressLine2(String addressLine2) {
+        changed("addressLine2", this.addressLine2, addressLine2);
         this.addressLine2 = addressLine2;
     }
 
@@ -185,6 +210,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setCity(String city) {
+        changed("city", this.city, city);
         this.city = city;
     }
 
@@ -193,6 +219,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setState(String state) {
+        changed("state", this.state, state);
         this.state = state;
     }
 
@@ -201,6 +228,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setZip(String zip) {
+        changed("zip", this.zip, zip);
         this.zip = zip;
     }
 
@@ -209,6 +237,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setFcmRegistrationId(String fcmRegistrationId) {
+        changed("fcmRegistrationId", this.fcmRegistrationId, fcmRegistrationId);
         this.fcmRegistrationId = fcmRegistrationId;
     }
 
@@ -217,6 +246,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setHomeLocation(GeoJsonPoint homeLocation) {
+        changed("homeLocation", this.homeLocation, homeLocation);
         this.homeLocation = homeLocation;
     }
 
@@ -225,6 +255,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setNewRequestNotificationsEnabled(Boolean newRequestNotificationsEnabled) {
+        changed("newRequestNotificationsEnabled", this.newRequestNotificationsEnabled, newRequestNotificationsEnabled);
         this.newRequestNotificationsEnabled = newRequestNotificationsEnabled;
     }
 
@@ -233,6 +264,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setNotificationRadius(Double notificationRadius) {
+        changed("notificationRadius", this.notificationRadius, notificationRadius);
         this.notificationRadius = notificationRadius;
     }
 
@@ -241,6 +273,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setNotificationKeywords(List<String> notificationKeywords) {
+        changed("notificationKeywords", this.notificationKeywords, notificationKeywords);
         this.notificationKeywords = notificationKeywords;
     }
 
@@ -249,6 +282,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setCurrentLocationNotifications(Boolean currentLocationNotifications) {
+        changed("currentLocationNotifications", this.currentLocationNotifications, currentLocationNotifications);
         this.currentLocationNotifications = currentLocationNotifications;
     }
 
@@ -257,6 +291,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setHomeLocationNotifications(Boolean homeLocationNotifications) {
+        changed("homeLocationNotifications", this.homeLocationNotifications, homeLocationNotifications);
         this.homeLocationNotifications = homeLocationNotifications;
     }
 
@@ -265,6 +300,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setStripeCustomerId(String stripeCustomerId) {
+        changed("stripeCustomerId", this.stripeCustomerId, stripeCustomerId);
         this.stripeCustomerId = stripeCustomerId;
     }
 
@@ -273,6 +309,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setDateOfBirth(String dateOfBirth) {
+        changed("dateOfBirth", this.dateOfBirth, dateOfBirth);
         this.dateOfBirth = dateOfBirth;
     }
 
@@ -281,6 +318,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setTosAccepted(Boolean tosAccepted) {
+        changed("tosAccepted", this.tosAccepted, tosAccepted);
         this.tosAccepted = tosAccepted;
     }
 
@@ -289,6 +327,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setPictureUrl(String pictureUrl) {
+        changed("pictureUrl", this.pictureUrl, pictureUrl);
         this.pictureUrl = pictureUrl;
     }
 
@@ -297,6 +336,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setAuthMethod(String authMethod) {
+        changed("authMethod", this.authMethod, authMethod);
         this.authMethod = authMethod;
     }
 
@@ -305,6 +345,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setTimeTosAccepted(Date timeTosAccepted) {
+        changed("timeTosAccepted", this.timeTosAccepted, timeTosAccepted);
         this.timeTosAccepted = timeTosAccepted;
     }
 
@@ -313,6 +354,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setTosAcceptIp(String topAcceptIp) {
+        changed("tosAcceptIp", this.tosAcceptIp, topAcceptIp);
         this.tosAcceptIp = topAcceptIp;
     }
 
@@ -321,6 +363,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setStripeManagedAccountId(String stripeManagedAccountId) {
+        changed("stripeManagedAccountId", this.stripeManagedAccountId, stripeManagedAccountId);
         this.stripeManagedAccountId = stripeManagedAccountId;
     }
 
@@ -329,6 +372,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setStripeSecretKey(String stripeSecretKey) {
+        changed("stripeSecretKey", this.stripeSecretKey, stripeSecretKey);
         this.stripeSecretKey = stripeSecretKey;
     }
 
@@ -337,6 +381,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setStripePublishableKey(String stripePublishableKey) {
+        changed("stripePublishableKey", this.stripePublishableKey, stripePublishableKey);
         this.stripePublishableKey = stripePublishableKey;
     }
 
@@ -345,6 +390,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setUserAgent(String userAgent) {
+        changed("userAgent", this.userAgent, userAgent);
         this.userAgent = userAgent;
     }
 
@@ -353,6 +399,7 @@ public class User implements Serializable, Principal {
     }
 
     public void setCreatedDate(Date createdDate) {
+        changed("createdDate", this.createdDate, createdDate);
         this.createdDate = createdDate;
     }
 
@@ -365,10 +412,56 @@ public class User implements Serializable, Principal {
     }
 
     public void setAdmin(Boolean admin) {
+        changed("admin", this.admin, admin);
         this.admin = admin;
     }
 
     public void setBlockedUsers(List<String> blockedUsers) {
+        changed("blockedUsers", this.blockedUsers, blockedUsers);
         this.blockedUsers = blockedUsers;
     }
+
+    public void addBlockedUser(String blockedUser) {
+        if (this.blockedUsers == null) {
+            this.blockedUsers = new ArrayList<>();
+        }
+        this.blockedUsers.add(blockedUser);
+        pushed("blockedUsers");
+    }
+
+    public Integer getHistoryVersion() {
+        return historyVersion;
+    }
+
+    public void setHistoryVersion(Integer historyVersion) {
+        changed("historyVersion", this.historyVersion, historyVersion);
+        this.historyVersion = historyVersion;
+    }
+
+    public List<String> getAreaTopics() {
+        return areaTopics;
+    }
+
+    public void setAreaTopics(List<String> areaTopics) {
+        changed("areaTopics", this.areaTopics, areaTopics);
+        this.areaTopics = areaTopics;
+    }
+
+    public String getAreaTopicsToken() {
+        return areaTopicsToken;
+    }
+
+    public void setAreaTopicsToken(String areaTopicsToken) {
+        changed("areaTopicsToken", this.areaTopicsToken, areaTopicsToken);
+        this.areaTopicsToken = areaTopicsToken;
+    }
+
+    public Date getSessionsRevokedAt() {
+        return sessionsRevokedAt;
+    }
+
+    public void setSessionsRevokedAt(Date sessionsRevokedAt) {
+        changed("sessionsRevokedAt", this.sessionsRevokedAt, sessionsRevokedAt);
+        this.sessionsRevokedAt = sessionsRevokedAt;
+    }
 }
@@ -1,6 +1,7 @@
 package com.iuxta.nearby.resources;
 
 import com.codahale.metrics.annotation.Timed;
+import com.iuxta.nearby.PageCursor;
 import com.iuxta.nearby.dto.RequestDto;
 import com.iuxta.nearby.exception.BadRequestException;
 import com.iuxta.nearby.exception.NotAllowedException;
@@ -8,6 +9,8 @@ import com.iuxta.nearby.exception.NotFoundException;
 import com.iuxta.nearby.exception.UnauthorizedException;
 import com.iuxta.nearby.model.Request;
 import com.iuxta.nearby.model.User;
+import com.iuxta.nearby.service.HistoryService;
+import com.iuxta.nearby.service.RequestSearchIndex;
 import com.iuxta.nearby.service.RequestService;
 import com.iuxta.nearby.service.ResponseService;
 import com.iuxta.nearby.service.StripeService;
@@ -46,20 +49,25 @@ public class RequestsResource {
     private static final Logger LOGGER = LoggerFactory.getLogger(RequestsResource.class);
 
     private JacksonDBCollection<Request, String> requestCollection;
+    private RequestSearchIndex requestSearchIndex;
     private JacksonDBCollection<Response, String> responseCollection;
     private RequestService requestService;
     private ResponseService responseService;
     private StripeService stripeService;
+    private HistoryService historyService;
 
     public RequestsResource(JacksonDBCollection<Request, String> requestCollection,
                             RequestService requestService,
                             JacksonDBCollection<Response, String> responseCollection,
-                            ResponseService responseService, StripeService stripeService) {
+                            ResponseService responseService, StripeService stripeService,
+                            HistoryService historyService, RequestSearchIndex requestSearchIndex) {
         this.requestCollection = requestCollection;
         this.requestService = requestService;
         this.responseCollection = responseCollection;
         this.responseService = responseService;
         this.stripeService = stripeService;
+        this.historyService = historyService;
+        this.requestSearchIndex = requestSearchIndex;
     }
 
     @GET
@@ -89,7 +97,10 @@ public class RequestsResource {
     @Timed
     @ApiOperation(
             value = "Search for requests",
-            notes = "Return requests that match query params (longitude, latitude, & radius)"
+            notes = "Return requests that match query params (longitude, latitude, & radius). If there are more " +
+                    "results, the x-next-cursor response header holds the cursor for the next page.",
+            response = RequestDto.class,
+            responseContainer = "List"
     )
     @ApiImplicitParams({@ApiImplicitParam(name = "x-auth-token",
             value = "the authentication token received from facebook",
@@ -99,7 +110,7 @@ public class RequestsResource {
                     value = "the authentication method, either \"facebook\" (default if empty) or \"google\"",
                     dataType = "string",
                     paramType = "header")})
-    public List<RequestDto> getRequests(@Auth @ApiParam(hidden = true) User principal,
+    public javax.ws.rs.core.Response getRequests(@Auth @ApiParam(hidden = true) User principal,
                                         @QueryParam("longitude") Double longitude,
                                         @QueryParam("latitude") Double latitude,
                                         @QueryParam("radius") Double radius,
@@ -108,6 +119,9 @@ public class RequestsResource {
                                         @QueryParam("searchTerm") String searchTerm,
                                         @QueryParam("sort") String sort,
                                         @QueryParam("offset") Integer offset,
+                                        @QueryParam("cursor")
+                                        @ApiParam(value = "the x-next-cursor header from the previous page, use instead of offset")
+                                        String cursor,
                                         @QueryParam("limit") Integer limit,
                                         @QueryParam("type") String type) {
         if (longitude == null || latitude == null || radius == null) {
@@ -115,9 +129,13 @@ public class RequestsResource {
             LOGGER.error(msg);
             throw new BadRequestException(msg);
         }
-        List<Request> requests = requestService.findRequests(offset, limit, latitude, longitude, radius, expired, includeMine,
-                searchTerm, sort, principal, type);
-        return RequestDto.transform(requests);
+        PageCursor.Page<Request> page = requestService.findRequests(offset, cursor, limit, latitude, longitude, radius,
+                expired, includeMine, searchTerm, sort, principal, type);
+        javax.ws.rs.core.Response.ResponseBuilder builder = javax.ws.rs.core.Response.ok(RequestDto.transform(page.items));
+        if (page.nextCursor != null) {
+            builder.header(PageCursor.NEXT_CURSOR_HEADER, page.nextCursor);
+        }
+        return builder.build();
     }
 
     @GET
@@ -169,6 +187,9 @@ public class RequestsResource {
         Request request = requestService.transformRequestDto(dto, principal);
         WriteResult<Request, String> newRequest = requestCollection.insert(request);
         request = newRequest.getSavedObject();
+        requestSearchIndex.refresh(request.getId());
+        historyService.refresh(request.getId());
+        requestService.sendAreaNotification(request);
         requestService.sendAdminsNewRequestNotification(request);
         return new RequestDto(request);
     }
@@ -223,6 +244,8 @@ public class RequestsResource {
         }
         requestService.populateRequest(request, dto);
         requestCollection.save(request);
+        requestSearchIndex.refresh(request.getId());
+        historyService.refresh(request.getId());
         return new RequestDto(request);
     }
 
@@ -252,6 +275,8 @@ public class RequestsResource {
             throw new UnauthorizedException(msg);
         }
         requestCollection.removeById(id);
+        requestSearchIndex.refresh(id);
+        historyService.refresh(id);
         return javax.ws.rs.core.Response.noContent().build();
 
     }
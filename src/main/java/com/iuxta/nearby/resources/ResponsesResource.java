@@ -1,6 +1,8 @@
 package com.iuxta.nearby.resources;
 
 import com.codahale.metrics.annotation.Timed;
+import com.iuxta.nearby.NearbyUtils;
+import com.iuxta.nearby.PageCursor;
 import com.iuxta.nearby.dto.ResponseDto;
 import com.iuxta.nearby.dto.ResponseFlagDto;
 import com.iuxta.nearby.dto.UserDto;
@@ -13,12 +15,15 @@ import com.iuxta.nearby.model.ResponseFlag;
 import com.iuxta.nearby.model.User;
 import com.iuxta.nearby.service.StripeService;
 import com.iuxta.nearby.service.ResponseService;
+import com.iuxta.nearby.service.UserCache;
 import com.mongodb.BasicDBObject;
 import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiImplicitParams;
 import io.swagger.annotations.ApiParam;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
 import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
@@ -34,6 +39,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -48,17 +54,19 @@ public class ResponsesResource {
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<Response, String> responseCollection;
     private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private ResponseService responseService;
     private StripeService stripeService;
 
     public ResponsesResource(JacksonDBCollection<Request, String> requestCollection,
                              JacksonDBCollection<Response, String> responseCollection,
                              ResponseService responseService, JacksonDBCollection<User, String> userCollection,
-                             StripeService stripeService) {
+                             StripeService stripeService, UserCache userCache) {
         this.requestCollection = requestCollection;
         this.responseCollection = responseCollection;
         this.responseService = responseService;
         this.userCollection = userCollection;
+        this.userCache = userCache;
         this.stripeService = stripeService;
     }
 
@@ -74,11 +82,17 @@ public class ResponsesResource {
                     value = "the authentication method, either \"facebook\" (default if empty) or \"google\"",
                     dataType = "string",
                     paramType = "header")})
-    public List<ResponseDto> getRequestResponses(@Auth @ApiParam(hidden = true) User principal,
+    public javax.ws.rs.core.Response getRequestResponses(@Auth @ApiParam(hidden = true) User principal,
                                                  @PathParam("requestId") String id,
                                                  @QueryParam("responder")
                                                  @ApiParam(value = "gets responses from a certain user, set to \"me\" to view your responses to a request")
-                                                 String seller) {
+                                                 String seller,
+                                                 @QueryParam("cursor")
+                                                 @ApiParam(value = "the x-next-cursor header from the previous page, newest responses come first")
+                                                 String cursor,
+                                                 @QueryParam("limit")
+                                                 @ApiParam(value = "page size, defaults to 20 when only cursor is sent. Every response is returned unless limit or cursor is sent")
+                                                 Integer limit) {
         Request request = requestCollection.findOneById(id);
         if (request == null) {
             String msg = "unable to return responses for request [" + id + "], " +
@@ -100,13 +114,34 @@ public class ResponsesResource {
         if (seller != null) {
             query.append("sellerId", seller);
         }
+        // clients that don't page still get everything
+        boolean paged = limit != null || StringUtils.isNotBlank(cursor);
+        limit = (limit == null || limit < 1 || limit > NearbyUtils.MAX_LIMIT) ? NearbyUtils.DEFAULT_LIMIT : limit;
+        if (StringUtils.isNotBlank(cursor)) {
+            String[] last = PageCursor.decode(cursor, 2);
+            try {
+                PageCursor.addOr(query, PageCursor.after("responseTime", new Date(Long.parseLong(last[0])),
+                        new ObjectId(last[1]), true));
+            } catch (IllegalArgumentException e) {
+                throw PageCursor.invalid(cursor);
+            }
+        }
 
-        DBCursor requestResponses = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
+        // get one extra response to find out if there is another page
+        DBCursor<Response> requestResponses = responseCollection.find(query)
+                .sort(new BasicDBObject("responseTime", -1).append("_id", -1))
+                .limit(paged ? limit + 1 : 0);
         List<Response> responses = requestResponses.toArray();
         requestResponses.close();
+        String nextCursor = null;
+        if (paged && responses.size() > limit) {
+            responses = responses.subList(0, limit);
+            Response lastResponse = responses.get(limit - 1);
+            nextCursor = PageCursor.encode(lastResponse.getResponseTime().getTime(), lastResponse.getId());
+        }
         List<ResponseDto> responsesDto = ResponseDto.transform(responses);
         responsesDto.forEach(r -> {
-            User u = userCollection.findOneById(r.responderId);
+            User u = userCache.get(r.responderId);
             UserDto userDto = new UserDto();
             userDto.userId = u.getId();
             userDto.lastName = u.getLastName();
@@ -115,7 +150,11 @@ public class ResponsesResource {
             r.responder = userDto;
             r.seller = userDto;
         });
-        return responsesDto;
+        javax.ws.rs.core.Response.ResponseBuilder builder = javax.ws.rs.core.Response.ok(responsesDto);
+        if (nextCursor != null) {
+            builder.header(PageCursor.NEXT_CURSOR_HEADER, nextCursor);
+        }
+        return builder.build();
     }
 
     @POST
@@ -208,7 +247,7 @@ public class ResponsesResource {
             }
         }
         ResponseDto responseDto = new ResponseDto(response);
-        User seller = userCollection.findOneById(response.getResponderId());
+        User seller = userCache.get(response.getResponderId());
         UserDto userDto = new UserDto();
         userDto.userId = seller.getId();
         userDto.lastName = seller.getLastName();
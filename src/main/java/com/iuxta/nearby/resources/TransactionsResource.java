@@ -4,14 +4,17 @@ import com.codahale.metrics.annotation.Timed;
 import com.iuxta.nearby.dto.TransactionDto;
 import com.iuxta.nearby.exception.IllegalArgumentException;
 import com.iuxta.nearby.exception.NotFoundException;
-import com.iuxta.nearby.firebase.CcsServer;
 import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
 import com.iuxta.nearby.model.Request;
 import com.iuxta.nearby.model.Response;
 import com.iuxta.nearby.model.Transaction;
 import com.iuxta.nearby.model.User;
+import com.iuxta.nearby.service.HistoryService;
+import com.iuxta.nearby.service.RequestSearchIndex;
 import com.iuxta.nearby.service.StripeService;
 import com.iuxta.nearby.service.TransactionService;
+import com.iuxta.nearby.service.UserCache;
 import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
@@ -44,26 +47,35 @@ public class TransactionsResource {
     private static final Logger LOGGER = LoggerFactory.getLogger(TransactionsResource.class);
 
     private JacksonDBCollection<Request, String> requestCollection;
+    private RequestSearchIndex requestSearchIndex;
     private JacksonDBCollection<Response, String> responseCollection;
     private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private JacksonDBCollection<Transaction, String> transactionCollection;
     private TransactionService transactionService;
-    private CcsServer ccsServer;
+    private NotificationDispatcher notificationDispatcher;
     private StripeService stripeService;
+    private HistoryService historyService;
 
 
     public TransactionsResource(JacksonDBCollection<Request, String> requestCollection,
                                 JacksonDBCollection<Response, String> responseCollection,
                                 JacksonDBCollection<User, String> userCollection,
                                 JacksonDBCollection<Transaction, String> transactionCollection,
-                                CcsServer ccsServer, StripeService stripeService) {
+                                NotificationDispatcher notificationDispatcher, StripeService stripeService,
+                                HistoryService historyService, UserCache userCache,
+                                RequestSearchIndex requestSearchIndex) {
         this.requestCollection = requestCollection;
         this.responseCollection = responseCollection;
         this.userCollection = userCollection;
+        this.userCache = userCache;
         this.transactionCollection = transactionCollection;
-        this.transactionService = new TransactionService(transactionCollection, userCollection, ccsServer, requestCollection);
-        this.ccsServer = ccsServer;
+        this.transactionService = new TransactionService(transactionCollection, userCollection, notificationDispatcher,
+                requestCollection, historyService, userCache, requestSearchIndex);
+        this.notificationDispatcher = notificationDispatcher;
         this.stripeService = stripeService;
+        this.historyService = historyService;
+        this.requestSearchIndex = requestSearchIndex;
     }
 
     @GET
@@ -131,17 +143,19 @@ public class TransactionsResource {
         response.setCanceledReason(dto.canceledReason);
         responseCollection.save(response);
         requestCollection.save(request);
+        requestSearchIndex.refresh(request.getId());
+        historyService.refresh(request.getId());
         JSONObject notification = new JSONObject();
         notification.put("title", "Transaction Cancelled");
         notification.put("type", FirebaseUtils.NotificationTypes.cancelled_transaction.name());
         notification.put("reason", transaction.getCanceledReason());
         if (isRequester) {
-            User seller = userCollection.findOneById(response.getResponderId());
+            User seller = userCache.get(response.getResponderId());
             notification.put("message", seller.getFirstName() + " cancelled your transaction for a " + request.getItemName() + ".");
-            FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
+            FirebaseUtils.sendFcmMessage(seller, null, notification, notificationDispatcher);
         } else {
             notification.put("message", request.getUser().getFirstName() + " cancelled your transaction for a " + request.getItemName() + ".");
-            FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, ccsServer);
+            FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, notificationDispatcher);
         }
         return new TransactionDto(transaction, isSeller);
     }
@@ -334,7 +348,7 @@ public class TransactionsResource {
         transaction.setFinalPrice(dto.priceOverride == null ? transaction.getCalculatedPrice() : dto.priceOverride);
         transaction.setSellerAccepted(true);
         transactionCollection.save(transaction);
-        User responder = userCollection.findOneById(response.getResponderId());
+        User responder = userCache.get(response.getResponderId());
         if (transaction.getFinalPrice() > 0) {
             request.setStatus(Request.Status.PROCESSING_PAYMENT);
             if (request.isInventoryListing()) {
@@ -349,6 +363,8 @@ public class TransactionsResource {
         transactionCollection.save(transaction);
         request.setStatus(Request.Status.FULFILLED);
         requestCollection.save(request);
+        requestSearchIndex.refresh(request.getId());
+        historyService.refresh(request.getId());
         if (request.isInventoryListing()) {
             transactionService.sendTransactionFulfilledNotification(transaction, principal, responder);
         } else {
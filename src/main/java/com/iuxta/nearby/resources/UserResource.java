@@ -1,16 +1,24 @@
 package com.iuxta.nearby.resources;
 
 import com.codahale.metrics.annotation.Timed;
+import com.iuxta.nearby.NearbyUtils;
+import com.iuxta.nearby.PageCursor;
+import com.iuxta.nearby.auth.CredentialAuthFilter;
+import com.iuxta.nearby.auth.CredentialCache;
+import com.iuxta.nearby.auth.SessionTokenService;
 import com.iuxta.nearby.dto.*;
 import com.iuxta.nearby.exception.UnauthorizedException;
+import com.iuxta.nearby.firebase.AreaTopics;
 import com.iuxta.nearby.model.Request;
 import com.iuxta.nearby.model.User;
 import com.iuxta.nearby.model.UserFlag;
+import com.iuxta.nearby.service.HistoryService;
 import com.iuxta.nearby.service.ResponseService;
 import com.iuxta.nearby.service.StripeService;
+import com.iuxta.nearby.service.UserCache;
 import com.iuxta.nearby.service.UserService;
+import com.iuxta.nearby.service.UserSnapshotPropagator;
 import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
 import io.dropwizard.auth.Auth;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiImplicitParam;
@@ -18,6 +26,7 @@ import io.swagger.annotations.ApiImplicitParams;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
 import org.mongojack.DBCursor;
 import org.mongojack.JacksonDBCollection;
 import org.slf4j.Logger;
@@ -26,7 +35,9 @@ import org.slf4j.LoggerFactory;
 import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -35,6 +46,8 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Date;
 import java.util.List;
 
 
@@ -45,20 +58,33 @@ public class UserResource {
     private static final Logger LOGGER = LoggerFactory.getLogger(UserResource.class);
 
     private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private JacksonDBCollection<Request, String> requestCollection;
     private UserService userService;
     private ResponseService responseService;
     private StripeService stripeService;
-
+    private HistoryService historyService;
+    private CredentialCache credentialCache;
+    private SessionTokenService sessionTokenService;
+    private UserSnapshotPropagator userSnapshotPropagator;
+    private AreaTopics areaTopics;
 
     public UserResource(JacksonDBCollection<User, String> userCollection,
                         JacksonDBCollection<Request, String> requestCollection, UserService userService,
-                        ResponseService responseService, StripeService stripeService) {
+                        ResponseService responseService, StripeService stripeService, HistoryService historyService,
+                        CredentialCache credentialCache, SessionTokenService sessionTokenService,
+                        UserSnapshotPropagator userSnapshotPropagator, UserCache userCache, AreaTopics areaTopics) {
         this.userCollection = userCollection;
+        this.userCache = userCache;
         this.requestCollection = requestCollection;
         this.userService = userService;
         this.responseService = responseService;
         this.stripeService = stripeService;
+        this.historyService = historyService;
+        this.credentialCache = credentialCache;
+        this.sessionTokenService = sessionTokenService;
+        this.userSnapshotPropagator = userSnapshotPropagator;
+        this.areaTopics = areaTopics;
     }
 
     @Context
@@ -92,7 +118,7 @@ public class UserResource {
             userDto.canRequest = principal.getStripeCustomerId() != null && stripeService.hasCustomerAccount(principal);
             return userDto;
         }
-        User user = userCollection.findOneById(id);
+        User user = userCache.get(id);
         return UserDto.getOtherUserDto(user);
     }
 
@@ -125,7 +151,9 @@ public class UserResource {
             throw new UnauthorizedException(msg);
         }
         principal = userService.updateUser(principal, userDto);
-        userCollection.save(principal);
+        userCache.save(principal);
+        credentialCache.invalidateUser(principal.getId());
+        areaTopics.updateSubscriptions(principal.getId());
         return new UserDto(principal);
     }
 
@@ -158,19 +186,13 @@ public class UserResource {
             throw new UnauthorizedException(msg);
         }
         principal = userService.updateUser(principal, userDto);
-        userCollection.save(principal);
+        userCache.save(principal);
+        credentialCache.invalidateUser(principal.getId());
 
-        // update all of the requests that the user made
-        DBObject searchByUser = new BasicDBObject("user.userId", principal.getUserId());
-        DBCursor userRequests = requestCollection.find(searchByUser).sort(new BasicDBObject("postDate", -1));
-        List<Request> requests = userRequests.toArray();
-        final User updatedUser = principal;
-        requests.forEach(r -> {
-            r.setUser(updatedUser);
-            requestCollection.save(r);
-        });
-        userRequests.close();
-        UserDto dto =  UserDto.getMyUserDto(updatedUser);
+        // the copies of the user embedded in their requests and their area topics are updated in the background
+        userSnapshotPropagator.enqueue(principal.getId());
+        areaTopics.updateSubscriptions(principal.getId());
+        UserDto dto =  UserDto.getMyUserDto(principal);
         dto.canRespond = principal.getStripeManagedAccountId() != null && stripeService.canAcceptTransfers(principal);
         dto.canRequest = principal.getStripeCustomerId() != null && stripeService.hasCustomerAccount(principal);
         return dto;
@@ -183,7 +205,11 @@ public class UserResource {
     @ApiOperation(
             value = "get a user's requests",
             notes = "right now we only allow a user to get their own requests, but perhaps we can allow users to " +
-                    "make their request history public"
+                    "make their request history public. Newest first. Every request is returned unless limit or cursor " +
+                    "is sent, then at most limit are and if there are more results the x-next-cursor response " +
+                    "header holds the cursor for the next page.",
+            response = RequestDto.class,
+            responseContainer = "List"
     )
     @ApiImplicitParams({@ApiImplicitParam(name = "x-auth-token",
             value = "the authentication token received from facebook",
@@ -194,20 +220,46 @@ public class UserResource {
                     dataType = "string",
                     paramType = "header")
     })
-    public List<RequestDto> getAllUserRequests(@Auth @ApiParam(hidden = true) User principal, @PathParam("id")
+    public Response getAllUserRequests(@Auth @ApiParam(hidden = true) User principal, @PathParam("id")
     @ApiParam(value = "the id of the user to get requests from, can use \"me\" to get the current user's info")
-    String id) {
+    String id, @QueryParam("cursor") @ApiParam(value = "the x-next-cursor header from the previous page") String cursor,
+    @QueryParam("limit") @ApiParam(value = "page size, defaults to 20 when only cursor is sent") Integer limit) {
         if (!principal.getUserId().equals(id) && !id.equals("me")) {
             String msg = "User [" + principal.getUserId() +
                     "] is not authorized to get requests from user [" + id + "].";
             LOGGER.error(msg);
             throw new UnauthorizedException(msg);
         }
-        DBObject searchByUser = new BasicDBObject("user.userId", principal.getUserId());
-        DBCursor userRequests = requestCollection.find(searchByUser).sort(new BasicDBObject("postDate", -1));
+        // clients that don't page still get everything
+        boolean paged = limit != null || StringUtils.isNotBlank(cursor);
+        limit = (limit == null || limit < 1 || limit > NearbyUtils.MAX_LIMIT) ? NearbyUtils.DEFAULT_LIMIT : limit;
+        BasicDBObject searchByUser = new BasicDBObject("user.userId", principal.getUserId());
+        if (StringUtils.isNotBlank(cursor)) {
+            String[] last = PageCursor.decode(cursor, 2);
+            try {
+                PageCursor.addOr(searchByUser, PageCursor.after("postDate", new Date(Long.parseLong(last[0])),
+                        new ObjectId(last[1]), true));
+            } catch (IllegalArgumentException e) {
+                throw PageCursor.invalid(cursor);
+            }
+        }
+        // get one extra request to find out if there is another page
+        DBCursor<Request> userRequests = requestCollection.find(searchByUser)
+                .sort(new BasicDBObject("postDate", -1).append("_id", -1))
+                .limit(paged ? limit + 1 : 0);
         List<Request> requests = userRequests.toArray();
         userRequests.close();
-        return RequestDto.transform(requests);
+        String nextCursor = null;
+        if (paged && requests.size() > limit) {
+            requests = requests.subList(0, limit);
+            Request lastRequest = requests.get(limit - 1);
+            nextCursor = PageCursor.encode(lastRequest.getPostDate().getTime(), lastRequest.getId());
+        }
+        Response.ResponseBuilder builder = Response.ok(RequestDto.transform(requests));
+        if (nextCursor != null) {
+            builder.header(PageCursor.NEXT_CURSOR_HEADER, nextCursor);
+        }
+        return builder.build();
     }
 
     @GET
@@ -218,7 +270,10 @@ public class UserResource {
             value = "get a user's requests & responses to requests",
             notes = "this will return the request object along with the responses. If the user made the request, all " +
                     "the responses will be returned to them. If the user made an offer, the original request with only " +
-                    "their response will be returned. The client should display only their response object on the history screen."
+                    "their response will be returned. The client should display only their response object on the history screen. " +
+                    "If there are more results, the x-next-cursor response header holds the cursor for the next page.",
+            response = HistoryDto.class,
+            responseContainer = "List"
     )
     @ApiImplicitParams({@ApiImplicitParam(name = "x-auth-token",
             value = "the authentication token received from facebook",
@@ -229,16 +284,64 @@ public class UserResource {
                     dataType = "string",
                     paramType = "header")
     })
-    public List<HistoryDto> getUserHistory(@Auth @ApiParam(hidden = true) User principal, @PathParam("id")
+    public Response getUserHistory(@Auth @ApiParam(hidden = true) User principal, @PathParam("id")
     @ApiParam(value = "the id of the user to get requests from, can use \"me\" to get the current user's info")
-    String id,  @QueryParam("types") List<String> types, @QueryParam("status") List<String> status) {
+    String id,  @QueryParam("types") List<String> types, @QueryParam("status") List<String> status,
+    @QueryParam("cursor") @ApiParam(value = "the x-next-cursor header from the previous page") String cursor,
+    @QueryParam("limit") @ApiParam(value = "page size, defaults to 20 when only cursor is sent") Integer limit) {
         if (!principal.getUserId().equals(id) && !id.equals("me")) {
             String msg = "User [" + principal.getUserId() +
                     "] is not authorized to get user [" + id + "]'s history.";
             LOGGER.error(msg);
             throw new UnauthorizedException(msg);
         }
-        return responseService.getHistory(principal, types, status);
+        HistoryService.HistoryPage page = historyService.getHistory(principal, types, status, cursor, limit);
+        Response.ResponseBuilder builder = Response.ok(page.history);
+        if (page.nextCursor != null) {
+            builder.header(PageCursor.NEXT_CURSOR_HEADER, page.nextCursor);
+        }
+        return builder.build();
+    }
+
+    @DELETE
+    @Path("/{id}/sessions")
+    @Timed
+    @ApiOperation(
+            value = "signs the user out",
+            notes = "Revokes the session token used to make this call. If all is true, every session token issued " +
+                    "to the user is revoked and cached facebook/google logins are forgotten."
+    )
+    @ApiImplicitParams({@ApiImplicitParam(name = "x-auth-token",
+            value = "the authentication token received from facebook",
+            dataType = "string",
+            paramType = "header"),
+            @ApiImplicitParam(name = "x-auth-method",
+                    value = "the authentication method, either \"facebook\" (default if empty), \"google\" or \"session\"",
+                    dataType = "string",
+                    paramType = "header")
+    })
+    public void revokeSessions(@Auth @ApiParam(hidden = true) User principal, @PathParam("id")
+    @ApiParam(value = "the user to sign out, must be the currently authenticated user or \"me\"") String id,
+                               @QueryParam("all") @ApiParam(value = "revoke every session, not just this one") Boolean all,
+                               @HeaderParam(CredentialAuthFilter.CUSTOM_HEADER) @ApiParam(hidden = true) String token,
+                               @HeaderParam(CredentialAuthFilter.METHOD_HEADER) @ApiParam(hidden = true) String method) {
+        if (!id.equals("me") && !principal.getId().equals(id)) {
+            String msg = "User [" + principal.getId() + "] is not authorized to revoke sessions for user [" + id + "].";
+            LOGGER.error(msg);
+            throw new UnauthorizedException(msg);
+        }
+        if (all != null && all) {
+            principal.setSessionsRevokedAt(new Date());
+            userCache.save(principal);
+            credentialCache.invalidateUser(principal.getId());
+            return;
+        }
+        if (NearbyUtils.SESSION_AUTH_METHOD.equals(method)) {
+            SessionTokenService.SessionToken session = sessionTokenService.verify(token);
+            if (session != null) {
+                sessionTokenService.revoke(session);
+            }
+        }
     }
 
     @PUT
@@ -274,7 +377,8 @@ public class UserResource {
             throw new UnauthorizedException(msg);
         }
         principal.setFcmRegistrationId(token);
-        userCollection.save(principal);
+        userCache.save(principal);
+        areaTopics.updateSubscriptions(principal.getId());
     }
 
     @GET
@@ -0,0 +1,18 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.model.GeoJsonPoint;
+
+import java.io.IOException;
+
+/**
+ * Turns an address or zip code into a location, see {@link GeocodingService} and {@link ZipCentroidGeocoder}
+ */
+public interface Geocoder {
+
+    /**
+     * @param address an address or zip code
+     * @return the location, or null if the address couldn't be found
+     * @throws IOException if the lookup failed
+     */
+    GeoJsonPoint geocode(String address) throws IOException;
+}
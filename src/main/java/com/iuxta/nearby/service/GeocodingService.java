@@ -0,0 +1,213 @@
+package com.iuxta.nearby.service;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iuxta.nearby.http.OutboundHttpClient;
+import com.iuxta.nearby.model.GeoJsonPoint;
+import com.iuxta.nearby.model.GeocodeCacheEntry;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.utils.URIBuilder;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up coordinates for addresses and zip codes with google's geocoding api. Results are cached in memory and in
+ * the geocodeCache collection, keyed by the normalized address, so repeat lookups (the same zip on the public
+ * listings page, a profile saved with an unchanged address) don't call google. Addresses google couldn't find are
+ * cached too, for a shorter time. Errors are never cached.
+ */
+public class GeocodingService implements Geocoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GeocodingService.class);
+
+    private static final String GEOCODE_URL = "http://maps.googleapis.com/maps/api/geocode/xml";
+
+    // document builders and compiled xpath expressions aren't thread safe, so each thread gets its own
+    private static final ThreadLocal<GeocodeParser> PARSER = ThreadLocal.withInitial(GeocodeParser::new);
+
+    private OutboundHttpClient httpClient;
+    private JacksonDBCollection<GeocodeCacheEntry, String> geocodeCacheCollection;
+    private Cache<String, CachedLocation> cache;
+    private long ttlMillis;
+    private long negativeTtlMillis;
+
+    private Meter memoryHits;
+    private Meter dbHits;
+    private Meter misses;
+
+    public GeocodingService(OutboundHttpClient httpClient,
+                            JacksonDBCollection<GeocodeCacheEntry, String> geocodeCacheCollection,
+                            long cacheSize, long ttlHours, long negativeTtlHours, MetricRegistry metrics) {
+        this.httpClient = httpClient;
+        this.geocodeCacheCollection = geocodeCacheCollection;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
+        this.ttlMillis = TimeUnit.HOURS.toMillis(ttlHours);
+        this.negativeTtlMillis = TimeUnit.HOURS.toMillis(negativeTtlHours);
+        this.memoryHits = metrics.meter(MetricRegistry.name(GeocodingService.class, "memory-hits"));
+        this.dbHits = metrics.meter(MetricRegistry.name(GeocodingService.class, "db-hits"));
+        this.misses = metrics.meter(MetricRegistry.name(GeocodingService.class, "misses"));
+    }
+
+    /**
+     * @param address an address or zip code
+     * @return the location, or null if google didn't find one
+     * @throws IOException if google couldn't be reached or returned an error
+     */
+    public GeoJsonPoint geocode(String address) throws IOException {
+        String key = normalize(address);
+        long now = System.currentTimeMillis();
+        CachedLocation cached = cache.getIfPresent(key);
+        if (cached != null && cached.expiresAt > now) {
+            memoryHits.mark();
+            return cached.copy();
+        }
+        GeocodeCacheEntry entry = geocodeCacheCollection.findOne(new BasicDBObject("key", key));
+        if (entry != null && entry.getExpiresAt().getTime() > now) {
+            dbHits.mark();
+            cached = new CachedLocation(entry.getLocation(), entry.getExpiresAt().getTime());
+            cache.put(key, cached);
+            return cached.copy();
+        }
+        misses.mark();
+        GeoJsonPoint location = lookup(address);
+        cached = new CachedLocation(location, now + (location != null ? ttlMillis : negativeTtlMillis));
+        cache.put(key, cached);
+        save(key, cached);
+        return cached.copy();
+    }
+
+    /**
+     * Lower cases the address and collapses punctuation and whitespace, so "123 Main St., Apt 4" and
+     * "123 main st apt 4" share a cache entry
+     */
+    static String normalize(String address) {
+        return address.toLowerCase(Locale.US).replaceAll("[^\\p{L}\\p{N}#-]+", " ").trim();
+    }
+
+    private void save(String key, CachedLocation cached) {
+        try {
+            GeocodeCacheEntry entry = new GeocodeCacheEntry();
+            entry.setKey(key);
+            entry.setLocation(cached.location);
+            entry.setExpiresAt(new Date(cached.expiresAt));
+            DBObject document = geocodeCacheCollection.convertToDbObject(entry);
+            document.removeField("_id");
+            geocodeCacheCollection.update(new BasicDBObject("key", key), document, true, false);
+        } catch (Exception e) {
+            LOGGER.error("could not save geocode result for [" + key + "], got error: " + e.getMessage());
+        }
+    }
+
+    private GeoJsonPoint lookup(String address) throws IOException {
+        URI uri;
+        try {
+            uri = new URIBuilder(GEOCODE_URL)
+                    .addParameter("address", address)
+                    .addParameter("sensor", "true")
+                    .build();
+        } catch (URISyntaxException e) {
+            throw new IOException("Could not construct uri, got error: " + e.getMessage(), e);
+        }
+        GeocodeResult result = httpClient.get(uri, response -> {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                return new GeocodeResult("HTTP " + response.getStatusLine().getStatusCode(), null);
+            }
+            return PARSER.get().parse(response.getEntity().getContent());
+        });
+        if (result.status.equals("OK")) {
+            return result.location;
+        } else if (result.status.equals("ZERO_RESULTS")) {
+            LOGGER.info("No geolocation found for [" + address + "].");
+            return null;
+        }
+        throw new IOException("Error from the API - response status: " + result.status);
+    }
+
+    private static class CachedLocation {
+        private GeoJsonPoint location;
+        private long expiresAt;
+
+        CachedLocation(GeoJsonPoint location, long expiresAt) {
+            this.location = location;
+            this.expiresAt = expiresAt;
+        }
+
+        // GeoJsonPoint is mutable and ends up on users and requests, so callers get their own copy
+        GeoJsonPoint copy() {
+            if (location == null) {
+                return null;
+            }
+            return new GeoJsonPoint(location.getCoordinates()[0], location.getCoordinates()[1]);
+        }
+    }
+
+    private static class GeocodeResult {
+        private String status;
+        private GeoJsonPoint location;
+
+        GeocodeResult(String status, GeoJsonPoint location) {
+            this.status = status;
+            this.location = location;
+        }
+    }
+
+    private static class GeocodeParser {
+        private DocumentBuilder builder;
+        private XPathExpression status;
+        private XPathExpression latitude;
+        private XPathExpression longitude;
+
+        GeocodeParser() {
+            try {
+                builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+                XPath xpath = XPathFactory.newInstance().newXPath();
+                status = xpath.compile("/GeocodeResponse/status");
+                latitude = xpath.compile("//geometry/location/lat");
+                longitude = xpath.compile("//geometry/location/lng");
+            } catch (ParserConfigurationException | XPathExpressionException e) {
+                throw new IllegalStateException("could not set up geocode response parser: " + e.getMessage(), e);
+            }
+        }
+
+        GeocodeResult parse(InputStream content) throws IOException {
+            try {
+                builder.reset();
+                Document document = builder.parse(content);
+                String responseStatus = (String) status.evaluate(document, XPathConstants.STRING);
+                if (!responseStatus.equals("OK")) {
+                    return new GeocodeResult(responseStatus, null);
+                }
+                Double lat = Double.parseDouble((String) latitude.evaluate(document, XPathConstants.STRING));
+                Double lng = Double.parseDouble((String) longitude.evaluate(document, XPathConstants.STRING));
+                return new GeocodeResult(responseStatus, new GeoJsonPoint(lng, lat));
+            } catch (SAXException | XPathExpressionException | NumberFormatException e) {
+                throw new IOException("Could not parse geocode response: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.dto.*;
+import com.iuxta.nearby.model.*;
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Builds a user's history straight from the request, response and transaction collections with a fixed number of
+ * queries. Everything a page needs is loaded in bulk up front and joined in memory. {@link HistoryService} serves
+ * history this way until the user's rows in the history collection have been built.
+ */
+public class HistoryBuilder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryBuilder.class);
+
+    private static final List<String> REQUEST_TYPES = Arrays.asList(Request.Type.buying.name(), Request.Type.renting.name());
+    private static final List<String> OFFER_TYPES = Arrays.asList(Request.Type.selling.name(), Request.Type.loaning.name());
+
+    private JacksonDBCollection<Request, String> requestCollection;
+    private JacksonDBCollection<Response, String> responseCollection;
+    private JacksonDBCollection<User, String> userCollection;
+    private JacksonDBCollection<Transaction, String> transactionCollection;
+
+    public HistoryBuilder(JacksonDBCollection<Request, String> requestCollection,
+                          JacksonDBCollection<Response, String> responseCollection,
+                          JacksonDBCollection<User, String> userCollection,
+                          JacksonDBCollection<Transaction, String> transactionCollection) {
+        this.requestCollection = requestCollection;
+        this.responseCollection = responseCollection;
+        this.userCollection = userCollection;
+        this.transactionCollection = transactionCollection;
+    }
+
+    /**
+     * types can be any of "requests", "offers" and "transactions", status can be "open" and/or "closed". Empty means all.
+     *
+     * @param user
+     * @param types
+     * @param status
+     * @param limit
+     * @return the first page of the user's history, sorted with {@link HistoryComparator}
+     */
+    public List<HistoryDto> getHistory(User user, List<String> types, List<String> status, int limit) {
+        boolean getRequests = types == null || types.isEmpty() || containsIgnoreCase(types, "requests");
+        boolean getOffers = types == null || types.isEmpty() || containsIgnoreCase(types, "offers");
+        boolean getTransactions = types == null || types.isEmpty() || containsIgnoreCase(types, "transactions");
+        boolean getOpen = status == null || status.isEmpty() || containsIgnoreCase(status, "open");
+        boolean getClosed = status == null || status.isEmpty() || containsIgnoreCase(status, "closed");
+        boolean includeRequestSide = getRequests || getTransactions;
+        boolean includeOfferSide = getOffers || getTransactions;
+
+        List<HistoryDto> historyDtos = new ArrayList<>();
+        if (!includeRequestSide && !includeOfferSide) {
+            return historyDtos;
+        }
+
+        // 1. the user's own requests and listings
+        List<String> requestTypes = new ArrayList<>();
+        if (includeRequestSide) {
+            requestTypes.addAll(REQUEST_TYPES);
+        }
+        if (includeOfferSide) {
+            requestTypes.addAll(OFFER_TYPES);
+        }
+        BasicDBObject ownQuery = new BasicDBObject("user._id", new ObjectId(user.getId()));
+        ownQuery.put("type", new BasicDBObject("$in", requestTypes));
+        DBCursor<Request> ownCursor = requestCollection.find(ownQuery);
+        List<Request> ownRequests = ownCursor.toArray();
+        ownCursor.close();
+
+        // 2. the user's responses, joined with the transactions on the same request
+        Map<Response, Transaction> myResponses = getResponsesWithTransactions(user);
+
+        // 3. the requests those responses were made to
+        List<ObjectId> respondedToIds = myResponses.keySet().stream().map(r -> new ObjectId(r.getRequestId()))
+                .distinct().collect(Collectors.toList());
+        Map<String, Request> respondedTo = new HashMap<>();
+        if (!respondedToIds.isEmpty()) {
+            DBCursor<Request> cursor = requestCollection.find(new BasicDBObject("_id", new BasicDBObject("$in", respondedToIds)));
+            cursor.toArray().forEach(r -> respondedTo.put(r.getId(), r));
+            cursor.close();
+        }
+
+        // 4 - 6. responses, transactions and responders for the user's own requests
+        Map<String, List<Response>> responsesByRequest = getResponsesToRequests(user, ownRequests);
+        Map<String, Transaction> transactionsByRequest = getOpenTransactions(ownRequests);
+        Map<String, User> responders = getResponders(responsesByRequest);
+
+        for (Map.Entry<Response, Transaction> entry : myResponses.entrySet()) {
+            Response r = entry.getKey();
+            Request request = respondedTo.get(r.getRequestId());
+            HistoryDto dto = null;
+            if (Boolean.TRUE.equals(r.getIsOfferToBuyOrRent()) && includeRequestSide) {
+                //requests includes responses to sale items
+                dto = toResponseHistory(r, request, entry.getValue(), user, getRequests, getTransactions, getOpen, getClosed);
+            } else if (Boolean.FALSE.equals(r.getIsOfferToBuyOrRent()) && includeOfferSide) {
+                dto = toResponseHistory(r, request, entry.getValue(), user, getOffers, getTransactions, getOpen, getClosed);
+            }
+            if (dto != null) {
+                historyDtos.add(dto);
+            }
+        }
+        for (Request request : ownRequests) {
+            HistoryDto dto;
+            if (request.isInventoryListing()) {
+                dto = toRequestHistory(request, responsesByRequest, transactionsByRequest.get(request.getId()),
+                        responders, getOffers, getTransactions, getOpen, getClosed);
+            } else {
+                // buying & renting requests have only ever been shown as transactions when "requests" was asked for
+                dto = toRequestHistory(request, responsesByRequest, transactionsByRequest.get(request.getId()),
+                        responders, getRequests, getRequests, getOpen, getClosed);
+            }
+            if (dto != null) {
+                historyDtos.add(dto);
+            }
+        }
+
+        Collections.sort(historyDtos, new HistoryComparator(user.getId()));
+        if (historyDtos.size() > limit) {
+            return historyDtos.subList(0, limit);
+        } else {
+            return historyDtos;
+        }
+    }
+
+    /**
+     * Uses $lookup to pull in the transactions for each of the user's responses in the same round trip. Transactions
+     * are joined on requestId since that's the only key stored as the same type on both sides, the one that belongs to
+     * the response is picked out afterwards.
+     */
+    private Map<Response, Transaction> getResponsesWithTransactions(User user) {
+        List<DBObject> pipeline = new ArrayList<>();
+        pipeline.add(new BasicDBObject("$match", new BasicDBObject("responderId", user.getId())));
+        BasicDBObject lookup = new BasicDBObject("from", transactionCollection.getDbCollection().getName());
+        lookup.append("localField", "requestId");
+        lookup.append("foreignField", "requestId");
+        lookup.append("as", "transactions");
+        pipeline.add(new BasicDBObject("$lookup", lookup));
+        AggregationOptions options = AggregationOptions.builder()
+                .outputMode(AggregationOptions.OutputMode.CURSOR)
+                .build();
+
+        Map<Response, Transaction> responses = new LinkedHashMap<>();
+        Cursor cursor = responseCollection.getDbCollection().aggregate(pipeline, options);
+        try {
+            while (cursor.hasNext()) {
+                DBObject dbObject = cursor.next();
+                List<?> transactions = (List<?>) dbObject.removeField("transactions");
+                Response response = responseCollection.convertFromDbObject(dbObject);
+                Transaction transaction = null;
+                //only use a transaction if the response is accepted, otherwise the transaction may not belong to the response
+                if (transactions != null && Response.Status.ACCEPTED.equals(response.getResponseStatus())) {
+                    for (Object t : transactions) {
+                        Transaction candidate = transactionCollection.convertFromDbObject((DBObject) t);
+                        if (response.getId().equals(candidate.getResponseId())) {
+                            transaction = candidate;
+                            break;
+                        }
+                    }
+                }
+                responses.put(response, transaction);
+            }
+        } finally {
+            cursor.close();
+        }
+        return responses;
+    }
+
+    private Map<String, List<Response>> getResponsesToRequests(User user, List<Request> requests) {
+        Map<String, List<Response>> responsesByRequest = new HashMap<>();
+        if (requests.isEmpty()) {
+            return responsesByRequest;
+        }
+        List<String> requestIds = requests.stream().map(Request::getId).collect(Collectors.toList());
+        BasicDBObject query = new BasicDBObject("requestId", new BasicDBObject("$in", requestIds));
+        //don't return the inappropriate offers
+        query.put("inappropriate", new BasicDBObject("$ne", true));
+        if (user.getBlockedUsers() != null && user.getBlockedUsers().size() > 0) {
+            query.put("responderId", new BasicDBObject("$nin", user.getBlockedUsers()));
+        }
+        DBCursor<Response> cursor = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
+        cursor.toArray().forEach(r -> responsesByRequest.computeIfAbsent(r.getRequestId(), k -> new ArrayList<>()).add(r));
+        cursor.close();
+        return responsesByRequest;
+    }
+
+    private Map<String, Transaction> getOpenTransactions(List<Request> requests) {
+        Map<String, Transaction> transactionsByRequest = new HashMap<>();
+        if (requests.isEmpty()) {
+            return transactionsByRequest;
+        }
+        List<String> requestIds = requests.stream().map(Request::getId).collect(Collectors.toList());
+        BasicDBObject query = new BasicDBObject("requestId", new BasicDBObject("$in", requestIds));
+        query.put("canceled", false);
+        DBCursor<Transaction> cursor = transactionCollection.find(query);
+        cursor.toArray().forEach(t -> transactionsByRequest.putIfAbsent(t.getRequestId(), t));
+        cursor.close();
+        return transactionsByRequest;
+    }
+
+    private Map<String, User> getResponders(Map<String, List<Response>> responsesByRequest) {
+        Map<String, User> responders = new HashMap<>();
+        List<ObjectId> responderIds = responsesByRequest.values().stream()
+                .flatMap(List::stream)
+                .map(r -> new ObjectId(r.getResponderId()))
+                .distinct()
+                .collect(Collectors.toList());
+        if (responderIds.isEmpty()) {
+            return responders;
+        }
+        DBCursor<User> cursor = userCollection.find(new BasicDBObject("_id", new BasicDBObject("$in", responderIds)));
+        cursor.toArray().forEach(u -> responders.put(u.getId(), u));
+        cursor.close();
+        return responders;
+    }
+
+    private HistoryDto toResponseHistory(Response r, Request request, Transaction transaction, User user,
+                                         boolean getObject, boolean getTransactions, boolean getOpen, boolean getClosed) {
+        if (request == null) {
+            LOGGER.error("could not find request [" + r.getRequestId() + "] for response [" + r.getId() + "]");
+            return null;
+        }
+        if (user.getBlockedUsers() != null && user.getBlockedUsers().contains(request.getUser().getId())) {
+            return null; //don't show this offer because they have blocked this user
+        }
+        if (!getClosed && r.getResponseStatus().equals(Response.Status.CLOSED)) {
+            return null;
+        } else if (!getOpen && r.getResponseStatus().equals(Response.Status.PENDING)) {
+            return null;
+        }
+        HistoryDto dto = new HistoryDto();
+        dto.request = new RequestDto(request);
+        dto.responses = Collections.singletonList(new ResponseDto(r));
+        if (transaction != null) {
+            dto.transaction = new TransactionDto(transaction, true);
+            if (getTransactions) {
+                if (!getOpen && (request.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
+                        request.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
+                    return null;
+                } else if (!getClosed && (request.getStatus().equals(Request.Status.CLOSED) ||
+                        request.getStatus().equals(Request.Status.FULFILLED))) {
+                    return null;
+                }
+                return dto;
+            }
+        } else if (getObject) {
+            return dto;
+        }
+        return null;
+    }
+
+    private HistoryDto toRequestHistory(Request r, Map<String, List<Response>> responsesByRequest, Transaction transaction,
+                                        Map<String, User> responders, boolean getObjects, boolean getTransactions,
+                                        boolean getOpen, boolean getClosed) {
+        if (!getOpen && (r.getStatus().equals(Request.Status.OPEN) ||
+                r.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
+                r.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
+            return null;
+        } else if (!getClosed && (r.getStatus().equals(Request.Status.CLOSED) ||
+                r.getStatus().equals(Request.Status.FULFILLED))) {
+            return null;
+        }
+        if (transaction != null ? !getTransactions : !getObjects) {
+            return null;
+        }
+        List<Response> responses = responsesByRequest.getOrDefault(r.getId(), Collections.emptyList());
+        List<ResponseDto> dtos = ResponseDto.transform(responses);
+        // the responder's account is gone, close out their offer
+        for (Response orphaned : addResponders(r, responses, dtos, responders)) {
+            orphaned.setResponseStatus(Response.Status.CLOSED);
+            responseCollection.save(orphaned);
+        }
+        HistoryDto dto = new HistoryDto();
+        dto.request = new RequestDto(r);
+        dto.responses = dtos;
+        if (transaction != null) {
+            dto.transaction = new TransactionDto(transaction, false);
+        }
+        return dto;
+    }
+
+    /**
+     * Puts each responder's current info on their response, with their phone if they allow messages
+     *
+     * @param request
+     * @param responses the request's responses
+     * @param dtos the responses as dtos, in the same order
+     * @param responders by id
+     * @return the responses whose responder isn't in responders, their account is gone
+     */
+    static List<Response> addResponders(Request request, List<Response> responses, List<ResponseDto> dtos,
+                                        Map<String, User> responders) {
+        List<Response> orphaned = new ArrayList<>();
+        for (int i = 0; i < dtos.size(); i++) {
+            ResponseDto d = dtos.get(i);
+            User seller = responders.get(d.responderId);
+            if (seller == null) {
+                d.sellerStatus = request.getStatus().toString();
+                orphaned.add(responses.get(i));
+                continue;
+            }
+            UserDto userDto = new UserDto(seller);
+            if (d.messagesEnabled != null && d.messagesEnabled) {
+                userDto.phone = seller.getPhone();
+            }
+            d.responder = userDto;
+            d.seller = userDto;
+        }
+        return orphaned;
+    }
+
+    private boolean containsIgnoreCase(List<String> values, String value) {
+        return values.stream().anyMatch(v -> v.equalsIgnoreCase(value));
+    }
+}
@@ -0,0 +1,419 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.NearbyUtils;
+import com.iuxta.nearby.PageCursor;
+import com.iuxta.nearby.dto.*;
+import com.iuxta.nearby.model.*;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.types.ObjectId;
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Maintains the history collection, a per-user projection with one row for every request a user has posted and every
+ * response they've made. Rows are rebuilt a request at a time whenever something on that request changes, and read
+ * back a page at a time with an opaque cursor.
+ *
+ * A user whose rows were never built (or were built with an older {@link #HISTORY_VERSION}) has them built by a
+ * single background worker, one user at a time, and is served from {@link HistoryBuilder} until that finishes.
+ */
+public class HistoryService implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HistoryService.class);
+
+    public static final String REQUESTS = "requests";
+    public static final String OFFERS = "offers";
+    public static final String TRANSACTIONS = "transactions";
+
+    /**
+     * bumped when the layout of history rows changes, each user's rows are rebuilt in the background the next time
+     * their history is read
+     */
+    public static final int HISTORY_VERSION = 2;
+
+    private JacksonDBCollection<Request, String> requestCollection;
+    private JacksonDBCollection<Response, String> responseCollection;
+    private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
+    private JacksonDBCollection<Transaction, String> transactionCollection;
+    private JacksonDBCollection<HistoryEntry, String> historyCollection;
+    private Object[] refreshLocks = new Object[64];
+    private HistoryBuilder historyBuilder;
+    private BlockingQueue<String> backfillQueue = new LinkedBlockingQueue<>();
+    private Set<String> backfillPending = ConcurrentHashMap.newKeySet();
+    private ExecutorService backfiller;
+    private volatile boolean stopping;
+
+    public HistoryService(JacksonDBCollection<Request, String> requestCollection,
+                          JacksonDBCollection<Response, String> responseCollection,
+                          JacksonDBCollection<User, String> userCollection,
+                          JacksonDBCollection<Transaction, String> transactionCollection,
+                          JacksonDBCollection<HistoryEntry, String> historyCollection, UserCache userCache) {
+        this.requestCollection = requestCollection;
+        this.responseCollection = responseCollection;
+        this.userCollection = userCollection;
+        this.userCache = userCache;
+        this.transactionCollection = transactionCollection;
+        this.historyCollection = historyCollection;
+        for (int i = 0; i < refreshLocks.length; i++) {
+            refreshLocks[i] = new Object();
+        }
+        this.historyBuilder = new HistoryBuilder(requestCollection, responseCollection, userCollection,
+                transactionCollection);
+    }
+
+    /**
+     * types can be any of "requests", "offers" and "transactions", status can be "open" and/or "closed". Empty means all.
+     *
+     * @param user
+     * @param types
+     * @param status
+     * @param cursor returned with the previous page, null for the first page
+     * @param limit
+     * @return a page of the user's history, in {@link HistoryComparator} order. While the user's rows are being built
+     * the first page comes from {@link HistoryBuilder} and has no next cursor, a cursor from before a
+     * {@link #HISTORY_VERSION} bump keeps paging through the rows as they are rebuilt
+     */
+    public HistoryPage getHistory(User user, List<String> types, List<String> status, String cursor, Integer limit) {
+        limit = (limit == null || limit < 1 || limit > NearbyUtils.MAX_LIMIT) ? NearbyUtils.DEFAULT_LIMIT : limit;
+        if (user.getHistoryVersion() == null || user.getHistoryVersion() < HISTORY_VERSION) {
+            backfill(user.getId());
+            if (StringUtils.isBlank(cursor)) {
+                HistoryPage page = new HistoryPage();
+                page.history = historyBuilder.getHistory(user, types, status, limit);
+                return page;
+            }
+        }
+        List<String> kinds = new ArrayList<>();
+        if (types == null || types.isEmpty() || containsIgnoreCase(types, REQUESTS)) {
+            kinds.add(REQUESTS);
+        }
+        if (types == null || types.isEmpty() || containsIgnoreCase(types, OFFERS)) {
+            kinds.add(OFFERS);
+        }
+        if (types == null || types.isEmpty() || containsIgnoreCase(types, TRANSACTIONS)) {
+            kinds.add(TRANSACTIONS);
+        }
+        boolean getOpen = status == null || status.isEmpty() || containsIgnoreCase(status, "open");
+        boolean getClosed = status == null || status.isEmpty() || containsIgnoreCase(status, "closed");
+
+        HistoryPage page = new HistoryPage();
+        if (kinds.isEmpty()) {
+            return page;
+        }
+        BasicDBObject query = new BasicDBObject("userId", user.getId());
+        query.put("kind", new BasicDBObject("$in", kinds));
+        if (!getOpen) {
+            query.put("openStatus", false);
+        }
+        if (!getClosed) {
+            query.put("closedStatus", false);
+        }
+        List<String> blocked = user.getBlockedUsers();
+        if (blocked != null && blocked.size() > 0) {
+            query.put("ownerId", new BasicDBObject("$nin", blocked));
+        }
+        if (StringUtils.isNotBlank(cursor)) {
+            String[] last = PageCursor.decode(cursor, 2);
+            try {
+                PageCursor.addOr(query, PageCursor.after("rank", Long.parseLong(last[0]), new ObjectId(last[1]), true));
+            } catch (IllegalArgumentException e) {
+                throw PageCursor.invalid(cursor);
+            }
+        }
+        BasicDBObject sort = new BasicDBObject("rank", -1).append("_id", -1);
+        // get one extra row to find out if there is another page
+        DBCursor<HistoryEntry> entries = historyCollection.find(query).sort(sort).limit(limit + 1);
+        List<HistoryEntry> rows = entries.toArray();
+        entries.close();
+
+        if (rows.size() > limit) {
+            rows = rows.subList(0, limit);
+            HistoryEntry last = rows.get(rows.size() - 1);
+            page.nextCursor = PageCursor.encode(last.getRank(), last.getId());
+        }
+        for (HistoryEntry row : rows) {
+            HistoryDto dto = row.getHistory();
+            if (row.getResponseId() == null && dto.responses != null && blocked != null && blocked.size() > 0) {
+                dto.responses = dto.responses.stream().filter(r -> !blocked.contains(r.responderId))
+                        .collect(Collectors.toList());
+            }
+            page.history.add(dto);
+        }
+        return page;
+    }
+
+    /**
+     * Rebuilds every history row that belongs to the request: the requester's row and one row for each responder.
+     * Rows are upserted by (userId, requestId, responseId) and only rows that no longer belong to the request are
+     * removed, so readers never see the request's rows disappear and a failed rebuild leaves the old rows in place.
+     * Call after anything on the request, its responses or its transaction has been written.
+     *
+     * @param requestId
+     */
+    public void refresh(String requestId) {
+        // two refreshes of the same request could otherwise write their rows out of order
+        synchronized (refreshLocks[Math.floorMod(requestId.hashCode(), refreshLocks.length)]) {
+            try {
+                List<HistoryEntry> rows = new ArrayList<>();
+                Request request = requestCollection.findOneById(requestId);
+                if (request != null && request.getUser() != null && request.getStatus() != null) {
+                    DBCursor<Response> responseCursor = responseCollection
+                            .find(new BasicDBObject("requestId", requestId))
+                            .sort(new BasicDBObject("responseTime", -1));
+                    List<Response> responses = responseCursor.toArray();
+                    responseCursor.close();
+                    DBCursor<Transaction> transactionCursor = transactionCollection.find(
+                            new BasicDBObject("requestId", requestId));
+                    List<Transaction> transactions = transactionCursor.toArray();
+                    transactionCursor.close();
+
+                    rows.add(toRequestEntry(request, responses, transactions));
+                    for (Response response : responses) {
+                        HistoryEntry row = toResponseEntry(response, request, transactions);
+                        if (row != null) {
+                            rows.add(row);
+                        }
+                    }
+                }
+                BasicDBList kept = new BasicDBList();
+                for (HistoryEntry row : rows) {
+                    DBObject key = new BasicDBObject("requestId", requestId)
+                            .append("userId", row.getUserId())
+                            .append("responseId", row.getResponseId());
+                    DBObject fields = historyCollection.convertToDbObject(row);
+                    fields.removeField("_id");
+                    historyCollection.getDbCollection().update(key, new BasicDBObject("$set", fields), true, false);
+                    kept.add(key);
+                }
+                BasicDBObject stale = new BasicDBObject("requestId", requestId);
+                if (!kept.isEmpty()) {
+                    stale.put("$nor", kept);
+                }
+                historyCollection.remove(stale);
+            } catch (Exception e) {
+                // the rows will be corrected the next time this request changes, don't fail the write that got us here
+                LOGGER.error("could not refresh history for request [" + requestId + "], got error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param userId
+     * @return the requests with a history row that shows the user, either as the poster or as a responder
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> requestIdsShowing(String userId) {
+        BasicDBList either = new BasicDBList();
+        either.add(new BasicDBObject("ownerId", userId));
+        either.add(new BasicDBObject("userId", userId));
+        return (List<String>) historyCollection.getDbCollection()
+                .distinct("requestId", new BasicDBObject("$or", either));
+    }
+
+    /**
+     * Schedules building the history rows for everything the user has posted or responded to, never blocks. Does
+     * nothing if the user is already scheduled.
+     *
+     * @param userId
+     */
+    public void backfill(String userId) {
+        if (!stopping && backfillPending.add(userId)) {
+            backfillQueue.offer(userId);
+        }
+    }
+
+    private void runBackfill() {
+        while (!stopping) {
+            String userId;
+            try {
+                userId = backfillQueue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (userId == null) {
+                continue;
+            }
+            try {
+                rebuildForUser(userId);
+            } catch (Exception e) {
+                // scheduled again the next time the user's history is read
+                LOGGER.error("could not build history for user [" + userId + "], got error: " + e.getMessage());
+            } finally {
+                backfillPending.remove(userId);
+            }
+        }
+    }
+
+    private void rebuildForUser(String userId) {
+        Set<String> requestIds = new HashSet<>();
+        DBCursor<Request> requests = requestCollection.find(new BasicDBObject("user._id", new ObjectId(userId)));
+        requests.toArray().forEach(r -> requestIds.add(r.getId()));
+        requests.close();
+        DBCursor<Response> responses = responseCollection.find(new BasicDBObject("responderId", userId));
+        responses.toArray().forEach(r -> requestIds.add(r.getRequestId()));
+        responses.close();
+        LOGGER.info("building history for user [" + userId + "] from [" + requestIds.size() + "] requests");
+        for (String requestId : requestIds) {
+            if (stopping) {
+                return;
+            }
+            refresh(requestId);
+        }
+        userCollection.update(new BasicDBObject("_id", new ObjectId(userId)),
+                new BasicDBObject("$set", new BasicDBObject("historyVersion", HISTORY_VERSION)));
+        userCache.invalidate(userId);
+    }
+
+    public void start() throws Exception {
+        stopping = false;
+        backfiller = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "history-backfill");
+            t.setDaemon(true);
+            return t;
+        });
+        backfiller.execute(this::runBackfill);
+    }
+
+    public void stop() throws Exception {
+        stopping = true;
+        if (backfiller != null) {
+            backfiller.shutdownNow();
+        }
+    }
+
+    private HistoryEntry toRequestEntry(Request request, List<Response> responses, List<Transaction> transactions) {
+        List<Response> visible = responses.stream().filter(r -> !Boolean.TRUE.equals(r.getInappropriate()))
+                .collect(Collectors.toList());
+        Transaction transaction = transactions.stream().filter(t -> !t.getCanceled())
+                .findFirst().orElse(null);
+        Map<String, User> responders = new HashMap<>();
+        List<ObjectId> responderIds = visible.stream().map(r -> new ObjectId(r.getResponderId())).distinct()
+                .collect(Collectors.toList());
+        if (!responderIds.isEmpty()) {
+            DBCursor<User> cursor = userCollection.find(new BasicDBObject("_id", new BasicDBObject("$in", responderIds)));
+            cursor.toArray().forEach(u -> responders.put(u.getId(), u));
+            cursor.close();
+        }
+        List<ResponseDto> dtos = ResponseDto.transform(visible);
+        // building a row never writes, the responses of responders whose account is gone are left as they are
+        HistoryBuilder.addResponders(request, visible, dtos, responders);
+        HistoryDto dto = new HistoryDto();
+        dto.request = new RequestDto(request);
+        dto.responses = dtos;
+
+        HistoryEntry row = new HistoryEntry();
+        if (transaction != null) {
+            dto.transaction = new TransactionDto(transaction, false);
+        }
+        // buying & renting requests have only ever been listed under "requests", even with a transaction
+        if (!request.isInventoryListing()) {
+            row.setKind(REQUESTS);
+        } else {
+            row.setKind(transaction != null ? TRANSACTIONS : OFFERS);
+        }
+        Request.Status status = request.getStatus();
+        row.setOpenStatus(status.equals(Request.Status.OPEN) || status.equals(Request.Status.PROCESSING_PAYMENT) ||
+                status.equals(Request.Status.TRANSACTION_PENDING));
+        row.setClosedStatus(status.equals(Request.Status.CLOSED) || status.equals(Request.Status.FULFILLED));
+        row.setDate(request.getPostDate());
+        row.setRank(HistoryEntry.rank(requestBucket(status), row.getDate()));
+        row.setUserId(request.getUser().getId());
+        row.setResponseId(null);
+        return fill(row, request, dto);
+    }
+
+    /**
+     * @return where {@link HistoryComparator} puts the request in its poster's history
+     */
+    static int requestBucket(Request.Status status) {
+        return status.equals(Request.Status.TRANSACTION_PENDING) ? HistoryEntry.TRANSACTION_PENDING :
+                status.equals(Request.Status.OPEN) ? HistoryEntry.OPEN : HistoryEntry.CLOSED;
+    }
+
+    /**
+     * @return where {@link HistoryComparator} puts the response in its responder's history
+     */
+    static int responseBucket(Response.Status responseStatus, Request.Status requestStatus) {
+        if (responseStatus.equals(Response.Status.ACCEPTED) &&
+                requestStatus.equals(Request.Status.TRANSACTION_PENDING)) {
+            return HistoryEntry.TRANSACTION_PENDING;
+        }
+        return responseStatus.equals(Response.Status.PENDING) ? HistoryEntry.OPEN : HistoryEntry.CLOSED;
+    }
+
+    private HistoryEntry toResponseEntry(Response r, Request request, List<Transaction> transactions) {
+        if (r.getIsOfferToBuyOrRent() == null || r.getResponseStatus() == null) {
+            return null;
+        }
+        Transaction transaction = null;
+        //only use a transaction if the response is accepted, otherwise the transaction may not belong to the response
+        if (r.getResponseStatus().equals(Response.Status.ACCEPTED)) {
+            transaction = transactions.stream().filter(t -> r.getId().equals(t.getResponseId())).findFirst().orElse(null);
+        }
+        HistoryDto dto = new HistoryDto();
+        dto.request = new RequestDto(request);
+        dto.responses = Collections.singletonList(new ResponseDto(r));
+
+        HistoryEntry row = new HistoryEntry();
+        boolean responseOpen = r.getResponseStatus().equals(Response.Status.PENDING);
+        boolean responseClosed = r.getResponseStatus().equals(Response.Status.CLOSED);
+        Request.Status status = request.getStatus();
+        if (transaction != null) {
+            dto.transaction = new TransactionDto(transaction, true);
+            row.setKind(TRANSACTIONS);
+            row.setOpenStatus(responseOpen || status.equals(Request.Status.PROCESSING_PAYMENT) ||
+                    status.equals(Request.Status.TRANSACTION_PENDING));
+            row.setClosedStatus(responseClosed || status.equals(Request.Status.CLOSED) ||
+                    status.equals(Request.Status.FULFILLED));
+        } else {
+            //requests includes responses to sale items
+            row.setKind(r.getIsOfferToBuyOrRent() ? REQUESTS : OFFERS);
+            row.setOpenStatus(responseOpen);
+            row.setClosedStatus(responseClosed);
+        }
+        row.setDate(r.getResponseTime());
+        row.setRank(HistoryEntry.rank(responseBucket(r.getResponseStatus(), status), row.getDate()));
+        row.setUserId(r.getResponderId());
+        row.setResponseId(r.getId());
+        return fill(row, request, dto);
+    }
+
+    private HistoryEntry fill(HistoryEntry row, Request request, HistoryDto dto) {
+        row.setRequestId(request.getId());
+        row.setOwnerId(request.getUser().getId());
+        if (row.getDate() == null) {
+            row.setDate(new Date(0));
+        }
+        row.setHistory(dto);
+        return row;
+    }
+
+    private boolean containsIgnoreCase(List<String> values, String value) {
+        return values.stream().anyMatch(v -> v.equalsIgnoreCase(value));
+    }
+
+    public static class HistoryPage {
+        public List<HistoryDto> history = new ArrayList<>();
+
+        /**
+         * null when there are no more rows
+         */
+        public String nextCursor;
+    }
+}
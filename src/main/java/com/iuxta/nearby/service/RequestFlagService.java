@@ -3,8 +3,8 @@ package com.iuxta.nearby.service;
 import com.iuxta.nearby.dto.RequestFlagDto;
 import com.iuxta.nearby.exception.NotAllowedException;
 import com.iuxta.nearby.exception.NotFoundException;
-import com.iuxta.nearby.firebase.CcsServer;
 import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
 import com.iuxta.nearby.model.Request;
 import com.iuxta.nearby.model.RequestFlag;
 import com.iuxta.nearby.model.Response;
@@ -31,14 +31,14 @@ public class RequestFlagService {
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<RequestFlag, String> requestFlagCollection;
     private JacksonDBCollection<User, String> userCollection;
-    private CcsServer ccsServer;
+    private NotificationDispatcher notificationDispatcher;
 
 
-    public RequestFlagService(JacksonDBCollection<Request, String> requestCollection, JacksonDBCollection<RequestFlag, String> requestFlagCollection, JacksonDBCollection<User, String> userCollection, CcsServer ccsServer) {
+    public RequestFlagService(JacksonDBCollection<Request, String> requestCollection, JacksonDBCollection<RequestFlag, String> requestFlagCollection, JacksonDBCollection<User, String> userCollection, NotificationDispatcher notificationDispatcher) {
         this.requestCollection = requestCollection;
         this.requestFlagCollection = requestFlagCollection;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.notificationDispatcher = notificationDispatcher;
     }
 
     public void canCreateNewFlag(User user, String requestId) {
@@ -87,7 +87,7 @@ public class RequestFlagService {
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                FirebaseUtils.sendFcmMessage(admin, null, notification, notificationDispatcher);
             }        }
     }
 }
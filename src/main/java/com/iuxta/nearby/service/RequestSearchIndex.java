@@ -0,0 +1,520 @@
+package com.iuxta.nearby.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.iuxta.nearby.PageCursor;
+import com.iuxta.nearby.exception.InternalServerException;
+import com.iuxta.nearby.model.Request;
+import com.mongodb.BasicDBObject;
+import io.dropwizard.lifecycle.Managed;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LatLonDocValuesField;
+import org.apache.lucene.document.LatLonPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.QueryBuilder;
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory Lucene index over open requests, so a search near a location is scored, filtered by distance and paged in
+ * one pass instead of loading every nearby request and running $text over them. The item name, description and
+ * category name are indexed with Lucene's English analyzer (the item name counts most) and scored with BM25, along with
+ * the location, dates, poster and type needed to filter and sort.
+ *
+ * Requests are re-read from the db with {@link #refresh} whenever one is written (refreshes of the same request are
+ * applied in the order they read the db), and the whole index is rebuilt from the db on startup and on a schedule.
+ * Search results are only ids, callers load the requests themselves and should re-check anything that must be exact.
+ * Results are paged by cursor with searchAfter, every sort ends with the id so each hit has a fixed place to page from.
+ */
+public class RequestSearchIndex implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestSearchIndex.class);
+
+    private static final Analyzer ANALYZER = new EnglishAnalyzer();
+    private static final double METERS_PER_MILE = 1609.344;
+
+    // the text fields searched and how much a match in each counts
+    private static final Map<String, Float> TEXT_FIELDS = new LinkedHashMap<>();
+
+    static {
+        TEXT_FIELDS.put("itemName", 3f);
+        TEXT_FIELDS.put("category", 2f);
+        TEXT_FIELDS.put("description", 1f);
+    }
+
+    public enum Sort {
+        BEST_MATCH, DISTANCE, NEWEST
+    }
+
+    private JacksonDBCollection<Request, String> requestCollection;
+    private long rebuildMinutes;
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    // refreshes of the same request read and apply one at a time, so an older read never replaces a newer one
+    private Object[] refreshLocks = new Object[64];
+    private Index index;
+    // refreshes that happen while a rebuild is reading the db, applied to the rebuilt index before it's swapped in
+    private Map<String, Request> refreshedDuringRebuild;
+    private ScheduledExecutorService rebuilder;
+
+    private Timer searches;
+
+    public RequestSearchIndex(JacksonDBCollection<Request, String> requestCollection, long rebuildMinutes,
+                              MetricRegistry metrics) {
+        this.requestCollection = requestCollection;
+        this.rebuildMinutes = rebuildMinutes;
+        for (int i = 0; i < refreshLocks.length; i++) {
+            refreshLocks[i] = new Object();
+        }
+        try {
+            this.index = new Index();
+        } catch (IOException e) {
+            throw new IllegalStateException("could not create search index", e);
+        }
+        metrics.register(MetricRegistry.name(RequestSearchIndex.class, "documents"),
+                (Gauge<Integer>) this::size);
+        this.searches = metrics.timer(MetricRegistry.name(RequestSearchIndex.class, "searches"));
+    }
+
+    /**
+     * What to search for and how to filter, fields left null don't filter
+     */
+    public static class Query {
+        public String text;
+        public double latitude;
+        public double longitude;
+        public double radiusMiles;
+        // true for only expired requests, false for only unexpired ones
+        public Boolean expired;
+        public String excludePosterUserId;
+        public Collection<String> excludeUserIds;
+        public Set<String> types;
+        public Sort sort = Sort.BEST_MATCH;
+    }
+
+    /**
+     * A search result, the cursor can be passed back to {@link #search} to get the results that come after it
+     */
+    public static class Match {
+        public String id;
+        public String cursor;
+
+        Match(String id, String cursor) {
+            this.id = id;
+            this.cursor = cursor;
+        }
+    }
+
+    /**
+     * @param query
+     * @param after cursor of the last match already seen, null to start from the best match
+     * @param limit
+     * @return up to limit matches, best first
+     */
+    public List<Match> search(Query query, String after, int limit) {
+        org.apache.lucene.search.Query text = textQuery(query.text);
+        if (text == null || limit < 1) {
+            return new ArrayList<>();
+        }
+        Timer.Context time = searches.time();
+        lock.readLock().lock();
+        try {
+            IndexSearcher searcher = index.searchers.acquire();
+            try {
+                FieldDoc last = after != null ? fromCursor(after, query.sort, searcher) : null;
+                TopFieldDocs top = searcher.searchAfter(last, filter(query, text), limit, sort(query), true, false);
+                List<Match> matches = new ArrayList<>();
+                for (ScoreDoc hit : top.scoreDocs) {
+                    Object[] values = ((FieldDoc) hit).fields;
+                    String id = ((BytesRef) values[values.length - 1]).utf8ToString();
+                    matches.add(new Match(id, toCursor(values)));
+                }
+                return matches;
+            } finally {
+                index.searchers.release(searcher);
+            }
+        } catch (IOException e) {
+            String msg = "could not search for requests, got error: " + e.getMessage();
+            LOGGER.error(msg);
+            throw new InternalServerException(msg);
+        } finally {
+            lock.readLock().unlock();
+            time.stop();
+        }
+    }
+
+    /**
+     * Re-reads the request from the db and adds, updates or drops it
+     *
+     * @param requestId
+     */
+    public void refresh(String requestId) {
+        synchronized (refreshLocks[Math.floorMod(requestId.hashCode(), refreshLocks.length)]) {
+            try {
+                Request request = load(requestId);
+                lock.writeLock().lock();
+                try {
+                    index.put(requestId, request);
+                    index.publish();
+                    if (refreshedDuringRebuild != null) {
+                        refreshedDuringRebuild.put(requestId, request);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (Exception e) {
+                // fixed by the next rebuild, don't fail the write that got us here
+                LOGGER.error("could not update search index for request [" + requestId + "], got error: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from every open request in the db and swaps it in
+     */
+    public synchronized void rebuild() {
+        lock.writeLock().lock();
+        try {
+            refreshedDuringRebuild = new HashMap<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        Index rebuilt = null;
+        Index old;
+        try {
+            Index building = new Index();
+            rebuilt = building;
+            forEachOpen(request -> {
+                try {
+                    building.put(request.getId(), request);
+                } catch (IOException | IllegalArgumentException e) {
+                    LOGGER.error("could not index request [" + request.getId() + "], got error: " + e.getMessage());
+                }
+            });
+            lock.writeLock().lock();
+            try {
+                // anything written while we were reading is replaced with what the refresh read
+                for (Map.Entry<String, Request> refreshed : refreshedDuringRebuild.entrySet()) {
+                    rebuilt.put(refreshed.getKey(), refreshed.getValue());
+                }
+                rebuilt.publish();
+                refreshedDuringRebuild = null;
+                old = index;
+                index = rebuilt;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (Exception e) {
+            LOGGER.error("could not rebuild search index, got error: " + e.getMessage());
+            lock.writeLock().lock();
+            try {
+                refreshedDuringRebuild = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            close(rebuilt);
+            return;
+        }
+        // searches hold the read lock, so none are still using the old index
+        close(old);
+        LOGGER.info("indexed [" + size() + "] requests for search");
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            IndexSearcher searcher = index.searchers.acquire();
+            try {
+                return searcher.getIndexReader().numDocs();
+            } finally {
+                index.searchers.release(searcher);
+            }
+        } catch (IOException e) {
+            LOGGER.error("could not count the search index, got error: " + e.getMessage());
+            return 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void start() throws Exception {
+        rebuild();
+        rebuilder = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "request-search-rebuild");
+            t.setDaemon(true);
+            return t;
+        });
+        rebuilder.scheduleWithFixedDelay(this::rebuild, rebuildMinutes, rebuildMinutes, TimeUnit.MINUTES);
+    }
+
+    public void stop() throws Exception {
+        if (rebuilder != null) {
+            rebuilder.shutdownNow();
+        }
+        lock.writeLock().lock();
+        try {
+            close(index);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param requestId
+     * @return the request as it is in the db, null if it's gone
+     */
+    protected Request load(String requestId) {
+        return requestCollection.findOneById(requestId);
+    }
+
+    /**
+     * Reads every open request from the db
+     *
+     * @param each
+     */
+    protected void forEachOpen(Consumer<Request> each) {
+        DBCursor<Request> cursor = requestCollection.find(new BasicDBObject("status", Request.Status.OPEN.name()));
+        try {
+            while (cursor.hasNext()) {
+                each.accept(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static boolean isSearchable(Request request) {
+        return Request.Status.OPEN.equals(request.getStatus()) && !Boolean.TRUE.equals(request.getInappropriate())
+                && !Boolean.TRUE.equals(request.getDuplicate()) && request.getLocation() != null
+                && request.getLocation().getCoordinates() != null;
+    }
+
+    private static Document toDocument(Request request) {
+        Document doc = new Document();
+        doc.add(new StringField("id", request.getId(), Field.Store.NO));
+        doc.add(new SortedDocValuesField("id", new BytesRef(request.getId())));
+        addText(doc, "itemName", request.getItemName());
+        addText(doc, "category", request.getCategory() != null ? request.getCategory().getName() : null);
+        addText(doc, "description", request.getDescription());
+        double longitude = request.getLocation().getCoordinates()[0];
+        double latitude = request.getLocation().getCoordinates()[1];
+        doc.add(new LatLonPoint("location", latitude, longitude));
+        doc.add(new LatLonDocValuesField("location", latitude, longitude));
+        doc.add(new NumericDocValuesField("postDate",
+                request.getPostDate() != null ? request.getPostDate().getTime() : 0));
+        doc.add(new LongPoint("expireDate",
+                request.getExpireDate() != null ? request.getExpireDate().getTime() : Long.MAX_VALUE));
+        if (request.getUser() != null) {
+            addString(doc, "userId", request.getUser().getId());
+            addString(doc, "posterUserId", request.getUser().getUserId());
+        }
+        addString(doc, "type", request.getType() != null ? request.getType().name() : null);
+        return doc;
+    }
+
+    private static void addText(Document doc, String field, String text) {
+        if (text != null) {
+            doc.add(new TextField(field, text, Field.Store.NO));
+        }
+    }
+
+    private static void addString(Document doc, String field, String value) {
+        if (value != null) {
+            doc.add(new StringField(field, value, Field.Store.NO));
+        }
+    }
+
+    /**
+     * @param text
+     * @return the text matched against every text field, null if nothing is left of it after analysis
+     */
+    private static org.apache.lucene.search.Query textQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        QueryBuilder builder = new QueryBuilder(ANALYZER);
+        BooleanQuery.Builder fields = new BooleanQuery.Builder();
+        boolean any = false;
+        for (Map.Entry<String, Float> field : TEXT_FIELDS.entrySet()) {
+            org.apache.lucene.search.Query terms = builder.createBooleanQuery(field.getKey(), text);
+            if (terms != null) {
+                fields.add(new BoostQuery(terms, field.getValue()), BooleanClause.Occur.SHOULD);
+                any = true;
+            }
+        }
+        return any ? fields.build() : null;
+    }
+
+    private static org.apache.lucene.search.Query filter(Query query, org.apache.lucene.search.Query text) {
+        BooleanQuery.Builder filtered = new BooleanQuery.Builder()
+                .add(text, BooleanClause.Occur.MUST)
+                .add(LatLonPoint.newDistanceQuery("location", query.latitude, query.longitude,
+                        query.radiusMiles * METERS_PER_MILE), BooleanClause.Occur.FILTER);
+        if (query.expired != null) {
+            long now = System.currentTimeMillis();
+            filtered.add(query.expired ? LongPoint.newRangeQuery("expireDate", Long.MIN_VALUE, now)
+                    : LongPoint.newRangeQuery("expireDate", now + 1, Long.MAX_VALUE), BooleanClause.Occur.FILTER);
+        }
+        if (query.excludePosterUserId != null) {
+            filtered.add(new TermQuery(new Term("posterUserId", query.excludePosterUserId)),
+                    BooleanClause.Occur.MUST_NOT);
+        }
+        if (query.excludeUserIds != null && !query.excludeUserIds.isEmpty()) {
+            filtered.add(new TermInSetQuery("userId", toBytes(query.excludeUserIds)), BooleanClause.Occur.MUST_NOT);
+        }
+        if (query.types != null) {
+            filtered.add(new TermInSetQuery("type", toBytes(query.types)), BooleanClause.Occur.FILTER);
+        }
+        return filtered.build();
+    }
+
+    private static List<BytesRef> toBytes(Collection<String> values) {
+        return values.stream().map(BytesRef::new).collect(Collectors.toList());
+    }
+
+    // ties are broken by id so every hit has a fixed place to page from
+    private static org.apache.lucene.search.Sort sort(Query query) {
+        SortField distance = LatLonDocValuesField.newDistanceSort("location", query.latitude, query.longitude);
+        SortField id = new SortField("id", SortField.Type.STRING);
+        switch (query.sort) {
+            case NEWEST:
+                return new org.apache.lucene.search.Sort(new SortField("postDate", SortField.Type.LONG, true),
+                        SortField.FIELD_SCORE, id);
+            case DISTANCE:
+                return new org.apache.lucene.search.Sort(distance, SortField.FIELD_SCORE, id);
+            default:
+                return new org.apache.lucene.search.Sort(SortField.FIELD_SCORE, distance, id);
+        }
+    }
+
+    /**
+     * @param values the sort values of a hit, the score is a Float, the distance a Double, the post date a Long and
+     *               the id a BytesRef
+     */
+    private static String toCursor(Object[] values) {
+        Object[] parts = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+            parts[i] = values[i] instanceof BytesRef ? ((BytesRef) values[i]).utf8ToString() : values[i];
+        }
+        return PageCursor.encode(parts);
+    }
+
+    private static FieldDoc fromCursor(String cursor, Sort sort, IndexSearcher searcher) {
+        String[] last = PageCursor.decode(cursor, 3);
+        Object[] values = new Object[3];
+        float score;
+        try {
+            switch (sort) {
+                case NEWEST:
+                    values[0] = Long.parseLong(last[0]);
+                    values[1] = score = Float.parseFloat(last[1]);
+                    break;
+                case DISTANCE:
+                    values[0] = Double.parseDouble(last[0]);
+                    values[1] = score = Float.parseFloat(last[1]);
+                    break;
+                default:
+                    values[0] = score = Float.parseFloat(last[0]);
+                    values[1] = Double.parseDouble(last[1]);
+            }
+        } catch (NumberFormatException e) {
+            throw PageCursor.invalid(cursor);
+        }
+        values[2] = new BytesRef(last[2]);
+        // the id sort already orders every hit, the last doc just keeps a hit with the same id from coming back
+        int doc = Math.max(0, searcher.getIndexReader().maxDoc() - 1);
+        return new FieldDoc(doc, score, values);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.error("could not close search index, got error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A directory in memory, the writer adding to it and the searchers reading it. Writes are searchable after
+     * {@link #publish}.
+     */
+    private static class Index implements Closeable {
+        private RAMDirectory directory = new RAMDirectory();
+        private IndexWriter writer;
+        private SearcherManager searchers;
+
+        Index() throws IOException {
+            writer = new IndexWriter(directory, new IndexWriterConfig(ANALYZER));
+            searchers = new SearcherManager(writer, null);
+        }
+
+        /**
+         * @param id
+         * @param request the request as it is in the db, null if it's gone
+         */
+        void put(String id, Request request) throws IOException {
+            if (request != null && isSearchable(request)) {
+                writer.updateDocument(new Term("id", id), toDocument(request));
+            } else {
+                writer.deleteDocuments(new Term("id", id));
+            }
+        }
+
+        void publish() throws IOException {
+            searchers.maybeRefreshBlocking();
+        }
+
+        @Override
+        public void close() throws IOException {
+            searchers.close();
+            writer.close();
+            directory.close();
+        }
+    }
+}
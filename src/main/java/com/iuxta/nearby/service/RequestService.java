@@ -1,12 +1,14 @@
 package com.iuxta.nearby.service;
 
 import com.iuxta.nearby.NearbyUtils;
+import com.iuxta.nearby.PageCursor;
 import com.iuxta.nearby.dto.RequestDto;
 import com.iuxta.nearby.exception.BadRequestException;
 import com.iuxta.nearby.exception.LocationNotAvailableException;
 import com.iuxta.nearby.exception.NotFoundException;
-import com.iuxta.nearby.firebase.CcsServer;
+import com.iuxta.nearby.firebase.AreaTopics;
 import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
 import com.iuxta.nearby.model.*;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
@@ -19,20 +21,12 @@ import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -44,14 +38,22 @@ public class RequestService {
     private JacksonDBCollection<Category, String> categoriesCollection;
     private JacksonDBCollection<Request, String> requestCollection;
     private JacksonDBCollection<User, String> userCollection;
-    private JacksonDBCollection<NearbyAvailableLocations, String> availableLocationsCollection;
-    private JacksonDBCollection<SearchTerm, String> searchTermsCollection;
-    JacksonDBCollection<UnavailableSearches, String> unavailableSearchesCollection;
-    private CcsServer ccsServer;
+    private WriteBehindBuffer<SearchTerm> searchTermsBuffer;
+    private WriteBehindBuffer<UnavailableSearches> unavailableSearchesBuffer;
+    private NotificationDispatcher notificationDispatcher;
     private static final Logger LOGGER = LoggerFactory.getLogger(RequestService.class);
     static final long ONE_MINUTE_IN_MILLIS=60000;
     public static final Double LOCATION_RADIUS = 25D;
+    private static final double EARTH_RADIUS_MILES = 3958.8;
+    private static final double EARTH_RADIUS_METERS = 6378100;
+    // distances we compute can be a little off from mongo's, so a distance cursor overlaps the last page slightly and
+    // remembers the ids returned in twice that overlap, so nothing mongo returns again is shown twice
+    private static final double DISTANCE_CURSOR_SLACK_METERS = 1;
     private ResponseService responseService;
+    private Geocoder zipGeocoder;
+    private ServiceAreaIndex serviceAreaIndex;
+    private RequestSearchIndex requestSearchIndex;
+    private AreaTopics areaTopics;
 
     public RequestService() {
 
@@ -59,20 +61,26 @@ public class RequestService {
 
     public RequestService(JacksonDBCollection<Category, String> categoriesCollection,
                           JacksonDBCollection<Request, String> requestsCollection,
-                          CcsServer ccsServer,
+                          NotificationDispatcher notificationDispatcher,
                           JacksonDBCollection<User, String> userCollection,
                           ResponseService responseService,
-                          JacksonDBCollection<NearbyAvailableLocations, String> locationsCollection,
-                          JacksonDBCollection<UnavailableSearches, String> unavailableSearchesCollection,
-                          JacksonDBCollection<SearchTerm, String> searchTermsCollection) {
+                          ServiceAreaIndex serviceAreaIndex,
+                          WriteBehindBuffer<UnavailableSearches> unavailableSearchesBuffer,
+                          WriteBehindBuffer<SearchTerm> searchTermsBuffer,
+                          Geocoder zipGeocoder,
+                          RequestSearchIndex requestSearchIndex,
+                          AreaTopics areaTopics) {
         this.categoriesCollection = categoriesCollection;
         this.requestCollection = requestsCollection;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.notificationDispatcher = notificationDispatcher;
         this.responseService = responseService;
-        this.availableLocationsCollection = locationsCollection;
-        this.unavailableSearchesCollection = unavailableSearchesCollection;
-        this.searchTermsCollection = searchTermsCollection;
+        this.serviceAreaIndex = serviceAreaIndex;
+        this.unavailableSearchesBuffer = unavailableSearchesBuffer;
+        this.searchTermsBuffer = searchTermsBuffer;
+        this.zipGeocoder = zipGeocoder;
+        this.requestSearchIndex = requestSearchIndex;
+        this.areaTopics = areaTopics;
     }
 
     public Request transformRequestDto(RequestDto dto, User user) {
@@ -186,7 +194,8 @@ public class RequestService {
             }
             userRequests.close();
         }
-        if (user.getHomeLocationNotifications()) {
+        // in TOPIC mode requests near home were already broadcast to the user's area topics when they were posted
+        if (user.getHomeLocationNotifications() && !areaTopics.isEnabled()) {
             BasicDBObject query = getLocationQuery(user.getHomeLocation().getCoordinates()[1],
                     user.getHomeLocation().getCoordinates()[0], user.getNotificationRadius());
             setAppropriateQuery(query);
@@ -215,7 +224,7 @@ public class RequestService {
         LOGGER.info("Notification for user [" + user.getId() + "]: " + body);
         notification.put("message", body);
         if (newRequests) {
-            FirebaseUtils.sendFcmMessage(user, null, notification, ccsServer);
+            FirebaseUtils.sendFcmMessage(user, null, notification, notificationDispatcher);
         }
 
     }
@@ -240,15 +249,11 @@ public class RequestService {
 
     public void checkLocationIsAvailable(Double latitude, Double longitude) {
         //must be within 25 miles
-        BasicDBObject query = getLocationQuery(latitude, longitude, LOCATION_RADIUS);
-        DBCursor availableLocations = availableLocationsCollection.find(query);
-        List<NearbyAvailableLocations> locations = availableLocations.toArray();
-        availableLocations.close();
-        if (locations.size() == 0) {
+        if (!serviceAreaIndex.isAvailable(latitude, longitude)) {
             UnavailableSearches search = new UnavailableSearches();
             GeoJsonPoint loc = new GeoJsonPoint(longitude, latitude);
             search.setLocation(loc);
-            unavailableSearchesCollection.insert(search);
+            unavailableSearchesBuffer.add(search);
             throw new LocationNotAvailableException("Nearby is not available in this location yet");
         }
     }
@@ -259,18 +264,23 @@ public class RequestService {
         term.setLocation(new GeoJsonPoint(longitude, latitude));
         term.setUserId(principal.getId());
         term.setSearchDate(new Date(0));
-        searchTermsCollection.insert(term);
+        searchTermsBuffer.add(term);
     }
 
-    public List<Request> findRequests(Integer offset, Integer limit, Double latitude, Double longitude, Double radius, Boolean expired,
-                                      Boolean includeMine, String searchTerm, String sort, User principal, String type) {
+    /**
+     * Pages with cursor when it's set. offset is still honored for clients that don't send a cursor, but gets slower
+     * the deeper the page.
+     */
+    public PageCursor.Page<Request> findRequests(Integer offset, String cursor, Integer limit, Double latitude,
+                                                 Double longitude, Double radius, Boolean expired, Boolean includeMine,
+                                                 String searchTerm, String sort, User principal, String type) {
         if (searchTerm != null && !searchTerm.isEmpty()) {
             logSearch(searchTerm, longitude, latitude, principal);
         }
         checkLocationIsAvailable(latitude, longitude);
         BasicDBObject query = getLocationQuery(latitude, longitude, radius);
         offset = (offset != null ? offset : 0);
-        limit = (limit == null || limit > NearbyUtils.MAX_LIMIT) ? NearbyUtils.DEFAULT_LIMIT : limit;
+        limit = (limit == null || limit < 1 || limit > NearbyUtils.MAX_LIMIT) ? NearbyUtils.DEFAULT_LIMIT : limit;
         setAppropriateQuery(query);
         setNotBlockedQuery(query, principal);
         query.put("duplicate", false);
@@ -297,76 +307,210 @@ public class RequestService {
 
         query.put("status", "OPEN");
 
-        DBCursor userRequests;
-        if (sort != null && sort.equals("newest")) {
-            if (StringUtils.isBlank(searchTerm)) {
-                //go ahead and add offset and limit here
-                userRequests  = requestCollection.find(query)
-                        .sort(new BasicDBObject("postDate", -1))
-                        .skip(offset)
-                        .limit(limit);
+        if (StringUtils.isNotBlank(searchTerm)) {
+            PageCursor.Page<Request> page = searchRequests(query, offset, cursor, limit, latitude, longitude, radius,
+                    expired, includeMine, searchTerm, sort, principal, type);
+            setCurrentUsers(page.items);
+            return page;
+        }
+
+        boolean newest = sort != null && sort.equals("newest");
+        DistanceCursor after = null;
+        if (StringUtils.isNotBlank(cursor)) {
+            if (newest) {
+                String[] last = PageCursor.decode(cursor, 2);
+                try {
+                    PageCursor.addOr(query, PageCursor.after("postDate", new Date(Long.parseLong(last[0])),
+                            new ObjectId(last[1]), true));
+                } catch (IllegalArgumentException e) {
+                    throw PageCursor.invalid(cursor);
+                }
             } else {
-                userRequests  = requestCollection.find(query).sort(new BasicDBObject("postDate", -1));
+                after = DistanceCursor.decode(cursor);
+                after.narrow(query);
             }
+        }
+
+        // get one extra request to find out if there is another page
+        DBCursor<Request> userRequests;
+        if (newest) {
+            userRequests  = requestCollection.find(query)
+                    .sort(new BasicDBObject("postDate", -1).append("_id", -1));
         } else {
-            // distance is the default sort, best match should also use this for the initial query
-            if (StringUtils.isBlank(searchTerm)) {
-                //go ahead and add offset and limit here
-                userRequests = requestCollection.find(query).skip(offset).limit(limit);
-            } else {
-                userRequests = requestCollection.find(query);
-            }
+            // distance is the default sort
+            userRequests = requestCollection.find(query);
         }
-        List<Request> requests = userRequests.toArray();
+        if (StringUtils.isBlank(cursor) && offset > 0) {
+            userRequests.skip(offset);
+        }
+        List<Request> requests = userRequests.limit(limit + 1).toArray();
         userRequests.close();
 
-        if (searchTerm != null && !searchTerm.isEmpty() && requests.size() > 0) {
-            query = new BasicDBObject();
-            BasicDBObject searchQuery = new BasicDBObject();
-            searchQuery.append("$search", searchTerm);
-            query.put("$text", searchQuery);
-
-            BasicDBObject inQuery = new BasicDBObject();
-            List<ObjectId> ids = requests.stream().map(r -> new ObjectId(r.getId())).collect(Collectors.toList());
-            inQuery.put("$in", ids);
-            query.put("_id", inQuery);
-            if (sort != null && sort.equals("newest")) {
-                userRequests = requestCollection.find(query)
-                        .sort(new BasicDBObject("postDate", -1))
-                        .skip(offset)
-                        .limit(limit);
-            } else if (sort != null && sort.equals("distance")) {
-                // get those that match search in any order
-                userRequests = requestCollection.find(query);
-                requests = userRequests.toArray();
-                userRequests.close();
-                ids = requests.stream().map(r -> new ObjectId(r.getId())).collect(Collectors.toList());
-                //redo location query on the matching results, this will automatically be ordered by closest distance
-                query = getLocationQuery(latitude, longitude, radius);
-                inQuery = new BasicDBObject();
-                inQuery.put("$in", ids);
-                query.put("_id", inQuery);
-                userRequests = requestCollection.find(query).skip(offset).limit(limit);
+        PageCursor.Page<Request> page = new PageCursor.Page<>();
+        if (requests.size() > limit) {
+            requests = requests.subList(0, limit);
+            Request lastRequest = requests.get(limit - 1);
+            if (newest) {
+                page.nextCursor = PageCursor.encode(lastRequest.getPostDate().getTime(), lastRequest.getId());
             } else {
-                BasicDBObject scoreProjection = new BasicDBObject();
-                scoreProjection.append("$meta", "textScore");
-                BasicDBObject projectionParent = new BasicDBObject();
-                projectionParent.put("score", scoreProjection);
-                userRequests = requestCollection.find(query, projectionParent)
-                        .sort(new BasicDBObject("score", scoreProjection))
-                        .skip(offset)
-                        .limit(limit);
+                page.nextCursor = DistanceCursor.after(requests, latitude, longitude, after);
             }
-            requests = userRequests.toArray();
-            userRequests.close();
         }
-        //update the user's info
-        requests.stream().forEach(r -> {
-            User requester = userCollection.findOneById(r.getUser().getId());
-            r.setUser(requester);
-            requestCollection.save(r);
+        setCurrentUsers(requests);
+        page.items = requests;
+        return page;
+    }
+
+    /**
+     * Where a page of requests sorted by distance ($near) ended: the distance to the last request and the ids of every
+     * request returned so far that could be at that distance. $near only pages by distance, so the next page starts
+     * just short of the last distance and skips those ids.
+     */
+    static class DistanceCursor {
+        double distance;
+        List<ObjectId> seen = new ArrayList<>();
+
+        static DistanceCursor decode(String cursor) {
+            String[] last = PageCursor.decode(cursor, 2);
+            DistanceCursor position = new DistanceCursor();
+            try {
+                position.distance = Double.parseDouble(last[0]);
+                for (String id : last[1].split(",")) {
+                    position.seen.add(new ObjectId(id));
+                }
+            } catch (IllegalArgumentException e) {
+                throw PageCursor.invalid(cursor);
+            }
+            return position;
+        }
+
+        /**
+         * @param query a query with a $near on location, changed to only match requests after this cursor
+         */
+        void narrow(BasicDBObject query) {
+            BasicDBObject near = (BasicDBObject) ((BasicDBObject) query.get("location")).get("$near");
+            near.append("$minDistance", Math.max(0, distance - DISTANCE_CURSOR_SLACK_METERS));
+            query.put("_id", new BasicDBObject("$nin", seen));
+        }
+
+        /**
+         * @param page the requests just returned, closest first
+         * @param latitude
+         * @param longitude
+         * @param previous the cursor the page was loaded after, null for the first page
+         * @return the cursor for the page after page
+         */
+        static String after(List<Request> page, double latitude, double longitude, DistanceCursor previous) {
+            double[] distances = page.stream()
+                    .mapToDouble(r -> metersBetween(latitude, longitude, r.getLocation().getCoordinates()[1],
+                            r.getLocation().getCoordinates()[0]))
+                    .toArray();
+            double lastDistance = distances[distances.length - 1];
+            double seenFrom = lastDistance - 2 * DISTANCE_CURSOR_SLACK_METERS;
+            List<String> seen = new ArrayList<>();
+            if (previous != null && previous.distance >= seenFrom) {
+                previous.seen.forEach(id -> seen.add(id.toHexString()));
+            }
+            for (int i = 0; i < distances.length; i++) {
+                if (distances[i] >= seenFrom) {
+                    seen.add(page.get(i).getId());
+                }
+            }
+            return PageCursor.encode(lastDistance, String.join(",", seen));
+        }
+    }
+
+    // the distance $near sorts by, mongo measures on a sphere with the earth's equatorial radius
+    static double metersBetween(double lat1, double lng1, double lat2, double lng2) {
+        return ServiceAreaIndex.distanceMiles(lat1, lng1, lat2, lng2) / EARTH_RADIUS_MILES * EARTH_RADIUS_METERS;
+    }
+
+    /**
+     * Pages through the matches in the search index, loading each page with the rest of the query so anything that
+     * changed since it was indexed is still filtered out
+     */
+    private PageCursor.Page<Request> searchRequests(BasicDBObject query, int offset, String cursor, int limit,
+                                                    Double latitude, Double longitude, Double radius, Boolean expired,
+                                                    Boolean includeMine, String searchTerm, String sort,
+                                                    User principal, String type) {
+        RequestSearchIndex.Query search = new RequestSearchIndex.Query();
+        search.text = searchTerm;
+        search.latitude = latitude;
+        search.longitude = longitude;
+        search.radiusMiles = radius;
+        search.expired = expired;
+        if (includeMine != null && !includeMine) {
+            search.excludePosterUserId = principal.getUserId();
+        }
+        search.excludeUserIds = principal.getBlockedUsers();
+        if (StringUtils.isNotBlank(type) && type.equalsIgnoreCase("requests")) {
+            search.types = Stream.of("buying", "renting").collect(Collectors.toSet());
+        } else if (StringUtils.isNotBlank(type) && type.equalsIgnoreCase("offers")) {
+            search.types = Stream.of("loaning", "selling").collect(Collectors.toSet());
+        }
+        if (sort != null && sort.equals("newest")) {
+            search.sort = RequestSearchIndex.Sort.NEWEST;
+        } else if (sort != null && sort.equals("distance")) {
+            search.sort = RequestSearchIndex.Sort.DISTANCE;
+        }
+
+        // the index already filtered by distance, $near can't be combined with paging by score anyway
+        query.removeField("location");
+        PageCursor.Page<Request> page = new PageCursor.Page<>();
+        String after = StringUtils.isNotBlank(cursor) ? cursor : null;
+        if (after == null && offset > 0) {
+            List<RequestSearchIndex.Match> skipped = requestSearchIndex.search(search, null, offset);
+            if (skipped.size() < offset) {
+                return page;
+            }
+            after = skipped.get(offset - 1).cursor;
+        }
+        boolean more = true;
+        while (page.items.size() < limit && more) {
+            int wanted = limit - page.items.size();
+            List<RequestSearchIndex.Match> matches = requestSearchIndex.search(search, after, wanted + 1);
+            more = matches.size() > wanted;
+            if (more) {
+                matches = matches.subList(0, wanted);
+            }
+            if (matches.isEmpty()) {
+                break;
+            }
+            query.put("_id", new BasicDBObject("$in",
+                    matches.stream().map(m -> new ObjectId(m.id)).collect(Collectors.toList())));
+            DBCursor<Request> found = requestCollection.find(query);
+            Map<String, Request> requests = found.toArray().stream().collect(Collectors.toMap(Request::getId, r -> r));
+            found.close();
+            matches.stream().map(m -> requests.get(m.id)).filter(r -> r != null).forEach(page.items::add);
+            after = matches.get(matches.size() - 1).cursor;
+        }
+        page.nextCursor = more ? after : null;
+        return page;
+    }
+
+    /**
+     * Swaps the user snapshot stored on each request for the poster's current info, fetched with one query. Nothing is
+     * written back, the stored snapshots are kept up to date when the user changes.
+     *
+     * @param requests
+     */
+    private void setCurrentUsers(List<Request> requests) {
+        List<ObjectId> userIds = requests.stream()
+                .map(r -> new ObjectId(r.getUser().getId()))
+                .distinct()
+                .collect(Collectors.toList());
+        if (userIds.isEmpty()) {
+            return;
+        }
+        DBCursor<User> userCursor = userCollection.find(new BasicDBObject("_id", new BasicDBObject("$in", userIds)));
+        Map<String, User> users = userCursor.toArray().stream().collect(Collectors.toMap(User::getId, u -> u));
+        userCursor.close();
+        requests.forEach(r -> {
+            User requester = users.get(r.getUser().getId());
+            if (requester != null) {
+                r.setUser(requester);
+            }
         });
-        return requests;
     }
 
     private void setNotExpiredQuery(BasicDBObject query) {
@@ -443,6 +587,20 @@ public class RequestService {
         query.put("user.userId", notMineQuery);
     }
 
+    /**
+     * Tells the users near a request that was just posted about it, see {@link AreaTopics}
+     *
+     * @param request
+     */
+    public void sendAreaNotification(Request request) {
+        try {
+            areaTopics.publish(request);
+        } catch (Exception e) {
+            LOGGER.error("could not publish request [" + request.getId() + "] to area topics, got error: " +
+                    e.getMessage());
+        }
+    }
+
     public void sendAdminsNewRequestNotification(Request r) {
         try {
             DBObject findAdmins = new BasicDBObject("admin", true);
@@ -455,7 +613,7 @@ public class RequestService {
                 notification.put("message", body);
                 notification.put("type", FirebaseUtils.NotificationTypes.new_post_notification.name());
                 for (User admin:admins) {
-                    FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                    FirebaseUtils.sendFcmMessage(admin, null, notification, notificationDispatcher);
                 }        }
         } catch (Exception e) {
             //do nothing
@@ -488,38 +646,9 @@ public class RequestService {
             return null;
         }
         try {
-            String api = "http://maps.googleapis.com/maps/api/geocode/xml?address=" + URLEncoder.encode(zip, "UTF-8") +
-                    "&sensor=true";
-            URL url = new URL(api);
-            HttpURLConnection httpConnection = (HttpURLConnection)url.openConnection();
-            httpConnection.connect();
-            int responseCode = httpConnection.getResponseCode();
-            if(responseCode == 200) {
-                DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-                Document document = builder.parse(httpConnection.getInputStream());
-                XPathFactory xPathfactory = XPathFactory.newInstance();
-                XPath xpath = xPathfactory.newXPath();
-                XPathExpression expr = xpath.compile("/GeocodeResponse/status");
-                String status = (String)expr.evaluate(document, XPathConstants.STRING);
-                if(status.equals("OK")) {
-                    expr = xpath.compile("//geometry/location/lat");
-                    String latitude = (String)expr.evaluate(document, XPathConstants.STRING);
-                    Double lat = Double.parseDouble(latitude);
-                    expr = xpath.compile("//geometry/location/lng");
-                    String longitude = (String)expr.evaluate(document, XPathConstants.STRING);
-                    Double lng = Double.parseDouble(longitude);
-                    if (lat != null && lng != null) {
-                        return new GeoJsonPoint(lng, lat);
-                    } else {
-                        LOGGER.info("No geolocation found for zip [" + zip + "].");
-                    }
-                } else {
-                    throw new Exception("Error from the API - response status: " + status);
-                }
-            }
-            return null;
+            return zipGeocoder.geocode(zip);
         } catch (Exception e){
-            String msg = "Unable to calculate latitude and longitude from zip [" + zip + "].";
+            String msg = "Unable to calculate latitude and longitude from zip [" + zip + "]: " + e.getMessage();
             LOGGER.error(msg);
             return null;
         }
@@ -1,13 +1,13 @@
 package com.iuxta.nearby.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.iuxta.nearby.NearbyUtils;
 import com.iuxta.nearby.dto.*;
 import com.iuxta.nearby.exception.*;
 import com.iuxta.nearby.exception.IllegalArgumentException;
-import com.iuxta.nearby.firebase.CcsServer;
 import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
+import com.iuxta.nearby.firebase.NotificationPayload;
 import com.iuxta.nearby.model.*;
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
@@ -22,12 +22,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigDecimal;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Created by kerrk on 9/3/16.
@@ -37,11 +37,14 @@ public class ResponseService {
     private static final Logger LOGGER = LoggerFactory.getLogger(ResponseService.class);
 
     private JacksonDBCollection<Request, String> requestCollection;
+    private RequestSearchIndex requestSearchIndex;
     private JacksonDBCollection<Response, String> responseCollection;
     private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private JacksonDBCollection<Transaction, String> transactionCollection;
     private JacksonDBCollection<ResponseFlag, String> responseFlagCollection;
-    private CcsServer ccsServer;
+    private NotificationDispatcher notificationDispatcher;
+    private HistoryService historyService;
 
     public ResponseService() {
 
@@ -52,13 +55,17 @@ public class ResponseService {
                            JacksonDBCollection<User, String> userCollection,
                            JacksonDBCollection<Transaction, String> transactionCollection,
                            JacksonDBCollection<ResponseFlag, String> responseFlagCollection,
-                           CcsServer ccsServer) {
+                           NotificationDispatcher notificationDispatcher, HistoryService historyService, UserCache userCache,
+                           RequestSearchIndex requestSearchIndex) {
         this.requestCollection = requestCollection;
         this.responseCollection = responseCollection;
         this.userCollection = userCollection;
+        this.userCache = userCache;
         this.transactionCollection = transactionCollection;
         this.responseFlagCollection = responseFlagCollection;
-        this.ccsServer = ccsServer;
+        this.notificationDispatcher = notificationDispatcher;
+        this.historyService = historyService;
+        this.requestSearchIndex = requestSearchIndex;
     }
 
     public Response transformResponseDto(ResponseDto dto, Request request, User responder) {
@@ -70,6 +77,8 @@ public class ResponseService {
         if (request.getExpireDate() != null && request.getExpireDate().before(new Date())) {
             request.setStatus(Request.Status.CLOSED);
             requestCollection.save(request);
+            requestSearchIndex.refresh(request.getId());
+            historyService.refresh(request.getId());
             String msg = "Cannot create this offer because the request was recently closed.";
             LOGGER.info(msg);
             throw new BadRequestException(msg);
@@ -112,6 +121,7 @@ public class ResponseService {
         }
         WriteResult result = responseCollection.insert(response);
         response = (Response) result.getSavedObject();
+        historyService.refresh(response.getRequestId());
         try {
             Thread.sleep(500L);
         } catch (InterruptedException e) {
@@ -130,22 +140,18 @@ public class ResponseService {
             body += (dto.priceType.toLowerCase().equals(Response.PriceType.PER_DAY.toString().toLowerCase())) ?
                     " per day" : " per hour";
         }
-        JSONObject notification = new JSONObject();
-        notification.put("title", title);
-        notification.put("message", body);
-        notification.put("type", FirebaseUtils.NotificationTypes.response_update.name());
+        NotificationPayload notification = new NotificationPayload(FirebaseUtils.NotificationTypes.response_update)
+                .title(title)
+                .message(body);
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
+            notification.response(NotificationPayload.json(new ResponseDto(response)));
+            notification.request(NotificationPayload.json(new RequestDto(request)));
         } catch (JsonProcessingException e) {
             String msg = "Could not convert object to json string, got error: " + e.getMessage();
             LOGGER.error(msg);
         }
-        User recipient = userCollection.findOneById(request.getUser().getId());
-        FirebaseUtils.sendFcmMessage(recipient, dto, notification, ccsServer);
+        User recipient = userCache.get(request.getUser().getId());
+        FirebaseUtils.sendFcmMessage(recipient, notification, notificationDispatcher);
         return response;
     }
 
@@ -215,9 +221,11 @@ public class ResponseService {
         if (request.getExpireDate() != null && request.getExpireDate().before(new Date())) {
             request.setStatus(Request.Status.CLOSED);
             requestCollection.save(request);
+            requestSearchIndex.refresh(request.getId());
             response.setBuyerStatus(Response.BuyerStatus.CLOSED);
             response.setResponseStatus(Response.Status.CLOSED);
             responseCollection.save(response);
+            historyService.refresh(response.getRequestId());
             String msg = "";
             if (request.getType().equals(Request.Type.loaning) || request.getType().equals(Request.Type.selling)) {
                 msg = "Cannot update this response because the offer was recently closed.";
@@ -268,6 +276,7 @@ public class ResponseService {
             }
         }
         responseCollection.save(response);
+        historyService.refresh(response.getRequestId());
         return response;
     }
 
@@ -352,18 +361,15 @@ public class ResponseService {
 
     public void sendUpdateToRequester(Request request, Response response, String msg) {
         try {
-            JSONObject notification = new JSONObject();
-            User seller = userCollection.findOneById(response.getResponderId());
-            notification.put("title", msg != null ? msg : seller.getFirstName() + " updated their offer");
-            notification.put("message", msg != null ? msg : seller.getFirstName() + " updated their offer for a " + request.getItemName());
-            notification.put("type", FirebaseUtils.NotificationTypes.response_update.name());
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
-            User recipient = userCollection.findOneById(request.getUser().getId());
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            User seller = userCache.get(response.getResponderId());
+            NotificationPayload notification = new NotificationPayload(FirebaseUtils.NotificationTypes.response_update)
+                    .title(msg != null ? msg : seller.getFirstName() + " updated their offer")
+                    .message(msg != null ? msg :
+                            seller.getFirstName() + " updated their offer for a " + request.getItemName())
+                    .response(NotificationPayload.json(new ResponseDto(response)))
+                    .request(NotificationPayload.json(new RequestDto(request)));
+            User recipient = userCache.get(request.getUser().getId());
+            FirebaseUtils.sendFcmMessage(recipient, notification, notificationDispatcher);
         } catch (JsonProcessingException e) {
             String err = "Could not send update to responder for response [" + response.getId() + "], " +
                     "got error converting object to json string: " + e.getMessage();
@@ -374,17 +380,14 @@ public class ResponseService {
 
     public void sendUpdateToResponder(Request request, Response response, String msg) {
         try {
-            JSONObject notification = new JSONObject();
-            notification.put("title", msg != null ? msg : request.getUser().getFirstName() + " made updates to the offer");
-            notification.put("message", msg != null ? msg : request.getUser().getFirstName() + " edited your offer for a " + request.getItemName());
-            notification.put("type", FirebaseUtils.NotificationTypes.response_update.name());
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
-            User recipient = userCollection.findOneById(response.getResponderId());
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            NotificationPayload notification = new NotificationPayload(FirebaseUtils.NotificationTypes.response_update)
+                    .title(msg != null ? msg : request.getUser().getFirstName() + " made updates to the offer")
+                    .message(msg != null ? msg :
+                            request.getUser().getFirstName() + " edited your offer for a " + request.getItemName())
+                    .response(NotificationPayload.json(new ResponseDto(response)))
+                    .request(NotificationPayload.json(new RequestDto(request)));
+            User recipient = userCache.get(response.getResponderId());
+            FirebaseUtils.sendFcmMessage(recipient, notification, notificationDispatcher);
         } catch (JsonProcessingException e) {
             String err = "Could not send update to responder for response [" + response.getId() + "], " +
                     "got error converting object to json string: " + e.getMessage();
@@ -397,67 +400,34 @@ public class ResponseService {
         openTransaction(request, response);
         response.setResponseStatus(Response.Status.ACCEPTED);
         request.setStatus(Request.Status.TRANSACTION_PENDING);
-        BasicDBObject query = new BasicDBObject();
-        query.append("requestId", request.getId());
-        DBCursor requestResponses = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
-        List<Response> responses = requestResponses.toArray();
-        requestResponses.close();
-        String title = "Offer Closed";
         String body = "Your offer to " + request.getUser().getFirstName() + " for a " + request.getItemName() +
                 " has been closed because the user accepted another offer or closed the request. Thanks for your offer!";
-        //TODO: think about doing this asynchronously
-        responses.forEach(r -> {
-            LOGGER.info("closing other responses, comparing [" +r.getId() + "] to accepted response id [" + response.getId()+ "]");
-            if (!r.getId().equals(response.getId())) {
-                try {
-                    r.setBuyerStatus(Response.BuyerStatus.CLOSED);
-                    r.setResponseStatus(Response.Status.CLOSED);
-                    responseCollection.save(r);
-                    JSONObject notification = new JSONObject();
-                    notification.put("title", title);
-                    notification.put("message", body);
-                    notification.put("type", FirebaseUtils.NotificationTypes.offer_closed.name());
-                    ObjectMapper mapper = new ObjectMapper();
-                    String responseJson = mapper.writeValueAsString(new ResponseDto(r));
-                    notification.put("response", responseJson);
-                    String requestJson = mapper.writeValueAsString(new RequestDto(request));
-                    notification.put("request", requestJson);
-                    User recipient = userCollection.findOneById(r.getResponderId());
-                    FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
-                } catch (JsonProcessingException e) {
-                    String msg = "Could not convert object to json string, got error: " + e.getMessage();
-                    LOGGER.error(msg);
-                }
-            }
-        });
+        closeResponses(request, response.getId(), body);
         //let responder know the response has been accepted
-        JSONObject notification = new JSONObject();
-        User recipient = userCollection.findOneById(response.getResponderId());
+        User recipient = userCache.get(response.getResponderId());
         String priceType = response.getPriceType().equals(Response.PriceType.FLAT) ? "" :
                 response.getPriceType().equals(Response.PriceType.PER_DAY) ? " per day " : " per hour ";
 
         try {
             BigDecimal price = BigDecimal.valueOf(response.getOfferPrice());
             price = price.setScale(NearbyUtils.USD.getDefaultFractionDigits(), NearbyUtils.DEFAULT_ROUNDING);
-            notification.put("title", request.getUser().getFirstName() + " accepted your offer!");
-            notification.put("message", "Your offer for a " + request.getItemName() + " for $" + price +
-                    priceType + " was accepted!");
-            notification.put("type", FirebaseUtils.NotificationTypes.offer_accepted.name());
-            ObjectMapper mapper = new ObjectMapper();
-            String responseJson = mapper.writeValueAsString(new ResponseDto(response));
-            notification.put("response", responseJson);
-            String requestJson = mapper.writeValueAsString(new RequestDto(request));
-            notification.put("request", requestJson);
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            NotificationPayload notification = new NotificationPayload(FirebaseUtils.NotificationTypes.offer_accepted)
+                    .title(request.getUser().getFirstName() + " accepted your offer!")
+                    .message("Your offer for a " + request.getItemName() + " for $" + price + priceType +
+                            " was accepted!")
+                    .response(NotificationPayload.json(new ResponseDto(response)))
+                    .request(NotificationPayload.json(new RequestDto(request)));
+            FirebaseUtils.sendFcmMessage(recipient, notification, notificationDispatcher);
 
             //let buyer know they accepted the offer and other responses have been closed
-            notification = new JSONObject();
-            notification.put("title", "You accepted " + recipient.getFirstName() + "'s offer!");
-            notification.put("message", "You accepted " + recipient.getFirstName() + "'s offer for $" + price +
+            JSONObject buyerNotification = new JSONObject();
+            buyerNotification.put("title", "You accepted " + recipient.getFirstName() + "'s offer!");
+            buyerNotification.put("message", "You accepted " + recipient.getFirstName() + "'s offer for $" + price +
                     priceType + ". Any other offers have been closed.");
-            recipient = userCollection.findOneById(request.getUser().getId());
+            recipient = userCache.get(request.getUser().getId());
             requestCollection.save(request);
-            FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+            requestSearchIndex.refresh(request.getId());
+            FirebaseUtils.sendFcmMessage(recipient, null, buyerNotification, notificationDispatcher);
         } catch (JsonProcessingException e) {
             String msg = "Could not convert object to json string, got error: " + e.getMessage();
             LOGGER.error(msg);
@@ -493,281 +463,6 @@ public class ResponseService {
         transactionCollection.insert(transaction);
     }
 
-    public List<HistoryDto> getHistory(User user, List<String> types, List<String> status) {
-        DBObject searchByUser = new BasicDBObject("user._id", new ObjectId(user.getId()));
-        boolean getRequests = false;
-        boolean getOffers = false;
-        boolean getTransactions = false;
-        boolean getOpen = false;
-        boolean getClosed = false;
-        if (types == null || types.size() == 0) {
-            getRequests = true;
-            getOffers = true;
-            getTransactions = true;
-        } else {
-            for (String type:types) {
-                if (type.toLowerCase().equals("requests")) {
-                    getRequests = true;
-                } else if (type.toLowerCase().equals("offers")) {
-                    getOffers = true;
-                } else if (type.toLowerCase().equals("transactions")) {
-                    getTransactions = true;
-                }
-            }
-        }
-        if (status == null || status.size() == 0) {
-            getOpen = true;
-            getClosed = true;
-        } else {
-            for (String s:status) {
-                if (s.toLowerCase().equals("open")) {
-                    getOpen = true;
-                } else if (s.toLowerCase().equals("closed")) {
-                    getClosed = true;
-                }
-            }
-        }
-        final boolean addRequests = getRequests;
-        final boolean addOffers = getOffers;
-        final boolean addTransactions = getTransactions;
-        final boolean addOpen = getOpen;
-        final boolean addClosed = getClosed;
-        List<HistoryDto> historyDtos = new ArrayList<>();
-        if (getRequests || getTransactions) {
-            //requests includes responses to sale items
-            List<HistoryDto> responseDtos = getResponsesToListings(user, getRequests, getTransactions, addOpen, addClosed);
-            historyDtos.addAll(responseDtos);
-            BasicDBObject query = new BasicDBObject();
-            query.put("user._id", new ObjectId(user.getId()));
-            BasicDBObject inQuery = new BasicDBObject();
-            List<String> requestTypes = Stream.of("buying", "renting").collect(Collectors.toList());
-            inQuery.put("$in", requestTypes);
-            query.put("type", inQuery);
-            DBCursor userRequests = requestCollection.find(query).sort(new BasicDBObject("postDate", -1));
-            List<Request> requests = userRequests.toArray();
-            userRequests.close();
-            historyDtos.addAll(getRequestOffers(user, getRequests, getRequests, addOpen, addClosed, requests));
-        }
-
-        if (getOffers || getTransactions) {
-            List<HistoryDto> userOffers = getMyOfferHistory(user, getOffers, getTransactions, getOpen, getClosed);
-            historyDtos.addAll(userOffers);
-        }
-        Collections.sort(historyDtos, new HistoryComparator(user.getId()));
-        if (historyDtos.size() > NearbyUtils.DEFAULT_LIMIT) {
-            return historyDtos.subList(0, NearbyUtils.DEFAULT_LIMIT);
-        } else {
-            return historyDtos;
-        }
-    }
-
-    public List<HistoryDto> getResponsesToListings(User user, final boolean getRequests, final boolean getTransactions,
-                                                   final boolean getOpen, final boolean getClosed) {
-        BasicDBObject query = new BasicDBObject();
-        query.put("responderId", user.getId());
-        query.put("isOfferToBuyOrRent", true);
-        DBCursor responses  = responseCollection.find(query);
-        List<Response> responseRequests = responses.toArray();
-        responses.close();
-        List<HistoryDto> historyDtos = new ArrayList<>();
-        responseRequests.forEach(r -> {
-            HistoryDto historyDto = getResponseRequest(r, user, getRequests, getTransactions, getOpen, getClosed);
-            if (historyDto != null) {
-                historyDtos.add(historyDto);
-            }
-        });
-        return historyDtos;
-
-    }
-
-    public HistoryDto getResponseRequest(Response r, User user, final boolean getObject, final boolean getTransactions, final boolean getOpen, final boolean getClosed) {
-        Request request = requestCollection.findOneById(r.getRequestId());
-        if (request == null) {
-            return null;
-            //TODO: log an error here, but probably don't need to throw an exception...this really shouldn't happen
-        } else {
-            if (user.getBlockedUsers() != null && user.getBlockedUsers().size() > 0) {
-                for (String blocked : user.getBlockedUsers()) {
-                    if (blocked.equals(request.getUser().getId())) {
-                        return null; //don't show this offer because they have blocked this user
-                    }
-                }
-            }
-
-            if (!getClosed && r.getResponseStatus().equals(Response.Status.CLOSED)) {
-                return null;
-            } else if (!getOpen && r.getResponseStatus().equals(Response.Status.PENDING)) {
-                return null;
-            }
-            HistoryDto dto = new HistoryDto();
-            dto.request = new RequestDto(request);
-            dto.responses = Collections.singletonList(new ResponseDto(r));
-            BasicDBObject qry = new BasicDBObject("responseId", r.getId());
-            Transaction transaction = null;
-            //only look for a transaction if the response is accepted, otherwise the transaction may not belong to the response
-            if (r.getResponseStatus().equals(Response.Status.ACCEPTED)) {
-                transaction = transactionCollection.findOne(qry);
-            }
-            if (transaction != null) {
-                dto.transaction = new TransactionDto(transaction, true);
-                if (getTransactions) {
-                    if (!getOpen && (request.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
-                            request.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
-                        return null;
-                    } else if (!getClosed && (request.getStatus().equals(Request.Status.CLOSED) ||
-                            request.getStatus().equals(Request.Status.FULFILLED))) {
-                        return null;
-                    }
-                    return dto;
-                }
-            } else if (getObject) {
-                return dto;
-            }
-            return null;
-        }
-    }
-
-    public List<HistoryDto> getMyOfferHistory(User user, final boolean getOffers, final boolean getTransactions,
-                                              final boolean getOpen, final boolean getClosed) {
-        List<HistoryDto> historyDtos = new ArrayList<>();
-
-        //includes requests that are of type "selling" or "loaning"
-        BasicDBObject requestQuery = new BasicDBObject();
-        requestQuery.put("user._id", new ObjectId(user.getId()));
-        BasicDBObject inQuery = new BasicDBObject();
-        List<String> types = Stream.of("selling", "loaning").collect(Collectors.toList());
-        inQuery.put("$in", types);
-        requestQuery.put("type", inQuery);
-        DBCursor requests  = requestCollection.find(requestQuery);
-        List<Request> offerRequests = requests.toArray();
-        requests.close();
-        historyDtos.addAll(getRequestOffers(user, getOffers, getTransactions, getOpen, getClosed, offerRequests));
-
-        BasicDBObject query = new BasicDBObject("responderId", user.getId());
-        //is the response really a request to rent or buy something? if so, don't include it in "offers"
-        query.put("isOfferToBuyOrRent", false);
-
-        DBCursor requestResponses = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
-        List<Response> responses = requestResponses.toArray();
-        requestResponses.close();
-        // for each offer, get the corresponding request
-        responses.forEach(r -> {
-            HistoryDto historyDto = getResponseRequest(r, user, getOffers, getTransactions, getOpen, getClosed);
-            if (historyDto != null) {
-                historyDtos.add(historyDto);
-            }
-            /*Request request = requestCollection.findOneById(r.getRequestId());
-            if (request == null) {
-                //TODO: log an error here, but probably don't need to throw an exception...this really shouldn't happen
-            } else {
-                if (user.getBlockedUsers() != null && user.getBlockedUsers().size() > 0) {
-                    for (String blocked:user.getBlockedUsers()) {
-                        if (blocked.equals(request.getUser().getId())) {
-                            return; //don't show this offer because they have blocked this user
-                        }
-                    }
-                }
-
-                if (!getClosed && r.getResponseStatus().equals(Response.Status.CLOSED)) {
-                    return;
-                } else if (!getOpen && r.getResponseStatus().equals(Response.Status.PENDING)) {
-                    return;
-                }
-                HistoryDto dto = new HistoryDto();
-                dto.request = new RequestDto(request);
-                dto.responses = Collections.singletonList(new ResponseDto(r));
-                BasicDBObject qry = new BasicDBObject("responseId", r.getId());
-                Transaction transaction = null;
-                //only look for a transaction if the response is accepted, otherwise the transaction may not belong to the response
-                if (r.getResponseStatus().equals(Response.Status.ACCEPTED)) {
-                    transaction = transactionCollection.findOne(qry);
-                }
-                if (transaction != null) {
-                    dto.transaction = new TransactionDto(transaction, true);
-                    if (getTransactions) {
-                        if (!getOpen && (request.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
-                                request.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
-                            return;
-                        } else if (!getClosed && (request.getStatus().equals(Request.Status.CLOSED) ||
-                                request.getStatus().equals(Request.Status.FULFILLED))) {
-                            return;
-                        }
-                        historyDtos.add(dto);
-                    }
-                } else if (getOffers) {
-                    historyDtos.add(dto);
-                }
-
-            }*/
-        });
-        return historyDtos;
-    }
-
-    public List<HistoryDto> getRequestOffers(User user, final boolean getObjects, final boolean getTransactions,
-                                             final boolean getOpen, final boolean getClosed, List<Request> requests) {
-        List<HistoryDto> historyDtos = new ArrayList<>();
-        requests.forEach(r -> {
-            BasicDBObject query = new BasicDBObject("requestId", r.getId());
-            //don't return the inappropriate offers
-            BasicDBObject notTrueQuery = new BasicDBObject();
-            notTrueQuery.append("$ne", true);
-            query.put("inappropriate", notTrueQuery);
-            if (user.getBlockedUsers() != null && user.getBlockedUsers().size() > 0) {
-                BasicDBObject blockedUserIdsQuery = new BasicDBObject();
-                blockedUserIdsQuery.put("$nin", user.getBlockedUsers());
-                query.put("responderId", blockedUserIdsQuery);
-            }
-            DBCursor requestResponses = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
-            List<Response> responses = requestResponses.toArray();
-            requestResponses.close();
-            HistoryDto dto = new HistoryDto();
-            dto.request = new RequestDto(r);
-            if (!getOpen && (r.getStatus().equals(Request.Status.OPEN) ||
-                    r.getStatus().equals(Request.Status.PROCESSING_PAYMENT) ||
-                    r.getStatus().equals(Request.Status.TRANSACTION_PENDING))) {
-                return;
-            } else if (!getClosed && (r.getStatus().equals(Request.Status.CLOSED) ||
-                    r.getStatus().equals(Request.Status.FULFILLED))) {
-                return;
-            }
-            List<ResponseDto> dtos = ResponseDto.transform(responses);
-            dtos.forEach(d -> {
-                User seller = userCollection.findOneById(d.responderId);
-                UserDto userDto = new UserDto();
-                if (seller == null) {
-                    for (Response response : responses) {
-                        if (response.getResponderId().equals(d.responderId)) {
-                            response.setResponseStatus(Response.Status.CLOSED);
-                            responseCollection.save(response);
-                            d.sellerStatus = r.getStatus().toString();
-                        }
-                    }
-                    return;
-                }
-                userDto = new UserDto(seller);
-                if (d.messagesEnabled != null && d.messagesEnabled) {
-                    userDto.phone = seller.getPhone();
-                }
-                d.responder = userDto;
-                d.seller = userDto;
-            });
-            query.put("canceled", false);
-            Transaction transaction = transactionCollection.findOne(query);
-            dto.responses = dtos;
-            if (transaction != null) {
-                dto.transaction = new TransactionDto(transaction, false);
-                if (getTransactions) {
-                    historyDtos.add(dto);
-                }
-            } else {
-                if (getObjects) {
-                    historyDtos.add(dto);
-                }
-            }
-        });
-        return historyDtos;
-    }
-
     /**
      * Returns true if the user can make a new response/offer. User CANNOT make a new response/offer if they have 5 or more
      * open/pending offers
@@ -798,7 +493,7 @@ public class ResponseService {
         BasicDBList or = new BasicDBList();
         BasicDBObject buyerQuery = new BasicDBObject("buyerId", user.getId());
         or.add(buyerQuery);
-        BasicDBObject sellerQuery = new BasicDBObject("responderId", user.getId());
+        BasicDBObject sellerQuery = new BasicDBObject("sellerId", user.getId());
         or.add(sellerQuery);
         query.put("$or", or);
         BasicDBObject notSetQuery = new BasicDBObject("$exists", false);
@@ -810,36 +505,77 @@ public class ResponseService {
     }
 
     public void alertRespondersOfClosedRequest(Request request) {
+        String body = "Your offer to " + request.getUser().getFirstName() + " for a " + request.getItemName() +
+                " has been closed because they closed the request";
+        closeResponses(request, null, body);
+    }
+
+    /**
+     * Closes every response to the request (except the accepted one, if any) with a single update, then loads the
+     * responders with one query and hands all of the "offer closed" notifications to the dispatcher together.
+     *
+     * @param request
+     * @param acceptedResponseId response to leave open, may be null
+     * @param body notification message
+     */
+    private void closeResponses(Request request, String acceptedResponseId, String body) {
         BasicDBObject query = new BasicDBObject();
         query.append("requestId", request.getId());
-        DBCursor requestResponses = responseCollection.find(query).sort(new BasicDBObject("responseTime", -1));
+        if (acceptedResponseId != null) {
+            query.append("_id", new BasicDBObject("$ne", new ObjectId(acceptedResponseId)));
+        }
+        DBCursor requestResponses = responseCollection.find(query);
         List<Response> responses = requestResponses.toArray();
         requestResponses.close();
-        String title = "Offer Closed";
-        String body = "Your offer to " + request.getUser().getFirstName() + " for a " + request.getItemName() +
-                " has been closed because they closed the request";
-        //TODO: think about doing this asynchronously
-        responses.forEach(r -> {
+        if (responses.isEmpty()) {
+            return;
+        }
+        List<ObjectId> responseIds = responses.stream().map(r -> new ObjectId(r.getId())).collect(Collectors.toList());
+        BasicDBObject close = new BasicDBObject();
+        close.append("buyerStatus", Response.BuyerStatus.CLOSED.name());
+        close.append("responseStatus", Response.Status.CLOSED.name());
+        responseCollection.updateMulti(new BasicDBObject("_id", new BasicDBObject("$in", responseIds)),
+                new BasicDBObject("$set", close));
+        LOGGER.info("closed [" + responses.size() + "] responses to request [" + request.getId() + "]");
+
+        List<ObjectId> responderIds = responses.stream().map(r -> new ObjectId(r.getResponderId())).distinct()
+                .collect(Collectors.toList());
+        DBCursor<User> responderCursor = userCollection.find(new BasicDBObject("_id", new BasicDBObject("$in", responderIds)));
+        Map<String, User> responders = responderCursor.toArray().stream()
+                .collect(Collectors.toMap(User::getId, u -> u));
+        responderCursor.close();
+
+        // the request is the same for every responder, serialize it once
+        String requestJson;
+        try {
+            requestJson = NotificationPayload.json(new RequestDto(request));
+        } catch (JsonProcessingException e) {
+            String msg = "Could not convert object to json string, got error: " + e.getMessage();
+            LOGGER.error(msg);
+            return;
+        }
+        // one message per closed offer, a responder with several offers on the request gets one for each
+        List<Map.Entry<User, NotificationPayload>> notifications = new ArrayList<>();
+        for (Response r : responses) {
+            User recipient = responders.get(r.getResponderId());
+            if (recipient == null) {
+                continue;
+            }
+            r.setBuyerStatus(Response.BuyerStatus.CLOSED);
+            r.setResponseStatus(Response.Status.CLOSED);
             try {
-                r.setBuyerStatus(Response.BuyerStatus.CLOSED);
-                r.setResponseStatus(Response.Status.CLOSED);
-                responseCollection.save(r);
-                JSONObject notification = new JSONObject();
-                notification.put("title", title);
-                notification.put("message", body);
-                notification.put("type", FirebaseUtils.NotificationTypes.offer_closed.name());
-                ObjectMapper mapper = new ObjectMapper();
-                String responseJson = mapper.writeValueAsString(new ResponseDto(r));
-                notification.put("response", responseJson);
-                String requestJson = mapper.writeValueAsString(new RequestDto(request));
-                notification.put("request", requestJson);
-                User recipient = userCollection.findOneById(r.getResponderId());
-                FirebaseUtils.sendFcmMessage(recipient, null, notification, ccsServer);
+                notifications.add(new AbstractMap.SimpleImmutableEntry<>(recipient,
+                        new NotificationPayload(FirebaseUtils.NotificationTypes.offer_closed)
+                                .title("Offer Closed")
+                                .message(body)
+                                .response(NotificationPayload.json(new ResponseDto(r)))
+                                .request(requestJson)));
             } catch (JsonProcessingException e) {
                 String msg = "Could not convert object to json string, got error: " + e.getMessage();
                 LOGGER.error(msg);
             }
-        });
+        }
+        FirebaseUtils.sendFcmMessages(notifications, notificationDispatcher);
     }
 
     public ResponseFlag flagResponse(User user, ResponseFlagDto dto, Response response) {
@@ -881,7 +617,7 @@ public class ResponseService {
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                FirebaseUtils.sendFcmMessage(admin, null, notification, notificationDispatcher);
             }
         }
     }
@@ -911,6 +647,9 @@ public class ResponseService {
                 response.setResponseStatus(Response.Status.CLOSED);
                 responseCollection.save(response);
             }
+            if (!responses.isEmpty()) {
+                historyService.refresh(request.getId());
+            }
         }
 
     }
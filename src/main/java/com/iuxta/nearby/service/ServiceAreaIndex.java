@@ -0,0 +1,173 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.model.NearbyAvailableLocations;
+import io.dropwizard.lifecycle.Managed;
+import org.mongojack.DBCursor;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the areas we operate in (nearbyAvailableLocations) in memory so checking whether a location is served doesn't
+ * need a geo query. Areas are bucketed into a grid of GRID_DEGREES cells by their bounding box; a check only tests the
+ * areas in the point's cell. The index is rebuilt from the db on a schedule (or through {@link #refresh}) and swapped in
+ * whole, so readers never see a partly built index. Until the first load succeeds every location is treated as served.
+ */
+public class ServiceAreaIndex implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ServiceAreaIndex.class);
+
+    private static final double GRID_DEGREES = 0.5;
+
+    private static final double EARTH_RADIUS_MILES = 3958.8;
+
+    private static final double MILES_PER_DEGREE_LATITUDE = 69.0;
+
+    /**
+     * A served area. Locations are stored as points with a radius today, other shapes (e.g. polygons) only need to
+     * provide a bounding box and a containment check.
+     */
+    public interface ServiceArea {
+
+        /**
+         * @return min latitude, min longitude, max latitude, max longitude
+         */
+        double[] bounds();
+
+        boolean contains(double latitude, double longitude);
+    }
+
+    private JacksonDBCollection<NearbyAvailableLocations, String> locationsCollection;
+    private double radiusMiles;
+    private long refreshMinutes;
+    private volatile Map<Long, List<ServiceArea>> grid;
+    private ScheduledExecutorService refresher;
+
+    public ServiceAreaIndex(JacksonDBCollection<NearbyAvailableLocations, String> locationsCollection,
+                            double radiusMiles, long refreshMinutes) {
+        this.locationsCollection = locationsCollection;
+        this.radiusMiles = radiusMiles;
+        this.refreshMinutes = refreshMinutes;
+    }
+
+    public boolean isAvailable(double latitude, double longitude) {
+        Map<Long, List<ServiceArea>> current = grid;
+        if (current == null) {
+            // the areas haven't loaded yet, don't turn everyone away or have every request retry the load
+            return true;
+        }
+        for (ServiceArea area : current.getOrDefault(cell(latitude, longitude), Collections.emptyList())) {
+            if (area.contains(latitude, longitude)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reloads every area from the db, call after adding or removing an area to pick it up before the next scheduled
+     * refresh
+     */
+    public synchronized void refresh() {
+        try {
+            DBCursor<NearbyAvailableLocations> cursor = locationsCollection.find();
+            List<ServiceArea> areas = new ArrayList<>();
+            for (NearbyAvailableLocations location : cursor.toArray()) {
+                if (location.getLocation() != null) {
+                    Double[] coordinates = location.getLocation().getCoordinates();
+                    areas.add(new CircleArea(coordinates[1], coordinates[0], radiusMiles));
+                }
+            }
+            cursor.close();
+            grid = build(areas);
+            LOGGER.info("loaded [" + areas.size() + "] service areas");
+        } catch (Exception e) {
+            LOGGER.error("could not load service areas, got error: " + e.getMessage());
+        }
+    }
+
+    public void start() throws Exception {
+        refresh();
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "service-area-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        refresher.scheduleWithFixedDelay(this::refresh, refreshMinutes, refreshMinutes, TimeUnit.MINUTES);
+    }
+
+    public void stop() throws Exception {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    static Map<Long, List<ServiceArea>> build(List<ServiceArea> areas) {
+        Map<Long, List<ServiceArea>> grid = new HashMap<>();
+        for (ServiceArea area : areas) {
+            double[] bounds = area.bounds();
+            long minLat = cellIndex(bounds[0]);
+            long maxLat = cellIndex(bounds[2]);
+            long minLng = cellIndex(bounds[1]);
+            long maxLng = cellIndex(bounds[3]);
+            for (long lat = minLat; lat <= maxLat; lat++) {
+                for (long lng = minLng; lng <= maxLng; lng++) {
+                    grid.computeIfAbsent(key(lat, lng), k -> new ArrayList<>()).add(area);
+                }
+            }
+        }
+        return grid;
+    }
+
+    private static long cell(double latitude, double longitude) {
+        return key(cellIndex(latitude), cellIndex(longitude));
+    }
+
+    private static long cellIndex(double degrees) {
+        return (long) Math.floor(degrees / GRID_DEGREES);
+    }
+
+    private static long key(long latCell, long lngCell) {
+        return (latCell << 32) | (lngCell & 0xffffffffL);
+    }
+
+    static double distanceMiles(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_MILES * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    static class CircleArea implements ServiceArea {
+        private double latitude;
+        private double longitude;
+        private double radiusMiles;
+
+        CircleArea(double latitude, double longitude, double radiusMiles) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radiusMiles = radiusMiles;
+        }
+
+        public double[] bounds() {
+            double latDelta = radiusMiles / MILES_PER_DEGREE_LATITUDE;
+            double cos = Math.max(Math.cos(Math.toRadians(latitude)), 0.01);
+            double lngDelta = Math.min(180, radiusMiles / (MILES_PER_DEGREE_LATITUDE * cos));
+            return new double[]{latitude - latDelta, longitude - lngDelta, latitude + latDelta, longitude + lngDelta};
+        }
+
+        public boolean contains(double latitude, double longitude) {
+            return distanceMiles(this.latitude, this.longitude, latitude, longitude) <= radiusMiles;
+        }
+    }
+}
@@ -4,7 +4,7 @@ import com.iuxta.nearby.NearbyUtils;
 import com.iuxta.nearby.dto.PaymentDto;
 import com.iuxta.nearby.dto.UserDto;
 import com.iuxta.nearby.exception.NotAllowedException;
-import com.iuxta.nearby.firebase.CcsServer;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
 import com.iuxta.nearby.model.Transaction;
 import com.iuxta.nearby.model.User;
 import com.iuxta.nearby.exception.InternalServerException;
@@ -45,20 +45,22 @@ public class StripeService {
 
     private String stripeSecretKey;
     private String stripePublishableKey;
-    private CcsServer ccsServer;
+    private NotificationDispatcher notificationDispatcher;
     private static final Logger LOGGER = LoggerFactory.getLogger(StripeService.class);
     private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private static final Currency USD = Currency.getInstance("USD");
     private static final RoundingMode DEFAULT_ROUNDING = RoundingMode.HALF_EVEN;
     private static final Double DECIMAL_FEE = 0.14;
 
 
     public StripeService(String stripeSecretKey, String stripePublishableKey,
-                         JacksonDBCollection<User, String> userCollection, CcsServer ccsServer) {
+                         JacksonDBCollection<User, String> userCollection, NotificationDispatcher notificationDispatcher, UserCache userCache) {
         this.stripeSecretKey = stripeSecretKey;
         this.stripePublishableKey = stripePublishableKey;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.userCache = userCache;
+        this.notificationDispatcher = notificationDispatcher;
     }
 
     private RequestOptions getRequestOptions() {
@@ -437,7 +439,7 @@ public class StripeService {
         } else {
             createStripeCustomer(user, userDto);
         }
-        userCollection.save(user);
+        userCache.save(user);
         return user;
     }
 
@@ -453,7 +455,7 @@ public class StripeService {
         } else {
             createStripeManagedAccount(user, userDto);
         }
-        userCollection.save(user);
+        userCache.save(user);
         return user;
     }
 
@@ -484,7 +486,7 @@ public class StripeService {
             updateStripeCustomer(user, userDto);
         } else {
             createStripeCustomer(user, userDto);
-            userCollection.save(user);
+            userCache.save(user);
         }
     }
 
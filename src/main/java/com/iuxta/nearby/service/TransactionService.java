@@ -5,8 +5,8 @@ import com.iuxta.nearby.dto.TransactionDto;
 import com.iuxta.nearby.exception.BadRequestException;
 import com.iuxta.nearby.exception.CredentialExpiredException;
 import com.iuxta.nearby.exception.UnauthorizedException;
-import com.iuxta.nearby.firebase.CcsServer;
 import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
 import com.iuxta.nearby.model.Request;
 import com.iuxta.nearby.model.Response;
 import com.iuxta.nearby.model.Transaction;
@@ -29,19 +29,27 @@ public class TransactionService {
     private JacksonDBCollection<Transaction, String> transactionCollection;
 
     private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
 
     private JacksonDBCollection<Request, String> requestCollection;
+    private RequestSearchIndex requestSearchIndex;
 
-    private CcsServer ccsServer;
+    private NotificationDispatcher notificationDispatcher;
+
+    private HistoryService historyService;
 
 
     public TransactionService(JacksonDBCollection<Transaction, String> transactionCollection,
-                              JacksonDBCollection<User, String> userCollection, CcsServer ccsServer,
-                              JacksonDBCollection<Request, String> requestCollection) {
+                              JacksonDBCollection<User, String> userCollection, NotificationDispatcher notificationDispatcher,
+                              JacksonDBCollection<Request, String> requestCollection, HistoryService historyService, UserCache userCache,
+                              RequestSearchIndex requestSearchIndex) {
         this.transactionCollection = transactionCollection;
         this.userCollection = userCollection;
-        this.ccsServer = ccsServer;
+        this.userCache = userCache;
+        this.notificationDispatcher = notificationDispatcher;
         this.requestCollection = requestCollection;
+        this.historyService = historyService;
+        this.requestSearchIndex = requestSearchIndex;
     }
 
     public String normalizeCode(String code) {
@@ -57,8 +65,8 @@ public class TransactionService {
         notification.put("message", "Payment of $" + price + " submitted to " +
                 seller.getFirstName() + " and transaction closed");
         notification.put("type", FirebaseUtils.NotificationTypes.payment_confirmed.name());
-        User buyer = userCollection.findOneById(requester.getId());
-        FirebaseUtils.sendFcmMessage(buyer, null, notification, ccsServer);
+        User buyer = userCache.get(requester.getId());
+        FirebaseUtils.sendFcmMessage(buyer, null, notification, notificationDispatcher);
     }
 
     public void enterReturnCode(Transaction transaction, Response response, Request request, String code) {
@@ -73,15 +81,15 @@ public class TransactionService {
                 transaction.setReturned(true);
                 transaction.setReturnTime(currentDate);
                 transaction.setReturned(true);
-                User seller = userCollection.findOneById(response.getResponderId());
+                User seller = userCache.get(response.getResponderId());
                 calculatePrice(transaction, response, request, seller);
                 JSONObject notification = new JSONObject();
                 notification.put("title", "Exchange Confirmed");
                 notification.put("message", "exchange confirmed!");
                 notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
-                User buyer = userCollection.findOneById(request.getUser().getId());
-                FirebaseUtils.sendFcmMessage(buyer, null, notification, ccsServer);
-                FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
+                User buyer = userCache.get(request.getUser().getId());
+                FirebaseUtils.sendFcmMessage(buyer, null, notification, notificationDispatcher);
+                FirebaseUtils.sendFcmMessage(seller, null, notification, notificationDispatcher);
             } else {
                 LOGGER.error("Transaction [" + transaction.getId() + "]'s return code has expired");
                 throw new CredentialExpiredException("This return code has expired. Ask the buyer to generate a new one.");
@@ -100,7 +108,7 @@ public class TransactionService {
         }
         if (normalizeCode(transaction.getExchangeCode()).equals(normalizeCode(code))) {
             if (transaction.getExchangeCodeExpireDate().after(new Date())) {
-                User seller = userCollection.findOneById(response.getResponderId());
+                User seller = userCache.get(response.getResponderId());
                 if (!request.isRental()) {
                     calculatePrice(transaction, response, request, seller);
                 }
@@ -108,13 +116,14 @@ public class TransactionService {
                 transaction.setExchangeTime(new Date());
                 transaction.setExchanged(true);
                 transactionCollection.save(transaction);
+                historyService.refresh(transaction.getRequestId());
                 JSONObject notification = new JSONObject();
                 notification.put("title", "Exchange Confirmed");
                 notification.put("message", "exchange confirmed!");
                 notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
-                FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
-                User buyer = userCollection.findOneById(request.getUser().getId());
-                FirebaseUtils.sendFcmMessage(buyer, null, notification, ccsServer);
+                FirebaseUtils.sendFcmMessage(seller, null, notification, notificationDispatcher);
+                User buyer = userCache.get(request.getUser().getId());
+                FirebaseUtils.sendFcmMessage(buyer, null, notification, notificationDispatcher);
             } else {
                 LOGGER.error("Transaction [" + transaction.getId() + "]'s code has expired");
                 throw new CredentialExpiredException("This exchange code has expired. Ask the seller to generate a new one.");
@@ -135,6 +144,7 @@ public class TransactionService {
                 transactionCollection.save(transaction);
                 request.setStatus(Request.Status.FULFILLED);
                 requestCollection.save(request);
+                requestSearchIndex.refresh(request.getId());
                 sendTransactionFulfilledNotification(transaction, seller, request.getUser());
             }
         } else {
@@ -145,6 +155,7 @@ public class TransactionService {
             transaction.setCalculatedPrice(price);
         }
         transactionCollection.save(transaction);
+        historyService.refresh(transaction.getRequestId());
     }
 
     public String generateCode(Transaction transaction, Request request, Response response, String userId) {
@@ -196,10 +207,10 @@ public class TransactionService {
             notification.put("message", msg);
             notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
             if (isNormalRequest) {
-                FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, ccsServer);
+                FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, notificationDispatcher);
             } else {
-                User buyer = userCollection.findOneById(response.getResponderId());
-                FirebaseUtils.sendFcmMessage(buyer, null, notification, ccsServer);
+                User buyer = userCache.get(response.getResponderId());
+                FirebaseUtils.sendFcmMessage(buyer, null, notification, notificationDispatcher);
             }
         } else {
             override.buyerAccepted = true;
@@ -211,13 +222,14 @@ public class TransactionService {
             notification.put("message", msg);
             notification.put("type", FirebaseUtils.NotificationTypes.exchange_confirmed.name());
             if (isNormalRequest) {
-                User seller = userCollection.findOneById(response.getResponderId());
-                FirebaseUtils.sendFcmMessage(seller, null, notification, ccsServer);
+                User seller = userCache.get(response.getResponderId());
+                FirebaseUtils.sendFcmMessage(seller, null, notification, notificationDispatcher);
             } else {
-                FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, ccsServer);
+                FirebaseUtils.sendFcmMessage(request.getUser(), null, notification, notificationDispatcher);
             }
         }
         transactionCollection.save(transaction);
+        historyService.refresh(transaction.getRequestId());
     }
 
     public void respondToExchangeOverride(Transaction transaction, TransactionDto dto, Response response,
@@ -250,7 +262,7 @@ public class TransactionService {
                     if (request.isInventoryListing()) {
                         seller = request.getUser();
                     } else {
-                        seller = userCollection.findOneById(response.getResponderId());
+                        seller = userCache.get(response.getResponderId());
                     }
                     calculatePrice(transaction, response, request, seller);
                 }
@@ -265,7 +277,7 @@ public class TransactionService {
             }
         }
         transactionCollection.save(transaction);
-
+        historyService.refresh(transaction.getRequestId());
     }
 
     private void confirmExchangeDidNotOccur(Transaction transaction, Boolean isSeller) {
@@ -320,6 +332,8 @@ public class TransactionService {
             transaction.setReturnCodeExpireDate(afterAddingMins);
         }
         transactionCollection.save(transaction);
+        // history rows embed the transaction, codes included
+        historyService.refresh(transaction.getRequestId());
         return code;
     }
 }
@@ -0,0 +1,87 @@
+package com.iuxta.nearby.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iuxta.nearby.model.TrackedDocument;
+import com.iuxta.nearby.model.User;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonDBCollection;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of users by id. Most user lookups (the authenticated user, the other side of a request or offer
+ * when sending a notification) hit the same few users within seconds of each other. The raw documents are cached and
+ * every lookup gets its own User, so callers can change and save what they get back.
+ *
+ * Anything that writes a user through this app must save it with {@link #save} or call {@link #invalidate} afterwards.
+ * Writes from other app instances are picked up once the entry expires.
+ */
+public class UserCache {
+
+    private JacksonDBCollection<User, String> userCollection;
+    private Cache<String, DBObject> cache;
+
+    public UserCache(JacksonDBCollection<User, String> userCollection, long maxSize, long ttlSeconds,
+                     MetricRegistry metrics) {
+        this.userCollection = userCollection;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        metrics.register(MetricRegistry.name(UserCache.class, "hits"),
+                (Gauge<Long>) () -> cache.stats().hitCount());
+        metrics.register(MetricRegistry.name(UserCache.class, "misses"),
+                (Gauge<Long>) () -> cache.stats().missCount());
+        metrics.register(MetricRegistry.name(UserCache.class, "hit-ratio"),
+                (Gauge<Double>) () -> cache.stats().hitRate());
+        metrics.register(MetricRegistry.name(UserCache.class, "evictions"),
+                (Gauge<Long>) () -> cache.stats().evictionCount());
+        metrics.register(MetricRegistry.name(UserCache.class, "size"),
+                (Gauge<Long>) () -> cache.size());
+    }
+
+    /**
+     * @param id
+     * @return the user, or null if there is no user with that id
+     */
+    public User get(String id) {
+        if (id == null || !ObjectId.isValid(id)) {
+            return userCollection.findOneById(id);
+        }
+        DBObject document = cache.getIfPresent(id);
+        if (document == null) {
+            document = userCollection.getDbCollection().findOne(new BasicDBObject("_id", new ObjectId(id)));
+            if (document == null) {
+                return null;
+            }
+            cache.put(id, document);
+        }
+        return userCollection.convertFromDbObject(document);
+    }
+
+    /**
+     * Saves the user's changes and drops the cached copy
+     *
+     * @param user
+     * @return false if there was nothing to save
+     */
+    public boolean save(User user) {
+        try {
+            return TrackedDocument.saveChanges(userCollection, user);
+        } finally {
+            invalidate(user.getId());
+        }
+    }
+
+    public void invalidate(String id) {
+        if (id != null) {
+            cache.invalidate(id);
+        }
+    }
+}
@@ -5,8 +5,8 @@ import com.iuxta.nearby.dto.UserDto;
 import com.iuxta.nearby.dto.UserFlagDto;
 import com.iuxta.nearby.exception.InternalServerException;
 import com.iuxta.nearby.exception.NotFoundException;
-import com.iuxta.nearby.firebase.CcsServer;
 import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
 import com.iuxta.nearby.model.*;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
@@ -17,18 +17,7 @@ import org.mongojack.JacksonDBCollection;
 import org.mongojack.WriteResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathFactory;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -42,19 +31,23 @@ public class UserService {
     private StripeService stripeService;
     private ResponseService responseService;
     private JacksonDBCollection<User, String> userCollection;
+    private UserCache userCache;
     private JacksonDBCollection<UserFlag, String> userFlagCollection;
-    private CcsServer ccsServer;
+    private NotificationDispatcher notificationDispatcher;
+    private GeocodingService geocodingService;
 
     public UserService(StripeService stripeService,
                        ResponseService responseService,
                        JacksonDBCollection<User, String> userCollection,
                        JacksonDBCollection<UserFlag, String> userFlagCollection,
-                       CcsServer ccsServer) {
+                       NotificationDispatcher notificationDispatcher, GeocodingService geocodingService, UserCache userCache) {
         this.stripeService = stripeService;
         this.userCollection = userCollection;
+        this.userCache = userCache;
         this.userFlagCollection = userFlagCollection;
-        this.ccsServer = ccsServer;
+        this.notificationDispatcher = notificationDispatcher;
         this.responseService = responseService;
+        this.geocodingService = geocodingService;
     }
 
 
@@ -95,36 +88,6 @@ public class UserService {
     }
 
 
-    public static Double[] getLatLongPositions(String address) throws Exception {
-        int responseCode = 0;
-        String api = "http://maps.googleapis.com/maps/api/geocode/xml?address=" + URLEncoder.encode(address, "UTF-8") +
-                "&sensor=true";
-        URL url = new URL(api);
-        HttpURLConnection httpConnection = (HttpURLConnection)url.openConnection();
-        httpConnection.connect();
-        responseCode = httpConnection.getResponseCode();
-        if(responseCode == 200) {
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            Document document = builder.parse(httpConnection.getInputStream());
-            XPathFactory xPathfactory = XPathFactory.newInstance();
-            XPath xpath = xPathfactory.newXPath();
-            XPathExpression expr = xpath.compile("/GeocodeResponse/status");
-            String status = (String)expr.evaluate(document, XPathConstants.STRING);
-            if(status.equals("OK")) {
-                expr = xpath.compile("//geometry/location/lat");
-                String latitude = (String)expr.evaluate(document, XPathConstants.STRING);
-                Double lat = Double.parseDouble(latitude);
-                expr = xpath.compile("//geometry/location/lng");
-                String longitude = (String)expr.evaluate(document, XPathConstants.STRING);
-                Double lng = Double.parseDouble(longitude);
-                return new Double[] {lat, lng};
-            } else {
-                throw new Exception("Error from the API - response status: " + status);
-            }
-        }
-        return null;
-    }
-
     private void setHomeLatLng(User user, UserDto dto) {
         String fullAddress = dto.address;
         if (StringUtils.isNotBlank(dto.addressLine2)) {
@@ -140,9 +103,8 @@ public class UserService {
             fullAddress += (" " + dto.zip);
         }
         try {
-            Double[] latLng = getLatLongPositions(fullAddress);
-            if (latLng != null) {
-                GeoJsonPoint loc = new GeoJsonPoint(latLng[1], latLng[0]);
+            GeoJsonPoint loc = geocodingService.geocode(fullAddress);
+            if (loc != null) {
                 user.setHomeLocation(loc);
             } else {
                 LOGGER.info("No geolocation found for address [" + fullAddress + "].");
@@ -159,7 +121,7 @@ public class UserService {
     }
 
     public UserFlag blockUser(User user, UserFlagDto dto, String flaggedUser) {
-        User blockedUser = userCollection.findOneById(flaggedUser);
+        User blockedUser = userCache.get(flaggedUser);
         if (blockedUser == null) {
             String msg = "Unable to block user [" + flaggedUser + "] because user was not found.";
             LOGGER.error(msg);
@@ -183,13 +145,8 @@ public class UserService {
     }
 
     public void addBlockedUser(User user, String userToBlock) {
-        List<String> blockedUsers = user.getBlockedUsers();
-        if (blockedUsers == null) {
-            blockedUsers = new ArrayList<String>();
-        }
-        blockedUsers.add(userToBlock);
-        user.setBlockedUsers(blockedUsers);
-        userCollection.save(user);
+        user.addBlockedUser(userToBlock);
+        userCache.save(user);
     }
 
     private void sendAdminFlagNotification(User user) {
@@ -203,7 +160,7 @@ public class UserService {
             notification.put("message", body);
             notification.put("type", FirebaseUtils.NotificationTypes.new_user_notification.name());
             for (User admin:admins) {
-                FirebaseUtils.sendFcmMessage(admin, null, notification, ccsServer);
+                FirebaseUtils.sendFcmMessage(admin, null, notification, notificationDispatcher);
             }        }
     }
 }
@@ -0,0 +1,227 @@
+package com.iuxta.nearby.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.iuxta.nearby.model.User;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import io.dropwizard.lifecycle.Managed;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a user's profile into the documents that embed a snapshot of it (the user on every request they posted) in
+ * the background, so saving a profile doesn't wait on rewriting everything the user ever posted. Each embedding
+ * collection is updated in chunks of chunkSize documents with a single multi-document $set per chunk, sleeping
+ * chunkDelay between chunks so a user with a long history doesn't flood the db. History rows embed the user in more
+ * than one shape (the poster on the request, the responder on each offer), so they are rebuilt with
+ * {@link HistoryService#refresh} instead, after the requests themselves have been updated.
+ *
+ * Jobs are keyed by user id; editing a profile again before its job runs doesn't queue a second job, the job always
+ * copies the latest saved profile. Jobs still queued when the app stops are finished for up to a few seconds, anything
+ * left after that is picked up the next time the user is saved.
+ */
+public class UserSnapshotPropagator implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UserSnapshotPropagator.class);
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private JacksonDBCollection<User, String> userCollection;
+    private List<EmbeddedUser> targets = new ArrayList<>();
+    private HistoryService historyService;
+    private int chunkSize;
+    private long chunkDelayMillis;
+    private BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private Map<String, Long> pending = new ConcurrentHashMap<>();
+    private ExecutorService worker;
+    private volatile boolean stopping;
+
+    private Meter propagated;
+    private Meter failed;
+    private Timer lag;
+
+    public UserSnapshotPropagator(JacksonDBCollection<User, String> userCollection, int chunkSize,
+                                  long chunkDelayMillis, MetricRegistry metrics) {
+        this.userCollection = userCollection;
+        this.chunkSize = chunkSize;
+        this.chunkDelayMillis = chunkDelayMillis;
+        metrics.register(MetricRegistry.name(UserSnapshotPropagator.class, "pending"),
+                (Gauge<Integer>) () -> pending.size());
+        metrics.register(MetricRegistry.name(UserSnapshotPropagator.class, "oldest-pending-millis"),
+                (Gauge<Long>) () -> pending.values().stream()
+                        .min(Long::compare)
+                        .map(enqueuedAt -> System.currentTimeMillis() - enqueuedAt)
+                        .orElse(0L));
+        this.propagated = metrics.meter(MetricRegistry.name(UserSnapshotPropagator.class, "documents-updated"));
+        this.failed = metrics.meter(MetricRegistry.name(UserSnapshotPropagator.class, "failed"));
+        this.lag = metrics.timer(MetricRegistry.name(UserSnapshotPropagator.class, "lag"));
+    }
+
+    /**
+     * Registers a collection whose documents embed a user under field
+     *
+     * @param collection
+     * @param field name of the embedded user, e.g. "user"
+     * @return this
+     */
+    public UserSnapshotPropagator embeddedIn(JacksonDBCollection<?, String> collection, String field) {
+        targets.add(new EmbeddedUser(collection.getDbCollection(), field));
+        return this;
+    }
+
+    /**
+     * Rebuilds the history rows that show the user after the embedded copies have been updated
+     *
+     * @param historyService
+     * @return this
+     */
+    public UserSnapshotPropagator refreshesHistory(HistoryService historyService) {
+        this.historyService = historyService;
+        return this;
+    }
+
+    /**
+     * Schedules copying the user's saved profile to every document that embeds it, never blocks
+     *
+     * @param userId
+     */
+    public void enqueue(String userId) {
+        if (pending.putIfAbsent(userId, System.currentTimeMillis()) == null) {
+            queue.offer(userId);
+        }
+    }
+
+    private void run() {
+        while (!stopping || !queue.isEmpty()) {
+            String userId;
+            try {
+                userId = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (userId == null) {
+                continue;
+            }
+            // a change made from here on needs a new job, this one may have already read the profile
+            Long enqueuedAt = pending.remove(userId);
+            try {
+                propagate(userId);
+                if (enqueuedAt != null) {
+                    lag.update(System.currentTimeMillis() - enqueuedAt, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                pending.putIfAbsent(userId, enqueuedAt != null ? enqueuedAt : System.currentTimeMillis());
+                return;
+            } catch (Exception e) {
+                failed.mark();
+                LOGGER.error("could not update embedded copies of user [" + userId + "], got error: " + e.getMessage());
+                if (!stopping) {
+                    enqueue(userId);
+                    try {
+                        Thread.sleep(RETRY_DELAY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void propagate(String userId) throws InterruptedException {
+        User user = userCollection.findOneById(userId);
+        if (user == null) {
+            LOGGER.info("not propagating user [" + userId + "], user no longer exists");
+            return;
+        }
+        DBObject snapshot = userCollection.convertToDbObject(user);
+        for (EmbeddedUser target : targets) {
+            int updated = target.update(new ObjectId(userId), snapshot);
+            LOGGER.info("updated [" + updated + "] " + target.collection.getName() + " documents for user [" + userId + "]");
+        }
+        if (historyService != null) {
+            List<String> requestIds = historyService.requestIdsShowing(userId);
+            for (int i = 0; i < requestIds.size(); i++) {
+                historyService.refresh(requestIds.get(i));
+                if ((i + 1) % chunkSize == 0 && i + 1 < requestIds.size() && chunkDelayMillis > 0) {
+                    Thread.sleep(chunkDelayMillis);
+                }
+            }
+            LOGGER.info("refreshed history for [" + requestIds.size() + "] requests for user [" + userId + "]");
+        }
+    }
+
+    public void start() throws Exception {
+        stopping = false;
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "user-snapshot-propagator");
+            t.setDaemon(true);
+            return t;
+        });
+        worker.execute(this::run);
+    }
+
+    public void stop() throws Exception {
+        stopping = true;
+        if (worker != null) {
+            worker.shutdown();
+            if (!worker.awaitTermination(5, TimeUnit.SECONDS)) {
+                worker.shutdownNow();
+                LOGGER.info("stopped user propagation with [" + pending.size() + "] users pending");
+            }
+        }
+    }
+
+    private class EmbeddedUser {
+        private DBCollection collection;
+        private String field;
+
+        EmbeddedUser(DBCollection collection, String field) {
+            this.collection = collection;
+            this.field = field;
+        }
+
+        int update(ObjectId userId, DBObject snapshot) throws InterruptedException {
+            DBObject byUser = new BasicDBObject(field + "._id", userId);
+            DBCursor ids = collection.find(byUser, new BasicDBObject("_id", 1)).batchSize(chunkSize);
+            int updated = 0;
+            try {
+                List<Object> chunk = new ArrayList<>(chunkSize);
+                while (ids.hasNext()) {
+                    chunk.add(ids.next().get("_id"));
+                    if (chunk.size() == chunkSize || !ids.hasNext()) {
+                        DBObject query = new BasicDBObject("_id", new BasicDBObject("$in", chunk))
+                                .append(field + "._id", userId);
+                        int n = collection.update(query, new BasicDBObject("$set",
+                                new BasicDBObject(field, snapshot)), false, true).getN();
+                        propagated.mark(n);
+                        updated += n;
+                        chunk.clear();
+                        if (ids.hasNext() && chunkDelayMillis > 0) {
+                            Thread.sleep(chunkDelayMillis);
+                        }
+                    }
+                }
+            } finally {
+                ids.close();
+            }
+            return updated;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.iuxta.nearby.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.WriteConcern;
+import io.dropwizard.lifecycle.Managed;
+import org.mongojack.JacksonDBCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects documents we only keep for analytics (search terms, searches outside our service area) and writes them in
+ * the background with unordered, unacknowledged bulk inserts, so the request that produced them doesn't wait on the
+ * db. The buffer is bounded, when it is full the oldest document is dropped. It is flushed every flushInterval, as soon
+ * as batchSize documents are waiting, and drained when the app shuts down.
+ */
+public class WriteBehindBuffer<T> implements Managed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindBuffer.class);
+
+    private JacksonDBCollection<T, String> collection;
+    private String name;
+    private BlockingQueue<T> buffer;
+    private int batchSize;
+    private long flushIntervalMillis;
+    private ScheduledExecutorService flusher;
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    private Meter written;
+    private Meter dropped;
+    private Meter failed;
+
+    public WriteBehindBuffer(JacksonDBCollection<T, String> collection, String name, int capacity, int batchSize,
+                             long flushIntervalMillis, MetricRegistry metrics) {
+        this.collection = collection;
+        this.name = name;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        metrics.register(MetricRegistry.name(WriteBehindBuffer.class, name, "buffered"),
+                (Gauge<Integer>) () -> buffer.size());
+        this.written = metrics.meter(MetricRegistry.name(WriteBehindBuffer.class, name, "written"));
+        this.dropped = metrics.meter(MetricRegistry.name(WriteBehindBuffer.class, name, "dropped"));
+        this.failed = metrics.meter(MetricRegistry.name(WriteBehindBuffer.class, name, "failed"));
+    }
+
+    /**
+     * Queues a document to be inserted, never blocks or throws
+     *
+     * @param document
+     */
+    public void add(T document) {
+        while (!buffer.offer(document)) {
+            if (buffer.poll() != null) {
+                dropped.mark();
+            }
+        }
+        if (buffer.size() >= batchSize && flusher != null && flushScheduled.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down, stop() drains the buffer
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes everything that is currently buffered, in batches of batchSize
+     */
+    public synchronized void flush() {
+        List<T> batch = new ArrayList<>(batchSize);
+        while (buffer.drainTo(batch, batchSize) > 0) {
+            try {
+                BulkWriteOperation bulk = collection.getDbCollection().initializeUnorderedBulkOperation();
+                batch.forEach(document -> bulk.insert(collection.convertToDbObject(document)));
+                bulk.execute(WriteConcern.UNACKNOWLEDGED);
+                written.mark(batch.size());
+            } catch (Exception e) {
+                failed.mark(batch.size());
+                LOGGER.error("could not write [" + batch.size() + "] " + name + ", got error: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    public void start() throws Exception {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "write-behind-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() throws Exception {
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        flush();
+        LOGGER.info("drained write-behind buffer for " + name);
+    }
+}
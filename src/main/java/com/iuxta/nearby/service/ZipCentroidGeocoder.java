@@ -0,0 +1,166 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.model.GeoJsonPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Geocodes US zip codes from a table of zip centroids without any network calls. Anything that isn't a zip code, or
+ * a zip that isn't in the table, is passed on to the fallback geocoder.
+ *
+ * The table is memory mapped from a binary file: a magic number and the row count, then every zip as an int in
+ * ascending order with no repeats, then the latitudes and the longitudes as floats in the same order. Lookups are a
+ * binary search over the zips. The table can also be built at startup from a csv of zip,latitude,longitude rows with
+ * {@link #fromCsv}.
+ */
+public class ZipCentroidGeocoder implements Geocoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZipCentroidGeocoder.class);
+
+    private static final int MAGIC = 0x5A495043;
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final Pattern ZIP = Pattern.compile("^(\\d{5})(-\\d{4})?$");
+
+    private IntBuffer zips;
+    private FloatBuffer latitudes;
+    private FloatBuffer longitudes;
+    private int size;
+    private Geocoder fallback;
+
+    /**
+     * @param table binary zip centroid table
+     * @param fallback used for addresses that aren't zip codes or aren't in the table
+     * @throws IOException if the table can't be read
+     */
+    public ZipCentroidGeocoder(Path table, Geocoder fallback) throws IOException {
+        this.fallback = fallback;
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(table, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("[" + table + "] is not a zip centroid table");
+        }
+        size = buffer.getInt(4);
+        if (buffer.capacity() != HEADER_BYTES + size * 12L) {
+            throw new IOException("zip centroid table [" + table + "] is truncated");
+        }
+        zips = slice(buffer, HEADER_BYTES).asIntBuffer();
+        latitudes = slice(buffer, HEADER_BYTES + size * 4).asFloatBuffer();
+        longitudes = slice(buffer, HEADER_BYTES + size * 8).asFloatBuffer();
+        LOGGER.info("loaded [" + size + "] zip centroids from [" + table + "]");
+    }
+
+    /**
+     * Builds a binary table from a csv of zip,latitude,longitude rows (a header row and quotes are fine) and maps it
+     *
+     * @param csv
+     * @param fallback
+     * @return
+     * @throws IOException if the csv can't be read or the table can't be written
+     */
+    public static ZipCentroidGeocoder fromCsv(Path csv, Geocoder fallback) throws IOException {
+        Path table = Files.createTempFile("zip-centroids", ".bin");
+        table.toFile().deleteOnExit();
+        try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8);
+             OutputStream out = Files.newOutputStream(table)) {
+            writeTable(reader, out);
+        }
+        return new ZipCentroidGeocoder(table, fallback);
+    }
+
+    /**
+     * @param csv zip,latitude,longitude rows, when a zip is listed more than once the last row is kept
+     * @param out
+     * @throws IOException
+     */
+    static void writeTable(BufferedReader csv, OutputStream out) throws IOException {
+        // sorted by zip, a later row for the same zip replaces the earlier one
+        TreeMap<Integer, float[]> rows = new TreeMap<>();
+        int duplicates = 0;
+        String line;
+        while ((line = csv.readLine()) != null) {
+            String[] fields = line.replace("\"", "").split(",");
+            if (fields.length < 3 || !ZIP.matcher(fields[0].trim()).matches()) {
+                continue;
+            }
+            try {
+                float lat = Float.parseFloat(fields[1].trim());
+                float lng = Float.parseFloat(fields[2].trim());
+                if (rows.put(Integer.parseInt(fields[0].trim().substring(0, 5)), new float[]{lat, lng}) != null) {
+                    duplicates++;
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.info("skipping zip centroid row [" + line + "]");
+            }
+        }
+        if (duplicates > 0) {
+            LOGGER.info("kept the last of [" + duplicates + "] repeated zip centroid rows");
+        }
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(rows.size());
+        for (int zip : rows.keySet()) {
+            data.writeInt(zip);
+        }
+        for (float[] centroid : rows.values()) {
+            data.writeFloat(centroid[0]);
+        }
+        for (float[] centroid : rows.values()) {
+            data.writeFloat(centroid[1]);
+        }
+        data.flush();
+    }
+
+    public GeoJsonPoint geocode(String address) throws IOException {
+        Matcher matcher = address == null ? null : ZIP.matcher(address.trim());
+        if (matcher != null && matcher.matches()) {
+            int index = indexOf(Integer.parseInt(matcher.group(1)));
+            if (index >= 0) {
+                return new GeoJsonPoint((double) longitudes.get(index), (double) latitudes.get(index));
+            }
+        }
+        return fallback.geocode(address);
+    }
+
+    private int indexOf(int zip) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = zips.get(mid);
+            if (value < zip) {
+                low = mid + 1;
+            } else if (value > zip) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        return duplicate.slice();
+    }
+}
@@ -0,0 +1,238 @@
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.nearby.GeoHash;
+import com.iuxta.nearby.firebase.AreaTopics;
+import com.iuxta.nearby.firebase.CcsConnectionPool;
+import com.iuxta.nearby.firebase.FirebaseUtils;
+import com.iuxta.nearby.firebase.InvalidTokenException;
+import com.iuxta.nearby.firebase.LocalCcsServer;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
+import com.iuxta.nearby.firebase.NotificationPayload;
+import com.iuxta.nearby.firebase.TopicRegistry;
+import com.iuxta.nearby.model.GeoJsonPoint;
+import com.iuxta.nearby.model.Request;
+import com.iuxta.nearby.model.User;
+import com.iuxta.nearby.service.UserCache;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Publishes a request to the area topics of a few hundred users on the local CCS stand-in and checks that a constant
+ * number of messages reaches every user whose radius covers the request.
+ */
+public class AreaTopicsTest extends CcsTestSupport {
+
+    private static final double LATITUDE = 39.2904;
+    private static final double LONGITUDE = -76.6122;
+    private static final double METERS_PER_MILE = 1609.344;
+
+    @Test
+    public void testEncode() {
+        assertEquals("u4pruydqqvj", GeoHash.encode(57.64911, 10.40744, 11));
+    }
+
+    @Test
+    public void testCoveringContainsCircle() {
+        double radius = 10 * METERS_PER_MILE;
+        Set<String> tiles = GeoHash.covering(LATITUDE, LONGITUDE, radius, 5);
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            double[] point = pointWithin(random, radius);
+            assertTrue(tiles.contains(GeoHash.encode(point[0], point[1], 5)));
+        }
+    }
+
+    @Test
+    public void testTopicMessagesHaveNoNotification() {
+        NotificationPayload payload = new NotificationPayload(FirebaseUtils.NotificationTypes.request_notification)
+                .title("Recent Requests")
+                .message("Ada requested a tent. Can you help out?")
+                .put("userId", "poster");
+
+        // iOS would show a notification block without asking the app, so the app is woken up to decide instead
+        JSONObject ios = new JSONObject(payload.toTopicMessage("area-ios-dqcjq", true, "m1"));
+        assertFalse(ios.has("notification"));
+        assertTrue(ios.getBoolean("content_available"));
+        assertEquals("poster", ios.getJSONObject("data").getString("userId"));
+
+        JSONObject android = new JSONObject(payload.toTopicMessage("area-android-dqcjq", false, "m2"));
+        assertFalse(android.has("content_available"));
+        assertEquals(0, android.getJSONObject("notification").length());
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        LocalCcsServer ccsServer = new LocalCcsServer();
+        CcsConnectionPool ccsConnections = new CcsConnectionPool(() -> ccsServer, 1, 0, new MetricRegistry());
+        NotificationDispatcher dispatcher = new NotificationDispatcher(ccsConnections, 1000, 1,
+                NotificationDispatcher.OverflowPolicy.DROP_OLDEST, 5, 1000, 30000, new MetricRegistry());
+        AreaTopics areaTopics = new AreaTopics(ccsServer, null, dispatcher, AreaTopics.Mode.TOPIC, 5,
+                new MetricRegistry());
+        Random random = new Random(11);
+        List<User> near = new ArrayList<>();
+        List<User> far = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            User user = new User("user", String.valueOf(i), String.valueOf(i));
+            user.setFcmRegistrationId("token-" + i);
+            user.setUserAgent(i % 2 == 0 ? "okhttp/3.8 android" : "Nearby/1.0 iOS");
+            // a few users with a radius big enough to be subscribed to coarser tiles
+            user.setNotificationRadius(i % 10 == 0 ? 60.0 : 5.0);
+            user.setHomeLocationNotifications(true);
+            user.setNewRequestNotificationsEnabled(true);
+            boolean isNear = i % 3 != 0;
+            double[] home = isNear ? pointWithin(random, user.getNotificationRadius() * METERS_PER_MILE) :
+                    new double[]{LATITUDE + 3, LONGITUDE + 3};
+            user.setHomeLocation(new GeoJsonPoint(home[1], home[0]));
+            ccsServer.subscribe(user.getFcmRegistrationId(), areaTopics.topicsFor(user));
+            (isNear ? near : far).add(user);
+        }
+
+        User poster = new User("Pat", "Smith", "poster");
+        poster.setId("5990c2d2e4b0d1a3c0d1a3c0");
+        Request request = new Request();
+        request.setId("5990c2d2e4b0d1a3c0d1a3c1");
+        request.setUser(poster);
+        request.setItemName("ladder");
+        request.setType(Request.Type.buying);
+        request.setLocation(new GeoJsonPoint(LONGITUDE, LATITUDE));
+
+        ccsConnections.start();
+        dispatcher.start();
+        areaTopics.publish(request);
+        dispatcher.stop();
+        ccsConnections.stop();
+
+        // one message per platform for precisions 5, 4 and 3, however many users there are
+        assertEquals(6, ccsServer.getSentCount());
+        assertEquals(6, ccsServer.getTopicMessageCount());
+        for (User user : near) {
+            assertEquals(1, ccsServer.getDeliveryCount(user.getFcmRegistrationId()));
+            assertTrue(ccsServer.getLastMessage(user.getFcmRegistrationId()).contains(request.getId()));
+        }
+        for (User user : far) {
+            assertEquals(0, ccsServer.getDeliveryCount(user.getFcmRegistrationId()));
+        }
+    }
+
+    @Test
+    public void testRejectedTokenIsNotRetried() throws Exception {
+        FlakyRegistry registry = new FlakyRegistry(new InvalidTokenException("NOT_FOUND"), 1);
+        MemoryUserCache userCache = new MemoryUserCache();
+        MetricRegistry metrics = new MetricRegistry();
+        AreaTopics areaTopics = new AreaTopics(registry, userCache, null, AreaTopics.Mode.TOPIC, 5, metrics);
+        User user = nearUser(userCache);
+        user.setAreaTopics(Collections.singletonList("area-android-dqcx8"));
+        user.setAreaTopicsToken(user.getFcmRegistrationId());
+        areaTopics.start();
+        areaTopics.updateSubscriptions(user.getId());
+        waitFor(() -> userCache.saved.get() == 1);
+        Thread.sleep(1500);
+        areaTopics.stop();
+
+        assertEquals(1, registry.calls.get());
+        assertNull(userCache.get(user.getId()).getAreaTopics());
+        assertNull(userCache.get(user.getId()).getAreaTopicsToken());
+        assertEquals(1, meter(metrics, AreaTopics.class, "invalid-tokens"));
+        assertEquals(0, meter(metrics, AreaTopics.class, "failed"));
+    }
+
+    @Test
+    public void testTransientFailureIsRetried() throws Exception {
+        FlakyRegistry registry = new FlakyRegistry(new IOException("INTERNAL"), 1);
+        MemoryUserCache userCache = new MemoryUserCache();
+        MetricRegistry metrics = new MetricRegistry();
+        AreaTopics areaTopics = new AreaTopics(registry, userCache, null, AreaTopics.Mode.TOPIC, 5, metrics);
+        User user = nearUser(userCache);
+        areaTopics.start();
+        areaTopics.updateSubscriptions(user.getId());
+        waitFor(() -> userCache.saved.get() == 1);
+        areaTopics.stop();
+
+        assertEquals(2, registry.calls.get());
+        assertEquals(areaTopics.topicsFor(user), userCache.get(user.getId()).getAreaTopics());
+        assertEquals(1, meter(metrics, AreaTopics.class, "failed"));
+    }
+
+    private static User nearUser(MemoryUserCache userCache) {
+        User user = new User("user", "near", "near");
+        user.setId("5990c2d2e4b0d1a3c0d1a3c2");
+        user.setFcmRegistrationId("token-near");
+        user.setUserAgent("okhttp/3.8 android");
+        user.setNotificationRadius(5.0);
+        user.setHomeLocationNotifications(true);
+        user.setNewRequestNotificationsEnabled(true);
+        user.setHomeLocation(new GeoJsonPoint(LONGITUDE, LATITUDE));
+        userCache.users.put(user.getId(), user);
+        return user;
+    }
+
+    /**
+     * Throws error from the first few subscribe calls
+     */
+    private static class FlakyRegistry implements TopicRegistry {
+        private IOException error;
+        private int failures;
+        private AtomicInteger calls = new AtomicInteger();
+
+        FlakyRegistry(IOException error, int failures) {
+            this.error = error;
+            this.failures = failures;
+        }
+
+        @Override
+        public void subscribe(String token, Collection<String> topics) throws IOException {
+            if (calls.incrementAndGet() <= failures) {
+                throw error;
+            }
+        }
+
+        @Override
+        public void unsubscribe(String token, Collection<String> topics) {
+        }
+    }
+
+    private static class MemoryUserCache extends UserCache {
+        private Map<String, User> users = new ConcurrentHashMap<>();
+        private AtomicInteger saved = new AtomicInteger();
+
+        MemoryUserCache() {
+            super(null, 10, 10, new MetricRegistry());
+        }
+
+        @Override
+        public User get(String id) {
+            return users.get(id);
+        }
+
+        @Override
+        public boolean save(User user) {
+            users.put(user.getId(), user);
+            saved.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static double[] pointWithin(Random random, double radiusMeters) {
+        double angle = random.nextDouble() * 2 * Math.PI;
+        double distance = random.nextDouble() * radiusMeters;
+        double latitude = LATITUDE + distance * Math.cos(angle) / 111320;
+        double longitude = LONGITUDE + distance * Math.sin(angle) / (111320 * Math.cos(Math.toRadians(latitude)));
+        return new double[]{latitude, longitude};
+    }
+}
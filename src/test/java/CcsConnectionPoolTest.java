@@ -0,0 +1,130 @@
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.nearby.firebase.CcsConnectionPool;
+import com.iuxta.nearby.firebase.CcsServer;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that messages are spread over the pool's connections and that a draining connection is replaced without
+ * losing the messages it still has in flight.
+ */
+public class CcsConnectionPoolTest extends CcsTestSupport {
+
+    @Test
+    public void testShardsAcrossConnections() throws Exception {
+        List<HeldCcsServer> opened = new CopyOnWriteArrayList<>();
+        MetricRegistry metrics = new MetricRegistry();
+        CcsConnectionPool ccsConnections = pool(opened, 3, metrics);
+        NotificationDispatcher dispatcher = dispatcher(ccsConnections, metrics, 30000);
+        ccsConnections.start();
+        dispatcher.start();
+        for (int i = 0; i < 30; i++) {
+            enqueue(dispatcher, "token-" + i);
+        }
+        waitFor(() -> ccsConnections.getInFlightCount() == 30);
+        for (HeldCcsServer ccsServer : opened) {
+            assertEquals(10, ccsServer.sent.size());
+            ccsServer.ackAll();
+        }
+        waitFor(() -> meter(metrics, NotificationDispatcher.class, "acked") == 30);
+        dispatcher.stop();
+        ccsConnections.stop();
+
+        assertEquals(3, opened.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(10, meter(metrics, CcsConnectionPool.class, "connection-" + i + ".sent"));
+            assertEquals(10, meter(metrics, CcsConnectionPool.class, "connection-" + i + ".acked"));
+        }
+    }
+
+    @Test
+    public void testReplacesDrainingConnection() throws Exception {
+        List<HeldCcsServer> opened = new CopyOnWriteArrayList<>();
+        MetricRegistry metrics = new MetricRegistry();
+        CcsConnectionPool ccsConnections = pool(opened, 2, metrics);
+        NotificationDispatcher dispatcher = dispatcher(ccsConnections, metrics, 30000);
+        ccsConnections.start();
+        dispatcher.start();
+        for (int i = 0; i < 10; i++) {
+            enqueue(dispatcher, "token-" + i);
+        }
+        waitFor(() -> ccsConnections.getInFlightCount() == 10);
+
+        HeldCcsServer drained = opened.get(0);
+        drained.drain();
+        waitFor(() -> opened.size() == 3 && ccsConnections.getRetiringCount() == 1);
+        assertTrue(ccsConnections.isAvailable());
+        assertEquals(2, ccsConnections.getUsableCount());
+
+        // nothing new goes to the draining connection, and it stays open until its messages are acked
+        for (int i = 10; i < 20; i++) {
+            enqueue(dispatcher, "token-" + i);
+        }
+        waitFor(() -> ccsConnections.getInFlightCount() == 20);
+        assertEquals(5, drained.sent.size());
+        Thread.sleep(1500);
+        assertFalse(drained.closed);
+        drained.ackAll();
+        waitFor(() -> drained.closed && ccsConnections.getRetiringCount() == 0);
+
+        opened.get(1).ackAll();
+        opened.get(2).ackAll();
+        waitFor(() -> meter(metrics, NotificationDispatcher.class, "acked") == 20);
+        dispatcher.stop();
+        ccsConnections.stop();
+
+        assertEquals(0, meter(metrics, NotificationDispatcher.class, "failed"));
+        assertEquals(1, meter(metrics, CcsConnectionPool.class, "replaced"));
+    }
+
+    private static CcsConnectionPool pool(List<HeldCcsServer> opened, int size, MetricRegistry metrics) {
+        return new CcsConnectionPool(() -> {
+            HeldCcsServer ccsServer = new HeldCcsServer();
+            opened.add(ccsServer);
+            return ccsServer;
+        }, size, 60000, metrics);
+    }
+
+    /**
+     * Records what it sends and only acks when told to
+     */
+    private static class HeldCcsServer extends CcsServer {
+        private List<String> sent = new CopyOnWriteArrayList<>();
+        private volatile boolean closed;
+
+        @Override
+        protected void send(String jsonRequest) {
+            sent.add(new JSONObject(jsonRequest).getString("message_id"));
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !closed;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            closed = true;
+        }
+
+        void ackAll() {
+            for (String messageId : sent) {
+                handleAckReceipt(new JSONObject().put("message_type", "ack").put("message_id", messageId));
+            }
+        }
+
+        void drain() {
+            handleControlMessage(new JSONObject().put("message_type", "control")
+                    .put("control_type", "CONNECTION_DRAINING"));
+        }
+    }
+}
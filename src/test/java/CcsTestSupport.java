@@ -0,0 +1,44 @@
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.nearby.firebase.CcsConnectionPool;
+import com.iuxta.nearby.firebase.CcsServer;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Setup shared by the tests that send through CCS stand-ins and wait for background threads
+ */
+public abstract class CcsTestSupport {
+
+    protected static NotificationDispatcher dispatcher(CcsConnectionPool ccsConnections, MetricRegistry metrics,
+                                                       long ackTimeoutMillis) {
+        return new NotificationDispatcher(ccsConnections, 1000, 2, NotificationDispatcher.OverflowPolicy.DROP_NEWEST,
+                5, 10, ackTimeoutMillis, metrics);
+    }
+
+    protected static void enqueue(NotificationDispatcher dispatcher, String token) {
+        String messageId = CcsServer.nextMessageId();
+        String message = CcsServer.createJsonMessage(token, messageId, new JSONObject().put("message", "hi"), null,
+                null, null, null);
+        dispatcher.enqueue(token, messageId, message);
+    }
+
+    protected static long meter(MetricRegistry metrics, Class<?> klass, String name) {
+        return metrics.meter(MetricRegistry.name(klass, name)).getCount();
+    }
+
+    /**
+     * Fails if condition isn't met within 10 seconds
+     */
+    protected static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out waiting", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.nearby.firebase.CcsConnectionPool;
+import com.iuxta.nearby.firebase.CcsServer;
+import com.iuxta.nearby.firebase.LocalCcsServer;
+import com.iuxta.nearby.firebase.NotificationDispatcher;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends through the local CCS stand-in and checks that nacks, a full in-flight window and missing acks are handled.
+ */
+public class NotificationDispatcherTest extends CcsTestSupport {
+
+    @Test
+    public void testRetriesRetriableNacks() throws Exception {
+        LocalCcsServer ccsServer = new LocalCcsServer();
+        MetricRegistry metrics = new MetricRegistry();
+        CcsConnectionPool ccsConnections = new CcsConnectionPool(() -> ccsServer, 1, 0, metrics);
+        NotificationDispatcher dispatcher = dispatcher(ccsConnections, metrics, 30000);
+        ccsServer.nackNext("SERVICE_UNAVAILABLE", 3);
+        ccsConnections.start();
+        dispatcher.start();
+        for (int i = 0; i < 10; i++) {
+            enqueue(dispatcher, "token-" + i);
+        }
+        waitFor(() -> ccsServer.getDeliveryCount() == 10);
+        dispatcher.stop();
+        ccsConnections.stop();
+
+        assertEquals(13, ccsServer.getSentCount());
+        assertEquals(3, meter(metrics, NotificationDispatcher.class, "nacks.SERVICE_UNAVAILABLE"));
+        assertEquals(3, meter(metrics, NotificationDispatcher.class, "retried"));
+        assertEquals(10, meter(metrics, NotificationDispatcher.class, "acked"));
+        assertEquals(0, meter(metrics, NotificationDispatcher.class, "failed"));
+        assertEquals(0, ccsServer.getInFlightCount());
+    }
+
+    @Test
+    public void testDoesNotRetryBadTokens() throws Exception {
+        LocalCcsServer ccsServer = new LocalCcsServer();
+        MetricRegistry metrics = new MetricRegistry();
+        CcsConnectionPool ccsConnections = new CcsConnectionPool(() -> ccsServer, 1, 0, metrics);
+        NotificationDispatcher dispatcher = dispatcher(ccsConnections, metrics, 30000);
+        ccsServer.nackNext("DEVICE_UNREGISTERED", 1);
+        ccsConnections.start();
+        dispatcher.start();
+        enqueue(dispatcher, "token-1");
+        enqueue(dispatcher, "token-2");
+        waitFor(() -> ccsServer.getSentCount() == 2);
+        dispatcher.stop();
+        ccsConnections.stop();
+
+        assertEquals(1, ccsServer.getDeliveryCount());
+        assertEquals(1, meter(metrics, NotificationDispatcher.class, "failed"));
+        assertEquals(0, meter(metrics, NotificationDispatcher.class, "retried"));
+    }
+
+    @Test
+    public void testWindowFillsAndUnackedMessagesAreRetried() throws Exception {
+        // a connection that never answers, like one that dropped without telling us
+        SilentCcsServer ccsServer = new SilentCcsServer();
+        MetricRegistry metrics = new MetricRegistry();
+        CcsConnectionPool ccsConnections = new CcsConnectionPool(() -> ccsServer, 1, 0, metrics);
+        NotificationDispatcher dispatcher = dispatcher(ccsConnections, metrics, 2000);
+        ccsConnections.start();
+        dispatcher.start();
+        for (int i = 0; i < CcsServer.MAX_IN_FLIGHT + 20; i++) {
+            enqueue(dispatcher, "token-" + i);
+        }
+        waitFor(() -> ccsServer.sent.get() == CcsServer.MAX_IN_FLIGHT);
+        assertEquals(CcsServer.MAX_IN_FLIGHT, ccsServer.getInFlightCount());
+        waitFor(() -> meter(metrics, NotificationDispatcher.class, "window-full") > 0);
+
+        // once the ack timeout passes the window is freed and the unacked messages are queued again
+        waitFor(() -> meter(metrics, NotificationDispatcher.class, "ack-timeouts") >= CcsServer.MAX_IN_FLIGHT);
+        assertTrue(meter(metrics, NotificationDispatcher.class, "retried") >= CcsServer.MAX_IN_FLIGHT);
+        waitFor(() -> ccsServer.sent.get() > CcsServer.MAX_IN_FLIGHT);
+        dispatcher.stop();
+        ccsConnections.stop();
+    }
+
+    @Test
+    public void testCallerRunsDoesNotWaitForConnection() throws Exception {
+        SilentCcsServer ccsServer = new SilentCcsServer();
+        MetricRegistry metrics = new MetricRegistry();
+        CcsConnectionPool ccsConnections = new CcsConnectionPool(() -> ccsServer, 1, 0, metrics);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(ccsConnections, 1, 1,
+                NotificationDispatcher.OverflowPolicy.CALLER_RUNS, 5, 10, 30000, metrics);
+        ccsConnections.start();
+        dispatcher.start();
+        ccsServer.connected = false;
+
+        // the worker holds the first message, the second fills the queue and the third runs on this thread
+        enqueue(dispatcher, "token-1");
+        waitFor(() -> dispatcher.getQueueDepth() == 0);
+        enqueue(dispatcher, "token-2");
+        long start = System.nanoTime();
+        enqueue(dispatcher, "token-3");
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+        assertTrue(meter(metrics, NotificationDispatcher.class, "unavailable") > 0);
+        assertTrue(meter(metrics, NotificationDispatcher.class, "retried") >= 1);
+
+        // nothing to wait for once stopping with no usable connection, the worker gives up right away
+        start = System.nanoTime();
+        dispatcher.stop();
+        ccsConnections.stop();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(0, ccsServer.sent.get());
+    }
+
+    private static class SilentCcsServer extends CcsServer {
+        private AtomicInteger sent = new AtomicInteger();
+        private volatile boolean connected = true;
+
+        @Override
+        protected void send(String jsonRequest) {
+            sent.incrementAndGet();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+    }
+}
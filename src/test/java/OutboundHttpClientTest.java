@@ -0,0 +1,126 @@
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.nearby.http.OutboundHttpClient;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives one host's circuit breaker through closed, open and half-open against a local http server, including a trial
+ * request whose handler throws.
+ */
+public class OutboundHttpClientTest {
+
+    private HttpServer server;
+    private OutboundHttpClient client;
+    private MetricRegistry metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ok", exchange -> respond(exchange, 200, "{\"ok\":true}"));
+        server.createContext("/fail", exchange -> respond(exchange, 503, "down"));
+        server.createContext("/html", exchange -> respond(exchange, 200, "<html>not json</html>"));
+        server.start();
+        metrics = new MetricRegistry();
+        // no retries, opens after 2 failures in a row for 1 second
+        client = new OutboundHttpClient(1000, 1000, 1000, 10, 10, 0, 2, 1, metrics);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        server.stop(0);
+    }
+
+    @Test
+    public void testCircuitOpensAndCloses() throws Exception {
+        assertFails("/fail");
+        assertFails("/fail");
+        assertRejected();
+
+        // the trial fails, so the circuit opens again
+        Thread.sleep(1100);
+        assertFails("/fail");
+        assertRejected();
+
+        // the trial succeeds and closes the circuit
+        Thread.sleep(1100);
+        assertTrue(json("/ok").getBoolean("ok"));
+        assertFails("/fail");
+        assertTrue(json("/ok").getBoolean("ok"));
+        assertEquals(2, metrics.meter(MetricRegistry.name(OutboundHttpClient.class, "localhost", "rejected"))
+                .getCount());
+    }
+
+    @Test
+    public void testThrowingHandlerReleasesTrial() throws Exception {
+        assertFails("/fail");
+        assertFails("/fail");
+        assertRejected();
+
+        Thread.sleep(1100);
+        try {
+            json("/html");
+            fail("expected the handler to throw");
+        } catch (JSONException e) {
+            // the handler's own error is passed through
+        }
+        // the next request is let through as a new trial instead of being rejected forever
+        assertTrue(json("/ok").getBoolean("ok"));
+        assertTrue(json("/ok").getBoolean("ok"));
+    }
+
+    private JSONObject json(String path) throws IOException {
+        return client.get(uri(path), response -> new JSONObject(EntityUtils.toString(response.getEntity())));
+    }
+
+    private void assertFails(String path) {
+        try {
+            json(path);
+            fail("expected [" + path + "] to fail");
+        } catch (HttpResponseException e) {
+            assertEquals(503, e.getStatusCode());
+        } catch (IOException e) {
+            fail("expected [" + path + "] to reach the server, got: " + e.getMessage());
+        }
+    }
+
+    private void assertRejected() {
+        try {
+            json("/ok");
+            fail("expected the circuit to be open");
+        } catch (HttpResponseException e) {
+            fail("expected the request to be rejected without calling the server");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("too many recent failures"));
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    private static void respond(com.sun.net.httpserver.HttpExchange exchange, int status, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
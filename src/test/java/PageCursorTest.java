@@ -0,0 +1,84 @@
+import com.iuxta.nearby.PageCursor;
+import com.iuxta.nearby.exception.BadRequestException;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PageCursorTest {
+
+    @Test
+    public void testRoundTrip() {
+        String id = new ObjectId().toHexString();
+        String cursor = PageCursor.encode(1475280000000L, id);
+        assertArrayEquals(new String[]{"1475280000000", id}, PageCursor.decode(cursor, 2));
+
+        // safe to put in a query param as is
+        assertFalse(cursor.contains("=") || cursor.contains("+") || cursor.contains("/"));
+
+        // empty parts are kept
+        assertArrayEquals(new String[]{"12.5", ""}, PageCursor.decode(PageCursor.encode(12.5, ""), 2));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testTooFewParts() {
+        PageCursor.decode(PageCursor.encode(1475280000000L), 2);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testTooManyParts() {
+        PageCursor.decode(PageCursor.encode(1475280000000L, new ObjectId(), "extra"), 2);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testNotBase64() {
+        PageCursor.decode("not*a*cursor", 2);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testPaddedBase64IsStillChecked() {
+        PageCursor.decode(Base64.getEncoder().encodeToString("no separator".getBytes(StandardCharsets.UTF_8)), 2);
+    }
+
+    @Test
+    public void testAfter() {
+        Date postDate = new Date(1475280000000L);
+        ObjectId id = new ObjectId();
+        BasicDBList or = PageCursor.after("postDate", postDate, id, true);
+        assertEquals(2, or.size());
+        assertEquals(new BasicDBObject("postDate", new BasicDBObject("$lt", postDate)), or.get(0));
+        assertEquals(new BasicDBObject("postDate", postDate).append("_id", new BasicDBObject("$lt", id)), or.get(1));
+
+        or = PageCursor.after("responseTime", postDate, id, false);
+        assertEquals(new BasicDBObject("responseTime", new BasicDBObject("$gt", postDate)), or.get(0));
+        assertEquals(new BasicDBObject("responseTime", postDate).append("_id", new BasicDBObject("$gt", id)),
+                or.get(1));
+    }
+
+    @Test
+    public void testAddOr() {
+        BasicDBList or = PageCursor.after("postDate", new Date(), new ObjectId(), true);
+        BasicDBObject query = new BasicDBObject("user.userId", "user-1");
+        PageCursor.addOr(query, or);
+        assertEquals(new BasicDBObject("user.userId", "user-1").append("$or", or), query);
+
+        // an $or that was already there isn't replaced
+        BasicDBList existing = new BasicDBList();
+        existing.add(new BasicDBObject("expireDate", null));
+        existing.add(new BasicDBObject("expireDate", new BasicDBObject("$gt", new Date())));
+        query = new BasicDBObject("user.userId", "user-1").append("$or", existing);
+        PageCursor.addOr(query, or);
+        BasicDBList and = new BasicDBList();
+        and.add(new BasicDBObject("$or", existing));
+        and.add(new BasicDBObject("$or", or));
+        assertEquals(new BasicDBObject("user.userId", "user-1").append("$and", and), query);
+    }
+}
@@ -0,0 +1,352 @@
+import com.iuxta.nearby.MongoIndexes;
+import com.iuxta.nearby.NearbyApplication;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the query shapes the services and resources build through explain() against a scratch db that has the indexes
+ * NearbyApplication declares when it wraps each collection, and fails if one of them scans a collection or examines
+ * far more documents than it returns. Starts an embedded mongod unless one is passed in, e.g. to check the plans of the
+ * version production runs:
+ *
+ * mvn test -Dmongo.uri=mongodb://localhost:27017
+ *
+ * When a query changes, change its shape here too.
+ */
+public class QueryPlanTest {
+
+    private static final String MONGO_URI = System.getProperty("mongo.uri");
+
+    // documents examined per document returned before a query counts as falling off its index. Loose enough for the
+    // filters applied after the index (status, expireDate, type), which drop about two thirds of the seeded requests
+    private static final int MAX_EXAMINED_PER_RETURNED = 10;
+
+    private static final double LATITUDE = 39.2904;
+    private static final double LONGITUDE = -76.6122;
+    private static final int USERS = 200;
+    private static final int REQUESTS = 2000;
+
+    private static MongodExecutable mongod;
+    private static MongoClient mongo;
+    private static DB db;
+    private static List<ObjectId> userIds = new ArrayList<>();
+    private static List<ObjectId> requestIds = new ArrayList<>();
+    private static List<ObjectId> responseIds = new ArrayList<>();
+
+    @BeforeClass
+    public static void seed() throws IOException {
+        if (MONGO_URI != null && !MONGO_URI.isEmpty()) {
+            mongo = new MongoClient(new MongoClientURI(MONGO_URI));
+        } else {
+            int port = Network.getFreeServerPort();
+            mongod = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+                    .version(Version.Main.PRODUCTION)
+                    .net(new Net(port, Network.localhostIsIPv6()))
+                    .build());
+            mongod.start();
+            mongo = new MongoClient("localhost", port);
+        }
+        db = mongo.getDB("nearby-query-plans-" + System.currentTimeMillis());
+        Random random = new Random(17);
+        Date now = new Date();
+
+        DBCollection users = db.getCollection("user");
+        for (int i = 0; i < USERS; i++) {
+            ObjectId id = new ObjectId();
+            userIds.add(id);
+            users.insert(new BasicDBObject("_id", id)
+                    .append("userId", "user" + i)
+                    .append("firstName", "user" + i)
+                    .append("admin", i < 2));
+        }
+
+        DBCollection requests = db.getCollection("request");
+        String[] types = {"buying", "renting", "loaning", "selling"};
+        for (int i = 0; i < REQUESTS; i++) {
+            ObjectId id = new ObjectId();
+            requestIds.add(id);
+            int poster = random.nextInt(USERS);
+            double[] coords = {LONGITUDE + (random.nextDouble() - 0.5) * 0.5,
+                    LATITUDE + (random.nextDouble() - 0.5) * 0.5};
+            BasicDBObject request = new BasicDBObject("_id", id)
+                    .append("user", new BasicDBObject("_id", userIds.get(poster)).append("userId", "user" + poster))
+                    .append("itemName", "item " + i)
+                    .append("type", types[i % types.length])
+                    .append("status", i % 5 == 0 ? "CLOSED" : "OPEN")
+                    .append("duplicate", false)
+                    .append("inappropriate", false)
+                    .append("postDate", new Date(now.getTime() - i * 60000L))
+                    .append("location", new BasicDBObject("type", "Point").append("coordinates", coords));
+            if (i % 2 == 0) {
+                request.append("expireDate", new Date(now.getTime() + (i % 4 == 0 ? 1 : -1) * 86400000L));
+            }
+            requests.insert(request);
+        }
+
+        DBCollection responses = db.getCollection("response");
+        DBCollection transactions = db.getCollection("transaction");
+        DBCollection responseFlags = db.getCollection("responseFlag");
+        for (int i = 0; i < REQUESTS; i++) {
+            for (int j = 0; j < 3; j++) {
+                ObjectId id = new ObjectId();
+                responseIds.add(id);
+                int responder = random.nextInt(USERS);
+                responses.insert(new BasicDBObject("_id", id)
+                        .append("requestId", requestIds.get(i).toString())
+                        .append("responderId", userIds.get(responder).toString())
+                        .append("sellerId", userIds.get(responder).toString())
+                        .append("responseStatus", j == 0 ? "PENDING" : "CLOSED")
+                        .append("responseTime", new Date(now.getTime() - (i * 3 + j) * 1000L)));
+                if (j == 0 && i % 3 == 0) {
+                    transactions.insert(new BasicDBObject("requestId", requestIds.get(i).toString())
+                            .append("responseId", id.toString())
+                            .append("sellerId", userIds.get(responder).toString())
+                            .append("buyerId", userIds.get(random.nextInt(USERS)).toString())
+                            .append("canceled", i % 9 == 0));
+                }
+                if (j == 1 && i % 10 == 0) {
+                    responseFlags.insert(new BasicDBObject("responseId", id.toString())
+                            .append("reporterId", userIds.get(random.nextInt(USERS)).toString())
+                            .append("status", "PENDING"));
+                }
+            }
+        }
+
+        DBCollection requestFlags = db.getCollection("requestFlag");
+        DBCollection history = db.getCollection("history");
+        for (int i = 0; i < REQUESTS; i++) {
+            if (i % 10 == 0) {
+                requestFlags.insert(new BasicDBObject("requestId", requestIds.get(i).toString())
+                        .append("reporterId", userIds.get(random.nextInt(USERS)).toString())
+                        .append("status", i % 20 == 0 ? "PENDING" : "RESOLVED"));
+            }
+            history.insert(new BasicDBObject("userId", userIds.get(random.nextInt(USERS)).toString())
+                    .append("requestId", requestIds.get(i).toString())
+                    .append("ownerId", userIds.get(random.nextInt(USERS)).toString())
+                    .append("kind", "requests")
+                    .append("date", new Date(now.getTime() - i * 60000L))
+                    .append("rank", ((long) (i % 7 == 0 ? 2 : i % 5 != 0 ? 1 : 0) << 44) + now.getTime() - i * 60000L));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            db.getCollection("geocodeCache").insert(new BasicDBObject("key", "zip:" + (21200 + i))
+                    .append("expiresAt", new Date(now.getTime() + 86400000L)));
+            db.getCollection("revokedSessions").insert(new BasicDBObject("tokenId", "token" + i)
+                    .append("expiresAt", new Date(now.getTime() + (i % 2 == 0 ? 1 : -1) * 3600000L)));
+        }
+
+        MongoIndexes indexes = new MongoIndexes();
+        NearbyApplication.userCollection(db, indexes);
+        NearbyApplication.requestCollection(db, indexes);
+        NearbyApplication.responseCollection(db, indexes);
+        NearbyApplication.transactionCollection(db, indexes);
+        NearbyApplication.requestFlagCollection(db, indexes);
+        NearbyApplication.responseFlagCollection(db, indexes);
+        NearbyApplication.historyCollection(db, indexes);
+        NearbyApplication.geocodeCacheCollection(db, indexes);
+        NearbyApplication.revokedSessionCollection(db, indexes);
+        List<String> report = indexes.reconcile(true);
+        for (String line : report) {
+            assertTrue(line, line.startsWith("created index"));
+        }
+    }
+
+    @AfterClass
+    public static void dropDb() {
+        if (db != null) {
+            db.dropDatabase();
+        }
+        if (mongo != null) {
+            mongo.close();
+        }
+        if (mongod != null) {
+            mongod.stop();
+        }
+    }
+
+    @Test
+    public void testRequestServiceQueries() {
+        String userId = "user" + 7;
+        // canCreateRequest, closeUserResponses
+        assertIndexed("open requests by user", "request",
+                new BasicDBObject("user.userId", userId).append("status", "OPEN"), null, 0);
+
+        // findRequests, sorted by distance and by newest
+        BasicDBObject nearby = nearbyRequests(10);
+        nearby.put("user.userId", new BasicDBObject("$ne", userId));
+        nearby.put("user._id", new BasicDBObject("$nin", Arrays.asList(userIds.get(1), userIds.get(2))));
+        nearby.put("type", new BasicDBObject("$in", Arrays.asList("buying", "renting")));
+        assertIndexed("nearby requests", "request", nearby, null, 21);
+        assertIndexed("newest nearby requests", "request", nearbyRequests(10),
+                new BasicDBObject("postDate", -1).append("_id", -1), 21);
+
+        // getPublicNearbyPosts
+        BasicDBObject publicPosts = nearbyRequests(10);
+        publicPosts.put("type", new BasicDBObject("$in", Arrays.asList("loaning", "selling")));
+        assertIndexed("public nearby posts", "request", publicPosts, new BasicDBObject("postDate", -1), 0);
+
+        // RequestSearchIndex#rebuild
+        assertIndexed("open requests", "request", new BasicDBObject("status", "OPEN"), null, 0);
+
+        // admins notified of new requests and flags
+        assertIndexed("admins", "user", new BasicDBObject("admin", true), null, 0);
+    }
+
+    @Test
+    public void testResponseServiceQueries() {
+        String requestId = requestIds.get(3).toString();
+        String userId = userIds.get(5).toString();
+        assertIndexed("pending responses by responder", "response",
+                new BasicDBObject("responderId", userId).append("responseStatus", "PENDING"), null, 0);
+        assertIndexed("other responses to a request", "response",
+                new BasicDBObject("requestId", requestId)
+                        .append("_id", new BasicDBObject("$ne", responseIds.get(9))), null, 0);
+        assertIndexed("pending responses by responder to a request", "response",
+                new BasicDBObject("responderId", userId).append("responseStatus", "PENDING")
+                        .append("requestId", requestId), null, 0);
+
+        // getOpenTransactions
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("buyerId", userId));
+        or.add(new BasicDBObject("sellerId", userId));
+        assertIndexed("open transactions by user", "transaction", new BasicDBObject("$or", or)
+                .append("finalPrice", new BasicDBObject("$exists", false))
+                .append("canceled", false), null, 0);
+        assertIndexed("transaction for an accepted response", "transaction",
+                new BasicDBObject("requestId", requestId).append("responseId", responseIds.get(9).toString())
+                        .append("sellerId", userId).append("canceled", false), null, 0);
+
+        assertIndexed("pending response flags", "responseFlag",
+                new BasicDBObject("responseId", responseIds.get(10).toString()).append("status", "PENDING"), null, 0);
+    }
+
+    @Test
+    public void testRequestFlagServiceQueries() {
+        assertIndexed("pending flags by reporter", "requestFlag",
+                new BasicDBObject("reporterId", userIds.get(3).toString())
+                        .append("requestId", requestIds.get(20).toString())
+                        .append("status", "PENDING"), null, 0);
+    }
+
+    @Test
+    public void testHistoryServiceQueries() {
+        String requestId = requestIds.get(11).toString();
+        assertIndexed("history page", "history", new BasicDBObject("userId", userIds.get(4).toString())
+                        .append("kind", new BasicDBObject("$in", Arrays.asList("requests", "offers"))),
+                new BasicDBObject("rank", -1).append("_id", -1), 21);
+        assertIndexed("history entries for a request", "history", new BasicDBObject("requestId", requestId), null, 0);
+        assertIndexed("history rows showing a user", "history", new BasicDBObject("$or", Arrays.asList(
+                new BasicDBObject("ownerId", userIds.get(4).toString()),
+                new BasicDBObject("userId", userIds.get(4).toString()))), null, 0);
+        assertIndexed("history row upserted by key", "history", new BasicDBObject("requestId", requestId)
+                .append("userId", userIds.get(4).toString()).append("responseId", null), null, 0);
+        assertIndexed("responses to a request by time", "response", new BasicDBObject("requestId", requestId),
+                new BasicDBObject("responseTime", -1), 0);
+        assertIndexed("transactions for a request", "transaction", new BasicDBObject("requestId", requestId), null, 0);
+        assertIndexed("requests by user", "request", new BasicDBObject("user._id", userIds.get(4)), null, 0);
+        assertIndexed("responses by user", "response",
+                new BasicDBObject("responderId", userIds.get(4).toString()), null, 0);
+    }
+
+    @Test
+    public void testResourceQueries() {
+        // UserResource#getAllUserRequests
+        assertIndexed("user's requests page", "request", new BasicDBObject("user.userId", "user" + 8),
+                new BasicDBObject("postDate", -1).append("_id", -1), 21);
+        // ResponsesResource#getRequestResponses and getMyResponses
+        String requestId = requestIds.get(12).toString();
+        assertIndexed("responses page", "response", new BasicDBObject("requestId", requestId),
+                new BasicDBObject("responseTime", -1).append("_id", -1), 21);
+        assertIndexed("my responses to a request", "response",
+                new BasicDBObject("requestId", requestId).append("sellerId", userIds.get(6).toString()), null, 0);
+    }
+
+    @Test
+    public void testAuthAndCacheQueries() {
+        assertIndexed("user by login id", "user", new BasicDBObject("userId", "user" + 9), null, 0);
+        assertIndexed("revoked sessions", "revokedSessions",
+                new BasicDBObject("expiresAt", new BasicDBObject("$gt", new Date())), null, 0);
+        assertIndexed("geocode cache", "geocodeCache", new BasicDBObject("key", "zip:21230"), null, 0);
+    }
+
+    /**
+     * The $near query findRequests and getPublicNearbyPosts start from
+     */
+    private static BasicDBObject nearbyRequests(double radiusMiles) {
+        BasicDBObject geometry = new BasicDBObject("type", "Point")
+                .append("coordinates", new double[]{LONGITUDE, LATITUDE});
+        BasicDBObject query = new BasicDBObject("location", new BasicDBObject("$near",
+                new BasicDBObject("$geometry", geometry).append("$maxDistance", radiusMiles * 1609.34)));
+        query.put("inappropriate", new BasicDBObject("$ne", true));
+        query.put("duplicate", false);
+        BasicDBList or = new BasicDBList();
+        or.add(new BasicDBObject("expireDate", new BasicDBObject("$gt", new Date())));
+        or.add(new BasicDBObject("expireDate", new BasicDBObject("$exists", false)));
+        query.put("$or", or);
+        query.put("status", "OPEN");
+        return query;
+    }
+
+    private static void assertIndexed(String shape, String collection, DBObject query, DBObject sort, int limit) {
+        DBCursor cursor = db.getCollection(collection).find(query);
+        if (sort != null) {
+            cursor.sort(sort);
+        }
+        if (limit > 0) {
+            cursor.limit(limit);
+        }
+        DBObject explain = cursor.explain();
+        DBObject plan = (DBObject) ((DBObject) explain.get("queryPlanner")).get("winningPlan");
+        List<String> stages = new ArrayList<>();
+        collectStages(plan, stages);
+        assertFalse(shape + " scans the " + collection + " collection: " + plan, stages.contains("COLLSCAN"));
+
+        DBObject stats = (DBObject) explain.get("executionStats");
+        long returned = ((Number) stats.get("nReturned")).longValue();
+        long examined = ((Number) stats.get("totalDocsExamined")).longValue();
+        assertTrue(shape + " examined [" + examined + "] documents to return [" + returned + "]: " + plan,
+                examined <= MAX_EXAMINED_PER_RETURNED * Math.max(returned, 1));
+    }
+
+    private static void collectStages(Object plan, List<String> stages) {
+        if (plan instanceof List) {
+            for (Object child : (List<?>) plan) {
+                collectStages(child, stages);
+            }
+        } else if (plan instanceof DBObject) {
+            DBObject stage = (DBObject) plan;
+            if (stage.containsField("stage")) {
+                stages.add(String.valueOf(stage.get("stage")));
+            }
+            for (String field : stage.keySet()) {
+                collectStages(stage.get(field), stages);
+            }
+        }
+    }
+}
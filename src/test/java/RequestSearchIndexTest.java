@@ -0,0 +1,327 @@
+import com.codahale.metrics.MetricRegistry;
+import com.iuxta.nearby.model.Category;
+import com.iuxta.nearby.model.GeoJsonPoint;
+import com.iuxta.nearby.model.Request;
+import com.iuxta.nearby.model.User;
+import com.iuxta.nearby.service.RequestSearchIndex;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexes requests held in a map standing in for the request collection, and checks stemming, filtering, sorting,
+ * paging and that refreshes are not lost or applied out of order.
+ */
+public class RequestSearchIndexTest {
+
+    private static final double LATITUDE = 38.9072;
+    private static final double LONGITUDE = -77.0369;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private Map<String, Request> db = new ConcurrentHashMap<>();
+    private MemorySearchIndex index;
+
+    @Before
+    public void setUp() {
+        index = new MemorySearchIndex(db);
+    }
+
+    @Test
+    public void testStemmedTermsMatch() throws Exception {
+        save(request("r1", "battery pack", 0, 0));
+        save(request("r2", "tent", 0, 0));
+        index.rebuild();
+        assertEquals(Collections.singletonList("r1"), ids(query("batteries"), null, 10));
+        assertEquals(Collections.singletonList("r2"), ids(query("tents"), null, 10));
+        assertEquals(Collections.singletonList("r1"), ids(query("The Batteries, for CAMPING!"), null, 10));
+        // nothing left to search for
+        assertEquals(Collections.emptyList(), ids(query("a the of"), null, 10));
+        assertEquals(Collections.emptyList(), ids(query(null), null, 10));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        long now = System.currentTimeMillis();
+        Request expired = request("expired", "tent", 0, 0);
+        expired.setExpireDate(new Date(now - HOUR));
+        save(expired);
+        Request mine = request("mine", "tent", 0, 0);
+        mine.getUser().setUserId("me");
+        save(mine);
+        Request blocked = request("blocked", "tent", 0, 0);
+        blocked.getUser().setId("blocked-user");
+        save(blocked);
+        Request buying = request("buying", "tent", 0, 0);
+        buying.setType(Request.Type.buying);
+        save(buying);
+        // about 7 miles north
+        save(request("far", "tent", 0.1, 0));
+        save(request("open", "tent", 0, 0));
+        Request closed = request("closed", "tent", 0, 0);
+        closed.setStatus(Request.Status.CLOSED);
+        save(closed);
+        Request inappropriate = request("inappropriate", "tent", 0, 0);
+        inappropriate.setInappropriate(true);
+        save(inappropriate);
+        Request duplicate = request("duplicate", "tent", 0, 0);
+        duplicate.setDuplicate(true);
+        save(duplicate);
+        index.rebuild();
+        assertEquals(6, index.size());
+
+        RequestSearchIndex.Query query = query("tent");
+        query.radiusMiles = 10;
+        assertEquals(set("expired", "mine", "blocked", "buying", "far", "open"), set(ids(query, null, 10)));
+        query.radiusMiles = 1;
+        assertEquals(set("expired", "mine", "blocked", "buying", "open"), set(ids(query, null, 10)));
+        query.expired = false;
+        assertEquals(set("mine", "blocked", "buying", "open"), set(ids(query, null, 10)));
+        query.excludePosterUserId = "me";
+        assertEquals(set("blocked", "buying", "open"), set(ids(query, null, 10)));
+        query.excludeUserIds = Collections.singletonList("blocked-user");
+        assertEquals(set("buying", "open"), set(ids(query, null, 10)));
+        query.types = set(Request.Type.renting.name(), Request.Type.loaning.name());
+        assertEquals(set("open"), set(ids(query, null, 10)));
+
+        query = query("tent");
+        query.expired = true;
+        assertEquals(set("expired"), set(ids(query, null, 10)));
+    }
+
+    @Test
+    public void testSortOrders() throws Exception {
+        long now = System.currentTimeMillis();
+        // best match: the item name counts more than the description
+        Request name = request("name", "kayak", 0.01, 0);
+        name.setPostDate(new Date(now - 3 * HOUR));
+        save(name);
+        Request description = request("description", "boat", 0, 0);
+        description.setDescription("a kayak or a canoe");
+        description.setPostDate(new Date(now - 2 * HOUR));
+        save(description);
+        Request category = request("category", "paddles", 0.02, 0);
+        Category water = new Category();
+        water.setName("kayak");
+        category.setCategory(water);
+        category.setPostDate(new Date(now - HOUR));
+        save(category);
+        index.rebuild();
+
+        RequestSearchIndex.Query query = query("kayak");
+        assertEquals(Arrays.asList("name", "category", "description"), ids(query, null, 10));
+        query.sort = RequestSearchIndex.Sort.DISTANCE;
+        assertEquals(Arrays.asList("description", "name", "category"), ids(query, null, 10));
+        query.sort = RequestSearchIndex.Sort.NEWEST;
+        assertEquals(Arrays.asList("category", "description", "name"), ids(query, null, 10));
+    }
+
+    @Test
+    public void testPagingAcrossTies() throws Exception {
+        // same text, place and post date, so only the id orders them
+        Date postDate = new Date();
+        for (String id : Arrays.asList("e", "c", "a", "d", "b")) {
+            Request request = request(id, "ladder", 0, 0);
+            request.setPostDate(postDate);
+            save(request);
+        }
+        save(request("z", "ladder ladder", 0, 0));
+        index.rebuild();
+
+        for (RequestSearchIndex.Sort sort : RequestSearchIndex.Sort.values()) {
+            RequestSearchIndex.Query query = query("ladder");
+            query.sort = sort;
+            List<String> all = ids(query, null, 10);
+            assertEquals(6, all.size());
+            List<String> paged = new ArrayList<>();
+            String cursor = null;
+            List<RequestSearchIndex.Match> page;
+            do {
+                page = index.search(query, cursor, 2);
+                page.forEach(m -> paged.add(m.id));
+                cursor = page.isEmpty() ? null : page.get(page.size() - 1).cursor;
+            } while (page.size() == 2);
+            assertEquals(sort.name(), all, paged);
+            List<String> tied = all.stream().filter(id -> !id.equals("z")).collect(Collectors.toList());
+            assertEquals(sort.name(), Arrays.asList("a", "b", "c", "d", "e"), tied);
+        }
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        save(request("r1", "tent", 0, 0));
+        index.rebuild();
+        save(request("r1", "kayak", 0, 0));
+        save(request("r2", "tent", 0, 0));
+        index.refresh("r1");
+        index.refresh("r2");
+        assertEquals(Collections.singletonList("r2"), ids(query("tent"), null, 10));
+        assertEquals(Collections.singletonList("r1"), ids(query("kayak"), null, 10));
+
+        Request closed = db.get("r2");
+        closed.setStatus(Request.Status.CLOSED);
+        index.refresh("r2");
+        assertEquals(Collections.emptyList(), ids(query("tent"), null, 10));
+        db.remove("r1");
+        index.refresh("r1");
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testRefreshDuringRebuild() throws Exception {
+        save(request("r1", "tent", 0, 0));
+        save(request("r2", "tent", 0, 0));
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        // the rebuild reads the db as it was before the refreshes below, and stops half way through
+        index.snapshot = Arrays.asList(request("r1", "tent", 0, 0), request("r2", "tent", 0, 0));
+        index.reading = reading;
+        index.proceed = proceed;
+        Thread rebuild = new Thread(index::rebuild);
+        rebuild.start();
+        assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+        save(request("r1", "kayak", 0, 0));
+        index.refresh("r1");
+        db.remove("r2");
+        index.refresh("r2");
+        save(request("r3", "tent", 0, 0));
+        index.refresh("r3");
+        proceed.countDown();
+        rebuild.join(10000);
+
+        assertEquals(Collections.singletonList("r3"), ids(query("tent"), null, 10));
+        assertEquals(Collections.singletonList("r1"), ids(query("kayak"), null, 10));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testRefreshesOfOneRequestApplyInOrder() throws Exception {
+        save(request("r1", "tent", 0, 0));
+        index.rebuild();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        // the first refresh reads the old version and is slow to apply it
+        index.stale = request("r1", "tent", 0, 0);
+        index.reading = reading;
+        index.proceed = proceed;
+        Thread slow = new Thread(() -> index.refresh("r1"));
+        slow.start();
+        assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+        save(request("r1", "kayak", 0, 0));
+        Thread fast = new Thread(() -> index.refresh("r1"));
+        fast.start();
+        Thread.sleep(200);
+        proceed.countDown();
+        slow.join(10000);
+        fast.join(10000);
+
+        assertEquals(Collections.emptyList(), ids(query("tent"), null, 10));
+        assertEquals(Collections.singletonList("r1"), ids(query("kayak"), null, 10));
+    }
+
+    private void save(Request request) {
+        db.put(request.getId(), request);
+    }
+
+    private List<String> ids(RequestSearchIndex.Query query, String after, int limit) {
+        return index.search(query, after, limit).stream().map(m -> m.id).collect(Collectors.toList());
+    }
+
+    private static RequestSearchIndex.Query query(String text) {
+        RequestSearchIndex.Query query = new RequestSearchIndex.Query();
+        query.text = text;
+        query.latitude = LATITUDE;
+        query.longitude = LONGITUDE;
+        query.radiusMiles = 10;
+        return query;
+    }
+
+    private static Request request(String id, String itemName, double north, double east) {
+        Request request = new Request();
+        request.setId(id);
+        request.setItemName(itemName);
+        request.setStatus(Request.Status.OPEN);
+        request.setType(Request.Type.renting);
+        request.setLocation(new GeoJsonPoint(LONGITUDE + east, LATITUDE + north));
+        request.setPostDate(new Date());
+        request.setExpireDate(new Date(System.currentTimeMillis() + HOUR));
+        User user = new User();
+        user.setId("user-" + id);
+        user.setUserId("poster-" + id);
+        request.setUser(user);
+        return request;
+    }
+
+    @SafeVarargs
+    private static <T> HashSet<T> set(T... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    private static HashSet<String> set(List<String> values) {
+        return new HashSet<>(values);
+    }
+
+    /**
+     * Reads requests from a map instead of the db. The first load of {@link #stale}'s id returns it, and a rebuild
+     * reads {@link #snapshot}, both signal reading and wait to proceed before going on
+     */
+    private static class MemorySearchIndex extends RequestSearchIndex {
+        private Map<String, Request> db;
+        private volatile List<Request> snapshot;
+        private volatile Request stale;
+        private volatile CountDownLatch reading;
+        private volatile CountDownLatch proceed;
+
+        MemorySearchIndex(Map<String, Request> db) {
+            super(null, 60, new MetricRegistry());
+            this.db = db;
+        }
+
+        @Override
+        protected Request load(String requestId) {
+            Request request = stale;
+            if (request != null && request.getId().equals(requestId)) {
+                stale = null;
+                pause();
+                return request;
+            }
+            return db.get(requestId);
+        }
+
+        @Override
+        protected void forEachOpen(Consumer<Request> each) {
+            List<Request> requests = snapshot != null ? snapshot : new ArrayList<>(db.values());
+            for (int i = 0; i < requests.size(); i++) {
+                if (i == 1 && snapshot != null) {
+                    pause();
+                }
+                each.accept(requests.get(i));
+            }
+        }
+
+        private void pause() {
+            reading.countDown();
+            try {
+                proceed.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import com.iuxta.nearby.auth.SessionTokenService;
+import com.iuxta.nearby.model.User;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Issues and verifies session tokens without a db, none of these touch the revokedSessions collection.
+ */
+public class SessionTokenServiceTest {
+
+    private static final String OLD_KEY = Base64.getEncoder().encodeToString(
+            "old secret, at least 32 bytes long".getBytes(StandardCharsets.UTF_8));
+    private static final String NEW_KEY = Base64.getEncoder().encodeToString(
+            "new secret, at least 32 bytes long".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    public void testRoundTrip() {
+        SessionTokenService sessions = service(24, "k1", "k1", OLD_KEY);
+        long before = System.currentTimeMillis();
+        String token = sessions.issue(user("user-1"));
+        SessionTokenService.SessionToken session = sessions.verify(token);
+        assertNotNull(session);
+        assertEquals("user-1", session.getUserId());
+        assertTrue(session.getIssuedAt() >= before && session.getIssuedAt() <= System.currentTimeMillis());
+        assertEquals(session.getIssuedAt() + 24 * 3600000L, session.getExpiresAt());
+        assertNotNull(session.getTokenId());
+
+        // every token gets its own id
+        assertNotEquals(session.getTokenId(), sessions.verify(sessions.issue(user("user-1"))).getTokenId());
+    }
+
+    @Test
+    public void testTamperedToken() {
+        SessionTokenService sessions = service(24, "k1", "k1", OLD_KEY);
+        String token = sessions.issue(user("user-1"));
+        String[] parts = token.split("\\.");
+
+        // someone else's user id with the original signature
+        String payload = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8)
+                .replace("user-1", "user-2");
+        String otherUser = parts[0] + "." + encode(payload) + "." + parts[2];
+        assertNull(sessions.verify(otherUser));
+
+        // a pushed out expiration
+        String[] fields = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8).split("\\|");
+        fields[2] = String.valueOf(Long.MAX_VALUE);
+        assertNull(sessions.verify(parts[0] + "." + encode(String.join("|", fields)) + "." + parts[2]));
+
+        byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+        signature[0] ^= 1;
+        assertNull(sessions.verify(parts[0] + "." + parts[1] + "." + encode(signature)));
+
+        assertNull(sessions.verify(parts[0] + "." + parts[1]));
+        assertNull(sessions.verify(parts[0] + "." + parts[1] + ".not*base64"));
+        assertNull(sessions.verify("garbage"));
+        assertNotNull(sessions.verify(token));
+    }
+
+    @Test
+    public void testUnknownKeyId() {
+        SessionTokenService old = service(24, "k1", "k1", OLD_KEY);
+        String token = old.issue(user("user-1"));
+
+        // k1 was dropped
+        SessionTokenService rotated = service(24, "k2", "k2", NEW_KEY);
+        assertNull(rotated.verify(token));
+
+        // claiming a different key id than the one that signed it
+        SessionTokenService both = service(24, "k2", "k1", OLD_KEY, "k2", NEW_KEY);
+        String[] parts = token.split("\\.");
+        assertNull(both.verify("k2." + parts[1] + "." + parts[2]));
+
+        // while k1 is still configured its tokens are accepted, new tokens are signed with k2
+        assertNotNull(both.verify(token));
+        String newToken = both.issue(user("user-1"));
+        assertTrue(newToken.startsWith("k2."));
+        assertNotNull(both.verify(newToken));
+        assertNull(old.verify(newToken));
+    }
+
+    @Test
+    public void testExpiry() {
+        SessionTokenService expired = service(0, "k1", "k1", OLD_KEY);
+        assertNull(expired.verify(expired.issue(user("user-1"))));
+
+        // an expired token can't be brought back by a server with a longer ttl
+        SessionTokenService sessions = service(24, "k1", "k1", OLD_KEY);
+        assertNull(sessions.verify(expired.issue(user("user-1"))));
+    }
+
+    @Test
+    public void testSessionsRevokedAt() throws Exception {
+        SessionTokenService sessions = service(24, "k1", "k1", OLD_KEY);
+        User user = user("user-1");
+        SessionTokenService.SessionToken before = sessions.verify(sessions.issue(user));
+        assertFalse(sessions.isRevokedFor(before, user));
+
+        Thread.sleep(5);
+        user.setSessionsRevokedAt(new Date());
+        Thread.sleep(5);
+        SessionTokenService.SessionToken after = sessions.verify(sessions.issue(user));
+        assertTrue(sessions.isRevokedFor(before, user));
+        assertFalse(sessions.isRevokedFor(after, user));
+
+        // issued in the same millisecond as the revocation counts as revoked
+        user.setSessionsRevokedAt(new Date(after.getIssuedAt()));
+        assertTrue(sessions.isRevokedFor(after, user));
+    }
+
+    @Test
+    public void testDisabledWithoutKeys() {
+        SessionTokenService sessions = new SessionTokenService(null, null, 24, null);
+        assertFalse(sessions.isEnabled());
+        assertNull(sessions.verify(service(24, "k1", "k1", OLD_KEY).issue(user("user-1"))));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testActiveKeyMustBeConfigured() {
+        service(24, "k2", "k1", OLD_KEY);
+    }
+
+    private static SessionTokenService service(long ttlHours, String activeKeyId, String... keyIdsAndSecrets) {
+        Map<String, String> keys = new HashMap<>();
+        for (int i = 0; i < keyIdsAndSecrets.length; i += 2) {
+            keys.put(keyIdsAndSecrets[i], keyIdsAndSecrets[i + 1]);
+        }
+        return new SessionTokenService(keys, activeKeyId, ttlHours, null);
+    }
+
+    private static User user(String id) {
+        User user = new User();
+        user.setId(id);
+        return user;
+    }
+
+    private static String encode(String value) {
+        return encode(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+}
@@ -0,0 +1,184 @@
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.iuxta.nearby.model.TrackedDocument;
+import com.iuxta.nearby.model.User;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mongojack.JacksonDBCollection;
+import org.mongojack.internal.MongoJackModule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Saves users through a collection that keeps one document in memory and records the updates sent to it, the client is
+ * never connected to a mongod.
+ */
+public class TrackedDocumentTest {
+
+    private MongoClient mongo;
+    private RecordingCollection dbCollection;
+    private JacksonDBCollection<User, String> users;
+    private ObjectId id = new ObjectId();
+
+    @Before
+    public void setUp() {
+        mongo = new MongoClient("localhost", 27017);
+        dbCollection = new RecordingCollection(mongo.getDB("nearby-tracked-documents"));
+        ObjectMapper trackingMapper = MongoJackModule.configure(new ObjectMapper())
+                .registerModule(TrackedDocument.MODULE);
+        users = JacksonDBCollection.wrap(dbCollection, User.class, String.class, trackingMapper);
+        BasicDBList blockedUsers = new BasicDBList();
+        blockedUsers.add("blocked-1");
+        dbCollection.stored = new BasicDBObject("_id", id)
+                .append("firstName", "Ada")
+                .append("lastName", "Lovelace")
+                .append("userId", "fb-1")
+                .append("phone", "5555555555")
+                .append("blockedUsers", blockedUsers);
+    }
+
+    @After
+    public void tearDown() {
+        mongo.close();
+    }
+
+    @Test
+    public void testUnchangedSaveIsNoOp() {
+        User user = read();
+        assertFalse(user.hasChanges());
+        assertFalse(TrackedDocument.saveChanges(users, user));
+
+        // setting a field to the value it already has isn't a change either
+        user.setFirstName("Ada");
+        user.setPhone("5555555555");
+        assertFalse(TrackedDocument.saveChanges(users, user));
+        assertTrue(dbCollection.updates.isEmpty());
+    }
+
+    @Test
+    public void testChangedFieldsAreSet() {
+        User user = read();
+        user.setFirstName("Augusta");
+        assertTrue(TrackedDocument.saveChanges(users, user));
+        assertEquals(1, dbCollection.updates.size());
+        assertEquals(new BasicDBObject("_id", id), dbCollection.queries.get(0));
+        assertEquals(new BasicDBObject("$set", new BasicDBObject("firstName", "Augusta")), dbCollection.updates.get(0));
+
+        // the changes were cleared by the save
+        assertFalse(user.hasChanges());
+        assertFalse(TrackedDocument.saveChanges(users, user));
+        assertEquals(1, dbCollection.updates.size());
+    }
+
+    @Test
+    public void testNullIsUnset() {
+        User user = read();
+        user.setPhone(null);
+        assertTrue(TrackedDocument.saveChanges(users, user));
+        DBObject update = dbCollection.updates.get(0);
+        assertEquals(new BasicDBObject("phone", ""), update.get("$unset"));
+        assertNull(update.get("$set"));
+    }
+
+    @Test
+    public void testAddBlockedUserIsPushed() {
+        User user = read();
+        user.addBlockedUser("blocked-2");
+        user.addBlockedUser("blocked-3");
+        assertTrue(TrackedDocument.saveChanges(users, user));
+        DBObject update = dbCollection.updates.get(0);
+        assertEquals(new BasicDBObject("blockedUsers",
+                new BasicDBObject("$each", Arrays.asList("blocked-2", "blocked-3"))), update.get("$push"));
+        assertNull(update.get("$set"));
+
+        // a list that was also set is written whole instead
+        user.setBlockedUsers(new ArrayList<>(Arrays.asList("blocked-1")));
+        user.addBlockedUser("blocked-4");
+        assertTrue(TrackedDocument.saveChanges(users, user));
+        update = dbCollection.updates.get(1);
+        assertNull(update.get("$push"));
+        assertEquals(Arrays.asList("blocked-1", "blocked-4"), ((DBObject) update.get("$set")).get("blockedUsers"));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        User user = read();
+        user.setFirstName("Augusta");
+        user.setPhone(null);
+        user.setTosAccepted(true);
+        user.addBlockedUser("blocked-2");
+        assertTrue(TrackedDocument.saveChanges(users, user));
+        DBObject update = dbCollection.updates.get(0);
+        assertEquals(new BasicDBObject("firstName", "Augusta").append("tosAccepted", true), update.get("$set"));
+
+        User reread = read();
+        assertFalse(reread.hasChanges());
+        assertEquals(id.toString(), reread.getId());
+        assertEquals("Augusta", reread.getFirstName());
+        assertEquals("Lovelace", reread.getLastName());
+        assertNull(reread.getPhone());
+        assertEquals(true, reread.getTosAccepted());
+        assertEquals(Arrays.asList("blocked-1", "blocked-2"), reread.getBlockedUsers());
+        assertFalse(TrackedDocument.saveChanges(users, reread));
+    }
+
+    private User read() {
+        return users.convertFromDbObject(new BasicDBObject(dbCollection.stored.toMap()));
+    }
+
+    /**
+     * Holds one document and applies the $set, $unset and $push updates sent to it
+     */
+    private static class RecordingCollection extends DBCollection {
+        private BasicDBObject stored;
+        private List<DBObject> queries = new ArrayList<>();
+        private List<DBObject> updates = new ArrayList<>();
+
+        RecordingCollection(DB db) {
+            super(db, "user");
+        }
+
+        @Override
+        public WriteResult update(DBObject query, DBObject update, boolean upsert, boolean multi,
+                                  WriteConcern concern) {
+            queries.add(query);
+            updates.add(update);
+            DBObject set = (DBObject) update.get("$set");
+            if (set != null) {
+                set.keySet().forEach(field -> stored.put(field, set.get(field)));
+            }
+            DBObject unset = (DBObject) update.get("$unset");
+            if (unset != null) {
+                unset.keySet().forEach(stored::remove);
+            }
+            DBObject push = (DBObject) update.get("$push");
+            if (push != null) {
+                for (String field : push.keySet()) {
+                    List<Object> values = new ArrayList<>();
+                    if (stored.get(field) != null) {
+                        values.addAll((List<?>) stored.get(field));
+                    }
+                    values.addAll((List<?>) ((DBObject) push.get(field)).get("$each"));
+                    stored.put(field, values);
+                }
+            }
+            return new WriteResult(1, true, null);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.PageCursor;
+import com.iuxta.nearby.exception.BadRequestException;
+import com.iuxta.nearby.model.GeoJsonPoint;
+import com.iuxta.nearby.model.Request;
+import com.mongodb.BasicDBObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pages through requests sorted by distance the way findRequests does, against an in memory stand in for $near that
+ * measures distances a little differently than we do and breaks ties in any order.
+ */
+public class DistanceCursorTest {
+
+    private static final double LATITUDE = 39.7392;
+    private static final double LONGITUDE = -104.9903;
+
+    @Test
+    public void testEveryRequestOnce() {
+        Random random = new Random(17);
+        List<Request> requests = new ArrayList<>();
+        // rings of requests at the same point, so whole pages are ties
+        for (int ring = 1; ring <= 6; ring++) {
+            for (int i = 0; i < 7; i++) {
+                requests.add(request(LATITUDE + ring * 0.001, LONGITUDE));
+            }
+        }
+        // requests a few centimeters apart, closer than the distances are off by
+        for (int i = 0; i < 15; i++) {
+            requests.add(request(LATITUDE + 0.01 + i * 0.0000003, LONGITUDE + 0.01));
+        }
+        for (int i = 0; i < 30; i++) {
+            requests.add(request(LATITUDE + random.nextDouble() * 0.05, LONGITUDE + random.nextDouble() * 0.05));
+        }
+        for (int limit : new int[]{1, 2, 3, 5, 7, 20}) {
+            List<String> returned = pageThrough(requests, limit, random);
+            assertEquals("limit " + limit, requests.size(), returned.size());
+            assertEquals("limit " + limit, requests.size(), new HashSet<>(returned).size());
+        }
+    }
+
+    @Test
+    public void testNarrow() {
+        ObjectId seen = new ObjectId();
+        RequestService.DistanceCursor cursor =
+                RequestService.DistanceCursor.decode(PageCursor.encode(1500.5, seen.toHexString()));
+        BasicDBObject query = new BasicDBObject("location", new BasicDBObject("$near", new BasicDBObject()));
+        cursor.narrow(query);
+        BasicDBObject near = (BasicDBObject) ((BasicDBObject) query.get("location")).get("$near");
+        assertEquals(1499.5, near.getDouble("$minDistance"), 0);
+        assertEquals(Collections.singletonList(seen), ((BasicDBObject) query.get("_id")).get("$nin"));
+
+        // never a negative $minDistance
+        query = new BasicDBObject("location", new BasicDBObject("$near", new BasicDBObject()));
+        RequestService.DistanceCursor.decode(PageCursor.encode(0.2, seen.toHexString())).narrow(query);
+        near = (BasicDBObject) ((BasicDBObject) query.get("location")).get("$near");
+        assertEquals(0, near.getDouble("$minDistance"), 0);
+    }
+
+    @Test
+    public void testAfterOnlyKeepsNearbyIds() {
+        Request near = request(LATITUDE + 0.001, LONGITUDE);
+        Request tie = request(LATITUDE + 0.02, LONGITUDE);
+        Request last = request(LATITUDE + 0.02, LONGITUDE);
+        RequestService.DistanceCursor previous = new RequestService.DistanceCursor();
+        previous.distance = 10;
+        previous.seen.add(new ObjectId());
+
+        // the previous page ended too far back to matter
+        RequestService.DistanceCursor cursor = RequestService.DistanceCursor.decode(
+                RequestService.DistanceCursor.after(listOf(near, tie, last), LATITUDE, LONGITUDE, previous));
+        assertEquals(distance(last), cursor.distance, 0.000001);
+        assertEquals(listOf(tie.getId(), last.getId()), ids(cursor.seen));
+
+        // everything on the page and the previous page was at about the same distance
+        previous.distance = distance(last) - 0.5;
+        cursor = RequestService.DistanceCursor.decode(
+                RequestService.DistanceCursor.after(listOf(tie, last), LATITUDE, LONGITUDE, previous));
+        assertEquals(listOf(previous.seen.get(0).toHexString(), tie.getId(), last.getId()), ids(cursor.seen));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testBadSeenId() {
+        RequestService.DistanceCursor.decode(PageCursor.encode(12.5, "not-an-id"));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testBadDistance() {
+        RequestService.DistanceCursor.decode(PageCursor.encode("far", new ObjectId().toHexString()));
+    }
+
+    /**
+     * @return the ids in the order the pages returned them
+     */
+    private static List<String> pageThrough(List<Request> requests, int limit, Random random) {
+        // mongo's distances are up to 20cm off from ours
+        Map<String, Double> mongoDistances = new HashMap<>();
+        requests.forEach(r -> mongoDistances.put(r.getId(), distance(r) + (random.nextDouble() - 0.5) * 0.4));
+        List<String> returned = new ArrayList<>();
+        RequestService.DistanceCursor after = null;
+        for (int pages = 0; pages <= requests.size(); pages++) {
+            BasicDBObject query = new BasicDBObject("location", new BasicDBObject("$near", new BasicDBObject()));
+            if (after != null) {
+                after.narrow(query);
+            }
+            List<Request> page = near(requests, mongoDistances, query, limit + 1, random);
+            if (page.size() <= limit) {
+                page.forEach(r -> returned.add(r.getId()));
+                return returned;
+            }
+            page = page.subList(0, limit);
+            page.forEach(r -> returned.add(r.getId()));
+            String cursor = RequestService.DistanceCursor.after(page, LATITUDE, LONGITUDE, after);
+            after = RequestService.DistanceCursor.decode(cursor);
+        }
+        throw new AssertionError("never ran out of pages");
+    }
+
+    /**
+     * Runs the $minDistance and _id $nin parts of the query, closest first with ties in a random order
+     */
+    private static List<Request> near(List<Request> requests, Map<String, Double> mongoDistances,
+                                      BasicDBObject query, int limit, Random random) {
+        BasicDBObject near = (BasicDBObject) ((BasicDBObject) query.get("location")).get("$near");
+        double minDistance = near.containsField("$minDistance") ? near.getDouble("$minDistance") : 0;
+        Set<String> nin = new HashSet<>();
+        if (query.containsField("_id")) {
+            nin.addAll(ids((List<ObjectId>) ((BasicDBObject) query.get("_id")).get("$nin")));
+        }
+        List<Request> matches = requests.stream()
+                .filter(r -> mongoDistances.get(r.getId()) >= minDistance && !nin.contains(r.getId()))
+                .collect(Collectors.toList());
+        Collections.shuffle(matches, random);
+        matches.sort(Comparator.comparing(r -> mongoDistances.get(r.getId())));
+        return matches.subList(0, Math.min(limit, matches.size()));
+    }
+
+    private static Request request(double latitude, double longitude) {
+        Request request = new Request();
+        request.setId(new ObjectId().toHexString());
+        request.setLocation(new GeoJsonPoint(longitude, latitude));
+        return request;
+    }
+
+    private static double distance(Request request) {
+        return RequestService.metersBetween(LATITUDE, LONGITUDE, request.getLocation().getCoordinates()[1],
+                request.getLocation().getCoordinates()[0]);
+    }
+
+    private static List<String> ids(List<ObjectId> ids) {
+        return ids.stream().map(ObjectId::toHexString).collect(Collectors.toList());
+    }
+
+    @SafeVarargs
+    private static <T> List<T> listOf(T... values) {
+        List<T> list = new ArrayList<>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
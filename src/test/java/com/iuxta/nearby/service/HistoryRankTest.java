@@ -0,0 +1,121 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.dto.HistoryDto;
+import com.iuxta.nearby.dto.RequestDto;
+import com.iuxta.nearby.dto.ResponseDto;
+import com.iuxta.nearby.dto.UserDto;
+import com.iuxta.nearby.model.HistoryComparator;
+import com.iuxta.nearby.model.HistoryEntry;
+import com.iuxta.nearby.model.Request;
+import com.iuxta.nearby.model.Response;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that sorting history rows by rank descending puts them in the same order as {@link HistoryComparator}, for
+ * the user's own requests and their responses to other users' requests in every status.
+ */
+public class HistoryRankTest {
+
+    private static final String USER_ID = "user-1";
+
+    @Test
+    public void testRankMatchesComparator() {
+        Random random = new Random(4);
+        List<Row> rows = new ArrayList<>();
+        // a few shared dates so rows tie across buckets too
+        long[] sharedDates = {0, 1475280000000L, (1L << 44) - 1};
+        for (Request.Status requestStatus : Request.Status.values()) {
+            for (long date : sharedDates) {
+                rows.add(requestRow(requestStatus, date));
+            }
+            for (int i = 0; i < 3; i++) {
+                rows.add(requestRow(requestStatus, randomDate(random)));
+            }
+            for (Response.Status responseStatus : Response.Status.values()) {
+                for (long date : sharedDates) {
+                    rows.add(responseRow(responseStatus, requestStatus, date));
+                }
+                for (int i = 0; i < 3; i++) {
+                    rows.add(responseRow(responseStatus, requestStatus, randomDate(random)));
+                }
+            }
+        }
+
+        HistoryComparator comparator = new HistoryComparator(USER_ID);
+        for (Row a : rows) {
+            for (Row b : rows) {
+                assertEquals(a + " vs " + b, Integer.signum(comparator.compare(a.history, b.history)),
+                        Long.signum(Long.compare(b.rank, a.rank)));
+            }
+        }
+
+        // and the sorts agree end to end
+        List<Row> byComparator = new ArrayList<>(rows);
+        Collections.shuffle(byComparator, random);
+        byComparator.sort((a, b) -> comparator.compare(a.history, b.history));
+        List<Row> byRank = new ArrayList<>(rows);
+        Collections.shuffle(byRank, random);
+        byRank.sort((a, b) -> Long.compare(b.rank, a.rank));
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(byComparator.get(i).rank, byRank.get(i).rank);
+        }
+    }
+
+    private static long randomDate(Random random) {
+        return random.nextLong() & ((1L << 44) - 1);
+    }
+
+    private static Row requestRow(Request.Status status, long date) {
+        HistoryDto history = new HistoryDto();
+        history.request = request(USER_ID, status, new Date(date));
+        long rank = HistoryEntry.rank(HistoryService.requestBucket(status), history.request.postDate);
+        return new Row(history, rank, "request " + status + " " + date);
+    }
+
+    private static Row responseRow(Response.Status responseStatus, Request.Status requestStatus, long date) {
+        HistoryDto history = new HistoryDto();
+        // the post date is never looked at for a response row
+        history.request = request("user-2", requestStatus, new Date(0));
+        ResponseDto response = new ResponseDto();
+        response.responseStatus = responseStatus.toString();
+        response.responseTime = new Date(date);
+        history.responses = Collections.singletonList(response);
+        long rank = HistoryEntry.rank(HistoryService.responseBucket(responseStatus, requestStatus),
+                response.responseTime);
+        return new Row(history, rank, "response " + responseStatus + " to " + requestStatus + " " + date);
+    }
+
+    private static RequestDto request(String userId, Request.Status status, Date postDate) {
+        RequestDto request = new RequestDto();
+        request.user = new UserDto();
+        request.user.id = userId;
+        request.status = status.toString();
+        request.postDate = postDate;
+        return request;
+    }
+
+    private static class Row {
+        private HistoryDto history;
+        private long rank;
+        private String description;
+
+        Row(HistoryDto history, long rank, String description) {
+            this.history = history;
+            this.rank = rank;
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+}
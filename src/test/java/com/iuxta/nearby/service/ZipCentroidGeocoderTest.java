@@ -0,0 +1,166 @@
+package com.iuxta.nearby.service;
+
+import com.iuxta.nearby.model.GeoJsonPoint;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes centroid tables to temp files and geocodes from them, with a fallback that records what it was asked for.
+ */
+public class ZipCentroidGeocoderTest {
+
+    private static final GeoJsonPoint FALLBACK = new GeoJsonPoint(0.0, 0.0);
+
+    private List<Path> files = new ArrayList<>();
+    private List<String> fellBack = new ArrayList<>();
+    private Geocoder fallback = address -> {
+        fellBack.add(address);
+        return FALLBACK;
+    };
+
+    @After
+    public void tearDown() throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ZipCentroidGeocoder geocoder = new ZipCentroidGeocoder(table(
+                "\"zip\",\"latitude\",\"longitude\"",
+                "21201,39.2946,-76.6252",
+                "\"00601\",\"18.1805\",\"-66.7499\"",
+                "99950,55.5424,-131.4322",
+                "not a zip,1,2",
+                "10001,forty,-73.9970",
+                "10001,40.7506,-73.9970"), fallback);
+
+        assertCentroid(39.2946, -76.6252, geocoder.geocode("21201"));
+        assertCentroid(18.1805, -66.7499, geocoder.geocode("00601"));
+        assertCentroid(55.5424, -131.4322, geocoder.geocode("99950"));
+        assertCentroid(40.7506, -73.9970, geocoder.geocode(" 10001 "));
+        assertEquals(Collections.emptyList(), fellBack);
+    }
+
+    @Test
+    public void testFromCsv() throws IOException {
+        Path csv = tempFile();
+        Files.write(csv, Arrays.asList("zip,latitude,longitude", "21201,39.2946,-76.6252"), StandardCharsets.UTF_8);
+        ZipCentroidGeocoder geocoder = ZipCentroidGeocoder.fromCsv(csv, fallback);
+        assertCentroid(39.2946, -76.6252, geocoder.geocode("21201"));
+    }
+
+    @Test
+    public void testZipPlusFour() throws IOException {
+        ZipCentroidGeocoder geocoder = new ZipCentroidGeocoder(table(
+                "21201-1234,39.2946,-76.6252",
+                "21202,39.2963,-76.6075"), fallback);
+        assertCentroid(39.2946, -76.6252, geocoder.geocode("21201-9999"));
+        assertCentroid(39.2946, -76.6252, geocoder.geocode("21201"));
+        assertCentroid(39.2963, -76.6075, geocoder.geocode("21202-0001"));
+
+        // not quite a zip+4
+        assertSame(FALLBACK, geocoder.geocode("21201-12"));
+        assertEquals(Collections.singletonList("21201-12"), fellBack);
+    }
+
+    @Test
+    public void testMissingZipFallsThrough() throws IOException {
+        ZipCentroidGeocoder geocoder = new ZipCentroidGeocoder(table(
+                "21201,39.2946,-76.6252",
+                "21205,39.3024,-76.5640",
+                "21209,39.3717,-76.6700"), fallback);
+        for (String address : Arrays.asList("00000", "21200", "21203", "21207", "21210", "99999",
+                "123 Main St, Baltimore, MD", "")) {
+            assertSame(address, FALLBACK, geocoder.geocode(address));
+        }
+        assertSame(FALLBACK, geocoder.geocode(null));
+        assertEquals(Arrays.asList("00000", "21200", "21203", "21207", "21210", "99999",
+                "123 Main St, Baltimore, MD", "", null), fellBack);
+
+        // an empty table finds nothing
+        ZipCentroidGeocoder empty = new ZipCentroidGeocoder(table("zip,latitude,longitude"), fallback);
+        assertSame(FALLBACK, empty.geocode("21201"));
+    }
+
+    @Test
+    public void testDuplicateZipsKeepLastRow() throws IOException {
+        Path table = table(
+                "21205,39.3024,-76.5640",
+                "21201,1,1",
+                "21209,39.3717,-76.6700",
+                "21201,2,2",
+                "21201-0001,39.2946,-76.6252");
+        // three zips of a 4 byte zip and two 4 byte floats each
+        assertEquals(8 + 3 * 12, Files.size(table));
+        ZipCentroidGeocoder geocoder = new ZipCentroidGeocoder(table, fallback);
+        assertCentroid(39.2946, -76.6252, geocoder.geocode("21201"));
+        assertCentroid(39.3024, -76.5640, geocoder.geocode("21205"));
+        assertCentroid(39.3717, -76.6700, geocoder.geocode("21209"));
+    }
+
+    @Test
+    public void testTruncatedTable() throws IOException {
+        Path table = table("21201,39.2946,-76.6252", "21205,39.3024,-76.5640");
+        byte[] bytes = Files.readAllBytes(table);
+        Files.write(table, Arrays.copyOf(bytes, bytes.length - 4));
+        assertUnreadable(table);
+
+        // cut off in the header
+        Files.write(table, Arrays.copyOf(bytes, 6));
+        assertUnreadable(table);
+
+        Files.write(table, new byte[0]);
+        assertUnreadable(table);
+
+        // not one of our tables
+        Files.write(table, "zip,latitude,longitude\n".getBytes(StandardCharsets.UTF_8));
+        assertUnreadable(table);
+    }
+
+    private Path table(String... csv) throws IOException {
+        Path table = tempFile();
+        try (BufferedReader reader = new BufferedReader(new StringReader(String.join("\n", csv)));
+             OutputStream out = Files.newOutputStream(table)) {
+            ZipCentroidGeocoder.writeTable(reader, out);
+        }
+        return table;
+    }
+
+    private Path tempFile() throws IOException {
+        Path file = Files.createTempFile("zip-centroids-test", ".bin");
+        files.add(file);
+        return file;
+    }
+
+    private void assertUnreadable(Path table) {
+        try {
+            new ZipCentroidGeocoder(table, fallback);
+            fail("read a bad table");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static void assertCentroid(double latitude, double longitude, GeoJsonPoint point) {
+        assertEquals(longitude, point.getCoordinates()[0], 0.0001);
+        assertEquals(latitude, point.getCoordinates()[1], 0.0001);
+    }
+}